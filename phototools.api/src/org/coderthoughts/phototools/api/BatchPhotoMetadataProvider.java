@@ -0,0 +1,32 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * A {@link PhotoMetadataProvider} that can obtain the metadata of many files in one call. This allows
+ * the provider to amortize its setup over the files, to read them in the order in which they are
+ * stored on disk or to read them in parallel. Callers check whether a provider implements it and
+ * otherwise call {@link #getMetaData(File)} for every file.
+ */
+public interface BatchPhotoMetadataProvider extends PhotoMetadataProvider {
+    /**
+     * Get metadata for a number of photo or video files.
+     * @param files The files to process.
+     * @return The metadata of the files, in the same order as the files. An element is <tt>null</tt> if
+     * no metadata could be obtained for that file.
+     */
+    List<Metadata> getMetaData(List<File> files);
+}
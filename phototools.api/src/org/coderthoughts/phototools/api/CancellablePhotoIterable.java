@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.util.Iterator;
+
+/**
+ * A {@link PhotoIterable} of which the iteration can be stopped early, for example because reading
+ * the next photo from the underlying storage takes a long time. Callers check whether an iterable
+ * implements it:
+ * <pre>
+ *   if (iterable instanceof CancellablePhotoIterable)
+ *       it = ((CancellablePhotoIterable) iterable).iterator(token);
+ *   else
+ *       it = iterable.iterator();
+ * </pre>
+ */
+public interface CancellablePhotoIterable extends PhotoIterable {
+    /**
+     * Obtain an iterator that stops early when the token is cancelled. Once the token is cancelled
+     * {@link Iterator#hasNext()} returns <tt>false</tt> and the iterator stops reading from the
+     * underlying storage.
+     * @param token The token to cancel the iteration with.
+     * @return The iterator.
+     */
+    Iterator<Entry> iterator(CancellationToken token);
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.File;
+
+/**
+ * A {@link PhotoMetadataProvider} that can stop obtaining the metadata of a file when it is no longer
+ * needed. Providers for which this can take a long time, such as for video files, should implement
+ * this interface. Callers check whether a provider implements it:
+ * <pre>
+ *   if (provider instanceof CancellablePhotoMetadataProvider)
+ *       metadata = ((CancellablePhotoMetadataProvider) provider).getMetaData(file, token);
+ *   else
+ *       metadata = provider.getMetaData(file);
+ * </pre>
+ */
+public interface CancellablePhotoMetadataProvider extends PhotoMetadataProvider {
+    /**
+     * Get metadata for a photo or video file.
+     * @param f The file to process.
+     * @param token The token that signals that the metadata is no longer needed.
+     * @return The metadata found, which may be incomplete if the token was cancelled.
+     */
+    Metadata getMetaData(File f, CancellationToken token);
+}
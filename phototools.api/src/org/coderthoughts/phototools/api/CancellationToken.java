@@ -0,0 +1,46 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+/**
+ * Signals that a piece of work is no longer needed, for instance because the user has asked for
+ * something else in the mean time. Cancellation is cooperative: the code doing the work checks the
+ * token regularly and stops as soon as possible once it is cancelled.
+ */
+public class CancellationToken {
+    /**
+     * A token that is never cancelled, for work that always needs to complete.
+     */
+    public static final CancellationToken NONE = new CancellationToken() {
+        @Override
+        public void cancel() {
+            // can't be cancelled
+        }
+    };
+
+    private volatile boolean cancelled = false;
+
+    /**
+     * Cancel the work associated with this token.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return <tt>true</tt> if the work associated with this token should stop.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.util.Date;
+
+/**
+ * A {@link PhotoIterable} that can skip the photos outside of a range of dates without reading them.
+ * Sources that can tell the date of a photo cheaply, for example from an index, should implement
+ * this interface. Callers check whether an iterable implements it:
+ * <pre>
+ *   if (iterable instanceof DateRangePhotoIterable)
+ *       ((DateRangePhotoIterable) iterable).setDateRange(from, to);
+ * </pre>
+ */
+public interface DateRangePhotoIterable extends PhotoIterable {
+    /**
+     * Specify the range of dates of the photos that should be returned. The iterable may skip photos
+     * that it can cheaply tell to be outside of the range without reading them. Photos of which the
+     * date isn't known are still returned, so the caller needs to check the dates as well. This method
+     * should be called before the {@link #freeze()} method is called.
+     * @param from The earliest date, inclusive, or <tt>null</tt> if there is no lower bound.
+     * @param to The latest date, exclusive, or <tt>null</tt> if there is no upper bound.
+     * @return returns itself to support fluent-style usage.
+     */
+    DateRangePhotoIterable setDateRange(Date from, Date to);
+}
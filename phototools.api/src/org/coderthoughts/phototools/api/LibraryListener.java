@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Whiteboard interface to be notified of changes in the directory trees watched by the
+ * {@link LibraryWatcher}. To receive events, register an implementation in the OSGi Service
+ * Registry:
+ * <pre>
+ *   bundleContext.registerService(LibraryListener.class.getName(), listener, null);
+ * </pre>
+ * Listeners are called on a thread of the watcher and receive the events of all watched roots,
+ * they should return quickly.
+ */
+public interface LibraryListener {
+    /**
+     * Called when files in a watched directory tree have changed.
+     * @param root The watched root directory.
+     * @param events The changes, in the order in which they were seen.
+     */
+    void libraryChanged(File root, List<Event> events);
+
+    public static class Event {
+        public static final int ADDED = 1;
+        public static final int REMOVED = 2;
+        public static final int CHANGED = 3;
+
+        private final int type;
+        private final LibraryWatcher.FileInfo fileInfo;
+
+        /**
+         * @param type One of {@link #ADDED}, {@link #REMOVED} or {@link #CHANGED}.
+         * @param fileInfo The new state of the file, or the last known state if it was removed.
+         */
+        public Event(int type, LibraryWatcher.FileInfo fileInfo) {
+            this.type = type;
+            this.fileInfo = fileInfo;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public LibraryWatcher.FileInfo getFileInfo() {
+            return fileInfo;
+        }
+
+        public File getFile() {
+            return fileInfo.getFile();
+        }
+
+        @Override
+        public String toString() {
+            String name = type == ADDED ? "ADDED" : type == REMOVED ? "REMOVED" : "CHANGED";
+            return name + " " + fileInfo;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * Service API to keep track of the files in a directory tree while it is open. The watcher
+ * maintains an in-memory model of the files in each watched root and notifies the
+ * {@link LibraryListener} services in the OSGi Service Registry of the changes it sees, e.g.
+ * <pre>
+ *   LibraryWatcher watcher = (LibraryWatcher) bundleContext.getService(sref);
+ *   watcher.watch(targetDir);
+ *   ...
+ *   watcher.unwatch(targetDir);
+ * </pre>
+ */
+public interface LibraryWatcher {
+    /**
+     * Start watching a directory tree. A root can be watched more than once, it is watched until
+     * {@link #unwatch(File)} has been called the same number of times. Building the model of a
+     * large tree takes a while, so this method is best not called on the UI thread.
+     * @param root The root directory of the tree.
+     */
+    void watch(File root);
+
+    /**
+     * Stop watching a directory tree.
+     * @param root The root directory of the tree.
+     */
+    void unwatch(File root);
+
+    /**
+     * Obtain the files currently in a watched directory tree.
+     * @param root The root directory of the tree.
+     * @return The files, or <tt>null</tt> if the root is not being watched.
+     */
+    Collection<FileInfo> getFiles(File root);
+
+    /**
+     * The state of a file as known to the watcher.
+     */
+    public static class FileInfo {
+        private final File file;
+        private final long size;
+        private final long lastModified;
+
+        public FileInfo(File file, long size, long lastModified) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return file + " (" + size + " bytes)";
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The metadata of a photo or video as typed values, so that it can be used without parsing the
+ * details. A record holds only primitive values and interned strings, and has a compact binary
+ * encoding, so that the metadata of a large library can be held in memory cheaply.
+ *
+ * Values that are not known are {@link #UNKNOWN_DATE} for the date, <tt>-1</tt> for the width and
+ * height, {@link Double#NaN} for the coordinates, <tt>null</tt> for the make and model and <tt>0</tt>
+ * for the orientation.
+ */
+public final class MetadataRecord {
+    public static final long UNKNOWN_DATE = Long.MIN_VALUE;
+
+    private static final int FLAG_DATE = 1;
+    private static final int FLAG_WIDTH = 2;
+    private static final int FLAG_HEIGHT = 4;
+    private static final int FLAG_LOCATION = 8;
+    private static final int FLAG_MAKE = 16;
+    private static final int FLAG_MODEL = 32;
+    private static final int FLAG_ORIENTATION = 64;
+
+    // The coordinates are stored as 1e-7 degrees, which is about a centimeter
+    private static final double COORDINATE_SCALE = 1e7;
+
+    private final long dateTaken;
+    private final int width;
+    private final int height;
+    private final double latitude;
+    private final double longitude;
+    private final String make;
+    private final String model;
+    private final int orientation;
+
+    /**
+     * Create a record.
+     * @param dateTaken The date taken in milliseconds since the epoch.
+     * @param width The width in pixels.
+     * @param height The height in pixels.
+     * @param latitude The latitude in degrees, negative for the southern hemisphere. This is rounded
+     * to 1e-7 degrees.
+     * @param longitude The longitude in degrees, negative west of Greenwich. This is rounded to 1e-7
+     * degrees.
+     * @param make The make of the camera.
+     * @param model The model of the camera.
+     * @param orientation The EXIF orientation, 1 to 8.
+     */
+    public MetadataRecord(long dateTaken, int width, int height, double latitude, double longitude,
+            String make, String model, int orientation) {
+        this.dateTaken = dateTaken;
+        this.width = width;
+        this.height = height;
+        if (Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            this.latitude = Double.NaN;
+            this.longitude = Double.NaN;
+        } else {
+            this.latitude = toDegrees(toFixedPoint(latitude));
+            this.longitude = toDegrees(toFixedPoint(longitude));
+        }
+        // Libraries contain photos of only a few cameras, share the strings
+        this.make = make == null ? null : make.intern();
+        this.model = model == null ? null : model.intern();
+        this.orientation = orientation;
+    }
+
+    /**
+     * @return The date taken in milliseconds since the epoch, or {@link #UNKNOWN_DATE}.
+     */
+    public long getDateTaken() {
+        return dateTaken;
+    }
+
+    /**
+     * @return The width in pixels, or <tt>-1</tt>.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The height in pixels, or <tt>-1</tt>.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return <tt>true</tt> if the coordinates of the location where the photo was taken are known.
+     */
+    public boolean hasLocation() {
+        return !Double.isNaN(latitude);
+    }
+
+    /**
+     * @return The latitude in degrees, or {@link Double#NaN}.
+     */
+    public double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * @return The longitude in degrees, or {@link Double#NaN}.
+     */
+    public double getLongitude() {
+        return longitude;
+    }
+
+    public String getMake() {
+        return make;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return The EXIF orientation, 1 (upright) to 8, or <tt>0</tt>.
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * Write the record in its binary form. Only the known values are written, dates and sizes take
+     * fewer bytes the smaller they are.
+     * @param out The output to write to.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutput out) throws IOException {
+        int flags = 0;
+        if (dateTaken != UNKNOWN_DATE)
+            flags |= FLAG_DATE;
+        if (width >= 0)
+            flags |= FLAG_WIDTH;
+        if (height >= 0)
+            flags |= FLAG_HEIGHT;
+        if (hasLocation())
+            flags |= FLAG_LOCATION;
+        if (make != null)
+            flags |= FLAG_MAKE;
+        if (model != null)
+            flags |= FLAG_MODEL;
+        if (orientation != 0)
+            flags |= FLAG_ORIENTATION;
+        out.writeByte(flags);
+
+        if (dateTaken != UNKNOWN_DATE)
+            writeVarLong(out, (dateTaken << 1) ^ (dateTaken >> 63)); // zigzag, dates before 1970 are negative
+        if (width >= 0)
+            writeVarLong(out, width);
+        if (height >= 0)
+            writeVarLong(out, height);
+        if (hasLocation()) {
+            out.writeInt(toFixedPoint(latitude));
+            out.writeInt(toFixedPoint(longitude));
+        }
+        if (make != null)
+            out.writeUTF(make);
+        if (model != null)
+            out.writeUTF(model);
+        if (orientation != 0)
+            out.writeByte(orientation);
+    }
+
+    /**
+     * Read a record written with {@link #writeTo(DataOutput)}.
+     * @param in The input to read from.
+     * @return The record.
+     * @throws IOException If reading fails.
+     */
+    public static MetadataRecord readFrom(DataInput in) throws IOException {
+        int flags = in.readUnsignedByte();
+
+        long dateTaken = UNKNOWN_DATE;
+        if ((flags & FLAG_DATE) != 0) {
+            long zigzag = readVarLong(in);
+            dateTaken = (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        int width = (flags & FLAG_WIDTH) != 0 ? (int) readVarLong(in) : -1;
+        int height = (flags & FLAG_HEIGHT) != 0 ? (int) readVarLong(in) : -1;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        if ((flags & FLAG_LOCATION) != 0) {
+            latitude = toDegrees(in.readInt());
+            longitude = toDegrees(in.readInt());
+        }
+        String make = (flags & FLAG_MAKE) != 0 ? in.readUTF() : null;
+        String model = (flags & FLAG_MODEL) != 0 ? in.readUTF() : null;
+        int orientation = (flags & FLAG_ORIENTATION) != 0 ? in.readUnsignedByte() : 0;
+        return new MetadataRecord(dateTaken, width, height, latitude, longitude, make, model, orientation);
+    }
+
+    /**
+     * @return The record in its binary form.
+     */
+    public byte [] toBytes() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(32);
+        try {
+            writeTo(new DataOutputStream(baos));
+        } catch (IOException e) {
+            // Doesn't happen when writing to a byte array
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @param bytes The binary form of a record, as obtained from {@link #toBytes()}.
+     * @return The record.
+     * @throws IOException If the bytes don't hold a valid record.
+     */
+    public static MetadataRecord fromBytes(byte [] bytes) throws IOException {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    private static int toFixedPoint(double degrees) {
+        return (int) Math.round(degrees * COORDINATE_SCALE);
+    }
+
+    private static double toDegrees(int fixedPoint) {
+        return fixedPoint / COORDINATE_SCALE;
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Invalid variable length number");
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (dateTaken ^ (dateTaken >>> 32)) * 31 + width * 17 + height;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj)
+            return true;
+        if (!(obj instanceof MetadataRecord))
+            return false;
+
+        MetadataRecord other = (MetadataRecord) obj;
+        // The strings are interned
+        return dateTaken == other.dateTaken && width == other.width && height == other.height &&
+                Double.compare(latitude, other.latitude) == 0 && Double.compare(longitude, other.longitude) == 0 &&
+                make == other.make && model == other.model && orientation == other.orientation;
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataRecord [dateTaken=" + dateTaken + ", width=" + width + ", height=" + height +
+                ", latitude=" + latitude + ", longitude=" + longitude + ", make=" + make + ", model=" + model +
+                ", orientation=" + orientation + "]";
+    }
+}
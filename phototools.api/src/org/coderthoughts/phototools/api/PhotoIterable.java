@@ -12,6 +12,7 @@
  */
 package org.coderthoughts.phototools.api;
 
+import java.io.File;
 import java.io.InputStream;
 import java.util.Date;
 
@@ -44,11 +45,17 @@ public interface PhotoIterable extends Iterable<PhotoIterable.Entry> {
         private final String name;
         private final Date date;
         private final InputStream is;
+        private final File file;
 
         public Entry(String name, Date date, InputStream is) {
+            this(name, date, is, null);
+        }
+
+        public Entry(String name, Date date, InputStream is, File file) {
             this.name = name;
             this.date = date;
             this.is = is;
+            this.file = file;
         }
 
         /**
@@ -77,5 +84,17 @@ public interface PhotoIterable extends Iterable<PhotoIterable.Entry> {
         public InputStream getInputStream() {
             return is;
         }
+
+        /**
+         * Returns the file that holds the photo bytes, if the photo is available as a file on the
+         * local file system. This allows the photo to be processed without copying it to a temporary
+         * file first. If this method returns a file, the stream returned by {@link #getInputStream()}
+         * does not need to be read. Implementations that return a file should therefore only open
+         * the stream when {@link #getInputStream()} is called.
+         * @return The file or <tt>null</tt> if the photo is not backed by a local file.
+         */
+        public File getFile() {
+            return file;
+        }
     }
 }
@@ -14,42 +14,79 @@ package org.coderthoughts.phototools.api;
 
 import java.io.File;
 import java.util.Date;
+import java.util.concurrent.Callable;
 
+/**
+ * Builds {@link PhotoMetadataProvider.Metadata} objects. Every field can either be set to a value
+ * or, through the <tt>...Lazy</tt> method, to a {@link Callable} that computes the value. A callable
+ * is only invoked when the field is first accessed, and at most once, so expensive fields cost
+ * nothing for callers that don't need them.
+ */
 public class PhotoMetadataBuilder {
-    private Date dateTaken;
-    private String details = "";
-    private String gpsInfo;
-    private Integer height;
-    private Integer width;
-    private File previewFile;
+    private Value<Date> dateTaken = new Value<Date>(null, null);
+    private Value<String> details = new Value<String>("", null);
+    private Value<String> gpsInfo = new Value<String>(null, null);
+    private Value<Integer> height = new Value<Integer>(null, null);
+    private Value<Integer> width = new Value<Integer>(null, null);
+    private Value<File> previewFile = new Value<File>(null, null);
 
     public PhotoMetadataBuilder dateTaken(Date d) {
-        dateTaken = d;
+        dateTaken = new Value<Date>(d, null);
+        return this;
+    }
+
+    public PhotoMetadataBuilder dateTakenLazy(Callable<Date> d) {
+        dateTaken = new Value<Date>(null, d);
         return this;
     }
 
     public PhotoMetadataBuilder details(String d) {
-        details = d;
+        details = new Value<String>(d, null);
+        return this;
+    }
+
+    public PhotoMetadataBuilder detailsLazy(Callable<String> d) {
+        details = new Value<String>(null, d);
         return this;
     }
 
     public PhotoMetadataBuilder height(Integer h) {
-        height = h;
+        height = new Value<Integer>(h, null);
+        return this;
+    }
+
+    public PhotoMetadataBuilder heightLazy(Callable<Integer> h) {
+        height = new Value<Integer>(null, h);
         return this;
     }
 
     public PhotoMetadataBuilder width(Integer w) {
-        width = w;
+        width = new Value<Integer>(w, null);
+        return this;
+    }
+
+    public PhotoMetadataBuilder widthLazy(Callable<Integer> w) {
+        width = new Value<Integer>(null, w);
         return this;
     }
 
     public PhotoMetadataBuilder gpsInfo(String g) {
-        gpsInfo = g;
+        gpsInfo = new Value<String>(g, null);
+        return this;
+    }
+
+    public PhotoMetadataBuilder gpsInfoLazy(Callable<String> g) {
+        gpsInfo = new Value<String>(null, g);
         return this;
     }
 
     public PhotoMetadataBuilder previewFile(File f) {
-        previewFile = f;
+        previewFile = new Value<File>(f, null);
+        return this;
+    }
+
+    public PhotoMetadataBuilder previewFileLazy(Callable<File> f) {
+        previewFile = new Value<File>(null, f);
         return this;
     }
 
@@ -57,15 +94,42 @@ public class PhotoMetadataBuilder {
         return new MD(dateTaken, previewFile, height, width, gpsInfo, details);
     }
 
+    /**
+     * A value that is either known up front or computed once on first access.
+     */
+    private static class Value<T> {
+        private Callable<T> callable;
+        private T value;
+
+        Value(T value, Callable<T> callable) {
+            this.value = value;
+            this.callable = callable;
+        }
+
+        synchronized T get() {
+            if (callable != null) {
+                try {
+                    value = callable.call();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    value = null;
+                }
+                callable = null;
+            }
+            return value;
+        }
+    }
+
     private static class MD implements PhotoMetadataProvider.Metadata {
-        private final Date dateTaken;
-        private final String gpsInfo;
-        private final Integer height;
-        private final Integer width;
-        private final File previewFile;
-        private final String details;
-
-        public MD(Date dateTaken, File previewImage, Integer height, Integer width, String gpsInfo, String details) {
+        private final Value<Date> dateTaken;
+        private final Value<String> gpsInfo;
+        private final Value<Integer> height;
+        private final Value<Integer> width;
+        private final Value<File> previewFile;
+        private final Value<String> details;
+
+        public MD(Value<Date> dateTaken, Value<File> previewImage, Value<Integer> height, Value<Integer> width,
+                Value<String> gpsInfo, Value<String> details) {
             this.dateTaken = dateTaken;
             this.previewFile = previewImage;
             this.height = height;
@@ -75,27 +139,27 @@ public class PhotoMetadataBuilder {
         }
 
         public Date getDateTaken() {
-            return dateTaken;
+            return dateTaken.get();
         }
 
         public File getPreviewFile() {
-            return previewFile;
+            return previewFile.get();
         }
 
         public String getGPSInfo() {
-            return gpsInfo;
+            return gpsInfo.get();
         }
 
         public Integer getHeightInPixels() {
-            return height;
+            return height.get();
         }
 
         public Integer getWidthInPixels() {
-            return width;
+            return width.get();
         }
 
         public String getDetails() {
-            return details;
+            return details.get();
         }
     }
 }
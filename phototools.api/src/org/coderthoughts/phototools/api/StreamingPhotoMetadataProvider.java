@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.InputStream;
+
+/**
+ * A {@link PhotoMetadataProvider} that can obtain the metadata from the start of a photo stream. This
+ * allows photos that are not available as a local file, for example in an archive or on a device, to be
+ * looked at without copying them to a temporary file first. Callers check whether a provider implements
+ * it and fall back to {@link #getMetaData(java.io.File)} when it doesn't or returns <tt>null</tt>.
+ */
+public interface StreamingPhotoMetadataProvider extends PhotoMetadataProvider {
+    /**
+     * Get metadata from the start of a photo or video stream. Only as much of the stream is read as is
+     * needed to obtain the metadata, the stream is not closed. As there is no file, the metadata doesn't
+     * have a preview file or details.
+     * @param is The stream, positioned at the start of the photo.
+     * @return The metadata found, or <tt>null</tt> if it cannot be obtained from the stream, for example
+     * because it is stored at the end of the file.
+     */
+    Metadata getMetaData(InputStream is);
+}
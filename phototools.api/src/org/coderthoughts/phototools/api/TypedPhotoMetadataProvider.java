@@ -0,0 +1,29 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.File;
+
+/**
+ * A {@link PhotoMetadataProvider} that can provide the metadata of a file as a {@link MetadataRecord}
+ * of typed values, such as the camera model and the GPS coordinates, rather than in the details text.
+ * Callers check whether a provider implements it.
+ */
+public interface TypedPhotoMetadataProvider extends PhotoMetadataProvider {
+    /**
+     * Get the metadata of a photo or video file as typed values.
+     * @param f The file to process.
+     * @return The metadata, or <tt>null</tt> if no metadata can be obtained for the file.
+     */
+    MetadataRecord getMetadataRecord(File f);
+}
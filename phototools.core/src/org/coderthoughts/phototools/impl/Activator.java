@@ -23,20 +23,35 @@ import javax.swing.UnsupportedLookAndFeelException;
 
 import com.jtattoo.plaf.hifi.HiFiLookAndFeel;
 
+import org.coderthoughts.phototools.api.LibraryWatcher;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 import org.coderthoughts.phototools.api.PhotoSource;
 import org.coderthoughts.phototools.api.ToolPanel;
 import org.coderthoughts.phototools.impl.ui.PhotoToolUI;
 import org.coderthoughts.phototools.impl.ui.about.AboutToolPanel;
 import org.coderthoughts.phototools.impl.ui.photocopy.PhotoCopyToolPanel;
+import org.coderthoughts.phototools.util.CachingPhotoMetadataProvider;
+import org.coderthoughts.phototools.util.MetadataCache;
+import org.coderthoughts.phototools.util.OSGiTools;
+import org.coderthoughts.phototools.util.TaskScheduler;
+import org.coderthoughts.phototools.util.ThumbnailService;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 
 public class Activator implements BundleActivator {
+    private MetadataCache metadataCache;
+    private WatchServiceLibraryWatcher libraryWatcher;
+    private ThumbnailService thumbnailService;
+    private TaskScheduler taskScheduler;
+    private PhotoCopyToolPanel photoCopyToolPanel;
+
     @Override
     public void start(final BundleContext context) throws Exception {
         setupLookAndFeel(context);
+        setupLibraryWatcher(context);
+        setupThumbnailService(context);
+        setupTaskScheduler(context);
         setupToolPanels(context);
         setupDirectoryPhotoSource(context);
         setupPhotoProcessors(context);
@@ -61,11 +76,27 @@ public class Activator implements BundleActivator {
         UIManager.setLookAndFeel(lnf);
     }
 
+    private void setupLibraryWatcher(BundleContext context) {
+        libraryWatcher = new WatchServiceLibraryWatcher(context);
+        context.registerService(LibraryWatcher.class.getName(), libraryWatcher, null);
+    }
+
+    private void setupThumbnailService(BundleContext context) {
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        thumbnailService = new ThumbnailService(context.getDataFile("thumbnails"), threads);
+        context.registerService(ThumbnailService.class.getName(), thumbnailService, null);
+    }
+
+    private void setupTaskScheduler(BundleContext context) {
+        taskScheduler = new TaskScheduler();
+        context.registerService(TaskScheduler.class.getName(), taskScheduler, null);
+    }
+
     private void setupToolPanels(BundleContext context) {
-        PhotoCopyToolPanel pctp = new PhotoCopyToolPanel(context);
+        photoCopyToolPanel = new PhotoCopyToolPanel(context);
         Dictionary<String, Object> props1 = new Hashtable<String, Object>();
         props1.put(Constants.SERVICE_RANKING, 100);
-        context.registerService(ToolPanel.class.getName(), pctp, props1);
+        context.registerService(ToolPanel.class.getName(), photoCopyToolPanel, props1);
 
         Dictionary<String, Object> props2 = new Hashtable<String, Object>();
         props2.put(Constants.SERVICE_RANKING, -100);
@@ -75,13 +106,15 @@ public class Activator implements BundleActivator {
     private void setupDirectoryPhotoSource(BundleContext context) {
         Dictionary<String, Object> props = new Hashtable<String, Object>();
         props.put(Constants.SERVICE_RANKING, 100);
-        context.registerService(PhotoSource.class.getName(), new DirectoryPhotoSource(), props);
+        context.registerService(PhotoSource.class.getName(), new DirectoryPhotoSource(context), props);
     }
 
     private void setupPhotoProcessors(BundleContext context) {
         Dictionary<String, Object> props = new Hashtable<String, Object>();
         props.put("format", new String [] {".jpeg", ".jpg"});
-        context.registerService(PhotoMetadataProvider.class.getName(), new JPEGMetadataProvider(), props);
+        metadataCache = new MetadataCache(context.getDataFile("metadata.cache"), 10000);
+        context.registerService(PhotoMetadataProvider.class.getName(),
+            new CachingPhotoMetadataProvider(new JPEGMetadataProvider(), metadataCache), props);
 
         // The ones below aren't really supported by anything, but they need to be copied anyway.
         Dictionary<String, Object> props2 = new Hashtable<String, Object>();
@@ -95,5 +128,16 @@ public class Activator implements BundleActivator {
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        if (photoCopyToolPanel != null)
+            photoCopyToolPanel.close();
+        OSGiTools.closeServiceIndexes(context);
+        if (libraryWatcher != null)
+            libraryWatcher.close();
+        if (thumbnailService != null)
+            thumbnailService.close();
+        if (taskScheduler != null)
+            taskScheduler.close();
+        if (metadataCache != null)
+            metadataCache.close();
     }
 }
@@ -18,10 +18,27 @@ import java.io.File;
 import javax.swing.JFileChooser;
 
 import org.coderthoughts.phototools.api.PhotoIterable;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 import org.coderthoughts.phototools.api.PhotoSource;
 import org.coderthoughts.phototools.util.DirectoryPhotoIterable;
+import org.coderthoughts.phototools.util.OSGiTools;
+import org.osgi.framework.BundleContext;
 
 public class DirectoryPhotoSource implements PhotoSource {
+    private final OSGiTools.ServiceIndex<PhotoMetadataProvider> metadataProviders;
+
+    public DirectoryPhotoSource() {
+        this.metadataProviders = null;
+    }
+
+    /**
+     * @param ctx The bundle context to look up the metadata providers with. The iterables use the JPEG
+     * metadata provider to skip the photos outside of a date range.
+     */
+    public DirectoryPhotoSource(BundleContext ctx) {
+        this.metadataProviders = OSGiTools.getPhotoMetadataProviders(ctx);
+    }
+
     @Override
     public String getLabel() {
         return "Directory";
@@ -32,7 +49,7 @@ public class DirectoryPhotoSource implements PhotoSource {
         JFileChooser chooser = new JFileChooser(initialSelection);
         chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
         if (chooser.showOpenDialog(parentWindow) == JFileChooser.APPROVE_OPTION) {
-            return new DirectoryPhotoIterable(chooser.getSelectedFile().getAbsolutePath());
+            return newIterable(chooser.getSelectedFile().getAbsolutePath());
         } else {
             return null;
         }
@@ -42,8 +59,13 @@ public class DirectoryPhotoSource implements PhotoSource {
     public PhotoIterable getPhotoIterableFromLocation(String location) {
         File f = new File(location);
         if (f.isDirectory())
-            return new DirectoryPhotoIterable(location);
+            return newIterable(location);
         else
             return null;
     }
+
+    private DirectoryPhotoIterable newIterable(String location) {
+        PhotoMetadataProvider jpegMetadataProvider = metadataProviders == null ? null : metadataProviders.getService(".jpg");
+        return new DirectoryPhotoIterable(location, null, jpegMetadataProvider);
+    }
 }
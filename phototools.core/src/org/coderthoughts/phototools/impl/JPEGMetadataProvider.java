@@ -14,16 +14,111 @@ package org.coderthoughts.phototools.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
 
+import org.coderthoughts.phototools.api.BatchPhotoMetadataProvider;
+import org.coderthoughts.phototools.api.MetadataRecord;
 import org.coderthoughts.phototools.api.PhotoMetadataBuilder;
-import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.StreamingPhotoMetadataProvider;
+import org.coderthoughts.phototools.api.TypedPhotoMetadataProvider;
+import org.coderthoughts.phototools.util.JPEGHeader;
 import org.coderthoughts.phototools.util.JPEGTools;
+import org.coderthoughts.phototools.util.MetadataTools;
 
-public class JPEGMetadataProvider implements PhotoMetadataProvider {
+public class JPEGMetadataProvider implements StreamingPhotoMetadataProvider, BatchPhotoMetadataProvider,
+        TypedPhotoMetadataProvider {
     @Override
-    public Metadata getMetaData(File f) {
+    public Metadata getMetaData(final File f) {
+        JPEGHeader header;
+        try {
+            header = JPEGHeader.read(f);
+        } catch (IOException e) {
+            // Not something the header reader understands, try the full parse
+            return getFullMetaData(f);
+        }
+
+        // Only the header is read, the full metadata is only parsed if the details are needed.
+        return new PhotoMetadataBuilder().
+            dateTaken(header.getDateTaken()).
+            previewFile(f).
+            height(header.getHeight()).
+            width(header.getWidth()).
+            gpsInfo(header.getGPSInfo()).
+            detailsLazy(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    Metadata md = getFullMetaData(f);
+                    return md == null ? "" : md.getDetails();
+                }
+            }).getMetadata();
+    }
+
+    @Override
+    public List<Metadata> getMetaData(List<File> files) {
+        // Only the start of each file is read, so the order of the reads determines how much a disk seeks
+        Metadata [] result = new Metadata[files.size()];
+        for (int i : MetadataTools.getReadOrder(files)) {
+            result[i] = getMetaData(files.get(i));
+        }
+        return Arrays.asList(result);
+    }
+
+    @Override
+    public MetadataRecord getMetadataRecord(File f) {
+        try {
+            JPEGHeader header = JPEGHeader.read(f);
+            return newRecord(header.getDateTaken(), header.getWidth(), header.getHeight(), header.getLatitude(),
+                    header.getLongitude(), header.getMake(), header.getModel(), header.getOrientation());
+        } catch (IOException e) {
+            // Not something the header reader understands, try the full parse
+        }
+
         try {
             JPEGTools jpt = JPEGTools.getJPEGTools(f);
+            if (jpt == null)
+                return null;
+
+            return newRecord(jpt.getDateTaken(), jpt.getWidth(), jpt.getHeight(), jpt.getLatitude(),
+                    jpt.getLongitude(), jpt.getMake(), jpt.getModel(), jpt.getOrientation());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static MetadataRecord newRecord(Date date, Integer width, Integer height, Double latitude, Double longitude,
+            String make, String model, Integer orientation) {
+        return new MetadataRecord(date == null ? MetadataRecord.UNKNOWN_DATE : date.getTime(),
+                width == null ? -1 : width, height == null ? -1 : height,
+                latitude == null ? Double.NaN : latitude, longitude == null ? Double.NaN : longitude,
+                make, model, orientation == null ? 0 : orientation);
+    }
+
+    @Override
+    public Metadata getMetaData(InputStream is) {
+        JPEGHeader header;
+        try {
+            header = JPEGHeader.read(is);
+        } catch (IOException e) {
+            return null;
+        }
+
+        return new PhotoMetadataBuilder().
+            dateTaken(header.getDateTaken()).
+            height(header.getHeight()).
+            width(header.getWidth()).
+            gpsInfo(header.getGPSInfo()).getMetadata();
+    }
+
+    static Metadata getFullMetaData(File f) {
+        try {
+            final JPEGTools jpt = JPEGTools.getJPEGTools(f);
+            if (jpt == null)
+                return null;
 
             PhotoMetadataBuilder mdBuilder = new PhotoMetadataBuilder();
             return mdBuilder.dateTaken(jpt.getDateTaken()).
@@ -31,7 +126,12 @@ public class JPEGMetadataProvider implements PhotoMetadataProvider {
                 height(jpt.getHeight()).
                 width(jpt.getWidth()).
                 gpsInfo(jpt.getGPSInfo()).
-                details(jpt.getDetails()).getMetadata();
+                detailsLazy(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return jpt.getDetails();
+                    }
+                }).getMetadata();
         } catch (IOException e) {
             return null;
         }
@@ -0,0 +1,341 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.impl;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.coderthoughts.phototools.api.LibraryListener;
+import org.coderthoughts.phototools.api.LibraryListener.Event;
+import org.coderthoughts.phototools.api.LibraryWatcher;
+import org.coderthoughts.phototools.util.FileTreeIterable;
+import org.coderthoughts.phototools.util.FileTreeIterator;
+import org.coderthoughts.phototools.util.OSGiTools;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * A {@link LibraryWatcher} based on the {@link WatchService} of the file system. Every watched
+ * root has its own watch service and a thread that processes its events. The events are passed on
+ * to the {@link LibraryListener} services.
+ *
+ * The watch service only reports changes to the directories that have been registered with it, so
+ * when a directory is created it is scanned after being registered to pick up the files that were
+ * created in it before. When the watch service has lost events the whole tree is scanned again.
+ */
+public class WatchServiceLibraryWatcher implements LibraryWatcher {
+    private final BundleContext bundleContext;
+    private final Map<File, WatchedRoot> roots = new HashMap<File, WatchedRoot>();
+    private boolean closed = false;
+
+    public WatchServiceLibraryWatcher(BundleContext context) {
+        bundleContext = context;
+    }
+
+    @Override
+    public void watch(File root) {
+        File key = root.getAbsoluteFile();
+        synchronized (this) {
+            WatchedRoot wr = roots.get(key);
+            if (wr != null) {
+                wr.users++;
+                return;
+            }
+        }
+
+        // The initial scan walks the whole tree, the other roots shouldn't wait for that
+        WatchedRoot newRoot;
+        try {
+            newRoot = new WatchedRoot(key);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        synchronized (this) {
+            WatchedRoot wr = roots.get(key);
+            if (wr == null && !closed) {
+                roots.put(key, newRoot);
+                newRoot.start();
+                newRoot.users++;
+                return;
+            }
+
+            // Watched by another caller in the meantime, or the watcher was closed
+            if (wr != null)
+                wr.users++;
+        }
+        newRoot.close();
+    }
+
+    @Override
+    public synchronized void unwatch(File root) {
+        File key = root.getAbsoluteFile();
+        WatchedRoot wr = roots.get(key);
+        if (wr == null)
+            return;
+
+        if (--wr.users == 0) {
+            roots.remove(key);
+            wr.close();
+        }
+    }
+
+    @Override
+    public synchronized Collection<FileInfo> getFiles(File root) {
+        WatchedRoot wr = roots.get(root.getAbsoluteFile());
+        if (wr == null)
+            return null;
+
+        return new ArrayList<FileInfo>(wr.files.values());
+    }
+
+    /**
+     * Stop watching all roots.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (WatchedRoot wr : roots.values()) {
+            wr.close();
+        }
+        roots.clear();
+    }
+
+    /**
+     * Pass events on to the listeners.
+     * @param root The root where the events happened.
+     * @param events The events.
+     */
+    protected void fireEvents(File root, List<Event> events) {
+        for (ServiceReference ref : OSGiTools.getSortedServiceReferences(bundleContext, LibraryListener.class.getName(), null)) {
+            LibraryListener listener = (LibraryListener) bundleContext.getService(ref);
+            if (listener == null)
+                continue;
+
+            try {
+                listener.libraryChanged(root, events);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                bundleContext.ungetService(ref);
+            }
+        }
+    }
+
+    private class WatchedRoot implements Runnable {
+        private final File root;
+        private final WatchService watchService;
+        private final Map<WatchKey, Path> keyDirs = new HashMap<WatchKey, Path>();
+        private final Map<Path, WatchKey> dirKeys = new HashMap<Path, WatchKey>();
+        private final ConcurrentMap<Path, FileInfo> files = new ConcurrentHashMap<Path, FileInfo>();
+        private int users = 0;
+        private volatile boolean closed = false;
+
+        WatchedRoot(File root) throws IOException {
+            this.root = root;
+            watchService = root.toPath().getFileSystem().newWatchService();
+            scan(root.toPath(), null, null);
+        }
+
+        void start() {
+            Thread t = new Thread(this, "Library Watcher: " + root);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        void close() {
+            closed = true;
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                WatchKey key;
+                try {
+                    key = watchService.take();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                }
+
+                List<Event> events = new ArrayList<Event>();
+                try {
+                    // Handle everything that is already queued together
+                    do {
+                        processKey(key, events);
+                    } while ((key = watchService.poll()) != null);
+                } catch (ClosedWatchServiceException e) {
+                    return;
+                }
+
+                if (!closed && events.size() > 0)
+                    fireEvents(root, events);
+            }
+        }
+
+        private void processKey(WatchKey key, List<Event> events) {
+            Path dir = keyDirs.get(key);
+            if (dir == null) {
+                key.cancel();
+                return;
+            }
+
+            for (WatchEvent<?> we : key.pollEvents()) {
+                if (we.kind() == OVERFLOW) {
+                    rescan(events);
+                    continue;
+                }
+
+                Path path = dir.resolve((Path) we.context());
+                if (we.kind() == ENTRY_DELETE) {
+                    remove(path, events);
+                    continue;
+                }
+
+                BasicFileAttributes attrs;
+                try {
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Already gone again
+                    remove(path, events);
+                    continue;
+                }
+
+                if (attrs.isDirectory()) {
+                    if (!dirKeys.containsKey(path))
+                        scan(path, events, null);
+                } else {
+                    update(path, attrs, events);
+                }
+            }
+
+            if (!key.reset()) {
+                keyDirs.remove(key);
+                dirKeys.remove(dir);
+            }
+        }
+
+        private void scan(Path dir, List<Event> events, Set<Path> seen) {
+            register(dir);
+            FileTreeIterator it = new FileTreeIterator(dir);
+            try {
+                while (it.hasNext()) {
+                    FileTreeIterable.Entry entry = it.next();
+                    if (entry.isDirectory()) {
+                        register(entry.getPath());
+                    } else {
+                        update(entry.getPath(), entry.getAttributes(), events);
+                        if (seen != null)
+                            seen.add(entry.getPath());
+                    }
+                }
+            } finally {
+                it.close();
+            }
+        }
+
+        private void rescan(List<Event> events) {
+            Set<Path> seen = new HashSet<Path>();
+            scan(root.toPath(), events, seen);
+            for (Iterator<Map.Entry<Path, FileInfo>> it = files.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, FileInfo> entry = it.next();
+                if (!seen.contains(entry.getKey())) {
+                    it.remove();
+                    events.add(new Event(Event.REMOVED, entry.getValue()));
+                }
+            }
+        }
+
+        private void register(Path dir) {
+            if (dirKeys.containsKey(dir))
+                return;
+
+            try {
+                WatchKey key = dir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+                keyDirs.put(key, dir);
+                dirKeys.put(dir, key);
+            } catch (IOException e) {
+                System.out.println("Cannot watch directory: " + dir + " " + e);
+            }
+        }
+
+        private void update(Path path, BasicFileAttributes attrs, List<Event> events) {
+            FileInfo fi = new FileInfo(path.toFile(), attrs.size(), attrs.lastModifiedTime().toMillis());
+            FileInfo old = files.put(path, fi);
+            if (events == null)
+                return;
+
+            if (old == null)
+                events.add(new Event(Event.ADDED, fi));
+            else if (old.getSize() != fi.getSize() || old.getLastModified() != fi.getLastModified())
+                events.add(new Event(Event.CHANGED, fi));
+        }
+
+        private void remove(Path path, List<Event> events) {
+            FileInfo old = files.remove(path);
+            if (old != null) {
+                events.add(new Event(Event.REMOVED, old));
+                return;
+            }
+
+            WatchKey key = dirKeys.get(path);
+            if (key == null)
+                return;
+
+            // A directory was removed, along with everything in it
+            for (Iterator<Map.Entry<Path, WatchKey>> it = dirKeys.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, WatchKey> entry = it.next();
+                if (entry.getKey().startsWith(path)) {
+                    entry.getValue().cancel();
+                    keyDirs.remove(entry.getValue());
+                    it.remove();
+                }
+            }
+            for (Iterator<Map.Entry<Path, FileInfo>> it = files.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, FileInfo> entry = it.next();
+                if (entry.getKey().startsWith(path)) {
+                    it.remove();
+                    events.add(new Event(Event.REMOVED, entry.getValue()));
+                }
+            }
+        }
+    }
+}
@@ -12,29 +12,58 @@
  */
 package org.coderthoughts.phototools.impl.photocopy;
 
+import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.coderthoughts.phototools.api.PhotoIterable;
 import org.coderthoughts.phototools.api.PhotoIterable.Entry;
+import org.coderthoughts.phototools.api.MetadataRecord;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.util.MetadataTools;
+import org.coderthoughts.phototools.util.OSGiTools;
 import org.coderthoughts.phototools.util.StreamTools;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.InvalidSyntaxException;
-import org.osgi.framework.ServiceReference;
 
 public class Copier {
-    private final BundleContext bundleContext;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    private static final int BATCH_SIZE = 32;
+
+    private final OSGiTools.ServiceIndex<PhotoMetadataProvider> metadataProviders;
+    private final int threads;
 
     public Copier(BundleContext ctx) {
-        bundleContext = ctx;
+        this(ctx, 1);
+    }
+
+    /**
+     * Create a copier that uses a pipeline of the specified number of threads per stage. When
+     * more than one thread is used reading, metadata extraction and writing of the photos overlap.
+     * @param ctx The bundle context.
+     * @param threads The number of threads to use, 1 means that photos are copied one at a time.
+     */
+    public Copier(BundleContext ctx, int threads) {
+        metadataProviders = OSGiTools.getPhotoMetadataProviders(ctx);
+        this.threads = threads;
     }
 
     public void copy(PhotoIterable sourceIterable, String targetDirectory, String targetDateStructure, Date fromDate, Date toDate, Collection<String> selectedImageNames) throws Exception {
@@ -43,105 +72,198 @@ public class Copier {
         System.out.println(" Date format: " + targetDateStructure);
         SimpleDateFormat sdf = new SimpleDateFormat(targetDateStructure);
 
+        if (threads > 1) {
+            new Pipeline(targetDirectory, sdf, fromDate, toDate).run(sourceIterable, selectedImageNames);
+            System.out.println("Done.");
+            return;
+        }
+
+        Map<File, Long> reserved = new HashMap<File, Long>();
+        List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
         for (Entry entry : sourceIterable) {
-            String name = entry.getName();
-            String extension = name;
-            int idx = name.lastIndexOf('.');
-            if (idx >= 0)
-                extension = name.substring(idx);
-            extension = extension.toLowerCase();
+            String extension = getExtension(entry.getName());
             PhotoMetadataProvider mdp = getPhotoMetadataProvider(extension);
 
-            boolean skipFile = name.startsWith(".");
-            if (!skipFile)
-                skipFile = (mdp == null);
-
-            if (selectedImageNames != null && !selectedImageNames.contains(name))
-                skipFile = true;
+            if (skipFile(entry, mdp, selectedImageNames))
+                continue;
 
-            if (skipFile) {
-                System.out.println("Skipping " + entry.getName());
-                entry.getInputStream().close(); // Get rid of the stream by closing it
+            if (entry.getFile() != null) {
+                // The metadata of local files is obtained in batches
+                batch.add(entry);
+                if (batch.size() == BATCH_SIZE)
+                    copyBatch(batch, targetDirectory, sdf, fromDate, toDate, reserved);
                 continue;
             }
 
-            System.out.print(entry.getName() + ": ");
-            InputStream is = null;
-            OutputStream os = null;
-            File tempFile = File.createTempFile("PhotoCopyTemp", extension);
-            try {
-                StreamTools.pump(entry.getInputStream(), new FileOutputStream(tempFile), 1024 * 1024);
-                System.out.print(".");
+            // The stream of an entry may only be readable until the next entry is obtained, so copy it
+            // right away, after the batch to keep the source order.
+            copyBatch(batch, targetDirectory, sdf, fromDate, toDate, reserved);
+            copyEntry(entry, mdp, null, targetDirectory, sdf, fromDate, toDate, reserved);
+        }
+        copyBatch(batch, targetDirectory, sdf, fromDate, toDate, reserved);
+        System.out.println("Done.");
+    }
+
+    private void copyBatch(List<Entry> batch, String targetDirectory, SimpleDateFormat sdf, Date fromDate, Date toDate,
+            Map<File, Long> reserved) {
+        List<File> files = new ArrayList<File>(batch.size());
+        List<PhotoMetadataProvider> providers = new ArrayList<PhotoMetadataProvider>(batch.size());
+        for (Entry entry : batch) {
+            files.add(entry.getFile());
+            providers.add(getPhotoMetadataProvider(getExtension(entry.getName())));
+        }
+
+        // Only the dates are needed, the records come from the metadata cache where possible
+        List<MetadataRecord> records = MetadataTools.getMetadataRecords(providers, files);
+        for (int i = 0; i < batch.size(); i++) {
+            copyEntry(batch.get(i), providers.get(i), records.get(i), targetDirectory, sdf, fromDate, toDate, reserved);
+        }
+        batch.clear();
+    }
 
-                Date timestamp = null;
-                timestamp = mdp.getMetaData(tempFile).getDateTaken();
-                if (timestamp == null)
-                    timestamp = entry.getDate();
+    /*
+     * Copy a single entry. The metadata record is that of the local file backing the entry, if there is one.
+     */
+    private static void copyEntry(Entry entry, PhotoMetadataProvider mdp, MetadataRecord record, String targetDirectory,
+            SimpleDateFormat sdf, Date fromDate, Date toDate, Map<File, Long> reserved) {
+        System.out.print(entry.getName() + ": ");
+        File contentFile = entry.getFile();
+        File tempFile = null;
+        try {
+            Date timestamp = null;
+            if (contentFile == null) {
+                // Not backed by a local file, if possible check the date from the start of the stream
+                // before reading the photo into a temporary file.
+                InputStream is = new BufferedInputStream(entry.getInputStream(), BUFFER_SIZE);
+                Metadata streamMD = StreamTools.getMetaData(mdp, is);
+                if (streamMD != null) {
+                    timestamp = getTimestamp(streamMD, entry);
+                    if (timestamp == null) {
+                        System.out.println("no date, skipping.");
+                        is.close();
+                        return;
+                    }
 
-                if (timestamp == null) {
-                    System.out.println("no date, skipping.");
-                    continue;
+                    if (!withinDates(timestamp, fromDate, toDate)) {
+                        is.close();
+                        return;
+                    }
                 }
 
-                if (fromDate != null)
-                    if (timestamp.getTime() < fromDate.getTime())
-                        continue;
+                tempFile = File.createTempFile("PhotoCopyTemp", getExtension(entry.getName()));
+                StreamTools.pump(is, new FileOutputStream(tempFile), BUFFER_SIZE);
+                contentFile = tempFile;
+                System.out.print(".");
+            }
 
-                if (toDate != null)
-                    if (timestamp.getTime() >= toDate.getTime())
-                        continue;
+            if (timestamp == null)
+                timestamp = getTimestamp(tempFile != null ? MetadataTools.getMetadataRecord(mdp, contentFile) : record, entry);
 
-                String targetPath = sdf.format(timestamp);
-                File targetDir = new File(targetDirectory, targetPath).getCanonicalFile();
-                targetDir.mkdirs();
-                File targetFile = getTargetFile(entry.getName(), tempFile, targetDir);
-                if (targetFile == null)
-                    continue;
+            if (timestamp == null) {
+                System.out.println("no date, skipping.");
+                return;
+            }
 
-                System.out.print("->" + targetFile.getAbsolutePath());
+            if (!withinDates(timestamp, fromDate, toDate))
+                return;
 
-                is = new FileInputStream(tempFile);
-                os = new FileOutputStream(targetFile);
-                StreamTools.pump(is, os, 1024 * 1024);
-                System.out.println(" Done.");
-            } catch (IOException ioe) {
-                System.err.println("Problem copying " + entry.getName());
-                ioe.printStackTrace();
-            } finally {
-                if (is != null) {
-                    is.close();
-                }
-                if (os != null) {
-                    os.close();
-                }
+            File targetFile = getTargetFile(entry.getName(), contentFile, targetDirectory, sdf.format(timestamp), reserved);
+            if (targetFile == null)
+                return;
+
+            System.out.print("->" + targetFile.getAbsolutePath());
+            copyFile(contentFile, targetFile, tempFile != null);
+            System.out.println(" Done.");
+        } catch (IOException ioe) {
+            System.err.println("Problem copying " + entry.getName());
+            ioe.printStackTrace();
+        } finally {
+            if (tempFile != null)
                 tempFile.delete();
-            }
         }
-        System.out.println("Done.");
     }
 
-    private PhotoMetadataProvider getPhotoMetadataProvider(String extension) {
-        try {
-            ServiceReference[] srefs = bundleContext.getServiceReferences(PhotoMetadataProvider.class.getName(), "(format=" + extension + ")");
-            if (srefs == null)
-                return null;
+    /*
+     * Copy the content to the target file. A temporary file can simply be moved into place, which
+     * avoids writing the photo a second time if the temp directory is on the same file system.
+     */
+    private static void copyFile(File contentFile, File targetFile, boolean temporary) throws IOException {
+        if (temporary)
+            Files.move(contentFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        else
+            Files.copy(contentFile.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
 
-            if (srefs.length < 1)
-                return null;
+    private static String getExtension(String name) {
+        String extension = name;
+        int idx = name.lastIndexOf('.');
+        if (idx >= 0)
+            extension = name.substring(idx);
+        return extension.toLowerCase();
+    }
 
-            return (PhotoMetadataProvider) bundleContext.getService(srefs[0]);
-        } catch (InvalidSyntaxException e) {
-            return null;
+    private static boolean skipFile(Entry entry, PhotoMetadataProvider mdp, Collection<String> selectedImageNames) throws IOException {
+        String name = entry.getName();
+        boolean skipFile = name.startsWith(".");
+        if (!skipFile)
+            skipFile = (mdp == null);
+
+        if (selectedImageNames != null && !selectedImageNames.contains(name))
+            skipFile = true;
+
+        if (skipFile) {
+            System.out.println("Skipping " + entry.getName());
+            if (entry.getFile() == null)
+                entry.getInputStream().close(); // Get rid of the stream by closing it
         }
+        return skipFile;
+    }
+
+    private static Date getTimestamp(Metadata md, Entry entry) {
+        Date timestamp = md == null ? null : md.getDateTaken();
+        if (timestamp == null)
+            timestamp = entry.getDate();
+        return timestamp;
+    }
+
+    private static Date getTimestamp(MetadataRecord record, Entry entry) {
+        if (record == null || record.getDateTaken() == MetadataRecord.UNKNOWN_DATE)
+            return entry.getDate();
+        return new Date(record.getDateTaken());
+    }
+
+    private static boolean withinDates(Date timestamp, Date fromDate, Date toDate) {
+        if (fromDate != null)
+            if (timestamp.getTime() < fromDate.getTime())
+                return false;
+
+        if (toDate != null)
+            if (timestamp.getTime() >= toDate.getTime())
+                return false;
+
+        return true;
+    }
+
+    private PhotoMetadataProvider getPhotoMetadataProvider(String extension) {
+        return metadataProviders.getService(extension);
     }
 
-    private static File getTargetFile(String fileName, File contentFile, File targetDir) {
+    /*
+     * Find the file to copy to. The reserved map contains the target files (and their sizes) that have
+     * been handed out but may not have been written yet. This keeps the naming of the _1, _2 etc
+     * suffixes the same regardless of whether the copy operations happen in the background.
+     */
+    private static File getTargetFile(String fileName, File contentFile, String targetDirectory, String targetPath, Map<File, Long> reserved) throws IOException {
+        File targetDir = new File(targetDirectory, targetPath).getCanonicalFile();
+        targetDir.mkdirs();
+
         File targetFileBase = new File(targetDir, fileName);
         File targetFile = targetFileBase;
         int counter = 1;
 
-        while (targetFile.exists()) {
-            if (targetFile.length() == contentFile.length()) {
+        Long length;
+        while ((length = getLength(targetFile, reserved)) != null) {
+            if (length == contentFile.length()) {
                 System.out.println("Already exist - skipping: " + targetFile.getAbsolutePath());
                 return null;
             } else {
@@ -163,6 +285,285 @@ public class Copier {
                         fileName + " already exist, trying filename: " + targetFile.getName());
             }
         }
+        reserved.put(targetFile, contentFile.length());
         return targetFile;
     }
+
+    private static Long getLength(File file, Map<File, Long> reserved) {
+        Long length = reserved.get(file);
+        if (length != null)
+            return length;
+
+        if (file.exists())
+            return file.length();
+
+        return null;
+    }
+
+    /*
+     * The pipeline has the following stages:
+     * - the calling thread iterates over the source. Entries that aren't backed by a local file are
+     *   read into a temporary file right away, as their stream may not be readable any more once
+     *   the iterator has moved on. If the date can be read from the start of the stream, it is
+     *   checked first and the metadata pool is bypassed. Entries backed by a local file are handed
+     *   to the metadata pool in batches.
+     * - the metadata pool obtains the date of the photo
+     * - a single resolver thread processes the entries in source order and decides on the target
+     *   file name, this keeps the naming deterministic. The entry is then handed to the write pool.
+     * - the write pool copies the temporary file to its target location.
+     * The queues between the stages are bounded so that only a limited number of temporary files exist.
+     */
+    private class Pipeline {
+        private final CopyTask endMarker = new CopyTask(null, null, null);
+        private final BlockingQueue<CopyTask> pending = new ArrayBlockingQueue<CopyTask>(threads * 4);
+        private final Map<File, Long> reserved = new HashMap<File, Long>(); // only accessed by the resolver thread
+        private final String targetDirectory;
+        private final SimpleDateFormat sdf;
+        private final Date fromDate;
+        private final Date toDate;
+        private final ExecutorService metadataPool = Executors.newFixedThreadPool(threads);
+        private final ExecutorService writePool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+
+        Pipeline(String targetDirectory, SimpleDateFormat sdf, Date fromDate, Date toDate) {
+            this.targetDirectory = targetDirectory;
+            this.sdf = sdf;
+            this.fromDate = fromDate;
+            this.toDate = toDate;
+        }
+
+        void run(PhotoIterable sourceIterable, Collection<String> selectedImageNames) throws Exception {
+            Thread resolver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    resolve();
+                }
+            }, "PhotoCopy resolver");
+            resolver.start();
+
+            List<CopyTask> batch = new ArrayList<CopyTask>(BATCH_SIZE);
+            try {
+                for (Entry entry : sourceIterable) {
+                    String extension = getExtension(entry.getName());
+                    PhotoMetadataProvider mdp = getPhotoMetadataProvider(extension);
+
+                    if (skipFile(entry, mdp, selectedImageNames))
+                        continue;
+
+                    CopyTask task = new CopyTask(entry, extension, mdp);
+                    if (!pending.offer(task)) {
+                        // The resolver may be waiting for a task in the batch, so hand it off before blocking
+                        analyze(batch);
+                        pending.put(task); // blocks if the pipeline is full
+                    }
+
+                    File file = entry.getFile();
+                    if (file != null) {
+                        task.contentFile = file;
+                        batch.add(task);
+                        if (batch.size() == BATCH_SIZE)
+                            analyze(batch);
+                        continue;
+                    }
+
+                    stage(task);
+                }
+            } finally {
+                analyze(batch);
+                pending.put(endMarker);
+                resolver.join();
+                metadataPool.shutdown();
+                writePool.shutdown();
+                writePool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void stage(final CopyTask task) {
+            try {
+                InputStream is = new BufferedInputStream(task.entry.getInputStream(), BUFFER_SIZE);
+                Metadata md = StreamTools.getMetaData(task.metadataProvider, is);
+                if (md != null) {
+                    Date timestamp = getTimestamp(md, task.entry);
+                    if (timestamp == null || !withinDates(timestamp, fromDate, toDate)) {
+                        // Not copied, the resolver skips it
+                        is.close();
+                        task.timestamp = timestamp;
+                        task.analyzed.countDown();
+                        return;
+                    }
+                    task.timestamp = timestamp;
+                }
+
+                File tempFile = File.createTempFile("PhotoCopyTemp", task.extension);
+                task.contentFile = tempFile;
+                task.temporary = true;
+                StreamTools.pump(is, new FileOutputStream(tempFile), BUFFER_SIZE);
+
+                if (task.timestamp != null) {
+                    task.analyzed.countDown();
+                    return;
+                }
+                metadataPool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        analyze(task);
+                    }
+                });
+            } catch (Exception e) {
+                task.fail(e);
+            }
+        }
+
+        /*
+         * Hand the tasks in the batch to the metadata pool as a single job, the batch is cleared.
+         */
+        private void analyze(List<CopyTask> batch) {
+            if (batch.isEmpty())
+                return;
+
+            final List<CopyTask> tasks = new ArrayList<CopyTask>(batch);
+            batch.clear();
+            metadataPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    analyzeBatch(tasks);
+                }
+            });
+        }
+
+        private void analyzeBatch(List<CopyTask> tasks) {
+            List<File> files = new ArrayList<File>(tasks.size());
+            List<PhotoMetadataProvider> providers = new ArrayList<PhotoMetadataProvider>(tasks.size());
+            for (CopyTask task : tasks) {
+                files.add(task.contentFile);
+                providers.add(task.metadataProvider);
+            }
+
+            try {
+                List<MetadataRecord> records = MetadataTools.getMetadataRecords(providers, files);
+                for (int i = 0; i < tasks.size(); i++) {
+                    CopyTask task = tasks.get(i);
+                    task.timestamp = getTimestamp(records.get(i), task.entry);
+                    task.analyzed.countDown();
+                }
+            } catch (Exception e) {
+                for (CopyTask task : tasks) {
+                    if (task.analyzed.getCount() > 0)
+                        task.fail(e);
+                }
+            }
+        }
+
+        private void analyze(CopyTask task) {
+            try {
+                task.timestamp = getTimestamp(MetadataTools.getMetadataRecord(task.metadataProvider, task.contentFile), task.entry);
+                task.analyzed.countDown();
+            } catch (Exception e) {
+                task.fail(e);
+            }
+        }
+
+        private void resolve() {
+            CopyTask task = null;
+            try {
+                while ((task = pending.take()) != endMarker) {
+                    task.analyzed.await();
+                    boolean resolved = false;
+                    try {
+                        resolved = resolve(task);
+                    } catch (RuntimeException e) {
+                        // Fail this task only, the others still need to be drained
+                        System.err.println("Problem copying " + task.entry.getName());
+                        e.printStackTrace();
+                    }
+                    if (!resolved)
+                        task.deleteTempFile();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            // drain whatever is left in case of an interrupt
+            while ((task = pending.poll()) != null) {
+                if (task != endMarker)
+                    task.deleteTempFile();
+            }
+        }
+
+        private boolean resolve(final CopyTask task) {
+            String name = task.entry.getName();
+            if (task.failure != null) {
+                System.err.println("Problem copying " + name);
+                task.failure.printStackTrace();
+                return false;
+            }
+
+            if (task.timestamp == null) {
+                System.out.println(name + ": no date, skipping.");
+                return false;
+            }
+
+            if (!withinDates(task.timestamp, fromDate, toDate))
+                return false;
+
+            try {
+                final File targetFile = getTargetFile(name, task.contentFile, targetDirectory, sdf.format(task.timestamp), reserved);
+                if (targetFile == null)
+                    return false;
+
+                writePool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        write(task, targetFile);
+                    }
+                });
+                return true;
+            } catch (IOException ioe) {
+                System.err.println("Problem copying " + name);
+                ioe.printStackTrace();
+                return false;
+            }
+        }
+
+        private void write(CopyTask task, File targetFile) {
+            try {
+                copyFile(task.contentFile, targetFile, task.temporary);
+                System.out.println(task.entry.getName() + ": ->" + targetFile.getAbsolutePath() + " Done.");
+            } catch (IOException ioe) {
+                System.err.println("Problem copying " + task.entry.getName());
+                ioe.printStackTrace();
+            } finally {
+                task.deleteTempFile();
+            }
+        }
+    }
+
+    private static class CopyTask {
+        final Entry entry;
+        final String extension;
+        final PhotoMetadataProvider metadataProvider;
+        final CountDownLatch analyzed = new CountDownLatch(1);
+
+        // These are written by the iterating and metadata threads before the latch is released
+        volatile File contentFile;
+        volatile boolean temporary;
+        volatile Date timestamp;
+        volatile Exception failure;
+
+        CopyTask(Entry entry, String extension, PhotoMetadataProvider metadataProvider) {
+            this.entry = entry;
+            this.extension = extension;
+            this.metadataProvider = metadataProvider;
+        }
+
+        void fail(Exception e) {
+            failure = e;
+            analyzed.countDown();
+        }
+
+        void deleteTempFile() {
+            if (temporary)
+                contentFile.delete();
+        }
+    }
 }
@@ -26,11 +26,10 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Properties;
 
@@ -47,26 +46,29 @@ import javax.swing.JRadioButton;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextField;
-import javax.swing.SwingUtilities;
 import javax.swing.border.TitledBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import org.coderthoughts.phototools.api.CancellablePhotoIterable;
+import org.coderthoughts.phototools.api.CancellationToken;
+import org.coderthoughts.phototools.api.DateRangePhotoIterable;
 import org.coderthoughts.phototools.api.PhotoIterable;
 import org.coderthoughts.phototools.api.PhotoIterable.Entry;
-import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 import org.coderthoughts.phototools.api.PhotoSource;
 import org.coderthoughts.phototools.api.ToolPanel;
 import org.coderthoughts.phototools.impl.photocopy.Copier;
 import org.coderthoughts.phototools.util.DirTreeIterable;
+import org.coderthoughts.phototools.util.DirectoryIndex;
 import org.coderthoughts.phototools.util.DirectoryPhotoIterable;
 import org.coderthoughts.phototools.util.OSGiTools;
+import org.coderthoughts.phototools.util.TaskScheduler;
 import org.coderthoughts.phototools.util.ui.UIUtils;
+import org.coderthoughts.phototools.util.ui.WatchedLocation;
 import org.coderthoughts.phototools.util.ui.WrappingFlowLayout;
 import org.jdesktop.swingx.JXDatePicker;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
-import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 
 public class PhotoCopyToolPanel implements ToolPanel {
@@ -83,11 +85,13 @@ public class PhotoCopyToolPanel implements ToolPanel {
 
 
     private final BundleContext bundleContext;
+    private final WatchedLocation watchedTarget;
     private Collection<String> selectedImageNames;
     private JPanel sourceImagePNL;
     private JPanel targetImagePNL;
     private JTextField sourceTF;
     private JTextField targetTF;
+    private PhotoSource sourcePhotoSource;
     private PhotoIterable sourceIterable;
     private JComponent thePanel;
     private JSplitPane previewSplitPane;
@@ -98,6 +102,14 @@ public class PhotoCopyToolPanel implements ToolPanel {
 
     public PhotoCopyToolPanel(BundleContext ctx) {
         bundleContext = ctx;
+
+        // Other programs may add photos to the target while it is shown, keep the preview current
+        watchedTarget = new WatchedLocation(ctx, new Runnable() {
+            @Override
+            public void run() {
+                updateLocationAsync(targetImagePNL, getTargetIterable(targetTF.getText()));
+            }
+        });
     }
 
     @Override
@@ -171,6 +183,13 @@ public class PhotoCopyToolPanel implements ToolPanel {
         toolSplitPane.setDividerLocation((int) (thePanel.getWidth() * 0.6));
     }
 
+    /**
+     * Stop watching the target directory, called when the panel is disposed.
+     */
+    public void close() {
+        watchedTarget.close();
+    }
+
     private JComponent getImagePreviewPanel(JPanel panel, String title) {
         panel.setLayout(new BorderLayout());
         panel.add(new JLabel(title), BorderLayout.NORTH);
@@ -224,7 +243,7 @@ public class PhotoCopyToolPanel implements ToolPanel {
                     if (rb.isSelected()) {
                         PhotoSource ps = sources.get(rb);
                         PhotoIterable iterable = ps.getPhotoIterable(parentWindow, sourceTF.getText());
-                        prepareSourceIterable(iterable);
+                        prepareSourceIterable(ps, iterable);
                         if (iterable != null) {
                             setPreferenceValue(PREFERENCE_KEY_SOURCE_TYPE, ps.getLabel());
                             setPreferenceValue(PREFERENCE_KEY_SOURCE_LOCATION, iterable.getLocationString());
@@ -255,10 +274,10 @@ public class PhotoCopyToolPanel implements ToolPanel {
                     JOptionPane.showMessageDialog(parentWindow, "Please select a source location first.",
                             "No Source Location", JOptionPane.INFORMATION_MESSAGE);
                 } else {
-                    Collection<String> selected = SelectImageDialog.selectImages(bundleContext, parentWindow, sourceIterable, fromDatePicker, toDatePicker, selectedImageNames);
+                    Collection<String> selected = SelectImageDialog.selectImages(bundleContext, parentWindow, PhotoCopyToolPanel.this, fromDatePicker, toDatePicker, selectedImageNames);
                     if (selected != null) {
                         selectedImageNames = selected;
-                        updateLocationAsync(sourceImagePNL, sourceIterable);
+                        updateSourceLocationAsync();
                     }
                 }
             }
@@ -271,7 +290,7 @@ public class PhotoCopyToolPanel implements ToolPanel {
                     savedSelectionState = selectedImages.isSelected();
                     if (selectedImageNames != null) {
                         selectedImageNames = null;
-                        updateLocationAsync(sourceImagePNL, sourceIterable);
+                        updateSourceLocationAsync();
                     }
                 }
             }
@@ -295,7 +314,7 @@ public class PhotoCopyToolPanel implements ToolPanel {
                     rb.setSelected(true);
                     String storedSourceLocation = getPreferenceValue(PREFERENCE_KEY_SOURCE_LOCATION);
                     if (storedSourceLocation != null) {
-                        prepareSourceIterable(ps.getPhotoIterableFromLocation(storedSourceLocation));
+                        prepareSourceIterable(ps, ps.getPhotoIterableFromLocation(storedSourceLocation));
                     }
                 }
             }
@@ -318,7 +337,7 @@ public class PhotoCopyToolPanel implements ToolPanel {
                 else
                     setPreferenceValue(preferenceKey, "");
 
-                updateLocationAsync(sourceImagePNL, sourceIterable);
+                updateSourceLocationAsync();
             }
         });
         picker.getEditor().addFocusListener(new FocusAdapter() {
@@ -344,17 +363,47 @@ public class PhotoCopyToolPanel implements ToolPanel {
         return picker;
     }
 
-    private void prepareSourceIterable(PhotoIterable iterable) {
+    private void prepareSourceIterable(PhotoSource ps, PhotoIterable iterable) {
         if (iterable != null) {
             iterable.setExtensions(getSupportedFormats());
             iterable.freeze();
 
+            sourcePhotoSource = ps;
             sourceIterable = iterable;
             sourceTF.setText(iterable.getLocationString());
-            updateLocationAsync(sourceImagePNL, iterable);
+            updateSourceLocationAsync();
         }
     }
 
+    /**
+     * Obtain an iterable over the source location that only reads the photos between the dates, as
+     * far as the source can tell without reading them. The dates are fixed once the iterable is
+     * frozen, so a new iterable is created from the photo source for every date range.
+     * @param from The from date or <tt>null</tt>.
+     * @param to The to date or <tt>null</tt>.
+     * @return The iterable, or <tt>null</tt> if no source location has been selected.
+     */
+    PhotoIterable getSourceIterable(Date from, Date to) {
+        PhotoIterable unfiltered = sourceIterable;
+        if (unfiltered == null || (from == null && to == null))
+            return unfiltered;
+
+        PhotoIterable iterable = sourcePhotoSource.getPhotoIterableFromLocation(unfiltered.getLocationString());
+        if (!(iterable instanceof DateRangePhotoIterable))
+            // The callers check the dates themselves as well
+            return unfiltered;
+
+        iterable.setExtensions(getSupportedFormats());
+        return ((DateRangePhotoIterable) iterable).setDateRange(from, to).freeze();
+    }
+
+    private void updateSourceLocationAsync() {
+        if (sourceIterable == null)
+            return;
+
+        updateLocationAsync(sourceImagePNL, getSourceIterable(fromDatePicker.getDate(), toDatePicker.getDate()));
+    }
+
     private void addTargetGroup(final Window parentWindow, JPanel panel) {
         TitledBorder sourceBorder = BorderFactory.createTitledBorder("Target");
         sourceBorder.setTitlePosition(TitledBorder.TOP);
@@ -384,7 +433,7 @@ public class PhotoCopyToolPanel implements ToolPanel {
                     }
                     targetTF.setText(path);
                     setPreferenceValue(PREFERENCE_KEY_TARGET_DIRECTORY, path);
-                    updateLocationAsync(targetImagePNL, new DirectoryPhotoIterable(targetTF.getText()).freeze());
+                    updateLocationAsync(targetImagePNL, getTargetIterable(targetTF.getText()));
                 }
             }
         });
@@ -403,10 +452,17 @@ public class PhotoCopyToolPanel implements ToolPanel {
         String storedTargetDir = getPreferenceValue(PREFERENCE_KEY_TARGET_DIRECTORY);
         if (storedTargetDir != null) {
             targetTF.setText(storedTargetDir);
-            updateLocationAsync(targetImagePNL, new DirectoryPhotoIterable(storedTargetDir).freeze());
+            updateLocationAsync(targetImagePNL, getTargetIterable(storedTargetDir));
         }
     }
 
+    private PhotoIterable getTargetIterable(String dir) {
+        watchedTarget.setLocation(new File(dir));
+
+        // The target directory is typically large and only changes a little between runs
+        return new DirectoryPhotoIterable(dir, DirectoryIndex.getIndex(bundleContext, new File(dir))).freeze();
+    }
+
     private JTextField addLocationSelector(JPanel panel, ActionListener selectAction) {
         JPanel locationPNL = new JPanel(new FlowLayout(FlowLayout.LEADING));
         locationPNL.setAlignmentX(Component.LEFT_ALIGNMENT);
@@ -440,7 +496,7 @@ public class PhotoCopyToolPanel implements ToolPanel {
         if (followsTargetStructure(grandparent))
             return grandparent;
 
-        for (File f : new DirTreeIterable(dir)) {
+        for (File f : new DirTreeIterable(dir, DirectoryIndex.getIndex(bundleContext, dir))) {
             if (followsTargetStructure(f))
                 return f;
         }
@@ -488,33 +544,51 @@ public class PhotoCopyToolPanel implements ToolPanel {
     }
 
     protected void updateLocationAsync(final JPanel previewPNL, final PhotoIterable pi) {
-        new Thread(new Runnable() {
+        // A newer update of the same preview supersedes this one
+        UIUtils.getTaskScheduler(bundleContext).submit(previewPNL, new Runnable() {
             @Override
             public void run() {
-                updateLocation(previewPNL, pi);
+                updateLocation(previewPNL, pi, TaskScheduler.getCurrentToken());
             }
-        }).start();
+        }, TaskScheduler.PRIORITY_UI);
     }
 
-    protected void updateLocation(JPanel previewPNL, PhotoIterable pi) {
+    /**
+     * Show the first few images of a location in a preview panel.
+     * @param token When cancelled, the scan of the location stops and the panel is no longer changed.
+     */
+    protected void updateLocation(final JPanel previewPNL, PhotoIterable pi, final CancellationToken token) {
         if (pi == null)
             return;
 
-        previewPNL.removeAll();
-        JLabel label = new JLabel("Searching ...");
-        previewPNL.add(label, BorderLayout.NORTH);
-        JPanel imagePNL = new JPanel();
+        final JLabel label = new JLabel("Searching ...");
+        final JPanel imagePNL = new JPanel();
         FlowLayout flowLayout = new WrappingFlowLayout();
         flowLayout.setAlignment(FlowLayout.LEADING);
         imagePNL.setLayout(flowLayout);
-        previewPNL.add(imagePNL, BorderLayout.CENTER);
+        UIUtils.invokeLater(token, new Runnable() {
+            @Override
+            public void run() {
+                previewPNL.removeAll();
+                previewPNL.add(label, BorderLayout.NORTH);
+                previewPNL.add(imagePNL, BorderLayout.CENTER);
+                previewPNL.revalidate();
+            }
+        });
 
         int numImages = 0;
-        for (Entry entry : pi) {
+        String [] supportedFormats = getSupportedFormats();
+        Iterator<Entry> it;
+        if (pi instanceof CancellablePhotoIterable)
+            it = ((CancellablePhotoIterable) pi).iterator(token);
+        else
+            it = pi.iterator();
+        while (!token.isCancelled() && it.hasNext()) {
+            Entry entry = it.next();
             String n = entry.getName().toLowerCase();
 
             boolean displayEntry = false;
-            for (String ext : getSupportedFormats())
+            for (String ext : supportedFormats)
                 if (n.endsWith(ext))
                     displayEntry = true;
 
@@ -522,7 +596,7 @@ public class PhotoCopyToolPanel implements ToolPanel {
                 displayEntry = selectedImageNames.contains(entry.getName());
 
             if (displayEntry) {
-                if (addImageIfWithinConstraints(imagePNL, entry))
+                if (addImageIfWithinConstraints(imagePNL, entry, token))
                     numImages++;
             } else {
                 try {
@@ -535,18 +609,26 @@ public class PhotoCopyToolPanel implements ToolPanel {
                 break;
         }
 
+        final String text;
         if (numImages == 0)
-            label.setText("No images found at location: " + pi.getLocationString());
+            text = "No images found at location: " + pi.getLocationString();
         else
-            label.setText("Found these images: " + pi.getLocationString());
+            text = "Found these images: " + pi.getLocationString();
+        UIUtils.invokeLater(token, new Runnable() {
+            @Override
+            public void run() {
+                label.setText(text);
+            }
+        });
     }
 
-    private boolean addImageIfWithinConstraints(final JPanel imagePanel, final Entry entry) {
-        final JPanel p = UIUtils.getPhotoPreview(bundleContext, entry, fromDatePicker.getDate(), toDatePicker.getDate());
+    private boolean addImageIfWithinConstraints(final JPanel imagePanel, final Entry entry, CancellationToken token) {
+        final JPanel p = UIUtils.getPhotoPreview(bundleContext, entry, fromDatePicker.getDate(), toDatePicker.getDate(), token);
         if (p != null) {
-            SwingUtilities.invokeLater(new Runnable() {
+            UIUtils.invokeLater(token, new Runnable() {
                 public void run() {
                     imagePanel.add(p);
+                    imagePanel.revalidate();
                 }
             });
         }
@@ -584,23 +666,14 @@ public class PhotoCopyToolPanel implements ToolPanel {
     }
 
     private String [] getSupportedFormats() {
-        ServiceReference[] refs;
-        try {
-            refs = bundleContext.getServiceReferences(PhotoMetadataProvider.class.getName(), null);
-        } catch (InvalidSyntaxException e) {
-            return new String [] {};
-        }
-
-        List<String> formats = new ArrayList<String>();
-        for (ServiceReference ref : refs) {
-            formats.addAll(OSGiTools.getStringPlusProperty(ref.getProperty("format")));
-        }
-        return formats.toArray(new String[] {});
+        return OSGiTools.getPhotoMetadataProviders(bundleContext).getValues().toArray(new String[] {});
     }
 
     private void runCopyOperation() {
         try {
-            new Copier(bundleContext).copy(sourceIterable, targetTF.getText(), DEFAULT_TARGET_DATE_STRUCTURE, fromDatePicker.getDate(), toDatePicker.getDate(), selectedImageNames);
+            Date fromDate = fromDatePicker.getDate();
+            Date toDate = toDatePicker.getDate();
+            new Copier(bundleContext, Runtime.getRuntime().availableProcessors()).copy(getSourceIterable(fromDate, toDate), targetTF.getText(), DEFAULT_TARGET_DATE_STRUCTURE, fromDate, toDate, selectedImageNames);
         } catch (Throwable e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(null, e.getMessage(), "An error has occurred during the copy operation", JOptionPane.WARNING_MESSAGE);
@@ -13,7 +13,6 @@
 package org.coderthoughts.phototools.impl.ui.photocopy;
 
 import java.awt.BorderLayout;
-import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Window;
@@ -21,53 +20,54 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.FocusAdapter;
 import java.awt.event.FocusEvent;
-import java.awt.event.InputEvent;
-import java.awt.event.MouseAdapter;
-import java.awt.event.MouseEvent;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 
 import javax.swing.JButton;
-import javax.swing.JCheckBox;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
 
+import org.coderthoughts.phototools.api.CancellablePhotoIterable;
+import org.coderthoughts.phototools.api.CancellationToken;
 import org.coderthoughts.phototools.api.PhotoIterable;
+import org.coderthoughts.phototools.util.TaskScheduler;
+import org.coderthoughts.phototools.util.ui.ImageGrid;
+import org.coderthoughts.phototools.util.ui.PhotoCell;
+import org.coderthoughts.phototools.util.ui.PhotoPreview;
 import org.coderthoughts.phototools.util.ui.UIUtils;
-import org.coderthoughts.phototools.util.ui.WrappingFlowLayout;
 import org.jdesktop.swingx.JXDatePicker;
 import org.osgi.framework.BundleContext;
 
 @SuppressWarnings("serial")
 public class SelectImageDialog extends JDialog {
+    private static final long BATCH_INTERVAL = 100; // ms
+
     private final BundleContext bundleContext;
     private Collection<String> selection;
-    private final PhotoIterable photoIterable;
-    private final JPanel imagePanel;
-    private final List<JCheckBox> checkBoxes = Collections.synchronizedList(new ArrayList<JCheckBox>());
+    private final PhotoCopyToolPanel toolPanel;
+    private final ImageGrid<PhotoCell> imageGrid;
     private final JXDatePicker fromDP;
     private final JXDatePicker toDP;
-    private JCheckBox lastSelected;
+
+    private TaskScheduler.Task loadTask;
 
     // The following member communicate information across threads
-    private volatile int curIteration = 0;
     private volatile boolean imagesLoaded = false;
     private volatile boolean cancelled = true; // cancelled by default unless we hit 'OK'
 
-    private SelectImageDialog(Window parentWindow, BundleContext ctx, PhotoIterable sourceIterable, Date orgFromDate, Date orgToDate, Collection<String> initial) {
+    private SelectImageDialog(Window parentWindow, BundleContext ctx, PhotoCopyToolPanel toolPanel, Date orgFromDate, Date orgToDate, Collection<String> initial) {
         super(parentWindow);
         bundleContext = ctx;
-        photoIterable = sourceIterable;
+        this.toolPanel = toolPanel;
         selection = initial;
         setTitle("Available photos and videos");
 
@@ -76,8 +76,9 @@ public class SelectImageDialog extends JDialog {
 
         dialogPanel.add(new JLabel("Select images to copy. Hint: to select a range SHIFT-click an image."), BorderLayout.NORTH);
 
-        imagePanel = new JPanel(new WrappingFlowLayout(FlowLayout.LEADING));
-        JScrollPane scrollPane = new JScrollPane(imagePanel,
+        PhotoCell.Renderer renderer = new PhotoCell.Renderer();
+        imageGrid = new ImageGrid<PhotoCell>(renderer, renderer.getCellSize(), UIUtils.getThumbnailService(ctx), PhotoPreview.PREVIEW_SIZE);
+        JScrollPane scrollPane = new JScrollPane(imageGrid,
                 JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         dialogPanel.add(scrollPane, BorderLayout.CENTER);
@@ -122,7 +123,7 @@ public class SelectImageDialog extends JDialog {
             @Override
             public void actionPerformed(ActionEvent e) {
                 cancelled = false;
-                curIteration++;
+                stopLoading();
                 setVisible(false);
             }
         });
@@ -132,7 +133,7 @@ public class SelectImageDialog extends JDialog {
         cancelBtn.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                curIteration++;
+                stopLoading();
                 setVisible(false);
             }
         });
@@ -177,140 +178,102 @@ public class SelectImageDialog extends JDialog {
     }
 
     private Collection<String> getSelectedImages(Window parentWindow) {
-        Collection<String> l = new HashSet<String>(checkBoxes.size());
-        synchronized(checkBoxes) {
-            for (JCheckBox cb : checkBoxes) {
-                if (cb.isSelected()) {
-                    String name = cb.getText();
-                    if (l.contains(name)) {
-                        JOptionPane.showMessageDialog(parentWindow,
-                                "Warning: the selected set of images contains an image with the name '" + name + "' more than once. " +
-                                "Only one resouce with this name will be processed.", "Multiple images with the same name", JOptionPane.WARNING_MESSAGE);
-                    } else {
-                        l.add(name);
-                    }
-                }
+        List<PhotoCell> selected = imageGrid.getSelectedItems();
+        Collection<String> l = new HashSet<String>(selected.size());
+        for (PhotoCell cell : selected) {
+            String name = cell.getName();
+            if (l.contains(name)) {
+                JOptionPane.showMessageDialog(parentWindow,
+                        "Warning: the selected set of images contains an image with the name '" + name + "' more than once. " +
+                        "Only one resouce with this name will be processed.", "Multiple images with the same name", JOptionPane.WARNING_MESSAGE);
+            } else {
+                l.add(name);
             }
         }
         return l;
     }
 
     void selectAll(boolean select) {
-        synchronized (checkBoxes) {
-            for (JCheckBox cb : checkBoxes) {
-                cb.setSelected(select);
-            }
-        }
-    }
-
-    void selectAllInBetween(JCheckBox valueDefiningCB, JCheckBox otherCB) {
-        synchronized (checkBoxes) {
-            boolean in = false;
-            for (JCheckBox cb : checkBoxes) {
-                boolean prevIn = in;
-                if (cb == valueDefiningCB || cb == otherCB) {
-                    in = !in;
-                }
-                if (in || prevIn)
-                    cb.setSelected(valueDefiningCB.isSelected());
-            }
-        }
+        imageGrid.selectAll(select);
     }
 
     private void loadImagesAsync() {
-        curIteration++;
-        new Thread(new Runnable() {
+        // Supersedes the previous load, which stops reading the source
+        loadTask = UIUtils.getTaskScheduler(bundleContext).submit(this, new Runnable() {
             @Override
             public void run() {
-                loadImages();
+                loadImages(TaskScheduler.getCurrentToken());
             }
-        }).start();
+        }, TaskScheduler.PRIORITY_UI);
     }
 
-    private void loadImages() {
-        final int iteration = curIteration; // record the current iteration, if a new iteration is started we need to stop this action
+    private void stopLoading() {
+        if (loadTask != null)
+            loadTask.cancel(false);
+    }
+
+    private void loadImages(final CancellationToken token) {
         imagesLoaded = false;
-        checkBoxes.clear();
         try {
             SwingUtilities.invokeAndWait(new Runnable() {
                 @Override
                 public void run() {
-                    imagePanel.removeAll();
-                    imagePanel.repaint();
+                    if (!token.isCancelled())
+                        imageGrid.clear();
                 }
             });
         } catch (Exception ex) {
         }
 
-        for (PhotoIterable.Entry entry : photoIterable) {
-            if (iteration != curIteration)
-                return; // the window was closed or needs to be rebuilt
-
-            if (Runtime.getRuntime().freeMemory() < 5 * 1024 * 1024) {
-                // If less than 5MB left, stop adding images
-                final JTextArea ta = new JTextArea("No memory for more images. Increase Java Heap space to select from a larger list.");
-                ta.setEditable(false);
-                ta.setLineWrap(true);
-                ta.setWrapStyleWord(true);
-                SwingUtilities.invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        imagePanel.add(ta);
-                        imagePanel.revalidate();
-                    }
-                });
-                System.gc();
-                return;
-            }
-
-            final JPanel previewPanel = new JPanel();
-            JCheckBox cb = UIUtils.getPhotoPreview(bundleContext, entry, fromDP.getDate(), toDP.getDate(), previewPanel);
-            if (cb != null) {
-                if (selection == null || selection.contains(cb.getText()))
-                    cb.setSelected(true);
-                else
-                    cb.setSelected(false);
-
-                StickySelectionListener ssl = new StickySelectionListener(cb);
-                for (Component c : previewPanel.getComponents()) {
-                    c.addMouseListener(ssl);
-                }
-                checkBoxes.add(cb);
-                try {
-                    SwingUtilities.invokeAndWait(new Runnable() {
-                        @Override
-                        public void run() {
-                            imagePanel.add(previewPanel);
-                            imagePanel.revalidate();
-                        }
-                    });
-                } catch (Exception e) {
-                }
+        // The grid only paints the visible cells and loads their previews in the background, so
+        // the cells are cheap. They are handed to the grid in batches to keep the UI responsive.
+        List<PhotoCell> batch = new ArrayList<PhotoCell>();
+        long lastBatch = System.currentTimeMillis();
+        // The source skips what it can tell to be outside of the dates without reading it. The
+        // iteration stops when the window is closed or needs to be rebuilt.
+        Date fromDate = fromDP.getDate();
+        Date toDate = toDP.getDate();
+        PhotoIterable iterable = toolPanel.getSourceIterable(fromDate, toDate);
+        Iterator<PhotoIterable.Entry> it;
+        if (iterable instanceof CancellablePhotoIterable)
+            it = ((CancellablePhotoIterable) iterable).iterator(token);
+        else
+            it = iterable.iterator();
+        while (!token.isCancelled() && it.hasNext()) {
+            PhotoCell cell = UIUtils.getPhotoCell(bundleContext, it.next(), fromDate, toDate, token);
+            if (cell != null)
+                batch.add(cell);
+
+            if (!batch.isEmpty() && System.currentTimeMillis() - lastBatch > BATCH_INTERVAL) {
+                addCells(batch, token);
+                batch = new ArrayList<PhotoCell>();
+                lastBatch = System.currentTimeMillis();
             }
         }
-        imagesLoaded = true;
+        addCells(batch, token);
+        if (!token.isCancelled())
+            imagesLoaded = true;
     }
 
-    private class StickySelectionListener extends MouseAdapter {
-        private final JCheckBox checkBox;
-
-        public StickySelectionListener(JCheckBox associatedCheckBox) {
-            checkBox = associatedCheckBox;
-        }
+    private void addCells(final List<PhotoCell> cells, final CancellationToken token) {
+        try {
+            SwingUtilities.invokeAndWait(new Runnable() {
+                @Override
+                public void run() {
+                    if (token.isCancelled())
+                        return;
 
-        @Override
-        public void mouseClicked(MouseEvent e) {
-            if ((e.getModifiers() & InputEvent.SHIFT_MASK) > 0) {
-                if (lastSelected != null) {
-                    selectAllInBetween(checkBox, lastSelected);
+                    for (PhotoCell cell : cells) {
+                        imageGrid.addItem(cell, selection == null || selection.contains(cell.getName()));
+                    }
                 }
-            }
-            lastSelected = checkBox;
+            });
+        } catch (Exception e) {
         }
     }
 
-    static Collection<String> selectImages(BundleContext ctx, Window parentWindow, final PhotoIterable sourceIterable, JXDatePicker parentFromDP, JXDatePicker parentToDP, Collection<String> initialSelection) {
-        SelectImageDialog dialog = new SelectImageDialog(parentWindow, ctx, sourceIterable, parentFromDP.getDate(), parentToDP.getDate(), initialSelection);
+    static Collection<String> selectImages(BundleContext ctx, Window parentWindow, PhotoCopyToolPanel toolPanel, JXDatePicker parentFromDP, JXDatePicker parentToDP, Collection<String> initialSelection) {
+        SelectImageDialog dialog = new SelectImageDialog(parentWindow, ctx, toolPanel, parentFromDP.getDate(), parentToDP.getDate(), initialSelection);
         dialog.setLocationByPlatform(true);
         dialog.setModal(true);
         dialog.loadImagesAsync();
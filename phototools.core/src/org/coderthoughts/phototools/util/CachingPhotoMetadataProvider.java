@@ -0,0 +1,319 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.coderthoughts.phototools.api.BatchPhotoMetadataProvider;
+import org.coderthoughts.phototools.api.CancellablePhotoMetadataProvider;
+import org.coderthoughts.phototools.api.CancellationToken;
+import org.coderthoughts.phototools.api.MetadataRecord;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.StreamingPhotoMetadataProvider;
+import org.coderthoughts.phototools.api.TypedPhotoMetadataProvider;
+
+/**
+ * A PhotoMetadataProvider that caches the metadata obtained from another PhotoMetadataProvider
+ * in a {@link MetadataCache}. The details are not cached, they are obtained from the
+ * other provider when asked for. Metadata read from a stream is passed through without caching,
+ * as there is no file to key it on.
+ *
+ * If the other provider is a {@link TypedPhotoMetadataProvider} only its metadata record is
+ * obtained for a file that isn't cached yet, both for the metadata and for the metadata record.
+ * The preview is then obtained and cached when it is first asked for. For other providers the
+ * preview can be obtained on demand too, if obtaining it is much more expensive than obtaining the
+ * rest of the metadata, as with movies. Their GPS info is obtained when asked for, as it may be
+ * computed lazily.
+ */
+public class CachingPhotoMetadataProvider implements CancellablePhotoMetadataProvider, StreamingPhotoMetadataProvider,
+        BatchPhotoMetadataProvider, TypedPhotoMetadataProvider {
+    private final PhotoMetadataProvider delegate;
+    private final MetadataCache cache;
+    private final String tempDir;
+    private final boolean previewOnDemand;
+
+    public CachingPhotoMetadataProvider(PhotoMetadataProvider delegate, MetadataCache cache) {
+        this(delegate, cache, false);
+    }
+
+    /**
+     * @param previewOnDemand If <tt>true</tt> the preview is only obtained from the other provider
+     * when it is first asked for, the other provider should then compute it lazily too.
+     */
+    public CachingPhotoMetadataProvider(PhotoMetadataProvider delegate, MetadataCache cache, boolean previewOnDemand) {
+        this(delegate, cache, new File(System.getProperty("java.io.tmpdir")), previewOnDemand);
+    }
+
+    CachingPhotoMetadataProvider(PhotoMetadataProvider delegate, MetadataCache cache, File tempDir) {
+        this(delegate, cache, tempDir, false);
+    }
+
+    CachingPhotoMetadataProvider(PhotoMetadataProvider delegate, MetadataCache cache, File tempDir, boolean previewOnDemand) {
+        this.delegate = delegate;
+        this.cache = cache;
+        this.tempDir = tempDir.getAbsolutePath() + File.separator;
+        this.previewOnDemand = previewOnDemand;
+    }
+
+    @Override
+    public Metadata getMetaData(File f) {
+        return getMetaData(f, CancellationToken.NONE);
+    }
+
+    @Override
+    public Metadata getMetaData(final File f, CancellationToken token) {
+        if (isTemporary(f))
+            // Temporary files are never looked at again, so don't fill up the cache with them
+            return getDelegateMetaData(f, token);
+
+        MetadataCache.Record md = cache.get(f);
+        if (md == null && delegate instanceof TypedPhotoMetadataProvider)
+            md = cacheMetadataRecord(f);
+        if (md == null)
+            return cacheMetaData(f, getDelegateMetaData(f, token), token);
+
+        return new CachedMetadata(f, md, null, CancellationToken.NONE);
+    }
+
+    @Override
+    public List<Metadata> getMetaData(List<File> files) {
+        Metadata [] result = new Metadata[files.size()];
+        List<File> uncached = new ArrayList<File>();
+        List<Integer> uncachedIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < result.length; i++) {
+            File f = files.get(i);
+            MetadataCache.Record md = isTemporary(f) ? null : cache.get(f);
+            if (md == null) {
+                uncached.add(f);
+                uncachedIndexes.add(i);
+            } else {
+                result[i] = new CachedMetadata(f, md, null, CancellationToken.NONE);
+            }
+        }
+
+        if (delegate instanceof TypedPhotoMetadataProvider) {
+            // Only the start of each file is read, so the order of the reads determines how much a disk seeks
+            List<File> remaining = new ArrayList<File>();
+            List<Integer> remainingIndexes = new ArrayList<Integer>();
+            MetadataCache.Record [] records = new MetadataCache.Record[uncached.size()];
+            for (int i : MetadataTools.getReadOrder(uncached)) {
+                if (!isTemporary(uncached.get(i)))
+                    records[i] = cacheMetadataRecord(uncached.get(i));
+            }
+            for (int i = 0; i < records.length; i++) {
+                if (records[i] != null) {
+                    result[uncachedIndexes.get(i)] = new CachedMetadata(uncached.get(i), records[i], null, CancellationToken.NONE);
+                } else {
+                    remaining.add(uncached.get(i));
+                    remainingIndexes.add(uncachedIndexes.get(i));
+                }
+            }
+            uncached = remaining;
+            uncachedIndexes = remainingIndexes;
+        }
+
+        // The files that aren't cached go to the other provider in a single batch
+        List<Metadata> mds = MetadataTools.getMetaData(delegate, uncached);
+        for (int i = 0; i < mds.size(); i++) {
+            File f = uncached.get(i);
+            result[uncachedIndexes.get(i)] = isTemporary(f) ? mds.get(i) : cacheMetaData(f, mds.get(i), CancellationToken.NONE);
+        }
+        return Arrays.asList(result);
+    }
+
+    @Override
+    public MetadataRecord getMetadataRecord(File f) {
+        if (isTemporary(f))
+            return MetadataTools.getMetadataRecord(delegate, f);
+
+        MetadataCache.Record md = cache.get(f);
+        if (md != null)
+            return md.getMetadataRecord();
+        else
+            return readMetadataRecord(f);
+    }
+
+    /**
+     * Get the metadata records of a number of files. The cache is checked for all the files first,
+     * the files that aren't cached are then read in the order of {@link MetadataTools#getReadOrder(List)}
+     * to limit the seeking on a spinning disk.
+     * @param files The files.
+     * @return The metadata records in the same order as the files, with <tt>null</tt> for the files
+     * for which no metadata could be obtained.
+     */
+    public List<MetadataRecord> getMetadataRecords(List<File> files) {
+        MetadataRecord [] result = new MetadataRecord[files.size()];
+        List<File> uncached = new ArrayList<File>();
+        List<Integer> uncachedIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < result.length; i++) {
+            File f = files.get(i);
+            MetadataCache.Record md = isTemporary(f) ? null : cache.get(f);
+            if (md == null) {
+                uncached.add(f);
+                uncachedIndexes.add(i);
+            } else {
+                result[i] = md.getMetadataRecord();
+            }
+        }
+
+        if (delegate instanceof TypedPhotoMetadataProvider) {
+            for (int i : MetadataTools.getReadOrder(uncached)) {
+                File f = uncached.get(i);
+                result[uncachedIndexes.get(i)] = isTemporary(f) ?
+                        MetadataTools.getMetadataRecord(delegate, f) : readMetadataRecord(f);
+            }
+        } else {
+            // The files that aren't cached go to the other provider in a single batch
+            List<Metadata> mds = MetadataTools.getMetaData(delegate, uncached);
+            for (int i = 0; i < mds.size(); i++) {
+                File f = uncached.get(i);
+                Metadata md = isTemporary(f) ? mds.get(i) : cacheMetaData(f, mds.get(i), CancellationToken.NONE);
+                result[uncachedIndexes.get(i)] = MetadataTools.toMetadataRecord(md);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Obtain the metadata record of a file that isn't cached from the other provider, and cache it.
+     */
+    private MetadataRecord readMetadataRecord(File f) {
+        if (delegate instanceof TypedPhotoMetadataProvider) {
+            MetadataRecord record = ((TypedPhotoMetadataProvider) delegate).getMetadataRecord(f);
+            if (record != null)
+                cache.put(f, record);
+            return record;
+        }
+
+        // Cache the metadata of the other provider, the record is made from that
+        return MetadataTools.toMetadataRecord(cacheMetaData(f, getDelegateMetaData(f, CancellationToken.NONE),
+                CancellationToken.NONE));
+    }
+
+    private MetadataCache.Record cacheMetadataRecord(File f) {
+        MetadataRecord record = ((TypedPhotoMetadataProvider) delegate).getMetadataRecord(f);
+        return record == null ? null : cache.put(f, record);
+    }
+
+    private boolean isTemporary(File f) {
+        return f.getAbsolutePath().startsWith(tempDir);
+    }
+
+    private Metadata cacheMetaData(File f, Metadata newMD, CancellationToken token) {
+        if (newMD == null || token.isCancelled()) // cancelled metadata may be incomplete
+            return newMD;
+
+        if (!previewOnDemand) {
+            cache.put(f, newMD);
+            return newMD;
+        }
+
+        MetadataCache.Record md = cache.put(f, newMD, false);
+        return md == null ? newMD : new CachedMetadata(f, md, newMD, token);
+    }
+
+    @Override
+    public Metadata getMetaData(InputStream is) {
+        if (delegate instanceof StreamingPhotoMetadataProvider)
+            return ((StreamingPhotoMetadataProvider) delegate).getMetaData(is);
+        else
+            return null;
+    }
+
+    private Metadata getDelegateMetaData(File f, CancellationToken token) {
+        if (delegate instanceof CancellablePhotoMetadataProvider)
+            return ((CancellablePhotoMetadataProvider) delegate).getMetaData(f, token);
+        else
+            return delegate.getMetaData(f);
+    }
+
+    /**
+     * Cached metadata, the details and a preview or GPS info that wasn't cached are obtained from
+     * the other provider when asked for.
+     */
+    private class CachedMetadata implements Metadata {
+        private final File file;
+        private final MetadataCache.Record record;
+        private final CancellationToken token;
+        private Metadata full;
+        private boolean previewLoaded;
+        private File previewFile;
+        private String details;
+
+        CachedMetadata(File file, MetadataCache.Record record, Metadata full, CancellationToken token) {
+            this.file = file;
+            this.record = record;
+            this.full = full;
+            this.token = token;
+        }
+
+        @Override
+        public Date getDateTaken() {
+            return record.getDateTaken();
+        }
+
+        @Override
+        public synchronized File getPreviewFile() {
+            if (record.isPreviewKnown())
+                return record.getPreviewFile();
+
+            if (!previewLoaded) {
+                Metadata md = getFullMetaData();
+                previewFile = md == null ? null : md.getPreviewFile();
+                previewLoaded = true;
+                if (md != null && !token.isCancelled())
+                    cache.put(file, record.withPreviewFile(previewFile));
+            }
+            return previewFile;
+        }
+
+        @Override
+        public synchronized String getGPSInfo() {
+            if (record.isGPSInfoKnown())
+                return record.getGPSInfo();
+
+            Metadata md = getFullMetaData();
+            return md == null ? null : md.getGPSInfo();
+        }
+
+        @Override
+        public Integer getHeightInPixels() {
+            return record.getHeightInPixels();
+        }
+
+        @Override
+        public Integer getWidthInPixels() {
+            return record.getWidthInPixels();
+        }
+
+        @Override
+        public synchronized String getDetails() {
+            if (details == null) {
+                Metadata md = getFullMetaData();
+                details = md == null ? "" : md.getDetails();
+            }
+            return details;
+        }
+
+        private Metadata getFullMetaData() {
+            if (full == null)
+                full = getDelegateMetaData(file, token);
+            return full;
+        }
+    }
+}
@@ -17,13 +17,45 @@ import java.util.Iterator;
 
 public class DirTreeIterable implements Iterable<File> {
     private final File root;
+    private final DirectoryIndex index;
 
     public DirTreeIterable(File root) {
+        this(root, null);
+    }
+
+    /**
+     * Create an iterable that obtains the files from a {@link DirectoryIndex}, which is
+     * refreshed when an iterator is obtained.
+     * @param root The root directory.
+     * @param index The index of the root directory, or <tt>null</tt> to read the directories directly.
+     */
+    public DirTreeIterable(File root, DirectoryIndex index) {
         this.root = root;
+        this.index = index;
     }
 
     @Override
     public Iterator<File> iterator() {
-        return new DirTreeIterator(root);
+        if (index == null)
+            return new DirTreeIterator(root);
+
+        index.refresh();
+        final Iterator<FileTreeIterable.Entry> entries = index.iterator();
+        return new Iterator<File>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public File next() {
+                return entries.next().getFile();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 }
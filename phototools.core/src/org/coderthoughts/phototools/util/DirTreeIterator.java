@@ -13,11 +13,11 @@
 package org.coderthoughts.phototools.util;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
@@ -25,10 +25,13 @@ import java.util.NoSuchElementException;
  * returned as part of this process. This iterator is not suitable for deleting directory trees as the
  * directories are returned before their content. To use this iterator for deleting a directory tree its
  * order needs to be reversed.
+ *
+ * Every directory is read and sorted completely before its first entry is returned. To stream through
+ * large directories use the {@link FileTreeIterator} instead.
  */
 public class DirTreeIterator implements Iterator<File> {
     Traverser traverser;
-    List<File> dirs = new ArrayList<File>();
+    Deque<File> dirs = new ArrayDeque<File>();
 
     public DirTreeIterator(File rootDir) {
         traverser = new Traverser(rootDir);
@@ -64,7 +67,7 @@ public class DirTreeIterator implements Iterator<File> {
 
     private boolean traverseToNext() {
         if (dirs.size() > 0) {
-            traverser = new Traverser(dirs.remove(0));
+            traverser = new Traverser(dirs.poll());
             return true;
         } else {
             return false;
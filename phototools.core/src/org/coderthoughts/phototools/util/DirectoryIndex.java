@@ -0,0 +1,407 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import org.coderthoughts.phototools.api.CancellationToken;
+import org.osgi.framework.BundleContext;
+
+/**
+ * A persistent index of a directory tree. For every directory the index holds the modification
+ * time of the directory and the name, size and dates of its entries.
+ *
+ * When the index is refreshed only the directories that have been modified since the previous
+ * refresh are listed again, the other directories only need a single stat. As modification times
+ * have a granularity of up to 2 seconds, a directory that was modified shortly before it was listed
+ * is always listed again. Note that changing the contents of an existing file doesn't modify its
+ * directory, so the size and dates of such a file in the index are only updated once something else
+ * in its directory changes. Some file systems, such as the FAT file systems of camera cards, don't
+ * update the modification time of directories at all, so don't use an index for those.
+ *
+ * The entries are returned in the same order as by a sorted {@link FileTreeIterator}.
+ */
+public class DirectoryIndex implements Iterable<FileTreeIterable.Entry> {
+    private static final int MAGIC = 0x50544449; // PTDI
+    private static final int VERSION = 2;
+    private static final String INDEX_DIRECTORY = "dirindex";
+    private static final long MODIFIED_GRANULARITY = 2000;
+    // The indexes in use, an index is released once nobody refers to it any more
+    private static final Map<File, WeakReference<DirectoryIndex>> indexes = new HashMap<File, WeakReference<DirectoryIndex>>();
+
+    private final File storeFile;
+    private final Path root;
+    private volatile Map<String, DirRecord> dirs = new HashMap<String, DirRecord>();
+    private boolean loaded = false;
+    private int listedDirectories;
+
+    /**
+     * Create a directory index.
+     * @param storeFile The file in which the index is stored.
+     * @param root The root directory of the tree.
+     */
+    public DirectoryIndex(File storeFile, File root) {
+        this.storeFile = storeFile;
+        this.root = root.getAbsoluteFile().toPath();
+    }
+
+    /**
+     * Obtain the index for a directory tree. The index is stored in the data area of the bundle.
+     * While an index is in use, the same instance is returned for the same directory tree.
+     * @param context The bundle context of the bundle using the index.
+     * @param root The root directory of the tree.
+     * @return The index, which may still need to be refreshed.
+     */
+    public static DirectoryIndex getIndex(BundleContext context, File root) {
+        File dir = context.getDataFile(INDEX_DIRECTORY);
+        if (dir == null)
+            // No file system support in the framework, don't persist the index
+            return new DirectoryIndex(null, root);
+
+        dir.mkdirs();
+        String path = root.getAbsolutePath();
+        File storeFile = new File(dir, Integer.toHexString(path.hashCode()) + "-" + path.length() + ".idx");
+        synchronized (indexes) {
+            for (Iterator<WeakReference<DirectoryIndex>> it = indexes.values().iterator(); it.hasNext(); ) {
+                if (it.next().get() == null)
+                    it.remove();
+            }
+
+            WeakReference<DirectoryIndex> ref = indexes.get(storeFile);
+            DirectoryIndex index = ref == null ? null : ref.get();
+            if (index == null || !index.root.equals(root.getAbsoluteFile().toPath())) {
+                index = new DirectoryIndex(storeFile, root);
+                indexes.put(storeFile, new WeakReference<DirectoryIndex>(index));
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Bring the index up to date with the directory tree on disk and store it.
+     */
+    public void refresh() {
+        refresh(CancellationToken.NONE);
+    }
+
+    /**
+     * Bring the index up to date with the directory tree on disk and store it. When the token is
+     * cancelled during the refresh the index is left as it was.
+     * @param token The token to cancel the refresh with.
+     * @return <tt>false</tt> if the refresh was cancelled.
+     */
+    public synchronized boolean refresh(CancellationToken token) {
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+
+        Map<String, DirRecord> oldDirs = dirs;
+        Map<String, DirRecord> newDirs = new HashMap<String, DirRecord>();
+        Deque<Path> pending = new ArrayDeque<Path>();
+        pending.add(root);
+        listedDirectories = 0;
+        while (!pending.isEmpty()) {
+            if (token.isCancelled())
+                return false;
+
+            Path dir = pending.poll();
+            BasicFileAttributes dirAttrs;
+            try {
+                dirAttrs = Files.readAttributes(dir, BasicFileAttributes.class);
+            } catch (IOException e) {
+                continue;
+            }
+            if (!dirAttrs.isDirectory())
+                continue;
+
+            String key = dir.toString();
+            long modified = dirAttrs.lastModifiedTime().toMillis();
+            DirRecord rec = oldDirs.get(key);
+            if (rec == null || rec.modified != modified || rec.listed - modified <= MODIFIED_GRANULARITY) {
+                // New, modified or modified so shortly before it was listed that a later change may
+                // not have changed the modification time
+                rec = listDirectory(dir, modified);
+                listedDirectories++;
+            }
+            newDirs.put(key, rec);
+
+            for (Item item : rec.items) {
+                if (item.directory)
+                    pending.add(dir.resolve(item.name));
+            }
+        }
+
+        dirs = newDirs;
+        if (listedDirectories > 0 || newDirs.size() != oldDirs.size())
+            save();
+        return true;
+    }
+
+    /**
+     * @return The number of directories that were listed during the last refresh.
+     */
+    int getListedDirectoryCount() {
+        return listedDirectories;
+    }
+
+    /**
+     * Iterate over the files and directories in the index, as they were at the last refresh.
+     */
+    @Override
+    public Iterator<FileTreeIterable.Entry> iterator() {
+        final Map<String, DirRecord> snapshot = dirs;
+        final Deque<Path> pending = new ArrayDeque<Path>();
+        pending.add(root);
+
+        return new Iterator<FileTreeIterable.Entry>() {
+            private Path currentDir;
+            private List<Item> currentItems = Collections.emptyList();
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                while (index >= currentItems.size()) {
+                    currentDir = pending.poll();
+                    if (currentDir == null)
+                        return false;
+
+                    DirRecord rec = snapshot.get(currentDir.toString());
+                    currentItems = rec == null ? Collections.<Item>emptyList() : rec.items;
+                    index = 0;
+                }
+                return true;
+            }
+
+            @Override
+            public FileTreeIterable.Entry next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+
+                Item item = currentItems.get(index++);
+                Path path = currentDir.resolve(item.name);
+                if (item.directory)
+                    pending.add(path);
+                return new FileTreeIterable.Entry(path, item);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static DirRecord listDirectory(Path dir, long modified) {
+        long listed = System.currentTimeMillis();
+        List<Item> items = new ArrayList<Item>();
+        try {
+            DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+            try {
+                for (Path p : ds) {
+                    try {
+                        BasicFileAttributes attrs = Files.readAttributes(p, BasicFileAttributes.class);
+                        items.add(new Item(p.getFileName().toString(), attrs.isDirectory(), attrs.size(),
+                                attrs.lastModifiedTime().toMillis(), attrs.creationTime().toMillis()));
+                    } catch (IOException e) {
+                        // deleted in the mean time, skip it
+                    }
+                }
+            } finally {
+                ds.close();
+            }
+        } catch (IOException e) {
+            // unreadable directory, treat as empty
+        } catch (DirectoryIteratorException e) {
+            // failed while reading the directory, keep what was read
+        }
+
+        Collections.sort(items, new Comparator<Item>() {
+            @Override
+            public int compare(Item o1, Item o2) {
+                return o1.name.compareTo(o2.name);
+            }
+        });
+        return new DirRecord(modified, listed, items);
+    }
+
+    private void load() {
+        if (storeFile == null || !storeFile.exists())
+            return;
+
+        Map<String, DirRecord> loadedDirs = new HashMap<String, DirRecord>();
+        try {
+            DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+            try {
+                if (dis.readInt() != MAGIC || dis.readInt() != VERSION || !root.toString().equals(dis.readUTF()))
+                    return;
+
+                int numDirs = dis.readInt();
+                for (int i = 0; i < numDirs; i++) {
+                    String path = dis.readUTF();
+                    long modified = dis.readLong();
+                    long listed = dis.readLong();
+                    int numItems = dis.readInt();
+                    List<Item> items = new ArrayList<Item>(numItems);
+                    for (int j = 0; j < numItems; j++) {
+                        items.add(new Item(dis.readUTF(), dis.readBoolean(), dis.readLong(), dis.readLong(), dis.readLong()));
+                    }
+                    loadedDirs.put(path, new DirRecord(modified, listed, items));
+                }
+            } finally {
+                dis.close();
+            }
+        } catch (IOException e) {
+            // A damaged index, start afresh
+            return;
+        }
+        dirs = loadedDirs;
+    }
+
+    private void save() {
+        if (storeFile == null)
+            return;
+
+        File tempFile = new File(storeFile.getAbsolutePath() + ".new");
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                dos.writeInt(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeUTF(root.toString());
+                dos.writeInt(dirs.size());
+                for (Map.Entry<String, DirRecord> entry : dirs.entrySet()) {
+                    DirRecord rec = entry.getValue();
+                    dos.writeUTF(entry.getKey());
+                    dos.writeLong(rec.modified);
+                    dos.writeLong(rec.listed);
+                    dos.writeInt(rec.items.size());
+                    for (Item item : rec.items) {
+                        dos.writeUTF(item.name);
+                        dos.writeBoolean(item.directory);
+                        dos.writeLong(item.size);
+                        dos.writeLong(item.modified);
+                        dos.writeLong(item.created);
+                    }
+                }
+            } finally {
+                dos.close();
+            }
+            Files.move(tempFile.toPath(), storeFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+            tempFile.delete();
+        }
+    }
+
+    private static class DirRecord {
+        private final long modified;
+        private final long listed;
+        private final List<Item> items;
+
+        DirRecord(long modified, long listed, List<Item> items) {
+            this.modified = modified;
+            this.listed = listed;
+            this.items = items;
+        }
+    }
+
+    /**
+     * An entry in a directory, which also serves as its file attributes.
+     */
+    private static class Item implements BasicFileAttributes {
+        private final String name;
+        private final boolean directory;
+        private final long size;
+        private final long modified;
+        private final long created;
+
+        Item(String name, boolean directory, long size, long modified, long created) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+            this.created = created;
+        }
+
+        @Override
+        public FileTime lastModifiedTime() {
+            return FileTime.fromMillis(modified);
+        }
+
+        @Override
+        public FileTime lastAccessTime() {
+            return FileTime.fromMillis(modified);
+        }
+
+        @Override
+        public FileTime creationTime() {
+            return FileTime.fromMillis(created);
+        }
+
+        @Override
+        public boolean isRegularFile() {
+            return !directory;
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isSymbolicLink() {
+            return false;
+        }
+
+        @Override
+        public boolean isOther() {
+            return false;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public Object fileKey() {
+            return null;
+        }
+    }
+}
@@ -15,19 +15,53 @@ package org.coderthoughts.phototools.util;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
-import org.coderthoughts.phototools.api.PhotoIterable;
+import org.coderthoughts.phototools.api.CancellablePhotoIterable;
+import org.coderthoughts.phototools.api.CancellationToken;
+import org.coderthoughts.phototools.api.DateRangePhotoIterable;
+import org.coderthoughts.phototools.api.MetadataRecord;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 
-public class DirectoryPhotoIterable implements PhotoIterable {
+public class DirectoryPhotoIterable implements CancellablePhotoIterable, DateRangePhotoIterable {
     private final String rootLocation;
+    private final DirectoryIndex index;
+    private final PhotoMetadataProvider jpegMetadataProvider;
     private String[] extensions = null;
+    private Date fromDate = null;
+    private Date toDate = null;
     private volatile boolean freezeCalled = false;
 
     public DirectoryPhotoIterable(String rootLocation) {
+        this(rootLocation, null);
+    }
+
+    /**
+     * Create an iterable that obtains the files from a {@link DirectoryIndex}, which is
+     * refreshed when an iterator is obtained.
+     * @param rootLocation The root directory.
+     * @param index The index of the root directory, or <tt>null</tt> to read the directories directly.
+     */
+    public DirectoryPhotoIterable(String rootLocation, DirectoryIndex index) {
+        this(rootLocation, index, null);
+    }
+
+    /**
+     * @param rootLocation The root directory.
+     * @param index The index of the root directory, or <tt>null</tt> to read the directories directly.
+     * @param jpegMetadataProvider The provider to obtain the dates of JPEG files from when a date range
+     * is set, or <tt>null</tt> to return the files regardless of their date. The caller normally reads
+     * the files that are returned with the same provider, which should therefore cache the metadata.
+     */
+    public DirectoryPhotoIterable(String rootLocation, DirectoryIndex index, PhotoMetadataProvider jpegMetadataProvider) {
         this.rootLocation = rootLocation;
+        this.index = index;
+        this.jpegMetadataProvider = jpegMetadataProvider;
     }
 
     @Override
@@ -49,17 +83,48 @@ public class DirectoryPhotoIterable implements PhotoIterable {
         return this;
     }
 
+    /**
+     * JPEG files outside of the date range are skipped if a JPEG metadata provider was given to obtain
+     * their date from. Other files are always returned.
+     */
+    @Override
+    public DirectoryPhotoIterable setDateRange(Date from, Date to) {
+        if (freezeCalled)
+            throw new IllegalStateException("Cannot set the date range after calling freeze");
+        this.fromDate = from;
+        this.toDate = to;
+        return this;
+    }
+
     @Override
     public Iterator<Entry> iterator() {
+        return iterator(CancellationToken.NONE);
+    }
+
+    @Override
+    public Iterator<Entry> iterator(final CancellationToken token) {
         if (!freezeCalled)
             throw new IllegalStateException("Must call freeze before obtaining an iterator");
 
+        final Iterator<FileTreeIterable.Entry> entries;
+        if (index != null) {
+            if (index.refresh(token))
+                entries = index.iterator();
+            else
+                entries = Collections.<FileTreeIterable.Entry>emptyIterator();
+        } else {
+            entries = new FileTreeIterator(new File(rootLocation).toPath(), true);
+        }
+
         return new Iterator<Entry>(){
-            private DirTreeIterator dirTreeIterator = new DirTreeIterator(new File(rootLocation));
-            private File nextFile;
+            private Iterator<FileTreeIterable.Entry> fileTreeIterator = entries;
+            private FileTreeIterable.Entry nextFile;
 
             @Override
             public boolean hasNext() {
+                if (token.isCancelled())
+                    return false;
+
                 if (nextFile == null) {
                     getNextFile();
                 }
@@ -67,20 +132,22 @@ public class DirectoryPhotoIterable implements PhotoIterable {
             }
 
             private void getNextFile() {
-                while (dirTreeIterator.hasNext()) {
-                    File f = dirTreeIterator.next();
+                // The file tree iterator reads a directory at a time, check in between
+                while (!token.isCancelled() && fileTreeIterator.hasNext()) {
+                    FileTreeIterable.Entry f = fileTreeIterator.next();
                     if (f.isFile()) {
                         boolean allowedExtension = false;
                         if (extensions != null) {
+                            String name = f.getPath().getFileName().toString().toLowerCase();
                             for (String ext : extensions) {
-                                if (f.getName().toLowerCase().endsWith(ext.toLowerCase())) {
+                                if (name.endsWith(ext.toLowerCase())) {
                                     allowedExtension = true;
                                     break;
                                 }
                             }
                         }
 
-                        if (extensions == null || allowedExtension) {
+                        if ((extensions == null || allowedExtension) && isWithinDateRange(f.getFile(), f.getAttributes())) {
                             nextFile = f;
                             return;
                         }
@@ -96,25 +163,31 @@ public class DirectoryPhotoIterable implements PhotoIterable {
                 if (nextFile == null)
                     throw new NoSuchElementException();
 
-                final String filePath = nextFile.getAbsolutePath();
-
-                try {
-                    return new Entry(nextFile.getName(), new Date(nextFile.lastModified()), new FileInputStream(nextFile)) {
-                        @Override
-                        public Date getDate() {
-                            // This operation is expensive, so only invoke if needed
-                            Date creationDate = FileTools.getFileModificationDate(new File(filePath));
-                            if (creationDate != null)
-                                return creationDate;
-                            else
-                                return super.getDate(); // will return the last modified
+                final File file = nextFile.getFile();
+                final BasicFileAttributes attrs = nextFile.getAttributes();
+                nextFile = null;
+
+                return new Entry(file.getName(), new Date(attrs.lastModifiedTime().toMillis()), null, file) {
+                    private InputStream inputStream;
+
+                    @Override
+                    public Date getDate() {
+                        return getFileDate(attrs);
+                    }
+
+                    @Override
+                    public synchronized InputStream getInputStream() {
+                        // Only open the file when needed, callers may use the file directly.
+                        if (inputStream == null) {
+                            try {
+                                inputStream = new FileInputStream(file);
+                            } catch (FileNotFoundException e) {
+                                throw new RuntimeException(e);
+                            }
                         }
-                    };
-                } catch (FileNotFoundException e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    nextFile = null;
-                }
+                        return inputStream;
+                    }
+                };
             }
 
             @Override
@@ -124,6 +197,38 @@ public class DirectoryPhotoIterable implements PhotoIterable {
         };
     }
 
+    private boolean isWithinDateRange(File file, BasicFileAttributes attrs) {
+        if (jpegMetadataProvider == null || (fromDate == null && toDate == null))
+            return true;
+
+        String name = file.getName().toLowerCase();
+        if (!name.endsWith(".jpg") && !name.endsWith(".jpeg"))
+            return true;
+
+        // When the file is returned, its metadata is taken from the cache rather than read again
+        MetadataRecord record = MetadataTools.getMetadataRecord(jpegMetadataProvider, file);
+        if (record == null)
+            return true;
+
+        Date date = record.getDateTaken() == MetadataRecord.UNKNOWN_DATE ? null : new Date(record.getDateTaken());
+        if (date == null)
+            date = getFileDate(attrs); // the date the caller falls back to
+
+        if (fromDate != null && date.getTime() < fromDate.getTime())
+            return false;
+        if (toDate != null && date.getTime() >= toDate.getTime())
+            return false;
+        return true;
+    }
+
+    private static Date getFileDate(BasicFileAttributes attrs) {
+        Date creationDate = FileTools.getFileModificationDate(attrs);
+        if (creationDate != null)
+            return creationDate;
+        else
+            return new Date(attrs.lastModifiedTime().toMillis());
+    }
+
     @Override
     public String toString() {
         return rootLocation;
@@ -16,28 +16,67 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-// This class can be hugely simplified when we're using Java 7
 public class FileTools {
+    /**
+     * System property that can be set to <tt>true</tt> to use the old behaviour of obtaining the
+     * file date by running the <tt>ls</tt> command in a shell. This is very slow as it forks a process per file.
+     */
+    public static final String USE_SHELL_PROPERTY = "org.coderthoughts.phototools.filetools.shell";
+
     private static final Pattern LS_PATTERN1 = Pattern.compile(".*(\\w\\w\\w)[ ]+(\\d+)[ ]+(\\d\\d)[:](\\d\\d)[:](\\d\\d)[ ]+(\\d\\d\\d\\d).*");
     private static final Pattern LS_PATTERN2 = Pattern.compile(".+(\\d\\d\\d\\d)[-](\\d\\d)[-](\\d\\d)[ ](\\d\\d)[:](\\d\\d)[:](\\d\\d)[.].+");
 
     // There are 2 unix ls command lines at least one of the mac and another on fedora. We'll just try to figure out which one works best.
     private static volatile boolean preferUnixMethod1 = true;
+    private static volatile boolean useShell = Boolean.getBoolean(USE_SHELL_PROPERTY);
+
+    /**
+     * Specify whether the file date should be obtained via the shell rather than via the
+     * file attributes.
+     * @param shell <tt>true</tt> to use the shell.
+     */
+    public static void setUseShell(boolean shell) {
+        useShell = shell;
+    }
 
     /*
-     * Return the date the content of the file was modified last. On Windows this is
-     * simply File.lastModified() but on unix that API returns when the file was last
-     * copied to a new location, so on that platform we have to perform a trick to
-     * obtain it via the shell.
-     * Note that Java 7 may have a better solution to this...
+     * Return the date the content of the file was modified last. This is the earliest of
+     * the creation time and the last modified time. Where the platform doesn't keep track
+     * of the creation time the last modified time is returned.
      */
     public static Date getFileModificationDate(File f) {
+        if (useShell)
+            return getFileModificationDateShell(f);
+
+        try {
+            return getFileModificationDate(Files.readAttributes(f.toPath(), BasicFileAttributes.class));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public static Date getFileModificationDate(BasicFileAttributes attrs) {
+        long created = attrs.creationTime().toMillis();
+        long modified = attrs.lastModifiedTime().toMillis();
+        if (created <= 0)
+            // creation time not known
+            return new Date(modified);
+        return new Date(Math.min(created, modified));
+    }
+
+    /*
+     * On Windows this is simply File.lastModified() but on unix the file date is
+     * obtained by running the 'ls' command in the shell.
+     */
+    static Date getFileModificationDateShell(File f) {
         if (File.separatorChar == '\\') {
             return getFileModificationDateWindows(f);
         } else {
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Iterates over all the files and directories in a directory tree, together with their file
+ * attributes. See {@link FileTreeIterator}.
+ */
+public class FileTreeIterable implements Iterable<FileTreeIterable.Entry> {
+    private final Path root;
+    private final boolean sorted;
+
+    public FileTreeIterable(File root) {
+        this(root.toPath(), false);
+    }
+
+    public FileTreeIterable(Path root, boolean sorted) {
+        this.root = root;
+        this.sorted = sorted;
+    }
+
+    @Override
+    public FileTreeIterator iterator() {
+        return new FileTreeIterator(root, sorted);
+    }
+
+    /**
+     * A file or directory in the tree. The attributes are read when the entry is found,
+     * so callers don't need to access the file system again to find out about it.
+     */
+    public static class Entry {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+
+        public Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        public File getFile() {
+            return path.toFile();
+        }
+
+        public BasicFileAttributes getAttributes() {
+            return attributes;
+        }
+
+        public boolean isFile() {
+            return attributes.isRegularFile();
+        }
+
+        public boolean isDirectory() {
+            return attributes.isDirectory();
+        }
+
+        @Override
+        public String toString() {
+            return path.toString();
+        }
+    }
+}
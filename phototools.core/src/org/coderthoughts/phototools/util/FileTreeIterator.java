@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An iterator over all files and directories in a directory tree, based on {@link DirectoryStream}.
+ * Like the {@link DirTreeIterator} the tree is traversed breadth-first, but by default the entries of a
+ * directory are returned in the order in which the file system provides them, without reading the whole
+ * directory first. Each entry comes with its file attributes.
+ *
+ * Optionally the entries of each directory can be sorted by name, which requires reading the names in
+ * a directory before its first entry is returned.
+ *
+ * Entries that cannot be accessed, for instance because they were deleted during the iteration,
+ * are skipped. When the iteration is abandoned before the end it should be closed to release the
+ * open directory.
+ */
+public class FileTreeIterator implements Iterator<FileTreeIterable.Entry>, Closeable {
+    private final Deque<Path> pendingDirs = new ArrayDeque<Path>();
+    private final boolean sorted;
+    private DirectoryStream<Path> currentStream;
+    private Iterator<Path> currentIterator;
+    private FileTreeIterable.Entry nextEntry;
+
+    public FileTreeIterator(Path rootDir) {
+        this(rootDir, false);
+    }
+
+    /**
+     * Create an iterator.
+     * @param rootDir The root of the tree.
+     * @param sorted If <tt>true</tt> the entries in each directory are returned sorted by name.
+     */
+    public FileTreeIterator(Path rootDir, boolean sorted) {
+        this.sorted = sorted;
+        pendingDirs.add(rootDir);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextEntry == null)
+            nextEntry = findNext();
+        return nextEntry != null;
+    }
+
+    @Override
+    public FileTreeIterable.Entry next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        FileTreeIterable.Entry entry = nextEntry;
+        nextEntry = null;
+        return entry;
+    }
+
+    private FileTreeIterable.Entry findNext() {
+        while (true) {
+            while (currentIterator == null || !currentIterator.hasNext()) {
+                closeCurrentStream();
+                Path dir = pendingDirs.poll();
+                if (dir == null)
+                    return null;
+
+                try {
+                    currentStream = Files.newDirectoryStream(dir);
+                    currentIterator = currentStream.iterator();
+                    if (sorted)
+                        currentIterator = getSortedIterator();
+                } catch (IOException e) {
+                    // not a directory or not readable, skip it
+                } catch (DirectoryIteratorException e) {
+                    // failed to read the directory
+                }
+            }
+
+            Path path;
+            try {
+                path = currentIterator.next();
+            } catch (DirectoryIteratorException e) {
+                // failed to read the rest of the directory
+                closeCurrentStream();
+                continue;
+            }
+
+            BasicFileAttributes attrs;
+            try {
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                continue;
+            }
+
+            if (attrs.isDirectory())
+                pendingDirs.add(path);
+            return new FileTreeIterable.Entry(path, attrs);
+        }
+    }
+
+    private Iterator<Path> getSortedIterator() {
+        List<Path> paths = new ArrayList<Path>();
+        while (currentIterator.hasNext()) {
+            paths.add(currentIterator.next());
+        }
+        closeCurrentStream();
+
+        Collections.sort(paths, new Comparator<Path>() {
+            @Override
+            public int compare(Path o1, Path o2) {
+                return o1.getFileName().toString().compareTo(o2.getFileName().toString());
+            }
+        });
+        return paths.iterator();
+    }
+
+    private void closeCurrentStream() {
+        currentIterator = null;
+        if (currentStream != null) {
+            try {
+                currentStream.close();
+            } catch (IOException e) {
+                // ignore
+            }
+            currentStream = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        closeCurrentStream();
+        pendingDirs.clear();
+        nextEntry = null;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+}
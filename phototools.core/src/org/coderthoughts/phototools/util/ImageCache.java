@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An in-memory cache of decoded images, limited by the number of bytes taken by the pixels of the
+ * images. When the limit is reached the least recently used images are evicted, users of the cache
+ * should be prepared to load an image again when it is no longer in the cache.
+ */
+public class ImageCache {
+    /**
+     * System property to set the maximum size of the image cache, in megabytes.
+     */
+    public static final String MAX_SIZE_PROPERTY = "org.coderthoughts.phototools.imagecache.size";
+    public static final int DEFAULT_MAX_SIZE = 64; // MB
+
+    private final long maxBytes;
+    private final Map<Object, BufferedImage> images = new LinkedHashMap<Object, BufferedImage>(16, 0.75f, true);
+    private long currentBytes = 0;
+
+    /**
+     * Create an image cache with the size set in the {@link #MAX_SIZE_PROPERTY} system property.
+     */
+    public ImageCache() {
+        this(Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE) * 1024L * 1024L);
+    }
+
+    /**
+     * @param maxBytes The maximum number of bytes taken by the pixels of the cached images.
+     */
+    public ImageCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized BufferedImage get(Object key) {
+        return images.get(key);
+    }
+
+    /**
+     * Add an image to the cache. Images larger than the cache itself are not added.
+     * @param key The key.
+     * @param img The image.
+     */
+    public synchronized void put(Object key, BufferedImage img) {
+        long weight = getWeight(img);
+        if (weight > maxBytes)
+            return;
+
+        BufferedImage old = images.put(key, img);
+        if (old != null)
+            currentBytes -= getWeight(old);
+        currentBytes += weight;
+
+        for (Iterator<BufferedImage> it = images.values().iterator(); currentBytes > maxBytes && it.hasNext(); ) {
+            currentBytes -= getWeight(it.next());
+            it.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        images.clear();
+        currentBytes = 0;
+    }
+
+    public synchronized int size() {
+        return images.size();
+    }
+
+    /**
+     * @return The number of bytes taken by the pixels of the cached images.
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    static long getWeight(BufferedImage img) {
+        DataBuffer db = img.getRaster().getDataBuffer();
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * A lightweight reader for the information in the header of a JPEG file. Only the JPEG segment
+ * markers, the EXIF IFD chain up to the date tags and the frame header are looked at, everything
+ * else (thumbnails, XMP, IPTC, maker notes, the image data itself) is skipped over. Use
+ * {@link JPEGTools} for all the details.
+ */
+public class JPEGHeader {
+    // The same formats as used by metadata-extractor, to obtain identical dates
+    private static final String [] DATE_FORMATS = {
+        "yyyy:MM:dd HH:mm:ss", "yyyy:MM:dd HH:mm",
+        "yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm",
+        "yyyy.MM.dd HH:mm:ss", "yyyy.MM.dd HH:mm"};
+
+    private static final int TAG_MAKE = 0x010F;
+    private static final int TAG_MODEL = 0x0110;
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_DATETIME = 0x0132;
+    private static final int TAG_EXIF_IFD = 0x8769;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_DATETIME_ORIGINAL = 0x9003;
+    private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+    private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+    private static final int TAG_GPS_LATITUDE_REF = 0x0001;
+    private static final int TAG_GPS_LATITUDE = 0x0002;
+    private static final int TAG_GPS_LONGITUDE_REF = 0x0003;
+    private static final int TAG_GPS_LONGITUDE = 0x0004;
+    private static final int [] GPS_LOCATION_TAGS = {TAG_GPS_LATITUDE_REF, TAG_GPS_LATITUDE, TAG_GPS_LONGITUDE_REF, TAG_GPS_LONGITUDE};
+
+    private static final byte [] EXIF_PREAMBLE = {'E', 'x', 'i', 'f', 0, 0};
+
+    // Holds the segment markers and EXIF data of most files. A larger buffer takes longer to fill than
+    // it saves, as the rest of the header is mostly skipped anyway.
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private Date dateTaken;
+    private Integer height;
+    private Integer width;
+    private boolean gpsPresent;
+    private Double latitude;
+    private Double longitude;
+    private String make;
+    private String model;
+    private Integer orientation;
+    private byte [] thumbnail;
+
+    private JPEGHeader() {
+    }
+
+    /**
+     * Read the header of a JPEG file.
+     * @param file The JPEG file.
+     * @return The header information.
+     * @throws IOException If the file cannot be read or is not a well-formed JPEG file.
+     */
+    public static JPEGHeader read(File file) throws IOException {
+        JPEGHeader header = new JPEGHeader();
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            header.readSegments(new DataInputStream(new ChannelInputStream(fis.getChannel())));
+        } finally {
+            fis.close();
+        }
+        return header;
+    }
+
+    /**
+     * Read the header of a JPEG file from a stream. Only the stream up to the end of the header
+     * is read, the stream is not closed.
+     * @param is The stream, positioned at the start of the JPEG file.
+     * @return The header information.
+     * @throws IOException If the stream cannot be read or doesn't hold a well-formed JPEG file.
+     */
+    public static JPEGHeader read(InputStream is) throws IOException {
+        JPEGHeader header = new JPEGHeader();
+        header.readSegments(new DataInputStream(is));
+        return header;
+    }
+
+    /**
+     * @return The DateTimeOriginal from the EXIF data, or if absent the DateTime, or <tt>null</tt> if
+     * neither is available.
+     */
+    public Date getDateTaken() {
+        return dateTaken;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    /**
+     * @return The same GPS info as {@link JPEGTools#getGPSInfo()}.
+     */
+    public String getGPSInfo() {
+        return gpsPresent ? "info present" : null;
+    }
+
+    /**
+     * @return The latitude in degrees, negative for the southern hemisphere, or <tt>null</tt> if
+     * unknown.
+     */
+    public Double getLatitude() {
+        return latitude;
+    }
+
+    /**
+     * @return The longitude in degrees, negative west of Greenwich, or <tt>null</tt> if unknown.
+     */
+    public Double getLongitude() {
+        return longitude;
+    }
+
+    public String getMake() {
+        return make;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * @return The EXIF orientation, 1 (upright) to 8, or <tt>null</tt> if unknown.
+     */
+    public Integer getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return The embedded EXIF thumbnail, which is a small JPEG image, or <tt>null</tt> if there
+     * is no thumbnail.
+     */
+    public byte [] getThumbnailData() {
+        return thumbnail;
+    }
+
+    private void readSegments(DataInput in) throws IOException {
+        if (in.readUnsignedShort() != 0xFFD8)
+            throw new IOException("Not a JPEG file");
+
+        boolean exifRead = false;
+        while (true) {
+            if (in.readUnsignedByte() != 0xFF)
+                throw new IOException("Invalid JPEG segment marker");
+
+            int marker = in.readUnsignedByte();
+            while (marker == 0xFF) // fill bytes
+                marker = in.readUnsignedByte();
+
+            if (marker == 0xD9 || marker == 0xDA)
+                return; // end of image or start of the image data, no more header information
+
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+                continue; // markers without a payload
+
+            int length = in.readUnsignedShort() - 2;
+            if (length < 0)
+                throw new IOException("Invalid JPEG segment length");
+
+            if (marker == 0xE1 && !exifRead && length > EXIF_PREAMBLE.length) {
+                byte [] data = new byte[length];
+                in.readFully(data);
+                if (startsWith(data, EXIF_PREAMBLE)) {
+                    readExif(data, EXIF_PREAMBLE.length);
+                    exifRead = true;
+                }
+            } else if (isStartOfFrame(marker) && length >= 5) {
+                in.readUnsignedByte(); // precision
+                height = in.readUnsignedShort();
+                width = in.readUnsignedShort();
+                return; // the frame header is the last thing we're interested in
+            } else {
+                skipFully(in, length);
+            }
+        }
+    }
+
+    private static void skipFully(DataInput in, int length) throws IOException {
+        while (length > 0) {
+            int skipped = in.skipBytes(length);
+            if (skipped > 0) {
+                length -= skipped;
+            } else {
+                // Nothing skipped, which doesn't have to mean the end of the data. Reading a byte tells.
+                in.readUnsignedByte();
+                length--;
+            }
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0-SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private void readExif(byte [] data, int tiffStart) throws IOException {
+        TIFFReader tiff = new TIFFReader(data, tiffStart);
+        int ifd0 = tiff.getIFD0Offset();
+
+        make = trim(tiff.getString(ifd0, TAG_MAKE));
+        model = trim(tiff.getString(ifd0, TAG_MODEL));
+        Long orientationValue = tiff.getLong(ifd0, TAG_ORIENTATION);
+        if (orientationValue != null)
+            orientation = orientationValue.intValue();
+
+        String dateTime = tiff.getString(ifd0, TAG_DATETIME);
+        Long exifIFD = tiff.getLong(ifd0, TAG_EXIF_IFD);
+        if (exifIFD != null) {
+            dateTaken = parseDate(tiff.getString(exifIFD.intValue(), TAG_DATETIME_ORIGINAL));
+        }
+        if (dateTaken == null)
+            dateTaken = parseDate(dateTime);
+
+        Long gpsIFD = tiff.getLong(ifd0, TAG_GPS_IFD);
+        if (gpsIFD != null) {
+            gpsPresent = true;
+            for (int tag : GPS_LOCATION_TAGS) {
+                if (!tiff.hasTag(gpsIFD.intValue(), tag)) {
+                    gpsPresent = false;
+                    break;
+                }
+            }
+            if (gpsPresent) {
+                try {
+                    readLocation(tiff, gpsIFD.intValue());
+                } catch (IOException e) {
+                    // A broken location doesn't make the rest of the header invalid either
+                }
+            }
+        }
+
+        try {
+            int ifd1 = tiff.getNextIFDOffset(ifd0);
+            if (ifd1 > 0) {
+                Long offset = tiff.getLong(ifd1, TAG_THUMBNAIL_OFFSET);
+                Long length = tiff.getLong(ifd1, TAG_THUMBNAIL_LENGTH);
+                if (offset != null && length != null)
+                    thumbnail = tiff.getBytes(offset.intValue(), length.intValue());
+            }
+        } catch (IOException e) {
+            // A broken thumbnail doesn't make the rest of the header invalid
+        }
+    }
+
+    private void readLocation(TIFFReader tiff, int gpsIFD) throws IOException {
+        double [] lat = tiff.getRationals(gpsIFD, TAG_GPS_LATITUDE);
+        double [] lon = tiff.getRationals(gpsIFD, TAG_GPS_LONGITUDE);
+        if (lat == null || lon == null || lat.length < 3 || lon.length < 3)
+            return;
+
+        // Degrees, minutes and seconds
+        latitude = lat[0] + lat[1] / 60 + lat[2] / 3600;
+        if ("S".equalsIgnoreCase(tiff.getString(gpsIFD, TAG_GPS_LATITUDE_REF)))
+            latitude = -latitude;
+        longitude = lon[0] + lon[1] / 60 + lon[2] / 3600;
+        if ("W".equalsIgnoreCase(tiff.getString(gpsIFD, TAG_GPS_LONGITUDE_REF)))
+            longitude = -longitude;
+    }
+
+    private static String trim(String s) {
+        // Cameras often pad the make and model with spaces
+        if (s == null)
+            return null;
+
+        s = s.trim();
+        return s.length() == 0 ? null : s;
+    }
+
+    private static Date parseDate(String s) {
+        if (s == null)
+            return null;
+
+        for (String format : DATE_FORMATS) {
+            Date d = new SimpleDateFormat(format).parse(s, new ParsePosition(0));
+            if (d != null)
+                return d;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte [] data, byte [] prefix) {
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[i] != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads tags from the IFDs in a TIFF structure held in a byte array.
+     */
+    private static class TIFFReader {
+        private static final int TYPE_ASCII = 2;
+        private static final int TYPE_SHORT = 3;
+        private static final int TYPE_LONG = 4;
+        private static final int TYPE_RATIONAL = 5;
+        private static final int TYPE_SRATIONAL = 10;
+
+        private final byte [] data;
+        private final int start;
+        private final boolean bigEndian;
+
+        TIFFReader(byte [] data, int start) throws IOException {
+            this.data = data;
+            this.start = start;
+
+            int order = readShort(0);
+            if (order == 0x4D4D) // MM
+                bigEndian = true;
+            else if (order == 0x4949) // II
+                bigEndian = false;
+            else
+                throw new IOException("Invalid TIFF byte order");
+        }
+
+        int getIFD0Offset() throws IOException {
+            return (int) readInt(4);
+        }
+
+        int getNextIFDOffset(int ifd) throws IOException {
+            return (int) readInt(ifd + 2 + readShort(ifd) * 12);
+        }
+
+        byte [] getBytes(int offset, int length) throws IOException {
+            check(offset, length);
+            byte [] bytes = new byte[length];
+            System.arraycopy(data, start + offset, bytes, 0, length);
+            return bytes;
+        }
+
+        boolean hasTag(int ifd, int tag) throws IOException {
+            return findEntry(ifd, tag) >= 0;
+        }
+
+        String getString(int ifd, int tag) throws IOException {
+            int entry = findEntry(ifd, tag);
+            if (entry < 0 || readShort(entry + 2) != TYPE_ASCII)
+                return null;
+
+            long count = readInt(entry + 4);
+            int offset = count <= 4 ? entry + 8 : (int) readInt(entry + 8);
+            check(offset, count);
+
+            int end = offset;
+            while (end < offset + count && data[start + end] != 0)
+                end++;
+            return new String(data, start + offset, end - offset, "US-ASCII");
+        }
+
+        Long getLong(int ifd, int tag) throws IOException {
+            int entry = findEntry(ifd, tag);
+            if (entry < 0)
+                return null;
+
+            switch (readShort(entry + 2)) {
+            case TYPE_LONG:
+                return readInt(entry + 8);
+            case TYPE_SHORT:
+                return (long) readShort(entry + 8);
+            default:
+                return null;
+            }
+        }
+
+        double [] getRationals(int ifd, int tag) throws IOException {
+            int entry = findEntry(ifd, tag);
+            if (entry < 0)
+                return null;
+
+            int type = readShort(entry + 2);
+            if (type != TYPE_RATIONAL && type != TYPE_SRATIONAL)
+                return null;
+
+            long count = readInt(entry + 4);
+            int offset = (int) readInt(entry + 8); // a rational is 8 bytes, so never stored in the entry
+            check(offset, count * 8);
+
+            double [] result = new double[(int) count];
+            for (int i = 0; i < count; i++) {
+                long numerator = readInt(offset + i * 8);
+                long denominator = readInt(offset + i * 8 + 4);
+                if (type == TYPE_SRATIONAL) {
+                    numerator = (int) numerator;
+                    denominator = (int) denominator;
+                }
+                result[i] = denominator == 0 ? 0 : (double) numerator / denominator;
+            }
+            return result;
+        }
+
+        private int findEntry(int ifd, int tag) throws IOException {
+            // Some cameras write a tag more than once, the last one wins as with metadata-extractor
+            int found = -1;
+            int count = readShort(ifd);
+            for (int i = 0; i < count; i++) {
+                int entry = ifd + 2 + i * 12;
+                if (readShort(entry) == tag)
+                    found = entry;
+            }
+            return found;
+        }
+
+        private int readShort(int offset) throws IOException {
+            check(offset, 2);
+            int b0 = data[start + offset] & 0xFF;
+            int b1 = data[start + offset + 1] & 0xFF;
+            return bigEndian ? (b0 << 8) | b1 : (b1 << 8) | b0;
+        }
+
+        private long readInt(int offset) throws IOException {
+            check(offset, 4);
+            long result = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = data[start + offset + (bigEndian ? i : 3 - i)] & 0xFF;
+                result = (result << 8) | b;
+            }
+            return result;
+        }
+
+        private void check(int offset, long length) throws IOException {
+            // In longs, as the values come from the file and may be anything
+            if (offset < 0 || length < 0 || (long) start + offset + length > data.length)
+                throw new IOException("Invalid TIFF offset: " + offset);
+        }
+    }
+
+    /**
+     * Reads a file through a buffer that is only refilled once the parser runs past its end.
+     * Skipping beyond the buffer repositions the channel instead of reading the skipped bytes.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        ChannelInputStream(FileChannel channel) {
+            this.channel = channel;
+            buffer.limit(0);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return buffer.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            if (n <= buffer.remaining()) {
+                int skipped = (int) Math.max(n, 0);
+                buffer.position(buffer.position() + skipped);
+                return skipped;
+            }
+
+            long skipped = buffer.remaining();
+            long position = channel.position();
+            long newPosition = Math.min(position + n - skipped, channel.size());
+            channel.position(newPosition);
+            buffer.limit(0);
+            return skipped + newPosition - position;
+        }
+
+        private boolean fill() throws IOException {
+            if (buffer.hasRemaining())
+                return true;
+
+            buffer.clear();
+            int read = channel.read(buffer);
+            buffer.flip();
+            return read > 0;
+        }
+    }
+}
@@ -68,6 +68,48 @@ public class JPEGTools {
         return null;
     }
 
+    public Double getLatitude() {
+        GeoLocation loc = getGeoLocation();
+        return loc == null ? null : loc.getLatitude();
+    }
+
+    public Double getLongitude() {
+        GeoLocation loc = getGeoLocation();
+        return loc == null ? null : loc.getLongitude();
+    }
+
+    private GeoLocation getGeoLocation() {
+        GpsDirectory dir = metadata.getDirectory(GpsDirectory.class);
+        return dir == null ? null : dir.getGeoLocation();
+    }
+
+    public String getMake() {
+        return getIFD0String(ExifIFD0Directory.TAG_MAKE);
+    }
+
+    public String getModel() {
+        return getIFD0String(ExifIFD0Directory.TAG_MODEL);
+    }
+
+    private String getIFD0String(int tag) {
+        ExifIFD0Directory dir = metadata.getDirectory(ExifIFD0Directory.class);
+        if (dir == null)
+            return null;
+
+        String s = dir.getString(tag);
+        if (s == null || s.trim().length() == 0)
+            return null;
+        return s.trim();
+    }
+
+    public Integer getOrientation() {
+        ExifIFD0Directory dir = metadata.getDirectory(ExifIFD0Directory.class);
+        if (dir != null) {
+            return dir.getInteger(ExifIFD0Directory.TAG_ORIENTATION);
+        }
+        return null;
+    }
+
     public Integer getHeight() {
         JpegDirectory dir = metadata.getDirectory(JpegDirectory.class);
         if (dir != null) {
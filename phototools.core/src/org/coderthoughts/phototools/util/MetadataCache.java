@@ -0,0 +1,476 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.coderthoughts.phototools.api.MetadataRecord;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+
+/**
+ * A persistent cache of photo metadata. Entries are keyed on the file path and are only
+ * valid as long as the size and modification time of the file haven't changed. The metadata
+ * is held as a {@link MetadataRecord}, together with the preview file.
+ *
+ * The cache is stored in a file as an append-only log of records. Only an index of the file
+ * paths to the record locations is held in memory, together with a limited number of recently
+ * used records. The log is compacted when the cache is closed.
+ */
+public class MetadataCache {
+    private static final int MAGIC = 0x50544D43; // PTMC
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int FLAG_GPS_UNKNOWN = 1;
+    private static final int FLAG_PREVIEW_IS_FILE = 2;
+    private static final int FLAG_PREVIEW = 4;
+    private static final int FLAG_PREVIEW_UNKNOWN = 8;
+
+    // What the providers report as GPS info when a location is present
+    static final String GPS_INFO = "info present";
+
+    private final File storeFile;
+    private final Map<String, Long> index = new HashMap<String, Long>();
+    private final Map<String, Record> recent;
+    private RandomAccessFile store;
+    private int staleRecords = 0;
+
+    /**
+     * Create a metadata cache.
+     * @param storeFile The file used to persist the cache, typically obtained via
+     * {@link org.osgi.framework.BundleContext#getDataFile(String)}.
+     * @param maxInMemory The maximum number of entries held in memory.
+     */
+    public MetadataCache(File storeFile, final int maxInMemory) {
+        this.storeFile = storeFile;
+        recent = new LinkedHashMap<String, Record>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Record> eldest) {
+                return size() > maxInMemory;
+            }
+        };
+    }
+
+    /**
+     * Obtain the cached metadata for a file.
+     * @param f The file.
+     * @return The cached metadata or <tt>null</tt> if there is no valid cached metadata for the file.
+     */
+    public synchronized Record get(File f) {
+        BasicFileAttributes attrs = getAttributes(f);
+        if (attrs == null)
+            return null;
+
+        String path = f.getAbsolutePath();
+        Record r = recent.get(path);
+        if (r == null) {
+            r = readRecord(path);
+            if (r == null)
+                return null;
+            recent.put(path, r);
+        }
+
+        if (r.size != attrs.size() || r.lastModified != attrs.lastModifiedTime().toMillis())
+            return null;
+
+        if (r.previewFile != null && !r.previewFile.exists())
+            // The preview was a temporary file that has since disappeared
+            return null;
+
+        return r;
+    }
+
+    /**
+     * Add metadata for a file to the cache.
+     * @param f The file.
+     * @param md The metadata for the file.
+     * @return The cached record or <tt>null</tt> if the file cannot be accessed.
+     */
+    public Record put(File f, PhotoMetadataProvider.Metadata md) {
+        return put(f, md, true);
+    }
+
+    /**
+     * Add metadata for a file to the cache. Metadata that isn't a cached record only provides the
+     * date and the size of the photo, the other values of the metadata record are unknown. The GPS
+     * info of such metadata is not obtained, as it may be computed lazily, and
+     * {@link Record#isGPSInfoKnown()} of the cached record returns <tt>false</tt>.
+     * @param f The file.
+     * @param md The metadata for the file.
+     * @param withPreview If <tt>false</tt> the preview file is not obtained from the metadata, and
+     * {@link Record#isPreviewKnown()} of the cached record returns <tt>false</tt>.
+     * @return The cached record or <tt>null</tt> if the file cannot be accessed.
+     */
+    public Record put(File f, PhotoMetadataProvider.Metadata md, boolean withPreview) {
+        // Obtaining the fields from the metadata may involve decoding the photo, don't hold the lock for that
+        MetadataRecord record;
+        boolean gpsKnown;
+        if (md instanceof Record) {
+            record = ((Record) md).record;
+            gpsKnown = ((Record) md).gpsKnown;
+        } else {
+            record = MetadataTools.toMetadataRecord(md);
+            gpsKnown = false;
+        }
+        return put(f, record, gpsKnown, withPreview, withPreview ? md.getPreviewFile() : null);
+    }
+
+    /**
+     * Add a metadata record for a file to the cache. {@link Record#isPreviewKnown()} of the cached
+     * record returns <tt>false</tt>.
+     * @param f The file.
+     * @param record The metadata record for the file.
+     * @return The cached record or <tt>null</tt> if the file cannot be accessed.
+     */
+    public Record put(File f, MetadataRecord record) {
+        return put(f, record, true, false, null);
+    }
+
+    private Record put(File f, MetadataRecord record, boolean gpsKnown, boolean previewKnown, File previewFile) {
+        BasicFileAttributes attrs = getAttributes(f);
+        if (attrs == null)
+            return null;
+
+        String path = f.getAbsolutePath();
+        Record r = new Record(f, attrs.size(), attrs.lastModifiedTime().toMillis(), record,
+                gpsKnown, previewKnown, previewFile);
+        byte[] bytes;
+        try {
+            bytes = toBytes(path, r);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return r;
+        }
+
+        synchronized (this) {
+            recent.put(path, r);
+            store(path, bytes);
+        }
+        return r;
+    }
+
+    private void store(String path, byte[] bytes) {
+        try {
+            RandomAccessFile raf = getStore();
+            long offset = raf.length();
+            raf.seek(offset);
+            raf.writeInt(bytes.length);
+            raf.write(bytes);
+            if (index.put(path, offset) != null)
+                staleRecords++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static BasicFileAttributes getAttributes(File f) {
+        try {
+            return Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Close the cache, this compacts the store file if it contains many stale records.
+     */
+    public synchronized void close() {
+        if (store == null)
+            return;
+
+        try {
+            if (staleRecords > index.size() / 2)
+                compact();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            closeStore();
+            recent.clear();
+            index.clear();
+            staleRecords = 0;
+        }
+    }
+
+    private Record readRecord(String path) {
+        try {
+            RandomAccessFile raf = getStore();
+            Long offset = index.get(path);
+            if (offset == null)
+                return null;
+
+            return fromBytes(new DataInputStream(new ByteArrayInputStream(readBytes(raf, offset))));
+        } catch (IOException e) {
+            // A damaged record, forget about it
+            e.printStackTrace();
+            index.remove(path);
+            return null;
+        }
+    }
+
+    private static byte[] readBytes(RandomAccessFile raf, long offset) throws IOException {
+        raf.seek(offset);
+        int length = raf.readInt();
+        if (!isValidLength(length, raf.length() - offset - 4))
+            throw new IOException("Damaged record at " + offset);
+
+        byte[] bytes = new byte[length];
+        raf.readFully(bytes);
+        return bytes;
+    }
+
+    private static boolean isValidLength(int length, long remaining) {
+        return length >= 0 && length <= remaining;
+    }
+
+    private RandomAccessFile getStore() throws IOException {
+        if (store == null) {
+            loadIndex();
+            store = new RandomAccessFile(storeFile, "rw");
+            if (store.length() < HEADER_SIZE) {
+                store.setLength(0);
+                store.writeInt(MAGIC);
+                store.writeInt(VERSION);
+            }
+        }
+        return store;
+    }
+
+    private void loadIndex() throws IOException {
+        if (!storeFile.exists())
+            return;
+
+        long fileLength = storeFile.length();
+        long validLength = 0;
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+        try {
+            if (dis.readInt() != MAGIC || dis.readInt() != VERSION) {
+                // Unknown format, start afresh
+                dis.close();
+                storeFile.delete();
+                return;
+            }
+
+            long offset = HEADER_SIZE;
+            validLength = offset;
+            while (true) {
+                int length = dis.readInt();
+                if (!isValidLength(length, fileLength - offset - 4))
+                    // A damaged record, drop it and everything after it
+                    break;
+
+                byte[] bytes = new byte[length];
+                dis.readFully(bytes);
+                String path = new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+                if (index.put(path, offset) != null)
+                    staleRecords++;
+                offset += 4 + length;
+                validLength = offset;
+            }
+        } catch (EOFException eof) {
+            // done
+        } catch (IOException e) {
+            // A damaged record, drop it and everything after it
+        } finally {
+            dis.close();
+        }
+
+        if (validLength < fileLength) {
+            // A partially written or damaged record at the end, chop it off
+            RandomAccessFile raf = new RandomAccessFile(storeFile, "rw");
+            try {
+                raf.setLength(validLength);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+
+    private void compact() throws IOException {
+        File newFile = new File(storeFile.getAbsolutePath() + ".new");
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(newFile)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            for (long offset : index.values()) {
+                byte[] bytes = readBytes(store, offset);
+                dos.writeInt(bytes.length);
+                dos.write(bytes);
+            }
+        } finally {
+            dos.close();
+        }
+
+        closeStore();
+        storeFile.delete();
+        if (!newFile.renameTo(storeFile))
+            throw new IOException("Unable to replace " + storeFile);
+    }
+
+    private void closeStore() {
+        try {
+            if (store != null)
+                store.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        store = null;
+    }
+
+    static byte[] toBytes(String path, Record r) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(path.length() + 32);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeUTF(path);
+        dos.writeLong(r.size);
+        dos.writeLong(r.lastModified);
+
+        int flags = 0;
+        if (!r.gpsKnown)
+            flags |= FLAG_GPS_UNKNOWN;
+        if (!r.previewKnown)
+            flags |= FLAG_PREVIEW_UNKNOWN;
+        else if (r.file.equals(r.previewFile))
+            flags |= FLAG_PREVIEW_IS_FILE;
+        else if (r.previewFile != null)
+            flags |= FLAG_PREVIEW;
+        dos.writeByte(flags);
+
+        if ((flags & FLAG_PREVIEW) != 0)
+            dos.writeUTF(r.previewFile.getAbsolutePath());
+        r.record.writeTo(dos);
+        dos.close();
+        return baos.toByteArray();
+    }
+
+    static Record fromBytes(DataInputStream dis) throws IOException {
+        File file = new File(dis.readUTF());
+        long size = dis.readLong();
+        long lastModified = dis.readLong();
+        int flags = dis.readByte();
+
+        File previewFile = null;
+        if ((flags & FLAG_PREVIEW_IS_FILE) != 0)
+            previewFile = file;
+        else if ((flags & FLAG_PREVIEW) != 0)
+            previewFile = new File(dis.readUTF());
+
+        MetadataRecord record = MetadataRecord.readFrom(dis);
+        boolean gpsKnown = (flags & FLAG_GPS_UNKNOWN) == 0;
+        boolean previewKnown = (flags & FLAG_PREVIEW_UNKNOWN) == 0;
+        return new Record(file, size, lastModified, record, gpsKnown, previewKnown, previewFile);
+    }
+
+    /**
+     * The cached metadata of a file. The details are not cached as they can be large and are
+     * rarely needed, so {@link #getDetails()} returns <tt>null</tt>.
+     */
+    public static class Record implements PhotoMetadataProvider.Metadata {
+        private final File file;
+        private final long size;
+        private final long lastModified;
+        private final MetadataRecord record;
+        private final boolean gpsKnown;
+        private final boolean previewKnown;
+        private final File previewFile;
+
+        Record(File file, long size, long lastModified, MetadataRecord record, boolean gpsKnown, boolean previewKnown,
+                File previewFile) {
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.record = record;
+            this.gpsKnown = gpsKnown;
+            this.previewKnown = previewKnown;
+            this.previewFile = previewFile;
+        }
+
+        /**
+         * @return The cached metadata record.
+         */
+        public MetadataRecord getMetadataRecord() {
+            return record;
+        }
+
+        /**
+         * @param preview The preview file.
+         * @return A copy of this record with the preview file known, to be put in the cache.
+         */
+        public Record withPreviewFile(File preview) {
+            return new Record(file, size, lastModified, record, gpsKnown, true, preview);
+        }
+
+        @Override
+        public Date getDateTaken() {
+            return record.getDateTaken() == MetadataRecord.UNKNOWN_DATE ? null : new Date(record.getDateTaken());
+        }
+
+        @Override
+        public File getPreviewFile() {
+            return previewFile;
+        }
+
+        /**
+         * @return <tt>false</tt> if the preview file wasn't cached, in which case
+         * {@link #getPreviewFile()} returns <tt>null</tt>.
+         */
+        public boolean isPreviewKnown() {
+            return previewKnown;
+        }
+
+        @Override
+        public String getGPSInfo() {
+            return record.hasLocation() ? GPS_INFO : null;
+        }
+
+        /**
+         * @return <tt>false</tt> if the metadata didn't come with a metadata record, in which case
+         * the location is unknown and {@link #getGPSInfo()} returns <tt>null</tt>.
+         */
+        public boolean isGPSInfoKnown() {
+            return gpsKnown;
+        }
+
+        @Override
+        public Integer getHeightInPixels() {
+            return record.getHeight() < 0 ? null : record.getHeight();
+        }
+
+        @Override
+        public Integer getWidthInPixels() {
+            return record.getWidth() < 0 ? null : record.getWidth();
+        }
+
+        @Override
+        public String getDetails() {
+            return null;
+        }
+    }
+}
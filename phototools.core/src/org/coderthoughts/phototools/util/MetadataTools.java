@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.coderthoughts.phototools.api.BatchPhotoMetadataProvider;
+import org.coderthoughts.phototools.api.MetadataRecord;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.api.TypedPhotoMetadataProvider;
+
+public class MetadataTools {
+    private MetadataTools() {}
+
+    /**
+     * Obtain the metadata of a number of files from a provider. The files are passed in a single
+     * batch if the provider is a {@link BatchPhotoMetadataProvider}.
+     * @param pmp The metadata provider.
+     * @param files The files.
+     * @return The metadata in the same order as the files, with <tt>null</tt> for the files for
+     * which no metadata could be obtained.
+     */
+    public static List<Metadata> getMetaData(PhotoMetadataProvider pmp, List<File> files) {
+        if (pmp instanceof BatchPhotoMetadataProvider)
+            return ((BatchPhotoMetadataProvider) pmp).getMetaData(files);
+
+        List<Metadata> result = new ArrayList<Metadata>(files.size());
+        for (File f : files) {
+            result.add(pmp.getMetaData(f));
+        }
+        return result;
+    }
+
+    /**
+     * Obtain the metadata of a number of files that may have different providers. The files are
+     * passed to each provider in a single batch.
+     * @param providers The metadata provider of each file.
+     * @param files The files.
+     * @return The metadata in the same order as the files, with <tt>null</tt> for the files for
+     * which no metadata could be obtained.
+     */
+    public static List<Metadata> getMetaData(List<PhotoMetadataProvider> providers, List<File> files) {
+        Metadata [] result = new Metadata[files.size()];
+        for (Map.Entry<PhotoMetadataProvider, List<Integer>> entry : groupByProvider(providers).entrySet()) {
+            List<File> batch = new ArrayList<File>(entry.getValue().size());
+            for (int i : entry.getValue()) {
+                batch.add(files.get(i));
+            }
+
+            List<Metadata> mds = getMetaData(entry.getKey(), batch);
+            for (int i = 0; i < batch.size(); i++) {
+                result[entry.getValue().get(i)] = mds.get(i);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * @return The indexes of the files of each provider.
+     */
+    private static Map<PhotoMetadataProvider, List<Integer>> groupByProvider(List<PhotoMetadataProvider> providers) {
+        Map<PhotoMetadataProvider, List<Integer>> indexes = new IdentityHashMap<PhotoMetadataProvider, List<Integer>>();
+        for (int i = 0; i < providers.size(); i++) {
+            List<Integer> l = indexes.get(providers.get(i));
+            if (l == null) {
+                l = new ArrayList<Integer>();
+                indexes.put(providers.get(i), l);
+            }
+            l.add(i);
+        }
+        return indexes;
+    }
+
+    /**
+     * Obtain the metadata record of a file from a provider. If the provider isn't a
+     * {@link TypedPhotoMetadataProvider} the record is made from its metadata.
+     * @param pmp The metadata provider.
+     * @param f The file.
+     * @return The metadata record, or <tt>null</tt> if no metadata could be obtained.
+     */
+    public static MetadataRecord getMetadataRecord(PhotoMetadataProvider pmp, File f) {
+        if (pmp instanceof TypedPhotoMetadataProvider)
+            return ((TypedPhotoMetadataProvider) pmp).getMetadataRecord(f);
+        else
+            return toMetadataRecord(pmp.getMetaData(f));
+    }
+
+    /**
+     * Obtain the metadata records of a number of files from a provider. The files are passed in a
+     * single batch if the provider is a {@link CachingPhotoMetadataProvider} or isn't a
+     * {@link TypedPhotoMetadataProvider}. Otherwise they are read in the order of {@link #getReadOrder(List)}.
+     * @param pmp The metadata provider.
+     * @param files The files.
+     * @return The metadata records in the same order as the files, with <tt>null</tt> for the files
+     * for which no metadata could be obtained.
+     */
+    public static List<MetadataRecord> getMetadataRecords(PhotoMetadataProvider pmp, List<File> files) {
+        if (pmp instanceof CachingPhotoMetadataProvider)
+            return ((CachingPhotoMetadataProvider) pmp).getMetadataRecords(files);
+
+        MetadataRecord [] result = new MetadataRecord[files.size()];
+        if (pmp instanceof TypedPhotoMetadataProvider) {
+            for (int i : getReadOrder(files)) {
+                result[i] = ((TypedPhotoMetadataProvider) pmp).getMetadataRecord(files.get(i));
+            }
+        } else {
+            List<Metadata> mds = getMetaData(pmp, files);
+            for (int i = 0; i < result.length; i++) {
+                result[i] = toMetadataRecord(mds.get(i));
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Obtain the metadata records of a number of files that may have different providers. The files
+     * are passed to each provider in a single batch, as with {@link #getMetadataRecords(PhotoMetadataProvider, List)}.
+     * @param providers The metadata provider of each file.
+     * @param files The files.
+     * @return The metadata records in the same order as the files, with <tt>null</tt> for the files
+     * for which no metadata could be obtained.
+     */
+    public static List<MetadataRecord> getMetadataRecords(List<PhotoMetadataProvider> providers, List<File> files) {
+        MetadataRecord [] result = new MetadataRecord[files.size()];
+        for (Map.Entry<PhotoMetadataProvider, List<Integer>> entry : groupByProvider(providers).entrySet()) {
+            List<File> batch = new ArrayList<File>(entry.getValue().size());
+            for (int i : entry.getValue()) {
+                batch.add(files.get(i));
+            }
+
+            List<MetadataRecord> records = getMetadataRecords(entry.getKey(), batch);
+            for (int i = 0; i < batch.size(); i++) {
+                result[entry.getValue().get(i)] = records.get(i);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    /**
+     * Make a metadata record from metadata. Only the date and the size of the photo are known.
+     * @param md The metadata, may be <tt>null</tt>.
+     * @return The metadata record, or <tt>null</tt> if the metadata is <tt>null</tt>.
+     */
+    public static MetadataRecord toMetadataRecord(Metadata md) {
+        if (md == null)
+            return null;
+
+        Date date = md.getDateTaken();
+        Integer width = md.getWidthInPixels();
+        Integer height = md.getHeightInPixels();
+        return new MetadataRecord(date == null ? MetadataRecord.UNKNOWN_DATE : date.getTime(),
+                width == null ? -1 : width, height == null ? -1 : height, Double.NaN, Double.NaN, null, null, 0);
+    }
+
+    /**
+     * Find the order in which to read files to limit the seeking on a spinning disk. Where the file
+     * system reports inode numbers the files are ordered on those, as most file systems allocate
+     * the inodes and the data of files that are written together close to each other. Otherwise
+     * the files are ordered on their path, so that the files of a directory are read together.
+     * @param files The files.
+     * @return The indexes in the list of files, in the order in which to read them.
+     */
+    public static Integer [] getReadOrder(final List<File> files) {
+        Integer [] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+
+        final long [][] locations = getLocations(files);
+        if (locations != null) {
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    long [] l1 = locations[o1];
+                    long [] l2 = locations[o2];
+                    int c = Long.compare(l1[0], l2[0]);
+                    return c != 0 ? c : Long.compare(l1[1], l2[1]);
+                }
+            });
+        } else {
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return files.get(o1).getAbsolutePath().compareTo(files.get(o2).getAbsolutePath());
+                }
+            });
+        }
+        return order;
+    }
+
+    /**
+     * @return The device and inode number of every file, or <tt>null</tt> if these aren't
+     * available for all the files.
+     */
+    private static long [][] getLocations(List<File> files) {
+        long [][] locations = new long[files.size()][];
+        try {
+            for (int i = 0; i < locations.length; i++) {
+                Map<String, Object> attrs = Files.readAttributes(files.get(i).toPath(), "unix:dev,ino");
+                locations[i] = new long [] {((Number) attrs.get("dev")).longValue(), ((Number) attrs.get("ino")).longValue()};
+            }
+        } catch (UnsupportedOperationException e) {
+            return null; // not a Unix file system
+        } catch (IllegalArgumentException e) {
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+        return locations;
+    }
+}
@@ -12,19 +12,100 @@
  */
 package org.coderthoughts.phototools.util;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
 
 public class OSGiTools {
+    private static final Map<BundleContext, Map<String, ServiceIndex<?>>> serviceIndexes =
+            new HashMap<BundleContext, Map<String, ServiceIndex<?>>>();
+
     private OSGiTools() {}
 
+    /**
+     * Obtain the PhotoMetadataProvider services by the file extensions in their <tt>format</tt> property.
+     * @param ctx The bundle context to obtain the services with.
+     * @return The index, which is shared by all callers using the same bundle context.
+     */
+    public static ServiceIndex<PhotoMetadataProvider> getPhotoMetadataProviders(BundleContext ctx) {
+        return getServiceIndex(ctx, PhotoMetadataProvider.class, "format");
+    }
+
+    /**
+     * Obtain an index of the services of a class by the values of a String+ service property. The
+     * index follows the services that are registered and unregistered, so unlike a filtered query on
+     * the Service Registry a lookup is only a map access. The indexes of a bundle context should be
+     * closed with {@link #closeServiceIndexes(BundleContext)} when the bundle stops.
+     * @param ctx The bundle context to obtain the services with.
+     * @param serviceClass The service class.
+     * @param property The service property to index the services by, or <tt>null</tt> to only follow
+     * the services, see {@link ServiceIndex#getService()}.
+     * @return The index, which is shared by all callers using the same arguments.
+     */
+    @SuppressWarnings("unchecked")
+    public static <S> ServiceIndex<S> getServiceIndex(BundleContext ctx, Class<S> serviceClass, String property) {
+        String key = serviceClass.getName() + "/" + property;
+        synchronized (serviceIndexes) {
+            Map<String, ServiceIndex<?>> indexes = serviceIndexes.get(ctx);
+            if (indexes == null) {
+                indexes = new HashMap<String, ServiceIndex<?>>();
+                serviceIndexes.put(ctx, indexes);
+            }
+
+            ServiceIndex<S> index = (ServiceIndex<S>) indexes.get(key);
+            if (index == null) {
+                index = new ServiceIndex<S>(ctx, serviceClass, property);
+                indexes.put(key, index);
+                index.open();
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Close the service indexes obtained with a bundle context.
+     * @param ctx The bundle context, normally of a bundle that is stopping.
+     */
+    public static void closeServiceIndexes(BundleContext ctx) {
+        List<ServiceIndex<?>> indexes;
+        synchronized (serviceIndexes) {
+            Map<String, ServiceIndex<?>> m = serviceIndexes.get(ctx);
+            if (m == null)
+                return;
+            indexes = new ArrayList<ServiceIndex<?>>(m.values());
+        }
+
+        for (ServiceIndex<?> index : indexes) {
+            index.close();
+        }
+    }
+
+    private static void removeServiceIndex(ServiceIndex<?> index) {
+        synchronized (serviceIndexes) {
+            Map<String, ServiceIndex<?>> indexes = serviceIndexes.get(index.ctx);
+            if (indexes == null)
+                return;
+
+            indexes.values().remove(index);
+            if (indexes.isEmpty())
+                serviceIndexes.remove(index.ctx);
+        }
+    }
+
     public static ServiceReference[] getSortedServiceReferences(BundleContext ctx, String className, String filter) {
         ServiceReference[] refs = null;
         try {
@@ -55,12 +136,147 @@ public class OSGiTools {
         }
     }
 
+    /**
+     * The services of a class indexed by the values of a String+ service property, see
+     * {@link OSGiTools#getServiceIndex(BundleContext, Class, String)}.
+     */
+    public static class ServiceIndex<S> extends ServiceTracker<S, S> {
+        private final BundleContext ctx;
+        private final Class<S> serviceClass;
+        private final String property;
+        private final Map<ServiceReference<S>, S> services = new HashMap<ServiceReference<S>, S>(); // guarded by this
+        private volatile Map<String, List<S>> index = Collections.emptyMap();
+        private volatile S highest;
+
+        ServiceIndex(BundleContext ctx, Class<S> serviceClass, String property) {
+            super(ctx, serviceClass, null);
+            this.ctx = ctx;
+            this.serviceClass = serviceClass;
+            this.property = property;
+        }
+
+        /**
+         * Stop following the services.
+         */
+        @Override
+        public void close() {
+            removeServiceIndex(this);
+            super.close();
+        }
+
+        /**
+         * @return The service with the highest ranking, or <tt>null</tt> if there is none.
+         */
+        @Override
+        public S getService() {
+            return highest;
+        }
+
+        /**
+         * @param value The property value, for example <tt>.jpg</tt>.
+         * @return The service with the highest ranking that has the property value, or <tt>null</tt>
+         * if there is none.
+         */
+        public S getService(String value) {
+            List<S> l = index.get(value);
+            return l == null ? null : l.get(0);
+        }
+
+        /**
+         * @param value The property value.
+         * @return The services that have the property value, the highest ranking first.
+         */
+        public List<S> getServices(String value) {
+            List<S> l = index.get(value);
+            if (l == null)
+                return Collections.emptyList();
+            return l;
+        }
+
+        /**
+         * @return All the values of the property.
+         */
+        public Set<String> getValues() {
+            return index.keySet();
+        }
+
+        @Override
+        public S addingService(ServiceReference<S> reference) {
+            Object svc = ctx.getService(reference);
+            if (!serviceClass.isInstance(svc)) {
+                if (svc != null)
+                    ctx.ungetService(reference);
+                return null;
+            }
+
+            S service = serviceClass.cast(svc);
+            synchronized (this) {
+                services.put(reference, service);
+                updateIndex();
+            }
+            return service;
+        }
+
+        @Override
+        public synchronized void modifiedService(ServiceReference<S> reference, S service) {
+            updateIndex(); // the property or the ranking may have changed
+        }
+
+        @Override
+        public void removedService(ServiceReference<S> reference, S service) {
+            synchronized (this) {
+                services.remove(reference);
+                updateIndex();
+            }
+            ctx.ungetService(reference);
+        }
+
+        private void updateIndex() {
+            List<ServiceReference<S>> refs = new ArrayList<ServiceReference<S>>(services.keySet());
+            Collections.sort(refs, new ServiceRankingComparator());
+
+            Map<String, List<S>> newIndex = new LinkedHashMap<String, List<S>>();
+            for (ServiceReference<S> ref : refs) {
+                if (property == null)
+                    break;
+
+                for (String value : getStringPlusProperty(ref.getProperty(property))) {
+                    List<S> l = newIndex.get(value);
+                    if (l == null) {
+                        l = new ArrayList<S>(1);
+                        newIndex.put(value, l);
+                    }
+                    l.add(services.get(ref));
+                }
+            }
+            for (Map.Entry<String, List<S>> entry : newIndex.entrySet()) {
+                entry.setValue(Collections.unmodifiableList(entry.getValue()));
+            }
+            index = Collections.unmodifiableMap(newIndex);
+            highest = refs.isEmpty() ? null : services.get(refs.get(0));
+        }
+    }
+
     static class ServiceRankingComparator implements Comparator<ServiceReference> {
         @Override
         public int compare(ServiceReference o1, ServiceReference o2) {
             Integer r1 = getServiceRanking(o1);
             Integer r2 = getServiceRanking(o2);
-            return -r1.compareTo(r2);
+            int result = -r1.compareTo(r2);
+            if (result != 0)
+                return result;
+
+            // Equal rankings, the service registered first wins
+            return getServiceID(o1).compareTo(getServiceID(o2));
+        }
+
+        private Long getServiceID(ServiceReference sref) {
+            Object prop = sref.getProperty(Constants.SERVICE_ID);
+            if (prop instanceof Long) {
+                return (Long) prop;
+            } else {
+                return Long.MAX_VALUE;
+            }
         }
 
         private Integer getServiceRanking(ServiceReference sref) {
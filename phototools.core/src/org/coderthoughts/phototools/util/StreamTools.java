@@ -12,13 +12,44 @@
  */
 package org.coderthoughts.phototools.util;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.api.StreamingPhotoMetadataProvider;
+
 public class StreamTools {
+    /**
+     * The maximum number of bytes read from the start of a stream by {@link #getMetaData}.
+     */
+    public static final int METADATA_READ_LIMIT = 1024 * 1024;
+
     private StreamTools() {}
 
+    /**
+     * Obtain the metadata of a photo from the start of its stream, if the provider supports this.
+     * At most {@link #METADATA_READ_LIMIT} bytes are read, after which the stream is reset so that
+     * the photo can still be read from it.
+     * @param pmp The metadata provider for the photo, may be <tt>null</tt>.
+     * @param is The stream of the photo, which must support mark and reset.
+     * @return The metadata or <tt>null</tt> if it can't be obtained from the start of the stream.
+     * @throws IOException If the stream cannot be reset.
+     */
+    public static Metadata getMetaData(PhotoMetadataProvider pmp, InputStream is) throws IOException {
+        if (!(pmp instanceof StreamingPhotoMetadataProvider))
+            return null;
+
+        is.mark(METADATA_READ_LIMIT);
+        try {
+            return ((StreamingPhotoMetadataProvider) pmp).getMetaData(new LimitedInputStream(is, METADATA_READ_LIMIT));
+        } finally {
+            is.reset();
+        }
+    }
+
     public static void pump(InputStream is, OutputStream os) throws IOException {
         pump(is, os, 16384);
     }
@@ -44,4 +75,59 @@ public class StreamTools {
         is.close();
         os.close();
     }
+
+    /**
+     * Ends after a number of bytes and leaves the underlying stream open.
+     */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0)
+                return -1;
+
+            int b = super.read();
+            if (b >= 0)
+                remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0)
+                return -1;
+
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0)
+                remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
 }
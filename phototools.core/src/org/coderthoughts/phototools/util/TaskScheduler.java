@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.coderthoughts.phototools.api.CancellationToken;
+
+/**
+ * Runs background work for the tools on a bounded number of threads, rather than each action
+ * starting a thread of its own.
+ * <ul>
+ * <li>Tasks with a higher priority are started first, tasks of the same priority in the order in
+ * which they were submitted.
+ * <li>A task submitted with a key supersedes the previous task with the same key. If that task
+ * hasn't started yet it is dropped, otherwise its {@link CancellationToken} is cancelled and it is up
+ * to the task to notice this, see {@link #getCurrentToken()}. Use for instance the panel that the task
+ * updates as key.
+ * </ul>
+ *
+ * This service is registered in the OSGi Service Registry under its class name.
+ */
+public class TaskScheduler {
+    /** For work that the user is waiting to see, such as previews. */
+    public static final int PRIORITY_UI = 10;
+    /** For work that the user started, but that takes a while. */
+    public static final int PRIORITY_NORMAL = 5;
+    /** For housekeeping. */
+    public static final int PRIORITY_BACKGROUND = 0;
+
+    private static final ThreadLocal<Task> currentTask = new ThreadLocal<Task>();
+
+    private final ThreadPoolExecutor executor;
+    private final Map<Object, Task> keyedTasks = new HashMap<Object, Task>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Create a task scheduler that runs as many tasks at the same time as there are processors.
+     */
+    public TaskScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads The maximum number of tasks running at the same time.
+     */
+    public TaskScheduler(int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "Phototools task " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task in the background.
+     * @param task The task.
+     * @param priority The priority, one of the <tt>PRIORITY_</tt> constants.
+     * @return The scheduled task, which can be used to cancel it.
+     */
+    public Task submit(Runnable task, int priority) {
+        return submit(null, task, priority);
+    }
+
+    /**
+     * Run a task in the background, superseding the previous task with the same key.
+     * @param key The key, or <tt>null</tt> if the task doesn't supersede anything.
+     * @param task The task.
+     * @param priority The priority, one of the <tt>PRIORITY_</tt> constants.
+     * @return The scheduled task, which can be used to cancel it.
+     */
+    public Task submit(Object key, Runnable task, int priority) {
+        Task t = new Task(key, task, priority, sequence.getAndIncrement());
+        if (key != null) {
+            Task previous;
+            synchronized (keyedTasks) {
+                previous = keyedTasks.put(key, t);
+            }
+            if (previous != null) {
+                previous.cancel(false);
+                executor.remove(previous);
+            }
+        }
+        executor.execute(t);
+        return t;
+    }
+
+    /**
+     * @return The task running on the calling thread, or <tt>null</tt> if the calling thread isn't
+     * running a task. A long running task should regularly check whether it was cancelled.
+     */
+    public static Task getCurrentTask() {
+        return currentTask.get();
+    }
+
+    /**
+     * @return Whether the task running on the calling thread was cancelled.
+     */
+    public static boolean isCurrentTaskCancelled() {
+        return getCurrentToken().isCancelled();
+    }
+
+    /**
+     * @return The cancellation token of the task running on the calling thread, or
+     * {@link CancellationToken#NONE} if the calling thread isn't running a task.
+     */
+    public static CancellationToken getCurrentToken() {
+        Task t = currentTask.get();
+        return t == null ? CancellationToken.NONE : t.getToken();
+    }
+
+    /**
+     * @return The maximum number of tasks running at the same time.
+     */
+    public int getMaximumThreads() {
+        return executor.getMaximumPoolSize();
+    }
+
+    /**
+     * @return The number of tasks waiting to be started.
+     */
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Stop running tasks, tasks that haven't started are dropped.
+     */
+    public void close() {
+        executor.shutdownNow();
+        synchronized (keyedTasks) {
+            keyedTasks.clear();
+        }
+    }
+
+    private void finished(Task t) {
+        if (t.key == null)
+            return;
+
+        synchronized (keyedTasks) {
+            if (keyedTasks.get(t.key) == t)
+                keyedTasks.remove(t.key);
+        }
+    }
+
+    /**
+     * A task scheduled with the {@link TaskScheduler}.
+     */
+    public class Task extends FutureTask<Void> implements Comparable<Task> {
+        private final Object key;
+        private final int priority;
+        private final long sequenceNumber;
+        private final CancellationToken token = new CancellationToken();
+
+        Task(Object key, Runnable runnable, int priority, long sequenceNumber) {
+            super(runnable, null);
+            this.key = key;
+            this.priority = priority;
+            this.sequenceNumber = sequenceNumber;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * @return The token that is cancelled when this task is cancelled.
+         */
+        public CancellationToken getToken() {
+            return token;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            token.cancel();
+            return super.cancel(mayInterruptIfRunning);
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority)
+                return priority > other.priority ? -1 : 1;
+            return sequenceNumber < other.sequenceNumber ? -1 : (sequenceNumber == other.sequenceNumber ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            currentTask.set(this);
+            try {
+                super.run();
+            } finally {
+                currentTask.remove();
+            }
+        }
+
+        @Override
+        protected void done() {
+            finished(this);
+        }
+    }
+}
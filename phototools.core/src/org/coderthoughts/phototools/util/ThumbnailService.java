@@ -0,0 +1,316 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Creates small versions of images for previews. Decoding a full size photo just to paint it
+ * in a small label takes a lot of time and memory, instead:
+ * <ul>
+ * <li>the thumbnail embedded in the EXIF data of a JPEG file is used if it is large enough,
+ * <li>otherwise the image is decoded with subsampling, so that only the pixels needed are read,
+ * <li>the result is stored in an on-disk cache, so that the next time it is only a small read.
+ * </ul>
+ * The cache is keyed on the contents of the file rather than its location, so that copies of a
+ * photo share their thumbnails. To avoid reading the whole file, the key is computed from the size
+ * of the file together with its first and last bytes, which for photos include the EXIF data.
+ *
+ * Recently used thumbnails are also kept in an {@link ImageCache} in memory, by file location,
+ * modification time and size.
+ *
+ * This service is registered in the OSGi Service Registry under its class name.
+ */
+public class ThumbnailService {
+    private static final int HEAD_SIZE = 64 * 1024;
+    private static final int TAIL_SIZE = 8 * 1024;
+
+    private final File cacheDir;
+    private final ImageCache memoryCache;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Create a thumbnail service.
+     * @param cacheDir The directory in which the thumbnails are stored, or <tt>null</tt> to not
+     * store the thumbnails.
+     * @param threads The number of threads that generate thumbnails in the background.
+     */
+    public ThumbnailService(File cacheDir, int threads) {
+        this(cacheDir, threads, new ImageCache());
+    }
+
+    /**
+     * Create a thumbnail service.
+     * @param cacheDir The directory in which the thumbnails are stored, or <tt>null</tt> to not
+     * store the thumbnails.
+     * @param threads The number of threads that generate thumbnails in the background.
+     * @param memoryCache The cache for the thumbnails in memory.
+     */
+    public ThumbnailService(File cacheDir, int threads, ImageCache memoryCache) {
+        this.cacheDir = cacheDir;
+        this.memoryCache = memoryCache;
+        executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Obtain a thumbnail in the background. The requests are handled in the order in which they
+     * were made, cancel the requests for images that are no longer shown so that they don't hold
+     * up the requests for the images that are.
+     * @param f The image file.
+     * @param size The maximum width and height of the thumbnail.
+     * @param callback Called with the thumbnail, on a thread of the service. Not called if the
+     * request is cancelled before it was started.
+     * @return The request, which can be used to cancel it.
+     */
+    public Future<?> requestThumbnail(final File f, final int size, final Callback callback) {
+        FutureTask<Void> request = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                BufferedImage img = null;
+                try {
+                    img = getThumbnail(f, size);
+                } catch (IOException e) {
+                    System.out.println("Cannot create thumbnail: " + f + " " + e);
+                }
+                callback.thumbnailReady(f, img);
+            }
+        }, null) {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                boolean cancelled = super.cancel(mayInterruptIfRunning);
+                executor.remove(this); // don't leave it in the queue until it comes up
+                return cancelled;
+            }
+        };
+        executor.execute(request);
+        return request;
+    }
+
+    /**
+     * Obtain a thumbnail, from the cache if possible.
+     * @param f The image file.
+     * @param size The maximum width and height of the thumbnail.
+     * @return The thumbnail.
+     * @throws IOException If the image cannot be read.
+     */
+    public BufferedImage getThumbnail(File f, int size) throws IOException {
+        String memoryKey = getMemoryKey(f, f.lastModified(), f.length(), size);
+        BufferedImage img = memoryCache.get(memoryKey);
+        if (img != null)
+            return img;
+
+        File cacheFile = getCacheFile(f, size);
+        if (cacheFile != null && cacheFile.isFile()) {
+            img = ImageIO.read(cacheFile);
+            if (img != null) {
+                memoryCache.put(memoryKey, img);
+                return img;
+            }
+        }
+
+        img = createThumbnail(f, size);
+        memoryCache.put(memoryKey, img);
+        if (cacheFile != null) {
+            File tempFile = new File(cacheFile.getAbsolutePath() + "." + Thread.currentThread().getId());
+            cacheFile.getParentFile().mkdirs();
+            if (ImageIO.write(img, "jpg", tempFile) && !tempFile.renameTo(cacheFile))
+                tempFile.delete(); // Written concurrently by another thread
+        }
+        return img;
+    }
+
+    /**
+     * Obtain a thumbnail only if it is in memory. This is cheap enough to be called when painting.
+     * @param f The image file.
+     * @param size The maximum width and height of the thumbnail.
+     * @return The thumbnail or <tt>null</tt> if it is not in memory.
+     */
+    public BufferedImage getCachedThumbnail(File f, int size) {
+        return getCachedThumbnail(f, f.lastModified(), f.length(), size);
+    }
+
+    /**
+     * Obtain a thumbnail only if it is in memory, without accessing the file. Use this when painting
+     * many images, with the modification time and size of the files taken when they were listed.
+     * @param f The image file.
+     * @param lastModified The modification time of the file.
+     * @param length The size of the file.
+     * @param size The maximum width and height of the thumbnail.
+     * @return The thumbnail or <tt>null</tt> if it is not in memory.
+     */
+    public BufferedImage getCachedThumbnail(File f, long lastModified, long length, int size) {
+        return memoryCache.get(getMemoryKey(f, lastModified, length, size));
+    }
+
+    private static String getMemoryKey(File f, long lastModified, long length, int size) {
+        // Include the modification time and size so that a changed file isn't shown with its old thumbnail
+        return f.getAbsolutePath() + "|" + lastModified + "|" + length + "|" + size;
+    }
+
+    /**
+     * Stop generating thumbnails.
+     */
+    public void close() {
+        executor.shutdownNow();
+        memoryCache.clear();
+    }
+
+    File getCacheFile(File f, int size) throws IOException {
+        if (cacheDir == null)
+            return null;
+
+        String key = getContentKey(f);
+        // Spread the files over subdirectories to keep the directories small
+        return new File(new File(cacheDir, key.substring(0, 2)), key + "-" + size + ".jpg");
+    }
+
+    static String getContentKey(File f) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            long length = raf.length();
+            byte [] head = new byte[(int) Math.min(length, HEAD_SIZE)];
+            raf.readFully(head);
+            md.update(head);
+
+            if (length > HEAD_SIZE) {
+                byte [] tail = new byte[(int) Math.min(length - HEAD_SIZE, TAIL_SIZE)];
+                raf.seek(length - tail.length);
+                raf.readFully(tail);
+                md.update(tail);
+            }
+
+            for (int i = 0; i < 8; i++) {
+                md.update((byte) (length >>> (i * 8)));
+            }
+        } finally {
+            raf.close();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create a thumbnail without using the cache.
+     * @param f The image file.
+     * @param size The maximum width and height of the thumbnail.
+     * @return The thumbnail.
+     * @throws IOException If the image cannot be read.
+     */
+    public static BufferedImage createThumbnail(File f, int size) throws IOException {
+        BufferedImage img = null;
+        try {
+            byte [] thumbnail = JPEGHeader.read(f).getThumbnailData();
+            if (thumbnail != null) {
+                img = decode(ImageIO.createImageInputStream(new ByteArrayInputStream(thumbnail)), size);
+                if (img != null && Math.max(img.getWidth(), img.getHeight()) < size)
+                    img = null; // Too small to be used at this size
+            }
+        } catch (IOException e) {
+            // Not a JPEG file or an unreadable thumbnail
+        }
+
+        if (img == null)
+            img = decode(ImageIO.createImageInputStream(f), size);
+        if (img == null)
+            throw new IOException("Unable to decode image: " + f);
+
+        return scale(img, size);
+    }
+
+    private static BufferedImage decode(ImageInputStream iis, int size) throws IOException {
+        if (iis == null)
+            return null;
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int largest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, largest / size);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    // Scale down to the exact size, subsampling leaves the image somewhat larger
+    private static BufferedImage scale(BufferedImage img, int size) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        if (w > size || h > size) {
+            if (w >= h) {
+                h = Math.max(1, h * size / w);
+                w = size;
+            } else {
+                w = Math.max(1, w * size / h);
+                h = size;
+            }
+        }
+
+        BufferedImage scaled = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, w, h, null);
+        g.dispose();
+        return scaled;
+    }
+
+    public interface Callback {
+        /**
+         * Called when a requested thumbnail is available.
+         * @param f The image file.
+         * @param thumbnail The thumbnail, or <tt>null</tt> if it couldn't be created.
+         */
+        void thumbnailReady(File f, BufferedImage thumbnail);
+    }
+}
@@ -0,0 +1,520 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util.ui;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.event.InputEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import javax.swing.CellRendererPane;
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.SwingUtilities;
+import javax.swing.ToolTipManager;
+
+import org.coderthoughts.phototools.util.ThumbnailService;
+
+/**
+ * A grid of images that only paints the cells that are visible, to be put in a {@link javax.swing.JScrollPane}
+ * that only scrolls vertically. The cells are not components, like in a {@link javax.swing.JList} a
+ * {@link CellRenderer} provides a component that is used to paint a cell, so adding thousands of
+ * items doesn't create thousands of components and adding an item doesn't lay out the whole grid.
+ *
+ * The thumbnails of the visible cells are requested from the {@link ThumbnailService} in the
+ * background, together with the thumbnails of the cells within the prefetch margin above and
+ * below the visible area. Requests for cells that have been scrolled out of that range are
+ * cancelled, so that when scrolling fast the cells that are shown don't wait for the cells that
+ * were scrolled past. The modification time and size of the image files are taken when the
+ * items are added, so that painting doesn't access the files. The selection is held as a bit per item.
+ *
+ * All methods must be called on the event dispatch thread.
+ */
+@SuppressWarnings("serial")
+public class ImageGrid<T> extends JComponent implements Scrollable {
+    private static final int GAP = 5;
+
+    private final List<T> items = new ArrayList<T>();
+    private final List<long[]> fileStamps = new ArrayList<long[]>(); // modification time and size of each image file
+    private final BitSet selection = new BitSet();
+    private final List<CellListener<T>> cellListeners = new ArrayList<CellListener<T>>();
+    private final CellRendererPane rendererPane = new CellRendererPane();
+    private final CellRenderer<T> renderer;
+    private final ThumbnailService thumbnailService;
+    private final Map<File, Future<?>> requested = new HashMap<File, Future<?>>();
+    private final Set<File> failed = new HashSet<File>();
+    private final Map<File, SoftReference<BufferedImage>> delivered = new HashMap<File, SoftReference<BufferedImage>>();
+    private Dimension cellSize;
+    private int thumbnailSize;
+    private int prefetchRows = -1;
+    private boolean selectionEnabled = true;
+    private int anchor = -1;
+
+    /**
+     * @param renderer Provides the components that paint the cells.
+     * @param cellSize The size of every cell.
+     * @param thumbnailService The service to load thumbnails with, may be <tt>null</tt> in which
+     * case the renderer is always passed a <tt>null</tt> thumbnail.
+     * @param thumbnailSize The size of the thumbnails requested from the service.
+     */
+    public ImageGrid(CellRenderer<T> renderer, Dimension cellSize, ThumbnailService thumbnailService, int thumbnailSize) {
+        this.renderer = renderer;
+        this.cellSize = new Dimension(cellSize);
+        this.thumbnailService = thumbnailService;
+        this.thumbnailSize = thumbnailSize;
+        add(rendererPane);
+        setOpaque(true);
+        ToolTipManager.sharedInstance().registerComponent(this);
+
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int idx = getIndexAt(e.getPoint());
+                if (idx < 0)
+                    return;
+
+                if (selectionEnabled)
+                    toggleSelection(idx, (e.getModifiers() & InputEvent.SHIFT_MASK) != 0);
+
+                Component target = getRendererComponentAt(idx, e.getPoint());
+                for (CellListener<T> l : new ArrayList<CellListener<T>>(cellListeners)) {
+                    l.cellClicked(ImageGrid.this, idx, target, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Add an item to the end of the grid.
+     * @param item The item.
+     * @param selected Whether the item is initially selected.
+     */
+    public void addItem(T item, boolean selected) {
+        int rows = getRowCount();
+        items.add(item);
+        fileStamps.add(getFileStamp(renderer.getImageFile(item)));
+        selection.set(items.size() - 1, selected);
+        if (getRowCount() != rows)
+            revalidate(); // only resizes this component, the cells don't need laying out
+        repaint(getCellBounds(items.size() - 1));
+    }
+
+    /**
+     * Remove all items, together with their selection.
+     */
+    public void clear() {
+        items.clear();
+        fileStamps.clear();
+        selection.clear();
+        anchor = -1;
+        cancelRequests();
+        failed.clear();
+        delivered.clear();
+        revalidate();
+        repaint();
+    }
+
+    public int getItemCount() {
+        return items.size();
+    }
+
+    public T getItem(int index) {
+        return items.get(index);
+    }
+
+    /**
+     * Change the size of the cells and the thumbnails.
+     */
+    public void setCellSize(Dimension size, int thumbnailSize) {
+        cellSize = new Dimension(size);
+        if (this.thumbnailSize != thumbnailSize) {
+            this.thumbnailSize = thumbnailSize;
+            cancelRequests();
+            failed.clear();
+            delivered.clear();
+        }
+        revalidate();
+        repaint();
+    }
+
+    public Dimension getCellSize() {
+        return new Dimension(cellSize);
+    }
+
+    /**
+     * @param rows The number of rows above and below the visible area for which thumbnails are
+     * requested. By default this is the number of visible rows.
+     */
+    public void setPrefetchRows(int rows) {
+        prefetchRows = rows;
+    }
+
+    /**
+     * @param enabled If <tt>false</tt> clicking a cell doesn't change the selection.
+     */
+    public void setSelectionEnabled(boolean enabled) {
+        selectionEnabled = enabled;
+    }
+
+    public boolean isSelected(int index) {
+        return selection.get(index);
+    }
+
+    public void setSelected(int index, boolean selected) {
+        selection.set(index, selected);
+        repaint(getCellBounds(index));
+    }
+
+    public void selectAll(boolean selected) {
+        selection.set(0, items.size(), selected);
+        repaint();
+    }
+
+    /**
+     * @return The indices of the selected items.
+     */
+    public BitSet getSelection() {
+        return (BitSet) selection.clone();
+    }
+
+    /**
+     * @return The selected items, in the order of the grid.
+     */
+    public List<T> getSelectedItems() {
+        List<T> l = new ArrayList<T>(selection.cardinality());
+        for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+            l.add(items.get(i));
+        }
+        return l;
+    }
+
+    /**
+     * Toggle the selection of an item as if it was clicked. When extending, all the items between
+     * the previously clicked item and this one get the new selection state of this item.
+     */
+    void toggleSelection(int index, boolean extend) {
+        boolean selected = !selection.get(index);
+        if (extend && anchor >= 0 && anchor < items.size())
+            selection.set(Math.min(anchor, index), Math.max(anchor, index) + 1, selected);
+        else
+            selection.set(index, selected);
+        anchor = index;
+        repaint();
+    }
+
+    public void addCellListener(CellListener<T> l) {
+        cellListeners.add(l);
+    }
+
+    public void removeCellListener(CellListener<T> l) {
+        cellListeners.remove(l);
+    }
+
+    public int getColumnCount() {
+        int width = getWidth();
+        Container parent = getParent();
+        if (parent instanceof JViewport)
+            width = parent.getWidth();
+        if (width <= 0)
+            return 1;
+        return Math.max(1, (width - GAP) / (cellSize.width + GAP));
+    }
+
+    public int getRowCount() {
+        int cols = getColumnCount();
+        return (items.size() + cols - 1) / cols;
+    }
+
+    /**
+     * @return The index of the item at the location or -1 if there is no item there.
+     */
+    public int getIndexAt(Point p) {
+        int col = (p.x - GAP) / (cellSize.width + GAP);
+        int row = (p.y - GAP) / (cellSize.height + GAP);
+        if (p.x < GAP || p.y < GAP || col >= getColumnCount())
+            return -1;
+
+        int idx = row * getColumnCount() + col;
+        if (idx >= items.size() || !getCellBounds(idx).contains(p))
+            return -1; // past the end or in the gap between cells
+        return idx;
+    }
+
+    /**
+     * @return The location of the cell of an item.
+     */
+    public Rectangle getCellBounds(int index) {
+        int cols = getColumnCount();
+        int row = index / cols;
+        int col = index % cols;
+        return new Rectangle(GAP + col * (cellSize.width + GAP), GAP + row * (cellSize.height + GAP),
+                cellSize.width, cellSize.height);
+    }
+
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        boolean resized = width != getWidth();
+        super.setBounds(x, y, width, height);
+        if (resized)
+            revalidate(); // the number of rows depends on the width
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet())
+            return super.getPreferredSize();
+
+        int cols = getColumnCount();
+        return new Dimension(GAP + cols * (cellSize.width + GAP), GAP + getRowCount() * (cellSize.height + GAP));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null)
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+
+        if (isOpaque()) {
+            g.setColor(getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        }
+
+        int[] range = getIndexRange(clip.y, clip.y + clip.height);
+        for (int i = range[0]; i < range[1]; i++) {
+            Rectangle r = getCellBounds(i);
+            if (!r.intersects(clip))
+                continue;
+
+            Component c = getRendererComponent(i);
+            rendererPane.paintComponent(g, c, this, r.x, r.y, r.width, r.height, true);
+        }
+        rendererPane.removeAll();
+
+        prefetch();
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        int idx = getIndexAt(e.getPoint());
+        if (idx < 0)
+            return null;
+
+        Component c = getRendererComponentAt(idx, e.getPoint());
+        return c instanceof JComponent ? ((JComponent) c).getToolTipText() : null;
+    }
+
+    /**
+     * Request the thumbnails of the cells within the prefetch margin, so that they are ready
+     * when scrolled to.
+     */
+    private void prefetch() {
+        Rectangle visible = getVisibleRect();
+        int rowHeight = cellSize.height + GAP;
+        int rows = prefetchRows >= 0 ? prefetchRows : visible.height / rowHeight + 1;
+        int margin = rows * rowHeight;
+        int[] range = getIndexRange(visible.y - margin, visible.y + visible.height + margin);
+        if (!requested.isEmpty()) {
+            Set<File> inRange = new HashSet<File>();
+            for (int i = range[0]; i < range[1]; i++) {
+                inRange.add(renderer.getImageFile(items.get(i)));
+            }
+            for (Iterator<Map.Entry<File, Future<?>>> it = requested.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<File, Future<?>> entry = it.next();
+                if (!inRange.contains(entry.getKey())) {
+                    entry.getValue().cancel(false);
+                    it.remove();
+                }
+            }
+        }
+
+        for (int i = range[0]; i < range[1]; i++) {
+            getThumbnail(i);
+        }
+    }
+
+    private void cancelRequests() {
+        for (Future<?> request : requested.values()) {
+            request.cancel(false);
+        }
+        requested.clear();
+    }
+
+    /**
+     * @return The start (inclusive) and end (exclusive) index of the items in the rows between
+     * the vertical coordinates.
+     */
+    private int[] getIndexRange(int top, int bottom) {
+        int rowHeight = cellSize.height + GAP;
+        int cols = getColumnCount();
+        int firstRow = Math.max(0, (top - GAP) / rowHeight);
+        int lastRow = Math.max(0, (bottom - GAP) / rowHeight);
+        int start = Math.min(items.size(), firstRow * cols);
+        int end = Math.min(items.size(), (lastRow + 1) * cols);
+        return new int[] {start, end};
+    }
+
+    private Component getRendererComponent(int index) {
+        return renderer.getCellRendererComponent(this, items.get(index), getThumbnail(index), selection.get(index));
+    }
+
+    private Component getRendererComponentAt(int index, Point p) {
+        Component c = getRendererComponent(index);
+        Rectangle r = getCellBounds(index);
+        c.setBounds(0, 0, r.width, r.height);
+        c.validate();
+        Component target = SwingUtilities.getDeepestComponentAt(c, p.x - r.x, p.y - r.y);
+        return target == null ? c : target;
+    }
+
+    private static long[] getFileStamp(File f) {
+        if (f == null)
+            return null;
+
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+            return new long[] {attrs.lastModifiedTime().toMillis(), attrs.size()};
+        } catch (IOException e) {
+            return new long[] {0, 0}; // as reported by File for a file that doesn't exist
+        }
+    }
+
+    private BufferedImage getThumbnail(int index) {
+        final File f = renderer.getImageFile(items.get(index));
+        if (f == null || thumbnailService == null || failed.contains(f))
+            return null;
+
+        long[] stamp = fileStamps.get(index);
+        BufferedImage img = thumbnailService.getCachedThumbnail(f, stamp[0], stamp[1], thumbnailSize);
+        if (img != null)
+            return img;
+
+        // Evicted from the memory cache since it was delivered, but possibly still around
+        SoftReference<BufferedImage> ref = delivered.get(f);
+        if (ref != null && (img = ref.get()) != null)
+            return img;
+
+        if (!requested.containsKey(f)) {
+            final int size = thumbnailSize;
+            requested.put(f, thumbnailService.requestThumbnail(f, size, new ThumbnailService.Callback() {
+                @Override
+                public void thumbnailReady(File file, final BufferedImage img) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (size != thumbnailSize || requested.remove(f) == null)
+                                return; // the grid was cleared or changed, or the request cancelled in the mean time
+
+                            if (img == null)
+                                failed.add(f);
+                            else
+                                delivered.put(f, new SoftReference<BufferedImage>(img));
+                            repaintThumbnail(f);
+                        }
+                    });
+                }
+            }));
+        }
+        return null;
+    }
+
+    private void repaintThumbnail(File f) {
+        Rectangle visible = getVisibleRect();
+        int[] range = getIndexRange(visible.y, visible.y + visible.height);
+        for (int i = range[0]; i < range[1]; i++) {
+            if (f.equals(renderer.getImageFile(items.get(i))))
+                repaint(getCellBounds(i));
+        }
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? (cellSize.height + GAP) / 4 : GAP;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return true;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return false;
+    }
+
+    /**
+     * Provides the component used to paint a cell of the grid. The same component may be returned
+     * for every cell, as it is only used for painting.
+     */
+    public interface CellRenderer<T> {
+        /**
+         * @return The image file to request a thumbnail of for the item, or <tt>null</tt> if the
+         * item doesn't need one.
+         */
+        File getImageFile(T item);
+
+        /**
+         * @param grid The grid.
+         * @param item The item in the cell.
+         * @param thumbnail The thumbnail of the image file of the item, or <tt>null</tt> if it isn't
+         * available (yet).
+         * @param selected Whether the item is selected.
+         * @return The component to paint the cell with.
+         */
+        Component getCellRendererComponent(ImageGrid<T> grid, T item, BufferedImage thumbnail, boolean selected);
+    }
+
+    /**
+     * Informed when a cell is clicked, after the selection was updated.
+     */
+    public interface CellListener<T> {
+        /**
+         * @param grid The grid.
+         * @param index The index of the item that was clicked.
+         * @param target The component of the renderer at the location of the click.
+         * @param e The mouse event.
+         */
+        void cellClicked(ImageGrid<T> grid, int index, Component target, MouseEvent e);
+    }
+}
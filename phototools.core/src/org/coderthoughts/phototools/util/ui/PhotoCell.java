@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util.ui;
+
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.swing.BorderFactory;
+import javax.swing.BoxLayout;
+import javax.swing.JCheckBox;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+/**
+ * A photo shown in an {@link ImageGrid}, see {@link UIUtils#getPhotoCell}.
+ */
+public class PhotoCell {
+    private final String name;
+    private final Date date;
+    private final File previewFile;
+    private final BufferedImage thumbnail;
+
+    /**
+     * @param name The name of the photo.
+     * @param date The date the photo was taken.
+     * @param previewFile The image file to load the preview from, or <tt>null</tt>.
+     * @param thumbnail The preview if it was already created, or <tt>null</tt>.
+     */
+    public PhotoCell(String name, Date date, File previewFile, BufferedImage thumbnail) {
+        this.name = name;
+        this.date = date;
+        this.previewFile = previewFile;
+        this.thumbnail = thumbnail;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public File getPreviewFile() {
+        return previewFile;
+    }
+
+    public BufferedImage getThumbnail() {
+        return thumbnail;
+    }
+
+    /**
+     * Paints photo cells the same way as the previews of {@link PhotoPreview}, with a check box
+     * that shows whether the cell is selected.
+     */
+    public static class Renderer implements ImageGrid.CellRenderer<PhotoCell> {
+        private static final SimpleDateFormat COMPACT_DATE_FORMAT = new SimpleDateFormat("dd MMM yyyy");
+
+        private final JPanel panel = new JPanel();
+        private final ImageLabel image = new ImageLabel();
+        private final JCheckBox checkBox = new JCheckBox();
+
+        public Renderer() {
+            panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+            Dimension d = new Dimension(PhotoPreview.PREVIEW_SIZE, PhotoPreview.PREVIEW_SIZE);
+            image.setMaximumSize(d);
+            image.setPreferredSize(d);
+            image.setBorder(BorderFactory.createRaisedBevelBorder());
+            image.setAlignmentX(Component.LEFT_ALIGNMENT);
+            panel.add(image);
+            checkBox.setAlignmentX(Component.LEFT_ALIGNMENT);
+            panel.add(checkBox);
+        }
+
+        /**
+         * @return The size of the cells for an {@link ImageGrid} using this renderer.
+         */
+        public Dimension getCellSize() {
+            checkBox.setText("IMG_0000.JPG");
+            return new Dimension(PhotoPreview.PREVIEW_SIZE * 3 / 2, PhotoPreview.PREVIEW_SIZE + checkBox.getPreferredSize().height);
+        }
+
+        @Override
+        public File getImageFile(PhotoCell item) {
+            return item.getThumbnail() == null ? item.getPreviewFile() : null;
+        }
+
+        @Override
+        public Component getCellRendererComponent(ImageGrid<PhotoCell> grid, PhotoCell item, BufferedImage thumbnail, boolean selected) {
+            if (item.getThumbnail() != null)
+                thumbnail = item.getThumbnail();
+
+            image.image = thumbnail;
+            if (thumbnail == null && item.getPreviewFile() == null)
+                image.setText("no preview");
+            else
+                image.setText("");
+            image.setToolTipText(item.getDate() == null ? null : COMPACT_DATE_FORMAT.format(item.getDate()));
+            checkBox.setText(item.getName());
+            checkBox.setToolTipText(item.getName());
+            checkBox.setSelected(selected);
+            panel.setBackground(grid.getBackground());
+            checkBox.setBackground(grid.getBackground());
+            return panel;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ImageLabel extends JLabel {
+        private BufferedImage image;
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (image != null)
+                g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        }
+    }
+}
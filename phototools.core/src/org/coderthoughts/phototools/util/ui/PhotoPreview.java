@@ -14,7 +14,6 @@ package org.coderthoughts.phototools.util.ui;
 
 import java.awt.Component;
 import java.awt.Dimension;
-import java.awt.Graphics;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
@@ -23,15 +22,16 @@ import java.util.Date;
 
 import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
-import javax.swing.ImageIcon;
 import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 
+import org.coderthoughts.phototools.util.ThumbnailService;
 
 public class PhotoPreview {
     private static final SimpleDateFormat COMPACT_DATE_FORMAT = new SimpleDateFormat("dd MMM yyyy");
+    public static final int PREVIEW_SIZE = 100;
 
     public static JPanel getPhotoPreview(final String name, Date date, File previewFile) {
         JPanel p = new JPanel();
@@ -43,28 +43,42 @@ public class PhotoPreview {
         return (JCheckBox) getPhotoPreview(name, date, previewFile, panel, true);
     }
 
-    @SuppressWarnings("serial")
     public static JComponent getPhotoPreview(String name, Date date, File previewFile, JPanel panel, boolean checkBox) {
+        return getPhotoPreview(name, date, previewFile, panel, checkBox, null);
+    }
+
+    /**
+     * @param thumbnailService If provided, the preview image is loaded in the background using this service.
+     */
+    public static JComponent getPhotoPreview(String name, Date date, File previewFile, JPanel panel, boolean checkBox,
+            ThumbnailService thumbnailService) {
+        return getPhotoPreview(new PhotoCell(name, date, previewFile, null), panel, checkBox, thumbnailService);
+    }
+
+    /**
+     * @param thumbnailService Used to load the preview image in the background if the cell doesn't
+     * hold it already, may be <tt>null</tt>.
+     */
+    public static JComponent getPhotoPreview(PhotoCell cell, JPanel panel, boolean checkBox, ThumbnailService thumbnailService) {
+        String name = cell.getName();
+        File previewFile = cell.getPreviewFile();
         panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
 
         JLabel image;
-        if (previewFile != null) {
-            image = new JLabel(new ImageIcon(previewFile.getAbsolutePath())) {
-                public void paintComponent(Graphics g) {
-                    super.paintComponent(g);
-                    g.drawImage(((ImageIcon)getIcon()).getImage(), 0, 0, getWidth(), getHeight(), null);
-                }
-            };
+        if (cell.getThumbnail() != null) {
+            image = new ThumbnailLabel(cell.getThumbnail());
+        } else if (previewFile != null) {
+            image = new ThumbnailLabel(previewFile, PREVIEW_SIZE, thumbnailService);
         } else {
             image = new JLabel("no preview");
         }
 
-        Dimension d = new Dimension(100, 100);
+        Dimension d = new Dimension(PREVIEW_SIZE, PREVIEW_SIZE);
         image.setMaximumSize(d);
         image.setPreferredSize(d);
         image.setMaximumSize(d);
         image.setBorder(BorderFactory.createRaisedBevelBorder());
-        image.setToolTipText(COMPACT_DATE_FORMAT.format(date));
+        image.setToolTipText(COMPACT_DATE_FORMAT.format(cell.getDate()));
         image.setAlignmentX(Component.LEFT_ALIGNMENT);
         panel.add(image);
         if (checkBox) {
@@ -0,0 +1,112 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util.ui;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+
+import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+
+import org.coderthoughts.phototools.util.ThumbnailService;
+
+/**
+ * A label that shows a thumbnail of an image, stretched to the size of the label. When a
+ * {@link ThumbnailService} is provided the thumbnail is loaded in the background, otherwise it is
+ * created straight away.
+ *
+ * With a thumbnail service the label doesn't hold on to the thumbnail, it takes it from the
+ * memory cache of the service when painting. Only labels that are painted load their thumbnail
+ * and a thumbnail that was evicted from the cache is loaded again when it is needed, so the memory
+ * used doesn't grow with the number of labels.
+ */
+@SuppressWarnings("serial")
+public class ThumbnailLabel extends JLabel implements ThumbnailService.Callback {
+    private final File imageFile;
+    private final int size;
+    private final ThumbnailService thumbnailService;
+    private volatile BufferedImage thumbnail; // only used without a thumbnail service
+    private SoftReference<BufferedImage> loaded = new SoftReference<BufferedImage>(null);
+    private boolean loading = false;
+
+    /**
+     * @param imageFile The image file.
+     * @param size The size of the thumbnail, typically the largest dimension of the label.
+     * @param thumbnailService The service to load the thumbnail with, may be <tt>null</tt>.
+     */
+    public ThumbnailLabel(File imageFile, int size, ThumbnailService thumbnailService) {
+        this.imageFile = imageFile;
+        this.size = size;
+        this.thumbnailService = thumbnailService;
+        if (thumbnailService == null) {
+            try {
+                thumbnail = ThumbnailService.createThumbnail(imageFile, size);
+            } catch (IOException e) {
+                setText("no preview");
+            }
+        }
+    }
+
+    /**
+     * @param thumbnail The thumbnail, which is shown as is.
+     */
+    public ThumbnailLabel(BufferedImage thumbnail) {
+        this.imageFile = null;
+        this.size = 0;
+        this.thumbnailService = null;
+        this.thumbnail = thumbnail;
+    }
+
+    @Override
+    public void thumbnailReady(File f, final BufferedImage img) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                loading = false;
+                if (img == null) {
+                    setText("no preview");
+                } else {
+                    // Keep it softly, in case it is evicted from the cache before it is painted
+                    loaded = new SoftReference<BufferedImage>(img);
+                    repaint();
+                }
+            }
+        });
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        BufferedImage img = getThumbnail();
+        if (img != null)
+            g.drawImage(img, 0, 0, getWidth(), getHeight(), null);
+    }
+
+    private BufferedImage getThumbnail() {
+        if (thumbnailService == null)
+            return thumbnail;
+
+        BufferedImage img = thumbnailService.getCachedThumbnail(imageFile, size);
+        if (img == null)
+            img = loaded.get();
+
+        if (img == null && !loading && getText().length() == 0) {
+            loading = true;
+            thumbnailService.requestThumbnail(imageFile, size, this);
+        }
+        return img;
+    }
+}
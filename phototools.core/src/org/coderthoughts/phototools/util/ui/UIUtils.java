@@ -12,34 +12,79 @@
  */
 package org.coderthoughts.phototools.util.ui;
 
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.Date;
 
 import javax.swing.JCheckBox;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
+import javax.swing.SwingUtilities;
 
+import org.coderthoughts.phototools.api.CancellablePhotoMetadataProvider;
+import org.coderthoughts.phototools.api.CancellationToken;
 import org.coderthoughts.phototools.api.PhotoIterable;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.util.OSGiTools;
 import org.coderthoughts.phototools.util.StreamTools;
+import org.coderthoughts.phototools.util.TaskScheduler;
+import org.coderthoughts.phototools.util.ThumbnailService;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceReference;
 
 public class UIUtils {
+    private static TaskScheduler defaultTaskScheduler;
+
     public static JPanel getPhotoPreview(BundleContext bundleContext, PhotoIterable.Entry entry, Date fromDate, Date toDate) {
+        return getPhotoPreview(bundleContext, entry, fromDate, toDate, CancellationToken.NONE);
+    }
+
+    /**
+     * @param token Reading the metadata of the photo stops when this token is cancelled, in which
+     * case <tt>null</tt> is returned.
+     */
+    public static JPanel getPhotoPreview(BundleContext bundleContext, PhotoIterable.Entry entry, Date fromDate, Date toDate,
+            CancellationToken token) {
         JPanel p = new JPanel();
-        if (getPhotoPreview(bundleContext, entry, p, fromDate, toDate, false) == null)
+        if (getPhotoPreview(bundleContext, entry, p, fromDate, toDate, false, token) == null)
             return null;
         return p;
     }
 
     public static JCheckBox getPhotoPreview(BundleContext bundleContext, PhotoIterable.Entry entry, Date fromDate, Date toDate, JPanel panel) {
-        return (JCheckBox) getPhotoPreview(bundleContext, entry, panel, fromDate, toDate, true);
+        return (JCheckBox) getPhotoPreview(bundleContext, entry, panel, fromDate, toDate, true, CancellationToken.NONE);
+    }
+
+    private static JComponent getPhotoPreview(BundleContext bundleContext, PhotoIterable.Entry entry, JPanel panel, Date fromDate, Date toDate,
+            boolean checkbox, CancellationToken token) {
+        PhotoCell cell = getPhotoCell(bundleContext, entry, fromDate, toDate, token);
+        if (cell == null || cell.getDate() == null)
+            return null;
+        return PhotoPreview.getPhotoPreview(cell, panel, checkbox, getThumbnailService(bundleContext));
+    }
+
+    /**
+     * Read what is needed to show a photo in an {@link ImageGrid}, this reads the metadata of the photo.
+     * If the preview image can't be loaded later, for instance because the entry isn't a file, or if
+     * there is no {@link ThumbnailService}, the thumbnail is created straight away.
+     * @return The cell or <tt>null</tt> if the photo isn't between the dates or can't be read.
+     */
+    public static PhotoCell getPhotoCell(BundleContext bundleContext, PhotoIterable.Entry entry, Date fromDate, Date toDate) {
+        return getPhotoCell(bundleContext, entry, fromDate, toDate, CancellationToken.NONE);
     }
 
-    private static JComponent getPhotoPreview(BundleContext bundleContext, PhotoIterable.Entry entry, JPanel panel, Date fromDate, Date toDate, boolean checkbox) {
+    /**
+     * As {@link #getPhotoCell(BundleContext, PhotoIterable.Entry, Date, Date)}, reading the metadata
+     * stops when the token is cancelled.
+     * @return The cell or <tt>null</tt> if the photo isn't between the dates, can't be read or the
+     * token was cancelled.
+     */
+    public static PhotoCell getPhotoCell(BundleContext bundleContext, PhotoIterable.Entry entry, Date fromDate, Date toDate,
+            CancellationToken token) {
         File tempFile = null;
         try {
             String n = entry.getName();
@@ -50,36 +95,55 @@ public class UIUtils {
 
             extension = extension.toLowerCase();
 
-            tempFile = File.createTempFile("PhotoCopy", extension);
-            StreamTools.pump(entry.getInputStream(), new FileOutputStream(tempFile));
+            PhotoMetadataProvider processor = OSGiTools.getPhotoMetadataProviders(bundleContext).getService(extension);
+            File contentFile = entry.getFile();
+            if (contentFile == null) {
+                // The preview needs the whole photo, but a photo outside of the dates can be skipped
+                // if its date can be read from the start of the stream.
+                InputStream is = new BufferedInputStream(entry.getInputStream());
+                Metadata metadata = StreamTools.getMetaData(processor, is);
+                if (metadata != null && !isWithinDates(getDate(metadata, entry), fromDate, toDate)) {
+                    is.close();
+                    return null;
+                }
+
+                tempFile = File.createTempFile("PhotoCopy", extension);
+                StreamTools.pump(is, new FileOutputStream(tempFile));
+                contentFile = tempFile;
+            }
 
             Date date = null;
             File previewFile = null;
-            ServiceReference[] refs = bundleContext.getServiceReferences(PhotoMetadataProvider.class.getName(), "(format=" + extension + ")");
-            if (refs != null) {
-                for (ServiceReference ref : refs) {
-                    PhotoMetadataProvider processor = (PhotoMetadataProvider) bundleContext.getService(ref);
-                    if (processor == null)
-                        continue;
-
-                    Metadata metadata = processor.getMetaData(tempFile);
-                    date = metadata.getDateTaken();
-                    previewFile = metadata.getPreviewFile();
-                }
+            if (processor != null) {
+                Metadata metadata;
+                if (processor instanceof CancellablePhotoMetadataProvider)
+                    metadata = ((CancellablePhotoMetadataProvider) processor).getMetaData(contentFile, token);
+                else
+                    metadata = processor.getMetaData(contentFile);
+                date = metadata.getDateTaken();
+                previewFile = metadata.getPreviewFile();
             }
 
+            if (token.isCancelled())
+                return null;
+
             if (date == null)
                 date = entry.getDate();
 
-            if (fromDate != null && date != null)
-                if (date.getTime() < fromDate.getTime())
-                    return null;
+            if (!isWithinDates(date, fromDate, toDate))
+                return null;
 
-            if (toDate != null && date != null)
-                if (date.getTime() >= toDate.getTime())
-                    return null;
-
-            return PhotoPreview.getPhotoPreview(entry.getName(), date, previewFile, panel, checkbox);
+            // A temporary file is deleted below, so its thumbnail can't be created in the background
+            BufferedImage thumbnail = null;
+            if (previewFile != null && (previewFile.equals(tempFile) || getThumbnailService(bundleContext) == null)) {
+                try {
+                    thumbnail = ThumbnailService.createThumbnail(previewFile, PhotoPreview.PREVIEW_SIZE);
+                } catch (IOException e) {
+                    // shown without a preview
+                }
+                previewFile = null;
+            }
+            return new PhotoCell(entry.getName(), date, previewFile, thumbnail);
         } catch (Exception e) {
             return null;
         } finally {
@@ -88,5 +152,61 @@ public class UIUtils {
         }
     }
 
+    private static Date getDate(Metadata metadata, PhotoIterable.Entry entry) {
+        Date date = metadata.getDateTaken();
+        if (date == null)
+            date = entry.getDate();
+        return date;
+    }
+
+    // A photo without a date is shown
+    private static boolean isWithinDates(Date date, Date fromDate, Date toDate) {
+        if (fromDate != null && date != null)
+            if (date.getTime() < fromDate.getTime())
+                return false;
+
+        if (toDate != null && date != null)
+            if (date.getTime() >= toDate.getTime())
+                return false;
+
+        return true;
+    }
 
+    /**
+     * @return The thumbnail service from the Service Registry, or <tt>null</tt> if there is none.
+     */
+    public static ThumbnailService getThumbnailService(BundleContext bundleContext) {
+        // Called for every preview, so the service is tracked rather than looked up each time
+        return OSGiTools.getServiceIndex(bundleContext, ThumbnailService.class, null).getService();
+    }
+
+    /**
+     * Run on the event dispatch thread, unless the token was cancelled by then. This way a
+     * superseded background task doesn't change the UI that a newer task is filling.
+     */
+    public static void invokeLater(final CancellationToken token, final Runnable runnable) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!token.isCancelled())
+                    runnable.run();
+            }
+        });
+    }
+
+    /**
+     * @return The task scheduler from the Service Registry, or if there is none a scheduler shared
+     * by all callers.
+     */
+    public static TaskScheduler getTaskScheduler(BundleContext bundleContext) {
+        TaskScheduler scheduler = OSGiTools.getServiceIndex(bundleContext, TaskScheduler.class, null).getService();
+        if (scheduler != null)
+            return scheduler;
+
+        synchronized (UIUtils.class) {
+            if (defaultTaskScheduler == null)
+                defaultTaskScheduler = new TaskScheduler();
+            return defaultTaskScheduler;
+        }
+    }
 }
@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util.ui;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.util.List;
+
+import javax.swing.Timer;
+
+import org.coderthoughts.phototools.api.LibraryListener;
+import org.coderthoughts.phototools.api.LibraryWatcher;
+import org.coderthoughts.phototools.util.TaskScheduler;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Keeps a directory shown in the UI watched by the {@link LibraryWatcher} and calls back on the
+ * event dispatch thread when files in it have changed. Changes arriving in quick succession, such
+ * as when another program copies a batch of photos, result in a single call back. Call
+ * {@link #close()} when the location is no longer shown.
+ */
+public class WatchedLocation implements LibraryListener {
+    private static final int DELAY = 1000; // ms
+
+    private final BundleContext bundleContext;
+    private final Timer timer;
+    private final Object watchLock = new Object();
+    private ServiceRegistration registration;
+    private volatile File location;
+    private File watched; // guarded by watchLock
+
+    /**
+     * @param context The bundle context used to find the watcher and register the listener.
+     * @param onChange Called on the event dispatch thread when files in the location have changed.
+     */
+    public WatchedLocation(BundleContext context, final Runnable onChange) {
+        bundleContext = context;
+        timer = new Timer(DELAY, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                onChange.run();
+            }
+        });
+        timer.setRepeats(false);
+    }
+
+    /**
+     * Watch another location, the previous location is no longer watched. Watching the location
+     * is done in the background.
+     * @param dir The new location.
+     */
+    public synchronized void setLocation(File dir) {
+        File newLocation = dir == null ? null : dir.getAbsoluteFile();
+        if (newLocation == null ? location == null : newLocation.equals(location))
+            return;
+
+        location = newLocation;
+        if (registration == null)
+            registration = bundleContext.registerService(LibraryListener.class.getName(), this, null);
+        updateWatch();
+    }
+
+    /**
+     * Stop watching the location and stop listening for changes. Unwatching the location is done
+     * in the background.
+     */
+    public synchronized void close() {
+        if (registration != null) {
+            registration.unregister();
+            registration = null;
+        }
+        timer.stop();
+
+        if (location != null) {
+            location = null;
+            updateWatch();
+        }
+    }
+
+    private void updateWatch() {
+        // Keyed on this object, so that a pending update is dropped when the location changes again
+        UIUtils.getTaskScheduler(bundleContext).submit(this, new Runnable() {
+            @Override
+            public void run() {
+                ServiceReference ref = bundleContext.getServiceReference(LibraryWatcher.class.getName());
+                if (ref == null)
+                    return;
+
+                LibraryWatcher watcher = (LibraryWatcher) bundleContext.getService(ref);
+                if (watcher == null)
+                    return;
+
+                try {
+                    synchronized (watchLock) {
+                        // Always move to the latest location, it may have changed again in the mean time
+                        File latest = location;
+                        if (latest == null ? watched == null : latest.equals(watched))
+                            return;
+
+                        if (watched != null)
+                            watcher.unwatch(watched);
+                        watched = null;
+                        if (latest != null && latest.isDirectory()) {
+                            watcher.watch(latest);
+                            watched = latest;
+                        }
+                    }
+                } finally {
+                    bundleContext.ungetService(ref);
+                }
+            }
+        }, TaskScheduler.PRIORITY_BACKGROUND);
+    }
+
+    @Override
+    public void libraryChanged(File root, List<Event> events) {
+        if (root.equals(location))
+            timer.restart();
+    }
+}
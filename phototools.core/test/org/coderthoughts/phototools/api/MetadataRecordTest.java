@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import junit.framework.TestCase;
+
+public class MetadataRecordTest extends TestCase {
+    public void testMetadataRecordEncoding() throws Exception {
+        MetadataRecord r1 = new MetadataRecord(1341426000000L, 640, 480, -33.8567844, 151.2152967,
+                new String("Canon"), "Canon EOS 5D", 6);
+        byte [] bytes = r1.toBytes();
+        // 1 flags + 6 date + 2 + 2 size + 4 + 4 location + 7 + 14 strings + 1 orientation
+        assertEquals(41, bytes.length);
+        MetadataRecord r2 = MetadataRecord.fromBytes(bytes);
+        assertEquals(r1, r2);
+        assertEquals(-33.8567844, r2.getLatitude(), 1e-9);
+        assertSame("Strings should be interned", "Canon", r2.getMake());
+
+        MetadataRecord empty = new MetadataRecord(MetadataRecord.UNKNOWN_DATE, -1, -1, Double.NaN, Double.NaN, null, null, 0);
+        assertEquals(1, empty.toBytes().length);
+        MetadataRecord empty2 = MetadataRecord.fromBytes(empty.toBytes());
+        assertEquals(empty, empty2);
+        assertFalse(empty2.hasLocation());
+        assertEquals(MetadataRecord.UNKNOWN_DATE, empty2.getDateTaken());
+
+        // Dates before 1970 are negative
+        MetadataRecord old = new MetadataRecord(-1000000000000L, 10, 20, Double.NaN, Double.NaN, null, "Box camera", 0);
+        assertEquals(old, MetadataRecord.fromBytes(old.toBytes()));
+
+        // Many records in one stream
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        r1.writeTo(dos);
+        empty.writeTo(dos);
+        old.writeTo(dos);
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals(r1, MetadataRecord.readFrom(dis));
+        assertEquals(empty, MetadataRecord.readFrom(dis));
+        assertEquals(old, MetadataRecord.readFrom(dis));
+        assertEquals(-1, dis.read());
+    }
+}
@@ -18,18 +18,23 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
 import junit.framework.TestCase;
 
+import org.coderthoughts.phototools.api.CancellationToken;
 import org.coderthoughts.phototools.api.PhotoIterable;
 import org.coderthoughts.phototools.api.PhotoIterable.Entry;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.util.DirectoryIndex;
 import org.coderthoughts.phototools.util.DirectoryPhotoIterable;
 import org.coderthoughts.phototools.util.FileTools;
 import org.coderthoughts.phototools.util.StreamTools;
@@ -77,12 +82,14 @@ public class DirectoryPhotoIterableTest extends TestCase {
             String n = entry.getName();
             if (n.equals(f.getName())) {
                 assertDatesSimilar(FileTools.getFileModificationDate(f), entry.getDate());
+                assertEquals(f.getAbsolutePath(), entry.getFile().getAbsolutePath());
                 byte[] expectedBytes = suckStream(new FileInputStream(f));
                 byte[] actualBytes = suckStream(entry.getInputStream());
                 assertTrue(Arrays.equals(expectedBytes, actualBytes));
                 actualFiles.add(f.getAbsolutePath());
             } else if (n.equals(f4.getName())) {
                 assertDatesSimilar(FileTools.getFileModificationDate(f4), entry.getDate());
+                assertEquals(f4.getAbsolutePath(), entry.getFile().getAbsolutePath());
                 byte[] expectedBytes = suckStream(new FileInputStream(f4));
                 byte[] actualBytes = suckStream(entry.getInputStream());
                 assertTrue(Arrays.equals(expectedBytes, actualBytes));
@@ -133,6 +140,97 @@ public class DirectoryPhotoIterableTest extends TestCase {
         }
     }
 
+    public void testCancelledIteration() throws Exception {
+        URL imageDirURL = getClass().getResource("photocopy/images");
+        String imageDir = imageDirURL.getFile();
+        DirectoryPhotoIterable fpi = new DirectoryPhotoIterable(imageDir);
+        fpi.freeze();
+
+        CancellationToken token = new CancellationToken();
+        Iterator<Entry> it = fpi.iterator(token);
+        assertEquals(".hidden_image.jpg", it.next().getName());
+        assertTrue(it.hasNext());
+        token.cancel();
+        assertFalse(it.hasNext());
+
+        // An index isn't refreshed with a cancelled token
+        File indexFile = File.createTempFile("dirindex", ".idx");
+        indexFile.delete();
+        try {
+            DirectoryPhotoIterable indexed = new DirectoryPhotoIterable(imageDir, new DirectoryIndex(indexFile, new File(imageDir)));
+            indexed.freeze();
+            assertFalse(indexed.iterator(token).hasNext());
+            assertFalse(indexFile.exists());
+            assertTrue(indexed.iterator(CancellationToken.NONE).hasNext());
+        } finally {
+            indexFile.delete();
+        }
+    }
+
+    public void testDateRange() throws Exception {
+        URL imageDirURL = getClass().getResource("photocopy/images");
+        String imageDir = imageDirURL.getFile();
+        Calendar from = Calendar.getInstance();
+        from.clear();
+        from.set(2012, Calendar.JUNE, 1);
+        Calendar to = Calendar.getInstance();
+        to.clear();
+        to.set(2012, Calendar.AUGUST, 1);
+
+        DirectoryPhotoIterable fpi = new DirectoryPhotoIterable(imageDir, null, new JPEGMetadataProvider());
+        fpi.setExtensions(".jpg", ".jpeg", ".png").setDateRange(from.getTime(), to.getTime()).freeze();
+        try {
+            fpi.setDateRange(null, null);
+            fail("Cannot call setDateRange() after freeze()");
+        } catch (IllegalStateException ise) {
+            // good
+        }
+
+        // The JPEG files taken in May and August are skipped, the PNG has no date in its header
+        Set<String> names = new HashSet<String>();
+        for (Entry entry : fpi) {
+            names.add(entry.getName());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList(".hidden_image.jpg", "PhotoTools.png")), names);
+
+        // Only a lower bound
+        DirectoryPhotoIterable fpi2 = new DirectoryPhotoIterable(imageDir, null, new JPEGMetadataProvider());
+        fpi2.setExtensions(".jpeg").setDateRange(to.getTime(), null).freeze();
+        Iterator<Entry> it = fpi2.iterator();
+        assertEquals("image1.jpeg", it.next().getName());
+        assertFalse(it.hasNext());
+    }
+
+    public void testDateRangeFromMetadataProvider() throws Exception {
+        URL imageDirURL = getClass().getResource("photocopy/images");
+        String imageDir = imageDirURL.getFile();
+        Date from = new Date(0);
+        Date to = new Date(1000);
+
+        // Without a provider to obtain the dates from, nothing is skipped
+        DirectoryPhotoIterable fpi = new DirectoryPhotoIterable(imageDir);
+        fpi.setExtensions(".jpg", ".jpeg").setDateRange(from, to).freeze();
+        int count = 0;
+        for (Iterator<Entry> it = fpi.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        assertEquals(5, count);
+
+        // The dates are obtained through the provider, which the photos are read with later
+        final List<File> read = new ArrayList<File>();
+        PhotoMetadataProvider pmp = new PhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                read.add(f);
+                return new JPEGMetadataProvider().getMetaData(f);
+            }
+        };
+        DirectoryPhotoIterable fpi2 = new DirectoryPhotoIterable(imageDir, null, pmp);
+        fpi2.setExtensions(".jpg", ".jpeg").setDateRange(from, to).freeze();
+        assertFalse(fpi2.iterator().hasNext());
+        assertEquals(5, read.size());
+    }
+
     private static byte [] suckStream(InputStream is) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         try {
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.util.MetadataTools;
+
+/**
+ * Compares obtaining the metadata of JPEG files one by one in path order, as the callers used to,
+ * with obtaining it in a batch. As the files are cached by the OS the disk is simulated: every read
+ * is delayed by a seek time that grows with the distance from the previous read, where the location
+ * of a file is its inode number. The files are written in a different order than their names, as
+ * happens when photos are copied from several sources into one directory. The timings are printed,
+ * they are not asserted.
+ */
+public class JPEGMetadataProviderBenchmark extends TestCase {
+    private static final int NUM_FILES = 200;
+    private static final long NANOS_PER_DISTANCE = 50000; // 0.05 ms
+    private static final long MAX_SEEK_NANOS = 5000000; // 5 ms
+
+    public void testBatchVersusSingle() throws Exception {
+        File image = new File(getClass().getResource("/org/coderthoughts/phototools/impl/photocopy/images/image1.jpg").toURI());
+        byte [] data = Files.readAllBytes(image.toPath());
+
+        File dir = File.createTempFile(getClass().getSimpleName(), ".dir");
+        dir.delete();
+        dir.mkdirs();
+        List<File> files = new ArrayList<File>();
+        try {
+            for (int i = 0; i < NUM_FILES; i++) {
+                files.add(new File(dir, String.format("IMG_%04d.jpg", i)));
+            }
+            List<File> writeOrder = new ArrayList<File>(files);
+            Collections.shuffle(writeOrder, new Random(42));
+            for (File f : writeOrder) {
+                FileOutputStream fos = new FileOutputStream(f);
+                try {
+                    fos.write(data);
+                } finally {
+                    fos.close();
+                }
+            }
+
+            ThrottledJPEGMetadataProvider pmp = new ThrottledJPEGMetadataProvider();
+            if (pmp.getLocation(files.get(0)) < 0) {
+                System.out.println("No inode numbers on this file system, skipping the batch metadata benchmark");
+                return;
+            }
+
+            // warm up
+            for (File f : files) {
+                new JPEGMetadataProvider().getMetaData(f).getDateTaken();
+            }
+
+            long start = System.nanoTime();
+            List<Metadata> single = new ArrayList<Metadata>();
+            for (File f : files) {
+                single.add(pmp.getMetaData(f));
+            }
+            long singleTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            List<Metadata> batch = MetadataTools.getMetaData(pmp, files);
+            long batchTime = System.nanoTime() - start;
+
+            System.out.println("Metadata for " + NUM_FILES + " JPEG files on a simulated disk, one by one: " +
+                    (singleTime / 1000000) + " ms, batch: " + (batchTime / 1000000) + " ms");
+
+            for (int i = 0; i < files.size(); i++) {
+                assertEquals(single.get(i).getDateTaken(), batch.get(i).getDateTaken());
+            }
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static class ThrottledJPEGMetadataProvider extends JPEGMetadataProvider {
+        private long head;
+
+        @Override
+        public Metadata getMetaData(File f) {
+            long location = getLocation(f);
+            long seek = Math.min(Math.abs(location - head) * NANOS_PER_DISTANCE, MAX_SEEK_NANOS);
+            head = location + 1;
+            if (seek > NANOS_PER_DISTANCE)
+                LockSupport.parkNanos(seek);
+
+            return super.getMetaData(f);
+        }
+
+        long getLocation(File f) {
+            try {
+                return ((Number) Files.getAttribute(f.toPath(), "unix:ino")).longValue();
+            } catch (UnsupportedOperationException e) {
+                return -1;
+            } catch (IllegalArgumentException e) {
+                return -1;
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.impl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Date;
+import java.util.concurrent.Callable;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.api.MetadataRecord;
+import org.coderthoughts.phototools.api.PhotoMetadataBuilder;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.util.JPEGTools;
+import org.coderthoughts.phototools.util.StreamTools;
+
+public class JPEGMetadataProviderTest extends TestCase {
+    public void testMetadata() throws Exception {
+        File f = new File(getClass().getResource("/org/coderthoughts/phototools/impl/photocopy/images/image1.jpg").toURI());
+        JPEGTools jpt = JPEGTools.getJPEGTools(f);
+
+        Metadata md = new JPEGMetadataProvider().getMetaData(f);
+        assertEquals(jpt.getDateTaken(), md.getDateTaken());
+        assertEquals(f, md.getPreviewFile());
+        assertEquals(jpt.getHeight(), md.getHeightInPixels());
+        assertEquals(jpt.getWidth(), md.getWidthInPixels());
+        assertEquals(jpt.getGPSInfo(), md.getGPSInfo());
+        assertEquals(jpt.getDetails(), md.getDetails());
+    }
+
+    public void testMetadataFromStream() throws Exception {
+        File f = new File(getClass().getResource("/org/coderthoughts/phototools/impl/photocopy/images/image1.jpg").toURI());
+        Metadata expected = new JPEGMetadataProvider().getMetaData(f);
+
+        InputStream is = new BufferedInputStream(new FileInputStream(f));
+        try {
+            Metadata md = StreamTools.getMetaData(new JPEGMetadataProvider(), is);
+            assertEquals(expected.getDateTaken(), md.getDateTaken());
+            assertNull(md.getPreviewFile());
+            assertEquals(expected.getHeightInPixels(), md.getHeightInPixels());
+            assertEquals(expected.getWidthInPixels(), md.getWidthInPixels());
+            assertEquals(expected.getGPSInfo(), md.getGPSInfo());
+
+            // The stream is reset, so the photo can still be read from it
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            StreamTools.pump(is, baos);
+            assertEquals(f.length(), baos.size());
+        } finally {
+            is.close();
+        }
+
+        // Not a JPEG, fall back to the file
+        is = new BufferedInputStream(new ByteArrayInputStream("Not really a JPEG".getBytes()));
+        assertNull(StreamTools.getMetaData(new JPEGMetadataProvider(), is));
+        assertEquals('N', is.read());
+    }
+
+    public void testMetadataRecord() throws Exception {
+        File f = new File(getClass().getResource("/org/coderthoughts/phototools/impl/photocopy/images/sub/subsub/image1.jpeg").toURI());
+        Metadata md = new JPEGMetadataProvider().getMetaData(f);
+        MetadataRecord record = new JPEGMetadataProvider().getMetadataRecord(f);
+        assertEquals(md.getDateTaken().getTime(), record.getDateTaken());
+        assertEquals((int) md.getWidthInPixels(), record.getWidth());
+        assertEquals((int) md.getHeightInPixels(), record.getHeight());
+        assertTrue(record.hasLocation());
+        assertEquals(48.6091842, record.getLatitude(), 1e-7);
+        assertEquals(7.0618278, record.getLongitude(), 1e-7);
+        assertEquals("Sony Ericsson", record.getMake());
+        assertEquals("LT26i", record.getModel());
+        assertEquals(1, record.getOrientation());
+
+        assertNull(new JPEGMetadataProvider().getMetadataRecord(new File(f.getParentFile(), "nonexistent.jpg")));
+    }
+
+    public void testLazyBuilderFields() throws Exception {
+        final int [] calls = new int [1];
+        Metadata md = new PhotoMetadataBuilder().
+            dateTaken(new Date(12345)).
+            detailsLazy(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    calls[0]++;
+                    return "some details";
+                }
+            }).
+            widthLazy(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    throw new Exception("Test exception, this is expected");
+                }
+            }).getMetadata();
+
+        assertEquals(new Date(12345), md.getDateTaken());
+        assertEquals("Details should only be computed when asked for", 0, calls[0]);
+        assertEquals("some details", md.getDetails());
+        assertEquals("some details", md.getDetails());
+        assertEquals("Details should only be computed once", 1, calls[0]);
+        assertNull(md.getWidthInPixels());
+    }
+
+    public void testNullBuilderFields() throws Exception {
+        // Existing callers pass null for unknown fields, this must keep compiling
+        Metadata md = new PhotoMetadataBuilder().
+            dateTaken(null).height(null).width(null).gpsInfo(null).previewFile(null).details(null).getMetadata();
+        assertNull(md.getDateTaken());
+        assertNull(md.getHeightInPixels());
+        assertNull(md.getPreviewFile());
+        assertNull(md.getDetails());
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.api.LibraryListener.Event;
+import org.coderthoughts.phototools.api.LibraryWatcher.FileInfo;
+
+public class WatchServiceLibraryWatcherTest extends TestCase {
+    private File root;
+    private BlockingQueue<Event> events;
+    private WatchServiceLibraryWatcher watcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        root = Files.createTempDirectory("watcher").toFile();
+        events = new LinkedBlockingQueue<Event>();
+        watcher = new WatchServiceLibraryWatcher(null) {
+            @Override
+            protected void fireEvents(File r, List<Event> evts) {
+                assertEquals(root, r);
+                events.addAll(evts);
+            }
+        };
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        watcher.close();
+        deleteTree(root);
+    }
+
+    public void testInitialModel() throws Exception {
+        File sub = new File(root, "sub");
+        assertTrue(sub.mkdir());
+        File a = writeFile(new File(root, "a.jpg"), 10);
+        File b = writeFile(new File(sub, "b.jpg"), 20);
+
+        assertNull(watcher.getFiles(root));
+        watcher.watch(root);
+        Map<File, Long> sizes = getSizes(watcher.getFiles(root));
+        assertEquals(2, sizes.size());
+        assertEquals(10L, (long) sizes.get(a));
+        assertEquals(20L, (long) sizes.get(b));
+
+        // Watched twice, so it takes two unwatches to stop
+        watcher.watch(root);
+        watcher.unwatch(root);
+        assertNotNull(watcher.getFiles(root));
+        watcher.unwatch(root);
+        assertNull(watcher.getFiles(root));
+    }
+
+    public void testEvents() throws Exception {
+        watcher.watch(root);
+
+        File a = writeFile(new File(root, "a.jpg"), 10);
+        Event e = waitForEvent(a);
+        assertTrue(e.getType() == Event.ADDED || e.getType() == Event.CHANGED);
+
+        // Files in a new directory are found, even when they were created before it was registered
+        File sub = new File(root, "sub");
+        assertTrue(sub.mkdir());
+        File b = writeFile(new File(sub, "b.jpg"), 20);
+        waitForEvent(b);
+        waitFor(b, 20);
+
+        assertTrue(a.delete());
+        assertEquals(Event.REMOVED, waitForEvent(a).getType());
+
+        deleteTree(sub);
+        assertEquals(Event.REMOVED, waitForEvent(b).getType());
+        assertEquals(0, watcher.getFiles(root).size());
+    }
+
+    public void testConcurrentWatch() throws Exception {
+        for (int i = 0; i < 50; i++) {
+            writeFile(new File(root, i + ".jpg"), i);
+        }
+
+        // The roots are scanned outside the lock, both callers must still end up with the same root
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    watcher.watch(root);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(50, watcher.getFiles(root).size());
+        watcher.unwatch(root);
+        assertNotNull(watcher.getFiles(root));
+        watcher.unwatch(root);
+        assertNull(watcher.getFiles(root));
+
+        watcher.close();
+        watcher.watch(root);
+        assertNull("Closed watchers don't watch", watcher.getFiles(root));
+    }
+
+    private Event waitForEvent(File f) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            Event e = events.poll(100, TimeUnit.MILLISECONDS);
+            if (e != null && e.getFile().equals(f))
+                return e;
+        }
+        fail("No event for " + f);
+        return null;
+    }
+
+    private void waitFor(File f, long size) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (System.currentTimeMillis() < deadline) {
+            Long actual = getSizes(watcher.getFiles(root)).get(f);
+            if (actual != null && actual == size)
+                return;
+            Thread.sleep(50);
+        }
+        fail("Not in the model: " + f);
+    }
+
+    private static Map<File, Long> getSizes(Collection<FileInfo> files) {
+        Map<File, Long> sizes = new HashMap<File, Long>();
+        for (FileInfo fi : files) {
+            sizes.put(fi.getFile(), fi.getSize());
+        }
+        return sizes;
+    }
+
+    private static File writeFile(File f, int size) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(new byte[size]);
+        } finally {
+            fos.close();
+        }
+        return f;
+    }
+
+    private static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteTree(f);
+            }
+        }
+        dir.delete();
+    }
+}
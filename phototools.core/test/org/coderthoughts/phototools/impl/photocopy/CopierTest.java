@@ -13,7 +13,9 @@
 package org.coderthoughts.phototools.impl.photocopy;
 
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -22,13 +24,16 @@ import java.util.Calendar;
 import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 
 import junit.framework.TestCase;
 
+import org.coderthoughts.phototools.api.PhotoIterable;
 import org.coderthoughts.phototools.api.PhotoMetadataBuilder;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 import org.coderthoughts.phototools.impl.JPEGMetadataProvider;
@@ -43,13 +48,31 @@ import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceReference;
 
 public class CopierTest extends TestCase {
+    private final Map<BundleContext, List<ServiceReference>> registeredServices = new IdentityHashMap<BundleContext, List<ServiceReference>>();
+
     public void testCopier() throws Exception {
+        checkCopier(1, true);
+    }
+
+    public void testCopierPipelined() throws Exception {
+        checkCopier(4, true);
+    }
+
+    public void testCopierNoFile() throws Exception {
+        checkCopier(1, false);
+    }
+
+    public void testCopierPipelinedNoFile() throws Exception {
+        checkCopier(4, false);
+    }
+
+    private void checkCopier(int threads, boolean fileBacked) throws Exception {
         File tempDir = createTempDir();
 
         try {
             BundleContext ctx = Mockito.mock(BundleContext.class);
             JPEGMetadataProvider jpegSvc = new JPEGMetadataProvider();
-            registerMetadataProviderService(ctx, jpegSvc, "(format=.jpg)");
+            registerMetadataProviderService(ctx, jpegSvc, ".jpg");
 
             PhotoMetadataProvider testMp = new PhotoMetadataProvider() {
                 @Override
@@ -57,16 +80,18 @@ public class CopierTest extends TestCase {
                     return new PhotoMetadataBuilder().getMetadata();
                 }
             };
-            registerMetadataProviderService(ctx, testMp, "(format=.jpeg)");
-            registerMetadataProviderService(ctx, new DummyMetadataProvider(), "(format=.png)");
+            registerMetadataProviderService(ctx, testMp, ".jpeg");
+            registerMetadataProviderService(ctx, new DummyMetadataProvider(), ".png");
 
-            Copier copier = new Copier(ctx);
+            Copier copier = new Copier(ctx, threads);
 
             String tds = PhotoCopyToolPanel.DEFAULT_TARGET_DATE_STRUCTURE;
             URL imageDirURL = getClass().getResource("images");
             String imageDir = imageDirURL.getFile();
-            copier.copy(new DirectoryPhotoIterable(imageDir).freeze(), tempDir.getAbsolutePath(),
-                    tds, null, null, null);
+            PhotoIterable source = new DirectoryPhotoIterable(imageDir).freeze();
+            if (!fileBacked)
+                source = new StreamOnlyPhotoIterable(source);
+            copier.copy(source, tempDir.getAbsolutePath(), tds, null, null, null);
 
             assertTrue(new File(tempDir, getFileModificationDate(tds, imageDir + "/PhotoTools.png") + "PhotoTools.png").isFile());
             assertTrue(new File(tempDir, "2012/2012-05-30/image1.jpg").isFile());
@@ -98,7 +123,7 @@ public class CopierTest extends TestCase {
         try {
             BundleContext ctx = Mockito.mock(BundleContext.class);
             JPEGMetadataProvider jpegSvc = new JPEGMetadataProvider();
-            registerMetadataProviderService(ctx, jpegSvc, "(format=.jpg)");
+            registerMetadataProviderService(ctx, jpegSvc, ".jpg");
 
             Copier copier = new Copier(ctx);
 
@@ -129,15 +154,48 @@ public class CopierTest extends TestCase {
         }
     }
 
+    public void testCopierDateSelectionPipelined() throws Exception {
+        File tempDir = createTempDir();
+
+        try {
+            BundleContext ctx = Mockito.mock(BundleContext.class);
+            JPEGMetadataProvider jpegSvc = new JPEGMetadataProvider();
+            registerMetadataProviderService(ctx, jpegSvc, ".jpg");
+            registerMetadataProviderService(ctx, jpegSvc, ".jpeg");
+            registerMetadataProviderService(ctx, new DummyMetadataProvider(), ".png");
+
+            Copier copier = new Copier(ctx, 3);
+
+            URL imageDirURL = getClass().getResource("images");
+            String imageDir = imageDirURL.getFile();
+            copier.copy(new DirectoryPhotoIterable(imageDir).freeze(), tempDir.getAbsolutePath(),
+                    PhotoCopyToolPanel.DEFAULT_TARGET_DATE_STRUCTURE, getDate(1, 5, 2012), getDate(1, 6, 2012), null);
+
+            Set<File> expectedFiles = new HashSet<File>(Arrays.asList(new File(tempDir, "2012/2012-05-30/image1.jpg"),
+                    new File(tempDir, "2012/2012-05-30/image1_1.jpg")));
+            Set<File> actualFiles = new HashSet<File>();
+            for (File f : new DirTreeIterable(tempDir)) {
+                if (f.isFile())
+                    actualFiles.add(f);
+            }
+            assertEquals(expectedFiles, actualFiles);
+        } finally {
+            deleteDirectoryTree(tempDir);
+            assertEquals("Should contain no files: " + Arrays.toString(tempDir.listFiles()),
+                   0, tempDir.listFiles().length);
+            assertTrue(tempDir.delete());
+        }
+    }
+
     public void testCopierDateSelection() throws Exception {
         File tempDir = createTempDir();
 
         try {
             BundleContext ctx = Mockito.mock(BundleContext.class);
             JPEGMetadataProvider jpegSvc = new JPEGMetadataProvider();
-            registerMetadataProviderService(ctx, jpegSvc, "(format=.jpg)");
-            registerMetadataProviderService(ctx, jpegSvc, "(format=.jpeg)");
-            registerMetadataProviderService(ctx, new DummyMetadataProvider(), "(format=.png)");
+            registerMetadataProviderService(ctx, jpegSvc, ".jpg");
+            registerMetadataProviderService(ctx, jpegSvc, ".jpeg");
+            registerMetadataProviderService(ctx, new DummyMetadataProvider(), ".png");
 
             Copier copier = new Copier(ctx);
 
@@ -169,9 +227,9 @@ public class CopierTest extends TestCase {
         try {
             BundleContext ctx = Mockito.mock(BundleContext.class);
             JPEGMetadataProvider jpegSvc = new JPEGMetadataProvider();
-            registerMetadataProviderService(ctx, jpegSvc, "(format=.jpg)");
-            registerMetadataProviderService(ctx, jpegSvc, "(format=.jpeg)");
-            registerMetadataProviderService(ctx, new DummyMetadataProvider(), "(format=.png)");
+            registerMetadataProviderService(ctx, jpegSvc, ".jpg");
+            registerMetadataProviderService(ctx, jpegSvc, ".jpeg");
+            registerMetadataProviderService(ctx, new DummyMetadataProvider(), ".png");
 
             Copier copier = new Copier(ctx);
 
@@ -203,11 +261,19 @@ public class CopierTest extends TestCase {
         return sdf.format(d);
     }
 
-    private void registerMetadataProviderService(BundleContext ctx, PhotoMetadataProvider svc, String lookupFilter) throws InvalidSyntaxException {
+    private void registerMetadataProviderService(BundleContext ctx, PhotoMetadataProvider svc, String format) throws InvalidSyntaxException {
         ServiceReference jpegSvcRef = Mockito.mock(ServiceReference.class);
-        Mockito.when(ctx.getServiceReferences(PhotoMetadataProvider.class.getName(), lookupFilter)).
-            thenReturn(new ServiceReference[] {jpegSvcRef});
+        Mockito.when(jpegSvcRef.getProperty("format")).thenReturn(format);
         Mockito.when(ctx.getService(jpegSvcRef)).thenReturn(svc);
+
+        List<ServiceReference> refs = registeredServices.get(ctx);
+        if (refs == null) {
+            refs = new ArrayList<ServiceReference>();
+            registeredServices.put(ctx, refs);
+        }
+        refs.add(jpegSvcRef);
+        Mockito.when(ctx.getServiceReferences(PhotoMetadataProvider.class.getName(), null)).
+            thenReturn(refs.toArray(new ServiceReference[] {}));
     }
 
     private File createTempDir() throws IOException {
@@ -240,6 +306,100 @@ public class CopierTest extends TestCase {
         return c.getTime();
     }
 
+    // Hides the files behind the entries so that the photos can only be read from the stream. As with
+    // some device sources, the stream of an entry can only be read until the next entry is obtained.
+    private static class StreamOnlyPhotoIterable implements PhotoIterable {
+        private final PhotoIterable delegate;
+
+        StreamOnlyPhotoIterable(PhotoIterable delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Iterator<Entry> iterator() {
+            final Iterator<Entry> it = delegate.iterator();
+            return new Iterator<Entry>() {
+                private InvalidatingInputStream previous;
+
+                @Override
+                public boolean hasNext() {
+                    return it.hasNext();
+                }
+
+                @Override
+                public Entry next() {
+                    if (previous != null)
+                        previous.invalidate();
+
+                    Entry e = it.next();
+                    assertNotNull(e.getFile());
+                    previous = new InvalidatingInputStream(e.getInputStream());
+                    return new Entry(e.getName(), e.getDate(), previous);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public String getLocationString() {
+            return delegate.getLocationString();
+        }
+
+        @Override
+        public PhotoIterable setExtensions(String... extensions) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public PhotoIterable freeze() {
+            return this;
+        }
+    }
+
+    private static class InvalidatingInputStream extends FilterInputStream {
+        private volatile boolean valid = true;
+
+        InvalidatingInputStream(InputStream in) {
+            super(in);
+        }
+
+        void invalidate() {
+            valid = false;
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkValid();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            checkValid();
+            return super.read(b, off, len);
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            checkValid();
+            return super.skip(n);
+        }
+
+        private void checkValid() throws IOException {
+            if (!valid)
+                throw new IOException("The stream is no longer valid");
+        }
+    }
+
     private static class DummyMetadataProvider implements PhotoMetadataProvider {
         @Override
         public Metadata getMetaData(File f) {
@@ -0,0 +1,179 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class DirectoryIndexTest extends TestCase {
+    private File tempDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("dirindex").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteDirectoryTree(tempDir);
+    }
+
+    public void testSameAsFileTree() throws Exception {
+        File somedir = new File(getClass().getResource("somedir").toURI());
+        DirectoryIndex index = new DirectoryIndex(new File(tempDir, "test.idx"), somedir);
+        index.refresh();
+        assertEquals(4, index.getListedDirectoryCount());
+
+        List<String> expected = new ArrayList<String>();
+        for (FileTreeIterable.Entry entry : new FileTreeIterable(somedir.toPath(), true)) {
+            expected.add(entry.getPath() + " " + entry.isDirectory() + " " +
+                    (entry.isFile() ? entry.getAttributes().size() : 0));
+        }
+        assertEquals(expected, toStrings(index));
+    }
+
+    public void testIncrementalRefresh() throws Exception {
+        File root = new File(tempDir, "root");
+        File sub1 = new File(root, "sub1");
+        File sub2 = new File(root, "sub2");
+        assertTrue(sub1.mkdirs());
+        assertTrue(sub2.mkdirs());
+        writeFile(new File(sub1, "a.jpg"), 10);
+        writeFile(new File(sub2, "b.jpg"), 20);
+        // Directories that were modified just before they were listed are always listed again
+        setModifiedAgo(60000, root, sub1, sub2);
+
+        File storeFile = new File(tempDir, "test.idx");
+        DirectoryIndex index = new DirectoryIndex(storeFile, root);
+        index.refresh();
+        assertEquals(3, index.getListedDirectoryCount());
+        assertTrue(storeFile.isFile());
+
+        // Nothing has changed, no directory needs to be listed again
+        index.refresh();
+        assertEquals(0, index.getListedDirectoryCount());
+
+        // A new index loaded from the store file is also up to date
+        DirectoryIndex index2 = new DirectoryIndex(storeFile, root);
+        index2.refresh();
+        assertEquals(0, index2.getListedDirectoryCount());
+        assertEquals(toStrings(index), toStrings(index2));
+
+        // Only the changed directory is listed again
+        File c = new File(sub2, "c.jpg");
+        writeFile(c, 30);
+        setModifiedAgo(30000, sub2);
+        index2.refresh();
+        assertEquals(1, index2.getListedDirectoryCount());
+        List<File> files = new ArrayList<File>();
+        for (File f : new DirTreeIterable(root, index2)) {
+            files.add(f);
+        }
+        assertTrue(files.contains(c));
+        assertEquals(5, files.size());
+
+        // A removed directory disappears from the index together with its contents
+        deleteDirectoryTree(sub1);
+        setModifiedAgo(30000, root);
+        index2.refresh();
+        assertEquals(1, index2.getListedDirectoryCount());
+        List<String> names = new ArrayList<String>();
+        for (FileTreeIterable.Entry entry : index2) {
+            names.add(entry.getPath().getFileName().toString());
+        }
+        assertEquals(3, names.size());
+        assertFalse(names.contains("a.jpg"));
+    }
+
+    public void testModifiedWithinGranularity() throws Exception {
+        File root = new File(tempDir, "root");
+        assertTrue(root.mkdir());
+        writeFile(new File(root, "a.jpg"), 10);
+        long modified = root.lastModified();
+
+        DirectoryIndex index = new DirectoryIndex(new File(tempDir, "test.idx"), root);
+        index.refresh();
+        assertEquals(1, index.getListedDirectoryCount());
+
+        // Another file written within the same modification time tick
+        File b = new File(root, "b.jpg");
+        writeFile(b, 20);
+        root.setLastModified(modified);
+        index.refresh();
+        assertEquals(1, index.getListedDirectoryCount());
+        List<File> files = new ArrayList<File>();
+        for (File f : new DirTreeIterable(root, index)) {
+            files.add(f);
+        }
+        assertTrue(files.contains(b));
+    }
+
+    public void testOtherRoot() throws Exception {
+        File root1 = new File(tempDir, "r1");
+        File root2 = new File(tempDir, "r2");
+        assertTrue(root1.mkdir());
+        assertTrue(root2.mkdir());
+        writeFile(new File(root1, "a.jpg"), 1);
+
+        File storeFile = new File(tempDir, "test.idx");
+        new DirectoryIndex(storeFile, root1).refresh();
+
+        // An index stored for another root is ignored
+        DirectoryIndex index = new DirectoryIndex(storeFile, root2);
+        index.refresh();
+        assertEquals(1, index.getListedDirectoryCount());
+        assertFalse(index.iterator().hasNext());
+    }
+
+    private static List<String> toStrings(DirectoryIndex index) {
+        List<String> actual = new ArrayList<String>();
+        for (FileTreeIterable.Entry entry : index) {
+            actual.add(entry.getPath() + " " + entry.isDirectory() + " " +
+                    (entry.isFile() ? entry.getAttributes().size() : 0));
+        }
+        return actual;
+    }
+
+    private static void setModifiedAgo(long millis, File ... dirs) {
+        long past = System.currentTimeMillis() - millis;
+        for (File dir : dirs) {
+            assertTrue(dir.setLastModified(past));
+        }
+    }
+
+    private static void deleteDirectoryTree(File root) {
+        List<File> l = new ArrayList<File>();
+        for (File f : new DirTreeIterable(root)) {
+            l.add(f);
+        }
+        for (int i = l.size() - 1; i >= 0; i--) {
+            assertTrue(l.get(i).delete());
+        }
+        assertTrue(root.delete());
+    }
+
+    private static void writeFile(File f, int size) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(new byte[size]);
+        } finally {
+            fos.close();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares obtaining the file date via the file attributes with obtaining it via the shell
+ * on a generated directory tree. The timings are printed, they are not asserted.
+ */
+public class FileToolsBenchmark extends TestCase {
+    private static final int NUM_DIRS = 10;
+    private static final int FILES_PER_DIR = 20;
+
+    public void testAttributesVersusShell() throws Exception {
+        File root = File.createTempFile(getClass().getSimpleName(), ".dir");
+        root.delete();
+        List<File> files = createTree(root);
+
+        try {
+            // warm up
+            for (File f : files) {
+                FileTools.getFileModificationDate(f);
+            }
+
+            long start = System.nanoTime();
+            Date[] attrDates = new Date[files.size()];
+            for (int i = 0; i < files.size(); i++) {
+                attrDates[i] = FileTools.getFileModificationDate(files.get(i));
+            }
+            long attrTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Date[] shellDates = new Date[files.size()];
+            for (int i = 0; i < files.size(); i++) {
+                shellDates[i] = FileTools.getFileModificationDateShell(files.get(i));
+            }
+            long shellTime = System.nanoTime() - start;
+
+            System.out.println("File dates for " + files.size() + " files, attributes: " + (attrTime / 1000) +
+                    " us (" + (attrTime / files.size() / 1000) + " us/file), shell: " + (shellTime / 1000) +
+                    " us (" + (shellTime / files.size() / 1000) + " us/file)");
+
+            for (int i = 0; i < files.size(); i++) {
+                assertNotNull(attrDates[i]);
+                // The dates from the shell may differ depending on the unix flavour, so they aren't compared
+            }
+        } finally {
+            for (int i = files.size() - 1; i >= 0; i--) {
+                assertTrue(files.get(i).delete());
+            }
+            for (int i = 0; i < NUM_DIRS; i++) {
+                new File(root, "dir" + i).delete();
+            }
+            assertTrue(root.delete());
+        }
+    }
+
+    private List<File> createTree(File root) throws Exception {
+        List<File> files = new ArrayList<File>();
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < NUM_DIRS; i++) {
+            File dir = new File(root, "dir" + i);
+            assertTrue(dir.mkdirs());
+            for (int j = 0; j < FILES_PER_DIR; j++) {
+                File f = new File(dir, "IMG_" + j + ".JPG");
+                FileOutputStream fos = new FileOutputStream(f);
+                fos.write(("" + i + j).getBytes());
+                fos.close();
+                f.setLastModified(now - (i * FILES_PER_DIR + j) * 60000L);
+                files.add(f);
+            }
+        }
+        return files;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class FileTreeIteratorTest extends TestCase {
+    public void testFileTreeIterator() throws Exception {
+        File somedir = new File(getClass().getResource("somedir").toURI());
+        assertTrue(somedir.isDirectory());
+
+        List<String> actual = new ArrayList<String>();
+        Set<String> dirs = new HashSet<String>();
+        FileTreeIterator it = new FileTreeIterable(somedir).iterator();
+        while (it.hasNext()) {
+            FileTreeIterable.Entry entry = it.next();
+            String relPath = somedir.toPath().relativize(entry.getPath()).toString().replace('\\', '/');
+            actual.add(relPath);
+
+            assertEquals(entry.getFile().isDirectory(), entry.isDirectory());
+            assertEquals(entry.getFile().isFile(), entry.isFile());
+            if (entry.isDirectory())
+                dirs.add(relPath);
+            else
+                assertEquals(entry.getFile().length(), entry.getAttributes().size());
+        }
+        assertFalse(it.hasNext());
+        try {
+            it.next();
+            fail("Should have thrown a NoSuchElementException");
+        } catch (NoSuchElementException nsee) {
+            // good
+        }
+
+        assertEquals(new HashSet<String>(Arrays.asList("afile.txt", "subdir1", "subdir2", "subdir1/subsub",
+                "subdir2/cfile.txt", "subdir1/subsub/afile.txt", "subdir1/subsub/bfile.txt")),
+                new HashSet<String>(actual));
+        assertEquals(7, actual.size());
+        assertEquals(new HashSet<String>(Arrays.asList("subdir1", "subdir2", "subdir1/subsub")), dirs);
+
+        // Breadth-first: all the entries of a directory come before the entries of its subdirectories
+        assertTrue(actual.indexOf("afile.txt") < actual.indexOf("subdir1/subsub"));
+        assertTrue(actual.indexOf("subdir2") < actual.indexOf("subdir1/subsub"));
+        assertTrue(actual.indexOf("subdir1/subsub") < actual.indexOf("subdir1/subsub/afile.txt"));
+    }
+
+    public void testSorted() throws Exception {
+        File somedir = new File(getClass().getResource("somedir").toURI());
+        List<String> actual = new ArrayList<String>();
+        for (FileTreeIterable.Entry entry : new FileTreeIterable(somedir.toPath(), true)) {
+            actual.add(somedir.toPath().relativize(entry.getPath()).toString().replace('\\', '/'));
+        }
+
+        // The same order as the DirTreeIterator
+        assertEquals(Arrays.asList("afile.txt", "subdir1", "subdir2", "subdir1/subsub",
+                "subdir2/cfile.txt", "subdir1/subsub/afile.txt", "subdir1/subsub/bfile.txt"), actual);
+    }
+
+    public void testNonExistentRoot() {
+        FileTreeIterator it = new FileTreeIterator(new File("/this/does/not/exist").toPath());
+        assertFalse(it.hasNext());
+        it.close();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.awt.image.BufferedImage;
+
+import junit.framework.TestCase;
+
+public class ImageCacheTest extends TestCase {
+    public void testWeight() {
+        assertEquals(100 * 50 * 4, ImageCache.getWeight(new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB)));
+        assertEquals(100 * 50 * 3, ImageCache.getWeight(new BufferedImage(100, 50, BufferedImage.TYPE_3BYTE_BGR)));
+        assertEquals(100 * 50, ImageCache.getWeight(new BufferedImage(100, 50, BufferedImage.TYPE_BYTE_GRAY)));
+    }
+
+    public void testEviction() {
+        // Room for 3 images of 10x10 ints
+        ImageCache cache = new ImageCache(1200);
+        BufferedImage a = newImage();
+        BufferedImage b = newImage();
+        BufferedImage c = newImage();
+        cache.put("a", a);
+        cache.put("b", b);
+        cache.put("c", c);
+        assertEquals(3, cache.size());
+        assertEquals(1200, cache.getCurrentBytes());
+
+        // Use a, so b is the least recently used
+        assertSame(a, cache.get("a"));
+        cache.put("d", newImage());
+        assertEquals(3, cache.size());
+        assertNull(cache.get("b"));
+        assertSame(a, cache.get("a"));
+        assertSame(c, cache.get("c"));
+        assertEquals(1200, cache.getCurrentBytes());
+
+        // Replacing an image doesn't count it twice
+        cache.put("a", newImage());
+        assertEquals(1200, cache.getCurrentBytes());
+        assertNotSame(a, cache.get("a"));
+
+        // A large image evicts several smaller ones
+        cache.put("large", new BufferedImage(10, 20, BufferedImage.TYPE_INT_RGB));
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get("large"));
+        assertEquals(1200, cache.getCurrentBytes());
+
+        // An image larger than the whole cache isn't cached
+        cache.put("huge", new BufferedImage(100, 100, BufferedImage.TYPE_INT_RGB));
+        assertNull(cache.get("huge"));
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getCurrentBytes());
+    }
+
+    private static BufferedImage newImage() {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares obtaining the date taken by reading only the JPEG header with the full metadata parse
+ * on the test images. The timings are printed, they are not asserted.
+ */
+public class JPEGHeaderBenchmark extends TestCase {
+    private static final int ROUNDS = 50;
+
+    public void testHeaderVersusFullParse() throws Exception {
+        List<File> images = JPEGHeaderTest.getTestImages();
+
+        // warm up
+        for (int i = 0; i < ROUNDS; i++) {
+            for (File f : images) {
+                JPEGHeader.read(f).getDateTaken();
+                JPEGTools.getJPEGTools(f).getDateTaken();
+            }
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (File f : images) {
+                JPEGHeader.read(f).getDateTaken();
+            }
+        }
+        long headerTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (File f : images) {
+                JPEGTools.getJPEGTools(f).getDateTaken();
+            }
+        }
+        long fullTime = System.nanoTime() - start;
+
+        int count = ROUNDS * images.size();
+        System.out.println("Date taken for " + count + " JPEG files, header: " + (headerTime / count / 1000) +
+                " us/file, full parse: " + (fullTime / count / 1000) + " us/file");
+    }
+}
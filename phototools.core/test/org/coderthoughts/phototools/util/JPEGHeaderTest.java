@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class JPEGHeaderTest extends TestCase {
+    static final String IMAGES = "/org/coderthoughts/phototools/impl/photocopy/images";
+
+    public void testSameAsFullParse() throws Exception {
+        List<File> images = getTestImages();
+        assertTrue("Precondition", images.size() >= 5);
+        for (File f : images) {
+            JPEGHeader header = JPEGHeader.read(f);
+            JPEGTools jpt = JPEGTools.getJPEGTools(f);
+            assertEquals(f.toString(), jpt.getDateTaken(), header.getDateTaken());
+            assertEquals(f.toString(), jpt.getHeight(), header.getHeight());
+            assertEquals(f.toString(), jpt.getWidth(), header.getWidth());
+            assertEquals(f.toString(), jpt.getGPSInfo(), header.getGPSInfo());
+            assertEquals(f.toString(), jpt.getMake(), header.getMake());
+            assertEquals(f.toString(), jpt.getModel(), header.getModel());
+            assertEquals(f.toString(), jpt.getOrientation(), header.getOrientation());
+            assertCoordinate(f.toString(), jpt.getLatitude(), header.getLatitude());
+            assertCoordinate(f.toString(), jpt.getLongitude(), header.getLongitude());
+        }
+    }
+
+    private static void assertCoordinate(String message, Double expected, Double actual) {
+        if (expected == null)
+            assertNull(message, actual);
+        else
+            assertEquals(message, expected, actual, 1e-9);
+    }
+
+    public void testReadFromStream() throws Exception {
+        for (File f : getTestImages()) {
+            JPEGHeader header = JPEGHeader.read(f);
+            InputStream is = new FileInputStream(f);
+            try {
+                JPEGHeader streamHeader = JPEGHeader.read(is);
+                assertEquals(f.toString(), header.getDateTaken(), streamHeader.getDateTaken());
+                assertEquals(f.toString(), header.getHeight(), streamHeader.getHeight());
+                assertEquals(f.toString(), header.getWidth(), streamHeader.getWidth());
+                assertEquals(f.toString(), header.getGPSInfo(), streamHeader.getGPSInfo());
+                assertTrue(f.toString(), Arrays.equals(header.getThumbnailData(), streamHeader.getThumbnailData()));
+                assertTrue("Only the header should have been read", is.available() > 0);
+            } finally {
+                is.close();
+            }
+        }
+    }
+
+    public void testReadFromStreamThatDoesntSkip() throws Exception {
+        for (File f : getTestImages()) {
+            // InputStream.skip() is allowed to skip nothing at all
+            InputStream is = new FilterInputStream(new FileInputStream(f)) {
+                @Override
+                public long skip(long n) throws IOException {
+                    return 0;
+                }
+            };
+            try {
+                assertEquals(f.toString(), JPEGHeader.read(f).getDateTaken(), JPEGHeader.read(is).getDateTaken());
+            } finally {
+                is.close();
+            }
+        }
+    }
+
+    public void testThumbnail() throws Exception {
+        byte [] thumbnail = toJPEG(new BufferedImage(16, 12, BufferedImage.TYPE_INT_RGB));
+        byte [] image = toJPEG(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB));
+
+        // A little endian EXIF segment with the date in IFD0 and the thumbnail in IFD1
+        ByteBuffer exif = ByteBuffer.allocate(256 + thumbnail.length).order(ByteOrder.LITTLE_ENDIAN);
+        exif.put("Exif\0\0II".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+        exif.putShort((short) 1); // IFD0 at 8
+        exif.putShort((short) 0x0132).putShort((short) 2).putInt(20).putInt(44);
+        exif.putInt(64); // next IFD
+        exif.position(6 + 44);
+        exif.put("2012:07:04 18:36:52\0".getBytes("US-ASCII"));
+        exif.position(6 + 64); // IFD1 at 64
+        exif.putShort((short) 2);
+        exif.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(100);
+        exif.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+        exif.putInt(0);
+        exif.position(6 + 100);
+        exif.put(thumbnail);
+        int exifLength = exif.position();
+
+        File f = File.createTempFile(getClass().getSimpleName(), ".jpg");
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            fos.write(image, 0, 2); // SOI
+            fos.write(new byte [] {(byte) 0xFF, (byte) 0xE1, (byte) ((exifLength + 2) >> 8), (byte) (exifLength + 2)});
+            fos.write(exif.array(), 0, exifLength);
+            fos.write(image, 2, image.length - 2);
+            fos.close();
+
+            JPEGHeader header = JPEGHeader.read(f);
+            assertEquals(JPEGTools.getJPEGTools(f).getDateTaken(), header.getDateTaken());
+            assertEquals(48, (int) header.getHeight());
+            assertEquals(64, (int) header.getWidth());
+            assertTrue(Arrays.equals(thumbnail, header.getThumbnailData()));
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testDamagedRationalCount() throws Exception {
+        byte [] image = toJPEG(new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB));
+
+        // A GPS IFD where the latitude claims to have 0x20000001 values, 8 times which overflows an int
+        ByteBuffer exif = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+        exif.put("Exif\0\0II".getBytes("US-ASCII")).putShort((short) 42).putInt(8);
+        exif.putShort((short) 2); // IFD0 at 8
+        exif.putShort((short) 0x0132).putShort((short) 2).putInt(20).putInt(100);
+        exif.putShort((short) 0x8825).putShort((short) 4).putInt(1).putInt(40);
+        exif.putInt(0);
+        exif.position(6 + 40); // GPS IFD at 40
+        exif.putShort((short) 4);
+        exif.putShort((short) 0x0001).putShort((short) 2).putInt(2).put("N\0\0\0".getBytes("US-ASCII"));
+        exif.putShort((short) 0x0002).putShort((short) 5).putInt(0x20000001).putInt(128);
+        exif.putShort((short) 0x0003).putShort((short) 2).putInt(2).put("E\0\0\0".getBytes("US-ASCII"));
+        exif.putShort((short) 0x0004).putShort((short) 5).putInt(3).putInt(128);
+        exif.putInt(0);
+        exif.position(6 + 100);
+        exif.put("2012:07:04 18:36:52\0".getBytes("US-ASCII"));
+        exif.position(6 + 128);
+        for (int i = 0; i < 6; i++)
+            exif.putInt(1);
+        int exifLength = exif.position();
+
+        File f = File.createTempFile(getClass().getSimpleName(), ".jpg");
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            fos.write(image, 0, 2); // SOI
+            fos.write(new byte [] {(byte) 0xFF, (byte) 0xE1, (byte) ((exifLength + 2) >> 8), (byte) (exifLength + 2)});
+            fos.write(exif.array(), 0, exifLength);
+            fos.write(image, 2, image.length - 2);
+            fos.close();
+
+            JPEGHeader header = JPEGHeader.read(f);
+            assertEquals(new SimpleDateFormat("yyyy:MM:dd HH:mm:ss").parse("2012:07:04 18:36:52"), header.getDateTaken());
+            assertEquals(48, (int) header.getHeight());
+            assertNull(header.getLatitude());
+            assertNull(header.getLongitude());
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static byte [] toJPEG(BufferedImage img) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ImageIO.write(img, "jpg", baos);
+        return baos.toByteArray();
+    }
+
+    public void testNotAJPEG() throws Exception {
+        File f = File.createTempFile(getClass().getSimpleName(), ".jpg");
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            fos.write("Not really a JPEG".getBytes());
+            fos.close();
+
+            try {
+                JPEGHeader.read(f);
+                fail("Should have thrown an IOException");
+            } catch (IOException e) {
+                // good
+            }
+        } finally {
+            f.delete();
+        }
+    }
+
+    static List<File> getTestImages() throws Exception {
+        List<File> images = new ArrayList<File>();
+        File root = new File(JPEGHeaderTest.class.getResource(IMAGES).toURI());
+        for (File f : new DirTreeIterable(root)) {
+            String name = f.getName().toLowerCase();
+            if (name.endsWith(".jpg") || name.endsWith(".jpeg"))
+                images.add(f);
+        }
+        return images;
+    }
+}
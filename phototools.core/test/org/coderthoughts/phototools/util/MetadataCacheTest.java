@@ -0,0 +1,500 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.api.MetadataRecord;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.api.TypedPhotoMetadataProvider;
+
+public class MetadataCacheTest extends TestCase {
+    private final List<File> tempFiles = new ArrayList<File>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : tempFiles)
+            f.delete();
+    }
+
+    public void testPutGet() throws Exception {
+        File photo = createFile("abc");
+        MetadataCache cache = new MetadataCache(createStoreFile(), 10);
+        assertNull(cache.get(photo));
+
+        cache.put(photo, new TestMetadata(new Date(123456789000l), photo, 480, 640, "gps") {
+            @Override
+            public String getGPSInfo() {
+                fail("The GPS info may be computed lazily and should not be obtained");
+                return null;
+            }
+        });
+        MetadataCache.Record md = cache.get(photo);
+        assertEquals(new Date(123456789000l), md.getDateTaken());
+        assertEquals(photo, md.getPreviewFile());
+        assertEquals(480, (int) md.getHeightInPixels());
+        assertEquals(640, (int) md.getWidthInPixels());
+        assertFalse(md.isGPSInfoKnown());
+        assertNull(md.getGPSInfo());
+        cache.close();
+    }
+
+    public void testPutRecord() throws Exception {
+        File photo = createFile("abc");
+        File store = createStoreFile();
+        MetadataRecord record = new MetadataRecord(123456789000l, 640, 480, 51.5007292, -0.1246254, "Nikon", "D70", 1);
+
+        MetadataCache cache = new MetadataCache(store, 10);
+        MetadataCache.Record r = cache.put(photo, record);
+        assertEquals(record, r.getMetadataRecord());
+        assertFalse(r.isPreviewKnown());
+        cache.put(photo, r.withPreviewFile(photo));
+        cache.close();
+
+        MetadataCache cache2 = new MetadataCache(store, 10);
+        MetadataCache.Record r2 = cache2.get(photo);
+        assertEquals(record, r2.getMetadataRecord());
+        assertEquals(-0.1246254, r2.getMetadataRecord().getLongitude(), 1e-9);
+        assertTrue(r2.isPreviewKnown());
+        assertEquals(photo.getAbsoluteFile(), r2.getPreviewFile());
+        assertEquals(new Date(123456789000l), r2.getDateTaken());
+        assertEquals(480, (int) r2.getHeightInPixels());
+        assertEquals(640, (int) r2.getWidthInPixels());
+        assertTrue(r2.isGPSInfoKnown());
+        assertEquals(MetadataCache.GPS_INFO, r2.getGPSInfo());
+        cache2.close();
+    }
+
+    public void testInvalidation() throws Exception {
+        File photo = createFile("abc");
+        MetadataCache cache = new MetadataCache(createStoreFile(), 10);
+        cache.put(photo, new TestMetadata(new Date(), photo, null, null, null));
+        assertNotNull(cache.get(photo));
+
+        photo.setLastModified(photo.lastModified() - 100000);
+        assertNull("Modification time changed", cache.get(photo));
+
+        cache.put(photo, new TestMetadata(new Date(), photo, null, null, null));
+        assertNotNull(cache.get(photo));
+        long lastModified = photo.lastModified();
+        writeFile(photo, "abcd");
+        photo.setLastModified(lastModified);
+        assertNull("Size changed", cache.get(photo));
+        cache.close();
+    }
+
+    public void testPersistence() throws Exception {
+        File photo1 = createFile("abc");
+        File photo2 = createFile("defg");
+        File preview = createFile("preview");
+        File store = createStoreFile();
+
+        MetadataCache cache = new MetadataCache(store, 10);
+        cache.put(photo1, new TestMetadata(new Date(1000000000000l), photo1, 1, 2, null));
+        cache.put(photo2, new TestMetadata(null, preview, null, null, "somewhere"));
+        cache.put(photo2, new TestMetadata(null, preview, null, 7, "somewhere"));
+        cache.close();
+
+        MetadataCache cache2 = new MetadataCache(store, 10);
+        Metadata md1 = cache2.get(photo1);
+        assertEquals(new Date(1000000000000l), md1.getDateTaken());
+        assertEquals(photo1.getAbsoluteFile(), md1.getPreviewFile());
+        assertEquals(1, (int) md1.getHeightInPixels());
+        assertEquals(2, (int) md1.getWidthInPixels());
+        assertNull(md1.getGPSInfo());
+
+        MetadataCache.Record md2 = cache2.get(photo2);
+        assertNull(md2.getDateTaken());
+        assertEquals(preview.getAbsoluteFile(), md2.getPreviewFile());
+        assertNull(md2.getHeightInPixels());
+        assertEquals(7, (int) md2.getWidthInPixels());
+        assertFalse(md2.isGPSInfoKnown());
+
+        assertTrue("Preview file deleted", preview.delete());
+        assertNull(cache2.get(photo2));
+        cache2.close();
+    }
+
+    public void testDamagedStore() throws Exception {
+        File photo1 = createFile("abc");
+        File photo2 = createFile("defg");
+        File store = createStoreFile();
+
+        MetadataCache cache = new MetadataCache(store, 10);
+        cache.put(photo1, new TestMetadata(new Date(1000000000000l), photo1, 1, 2, null));
+        cache.put(photo2, new TestMetadata(new Date(2000000000000l), photo2, 3, 4, null));
+        cache.close();
+
+        // Corrupt the length of the second record
+        long validLength;
+        RandomAccessFile raf = new RandomAccessFile(store, "rw");
+        try {
+            raf.seek(8);
+            validLength = 8 + 4 + raf.readInt();
+            raf.seek(validLength);
+            raf.writeInt(Integer.MAX_VALUE);
+        } finally {
+            raf.close();
+        }
+
+        MetadataCache cache2 = new MetadataCache(store, 10);
+        assertEquals(new Date(1000000000000l), cache2.get(photo1).getDateTaken());
+        assertNull(cache2.get(photo2));
+        assertEquals("The damaged record should be dropped", validLength, store.length());
+
+        cache2.put(photo2, new TestMetadata(new Date(2000000000000l), photo2, 3, 4, null));
+        cache2.close();
+
+        MetadataCache cache3 = new MetadataCache(store, 10);
+        assertEquals(new Date(2000000000000l), cache3.get(photo2).getDateTaken());
+        cache3.close();
+    }
+
+    public void testPutOutsideLock() throws Exception {
+        final File photo1 = createFile("abc");
+        final File photo2 = createFile("defg");
+        final MetadataCache cache = new MetadataCache(createStoreFile(), 10);
+        cache.put(photo1, new TestMetadata(new Date(), photo1, null, null, null));
+
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.put(photo2, new TestMetadata(new Date(), photo2, null, null, null) {
+                    @Override
+                    public File getPreviewFile() {
+                        // A lazily computed preview that takes a while
+                        reading.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return super.getPreviewFile();
+                    }
+                });
+            }
+        });
+        t.start();
+        try {
+            assertTrue(reading.await(10, TimeUnit.SECONDS));
+            FutureTask<Metadata> get = new FutureTask<Metadata>(new Callable<Metadata>() {
+                @Override
+                public Metadata call() throws Exception {
+                    return cache.get(photo1);
+                }
+            });
+            new Thread(get).start();
+            try {
+                assertNotNull(get.get(10, TimeUnit.SECONDS));
+            } catch (TimeoutException e) {
+                fail("The cache should not be locked while the metadata is obtained");
+            }
+        } finally {
+            release.countDown();
+            t.join();
+        }
+        assertNotNull(cache.get(photo2));
+        cache.close();
+    }
+
+    public void testEviction() throws Exception {
+        MetadataCache cache = new MetadataCache(createStoreFile(), 2);
+        List<File> photos = new ArrayList<File>();
+        for (int i = 0; i < 5; i++) {
+            File photo = createFile("" + i);
+            photos.add(photo);
+            cache.put(photo, new TestMetadata(new Date(i * 1000l), photo, i, i, null));
+        }
+
+        // Entries evicted from memory are read back from the store
+        for (int i = 0; i < 5; i++) {
+            assertEquals(new Date(i * 1000l), cache.get(photos.get(i)).getDateTaken());
+        }
+        cache.close();
+    }
+
+    public void testCachingProvider() throws Exception {
+        File photo = createFile("abc");
+        File tempPhoto = createFile("def");
+        final int [] calls = new int [1];
+        PhotoMetadataProvider delegate = new PhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                calls[0]++;
+                return new TestMetadata(new Date(42000), f, 10, 20, "details" + calls[0]);
+            }
+        };
+
+        MetadataCache cache = new MetadataCache(createStoreFile(), 10);
+        File otherDir = new File(photo.getParentFile(), "some-other-dir");
+        CachingPhotoMetadataProvider provider = new CachingPhotoMetadataProvider(delegate, cache, otherDir);
+        Metadata md1 = provider.getMetaData(photo);
+        assertEquals(1, calls[0]);
+        assertEquals(new Date(42000), md1.getDateTaken());
+
+        Metadata md2 = provider.getMetaData(photo);
+        assertEquals("Should have come from the cache", 1, calls[0]);
+        assertEquals(new Date(42000), md2.getDateTaken());
+        assertEquals(photo.getAbsoluteFile(), md2.getPreviewFile());
+        assertEquals(10, (int) md2.getHeightInPixels());
+        assertEquals(20, (int) md2.getWidthInPixels());
+
+        assertEquals("The details are obtained from the delegate", "details2", md2.getDetails());
+        assertEquals("So is the GPS info", "details2", md2.getGPSInfo());
+        assertEquals(2, calls[0]);
+
+        // Files in the temporary directory are not cached
+        CachingPhotoMetadataProvider provider2 = new CachingPhotoMetadataProvider(delegate, cache, tempPhoto.getParentFile());
+        provider2.getMetaData(tempPhoto);
+        provider2.getMetaData(tempPhoto);
+        assertEquals(4, calls[0]);
+        assertNull(cache.get(tempPhoto));
+        cache.close();
+    }
+
+    public void testCachingProviderPreviewOnDemand() throws Exception {
+        File photo = createFile("abc");
+        final File preview = createFile("def");
+        final int [] calls = new int [2];
+        PhotoMetadataProvider delegate = new PhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                calls[0]++;
+                return new TestMetadata(new Date(42000), null, 10, 20, null) {
+                    @Override
+                    public File getPreviewFile() {
+                        calls[1]++;
+                        return preview;
+                    }
+                };
+            }
+        };
+
+        File storeFile = createStoreFile();
+        MetadataCache cache = new MetadataCache(storeFile, 10);
+        File otherDir = new File(photo.getParentFile(), "some-other-dir");
+        CachingPhotoMetadataProvider provider = new CachingPhotoMetadataProvider(delegate, cache, otherDir, true);
+        Metadata md1 = provider.getMetaData(photo);
+        assertEquals(new Date(42000), md1.getDateTaken());
+        assertEquals("The preview should not have been obtained yet", 0, calls[1]);
+
+        Metadata md2 = provider.getMetaData(photo);
+        assertEquals(new Date(42000), md2.getDateTaken());
+        assertEquals(10, (int) md2.getHeightInPixels());
+        assertEquals(1, calls[0]);
+        assertEquals(0, calls[1]);
+        assertEquals(preview, md2.getPreviewFile());
+        assertEquals(preview, md2.getPreviewFile());
+        assertEquals(2, calls[0]);
+        assertEquals(1, calls[1]);
+        cache.close();
+
+        // Once obtained the preview is cached too
+        cache = new MetadataCache(storeFile, 10);
+        provider = new CachingPhotoMetadataProvider(delegate, cache, otherDir, true);
+        assertEquals(preview.getAbsoluteFile(), provider.getMetaData(photo).getPreviewFile());
+        assertEquals(2, calls[0]);
+        assertEquals(1, calls[1]);
+        cache.close();
+    }
+
+    public void testCachingProviderRecords() throws Exception {
+        File photo1 = createFile("abc");
+        File photo2 = createFile("def");
+        final MetadataRecord record = new MetadataRecord(42000, 20, 10, -33.8567844, 151.2152967, "Canon", null, 6);
+        final int [] calls = new int [2];
+        PhotoMetadataProvider delegate = new TypedPhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                calls[0]++;
+                return new TestMetadata(new Date(42000), f, 10, 20, MetadataCache.GPS_INFO);
+            }
+
+            @Override
+            public MetadataRecord getMetadataRecord(File f) {
+                calls[1]++;
+                return record;
+            }
+        };
+
+        File storeFile = createStoreFile();
+        MetadataCache cache = new MetadataCache(storeFile, 10);
+        File otherDir = new File(photo1.getParentFile(), "some-other-dir");
+        CachingPhotoMetadataProvider provider = new CachingPhotoMetadataProvider(delegate, cache, otherDir);
+        assertEquals(record, provider.getMetadataRecord(photo1));
+        assertEquals(record, provider.getMetadataRecord(photo1));
+        assertEquals("Should have come from the cache", 1, calls[1]);
+
+        // The metadata is taken from the cached record, only the preview is obtained from the delegate
+        Metadata md1 = provider.getMetaData(photo1);
+        assertEquals(new Date(42000), md1.getDateTaken());
+        assertEquals(MetadataCache.GPS_INFO, md1.getGPSInfo());
+        assertEquals(0, calls[0]);
+        assertEquals(photo1, md1.getPreviewFile());
+        assertEquals(1, calls[0]);
+
+        // Metadata of a file that isn't cached yet is obtained as a record too
+        assertEquals(new Date(42000), provider.getMetaData(photo2).getDateTaken());
+        assertEquals(record, provider.getMetadataRecord(photo2));
+        assertEquals(1, calls[0]);
+        assertEquals(2, calls[1]);
+        cache.close();
+
+        // The record keeps its coordinates when the preview is cached
+        cache = new MetadataCache(storeFile, 10);
+        provider = new CachingPhotoMetadataProvider(delegate, cache, otherDir);
+        assertEquals(record, provider.getMetadataRecord(photo1));
+        assertEquals(photo1.getAbsoluteFile(), provider.getMetaData(photo1).getPreviewFile());
+        assertEquals(1, calls[0]);
+        assertEquals(2, calls[1]);
+        cache.close();
+    }
+
+    public void testCachingProviderRecordBatch() throws Exception {
+        final Map<File, MetadataRecord> records = new HashMap<File, MetadataRecord>();
+        List<File> files = new ArrayList<File>();
+        for (int i = 0; i < 10; i++) {
+            File f = createFile("photo" + i);
+            files.add(f);
+            records.put(f, new MetadataRecord(i * 1000l, 20, 10, Double.NaN, Double.NaN, null, null, 1));
+        }
+        Collections.shuffle(files, new Random(42));
+
+        final List<File> reads = new ArrayList<File>();
+        PhotoMetadataProvider delegate = new TypedPhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                fail("Only the metadata records should be read");
+                return null;
+            }
+
+            @Override
+            public MetadataRecord getMetadataRecord(File f) {
+                reads.add(f);
+                return records.get(f);
+            }
+        };
+
+        MetadataCache cache = new MetadataCache(createStoreFile(), 20);
+        File otherDir = new File(files.get(0).getParentFile(), "some-other-dir");
+        CachingPhotoMetadataProvider provider = new CachingPhotoMetadataProvider(delegate, cache, otherDir);
+        File cached = files.get(3);
+        provider.getMetadataRecord(cached);
+        reads.clear();
+
+        List<PhotoMetadataProvider> providers = Collections.<PhotoMetadataProvider>nCopies(files.size(), provider);
+        List<MetadataRecord> result = MetadataTools.getMetadataRecords(providers, files);
+        for (int i = 0; i < files.size(); i++) {
+            assertEquals(records.get(files.get(i)), result.get(i));
+        }
+
+        // The files that weren't cached are read in one pass, in the order that limits the seeking
+        List<File> uncached = new ArrayList<File>(files);
+        uncached.remove(cached);
+        List<File> expected = new ArrayList<File>();
+        for (int i : MetadataTools.getReadOrder(uncached)) {
+            expected.add(uncached.get(i));
+        }
+        assertFalse("Precondition", expected.equals(uncached));
+        assertEquals(expected, reads);
+        cache.close();
+    }
+
+    private File createStoreFile() throws Exception {
+        File f = File.createTempFile(getClass().getSimpleName(), ".cache");
+        f.delete();
+        tempFiles.add(f);
+        return f;
+    }
+
+    private File createFile(String content) throws Exception {
+        File f = File.createTempFile(getClass().getSimpleName(), ".jpg");
+        tempFiles.add(f);
+        writeFile(f, content);
+        return f;
+    }
+
+    private static void writeFile(File f, String content) throws Exception {
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(content.getBytes());
+        } finally {
+            fos.close();
+        }
+    }
+
+    private static class TestMetadata implements Metadata {
+        private final Date date;
+        private final File preview;
+        private final Integer height;
+        private final Integer width;
+        private final String gps;
+
+        TestMetadata(Date date, File preview, Integer height, Integer width, String gps) {
+            this.date = date;
+            this.preview = preview;
+            this.height = height;
+            this.width = width;
+            this.gps = gps;
+        }
+
+        @Override
+        public Date getDateTaken() {
+            return date;
+        }
+
+        @Override
+        public File getPreviewFile() {
+            return preview;
+        }
+
+        @Override
+        public String getGPSInfo() {
+            return gps;
+        }
+
+        @Override
+        public Integer getHeightInPixels() {
+            return height;
+        }
+
+        @Override
+        public Integer getWidthInPixels() {
+            return width;
+        }
+
+        @Override
+        public String getDetails() {
+            return gps;
+        }
+    }
+}
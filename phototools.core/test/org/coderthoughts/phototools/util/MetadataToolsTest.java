@@ -0,0 +1,101 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.api.BatchPhotoMetadataProvider;
+import org.coderthoughts.phototools.api.PhotoMetadataBuilder;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+
+public class MetadataToolsTest extends TestCase {
+    public void testGetMetaData() {
+        PhotoMetadataProvider single = new PhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                if (f.getName().startsWith("none"))
+                    return null;
+                return new PhotoMetadataBuilder().dateTaken(new Date(f.getName().length())).getMetadata();
+            }
+        };
+
+        final List<List<File>> batches = new ArrayList<List<File>>();
+        PhotoMetadataProvider batch = new BatchPhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                fail("Should have been asked for the metadata in a batch");
+                return null;
+            }
+
+            @Override
+            public List<Metadata> getMetaData(List<File> files) {
+                batches.add(files);
+                List<Metadata> result = new ArrayList<Metadata>();
+                for (File f : files) {
+                    result.add(new PhotoMetadataBuilder().dateTaken(new Date(-f.getName().length())).getMetadata());
+                }
+                return result;
+            }
+        };
+
+        List<File> files = Arrays.asList(new File("a.jpg"), new File("bb.mp4"), new File("none.jpg"), new File("dddd.mp4"));
+        List<PhotoMetadataProvider> providers = Arrays.asList(single, batch, single, batch);
+        List<Metadata> mds = MetadataTools.getMetaData(providers, files);
+        assertEquals(4, mds.size());
+        assertEquals(new Date(5), mds.get(0).getDateTaken());
+        assertEquals(new Date(-6), mds.get(1).getDateTaken());
+        assertNull(mds.get(2));
+        assertEquals(new Date(-8), mds.get(3).getDateTaken());
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(new File("bb.mp4"), new File("dddd.mp4")), batches.get(0));
+
+        assertEquals(0, MetadataTools.getMetaData(batch, new ArrayList<File>()).size());
+    }
+
+    public void testReadOrder() throws Exception {
+        File dir = File.createTempFile(getClass().getSimpleName(), ".dir");
+        dir.delete();
+        dir.mkdirs();
+        List<File> files = new ArrayList<File>();
+        try {
+            for (String name : new String [] {"c.jpg", "a.jpg", "b.jpg"}) {
+                File f = new File(dir, name);
+                assertTrue(f.createNewFile());
+                files.add(f);
+            }
+
+            Integer [] order = MetadataTools.getReadOrder(files);
+            assertEquals(files.size(), order.length);
+            Set<Integer> indexes = new HashSet<Integer>(Arrays.asList(order));
+            assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)), indexes);
+
+            // Files that can't be looked at are ordered on their path
+            List<File> nonExistent = Arrays.asList(new File(dir, "z"), new File(dir, "x"), new File(dir, "y"));
+            assertTrue(Arrays.equals(new Integer [] {1, 2, 0}, MetadataTools.getReadOrder(nonExistent)));
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
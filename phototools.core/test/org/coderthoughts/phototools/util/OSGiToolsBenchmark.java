@@ -0,0 +1,147 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Compares finding the PhotoMetadataProvider for a file with a filtered query on the Service Registry,
+ * as done for every file before, with the lookup in the service index. The registry is emulated with
+ * the filter implementation of the framework, so the query time is a lower bound. The timings are
+ * printed, they are not asserted.
+ */
+public class OSGiToolsBenchmark extends TestCase {
+    private static final int ROUNDS = 20000;
+    private static final String [][] FORMATS = {{".jpeg", ".jpg"}, {".gif", ".png"}, {".avi"}, {".mp4", ".mov", ".3gp"}};
+    private static final String [] FILES = {"a.jpg", "b.jpg", "c.png", "d.mp4", "e.jpg", "f.mov", "g.txt", "h.jpeg"};
+
+    public void testQueryVersusIndex() throws Exception {
+        BundleContext ctx = createBundleContext();
+        OSGiTools.ServiceIndex<PhotoMetadataProvider> index = OSGiTools.getPhotoMetadataProviders(ctx);
+        try {
+            // warm up
+            for (int i = 0; i < ROUNDS / 10; i++) {
+                for (String f : FILES) {
+                    assertSame(query(ctx, f), index.getService(getExtension(f)));
+                }
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                for (String f : FILES) {
+                    query(ctx, f);
+                }
+            }
+            long queryTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                for (String f : FILES) {
+                    index.getService(getExtension(f));
+                }
+            }
+            long indexTime = System.nanoTime() - start;
+
+            int count = ROUNDS * FILES.length;
+            System.out.println("Metadata provider lookup for " + count + " files, registry query: " +
+                    (queryTime / count) + " ns/file, service index: " + (indexTime / count) + " ns/file");
+        } finally {
+            index.close();
+        }
+    }
+
+    private static PhotoMetadataProvider query(BundleContext ctx, String fileName) throws Exception {
+        ServiceReference[] refs = ctx.getServiceReferences(PhotoMetadataProvider.class.getName(),
+                "(format=" + getExtension(fileName) + ")");
+        if (refs == null)
+            return null;
+        return (PhotoMetadataProvider) ctx.getService(refs[0]);
+    }
+
+    private static String getExtension(String name) {
+        return name.substring(name.lastIndexOf('.')).toLowerCase();
+    }
+
+    private static BundleContext createBundleContext() {
+        final List<ServiceReference> refs = new ArrayList<ServiceReference>();
+        final List<PhotoMetadataProvider> services = new ArrayList<PhotoMetadataProvider>();
+        for (int i = 0; i < FORMATS.length; i++) {
+            Hashtable<String, Object> props = new Hashtable<String, Object>();
+            props.put(Constants.OBJECTCLASS, new String [] {PhotoMetadataProvider.class.getName()});
+            props.put(Constants.SERVICE_ID, Long.valueOf(i));
+            props.put("format", FORMATS[i]);
+            refs.add(createServiceReference(props));
+            services.add(new PhotoMetadataProvider() {
+                @Override
+                public Metadata getMetaData(File f) {
+                    return null;
+                }
+            });
+        }
+
+        return (BundleContext) Proxy.newProxyInstance(BundleContext.class.getClassLoader(),
+                new Class [] {BundleContext.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getServiceReferences")) {
+                    // Like the framework, match the filter against all services of the class
+                    List<ServiceReference> result = new ArrayList<ServiceReference>();
+                    for (ServiceReference ref : refs) {
+                        if (args[1] == null || FrameworkUtil.createFilter((String) args[1]).match(ref))
+                            result.add(ref);
+                    }
+                    return result.isEmpty() ? null : result.toArray(new ServiceReference[] {});
+                } else if (method.getName().equals("getService")) {
+                    return services.get(refs.indexOf(args[0]));
+                } else if (method.getName().equals("hashCode")) {
+                    return System.identityHashCode(proxy);
+                } else if (method.getName().equals("equals")) {
+                    return proxy == args[0];
+                }
+                return method.getReturnType() == boolean.class ? false : null;
+            }
+        });
+    }
+
+    private static ServiceReference createServiceReference(final Hashtable<String, Object> props) {
+        return (ServiceReference) Proxy.newProxyInstance(ServiceReference.class.getClassLoader(),
+                new Class [] {ServiceReference.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("getProperty"))
+                    return props.get(args[0]);
+                else if (method.getName().equals("getPropertyKeys"))
+                    return props.keySet().toArray(new String [] {});
+                else if (method.getName().equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                else if (method.getName().equals("equals"))
+                    return proxy == args[0];
+                return null;
+            }
+        });
+    }
+}
@@ -14,13 +14,18 @@ package org.coderthoughts.phototools.util;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import junit.framework.TestCase;
 
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
 
 public class OSGiToolsTest extends TestCase {
@@ -45,6 +50,84 @@ public class OSGiToolsTest extends TestCase {
         assertTrue(Arrays.equals(expected, actual));
     }
 
+    public void testServiceIndex() throws Exception {
+        ServiceReference sr1 = mockServiceReference(0, ".jpg", ".jpeg");
+        ServiceReference sr2 = mockServiceReference(10, ".jpg");
+        ServiceReference sr3 = mockServiceReference(0, ".png");
+
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getServiceReferences(Runnable.class.getName(), null)).thenReturn(
+                new ServiceReference[] {sr1, sr2});
+        Runnable svc1 = mockService(ctx, sr1);
+        Runnable svc2 = mockService(ctx, sr2);
+        Runnable svc3 = mockService(ctx, sr3);
+
+        OSGiTools.ServiceIndex<Runnable> index = OSGiTools.getServiceIndex(ctx, Runnable.class, "format");
+        assertSame(index, OSGiTools.getServiceIndex(ctx, Runnable.class, "format"));
+        assertEquals(new HashSet<String>(Arrays.asList(".jpg", ".jpeg")), index.getValues());
+        assertSame("Highest ranking", svc2, index.getService(".jpg"));
+        assertEquals(Arrays.asList(svc2, svc1), index.getServices(".jpg"));
+        assertSame(svc1, index.getService(".jpeg"));
+        assertSame(svc2, index.getService());
+        assertNull(index.getService(".png"));
+        assertEquals(0, index.getServices(".png").size());
+
+        ArgumentCaptor<ServiceListener> listener = ArgumentCaptor.forClass(ServiceListener.class);
+        Mockito.verify(ctx).addServiceListener(listener.capture(), Mockito.anyString());
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, sr3));
+        assertSame(svc3, index.getService(".png"));
+
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, sr2));
+        assertSame(svc1, index.getService(".jpg"));
+        assertEquals(Collections.singletonList(svc1), index.getServices(".jpg"));
+
+        // The ranking of a service changes
+        Mockito.when(sr3.getProperty(Constants.SERVICE_RANKING)).thenReturn(20);
+        Mockito.when(sr3.getProperty("format")).thenReturn(new String [] {".png", ".jpg"});
+        listener.getValue().serviceChanged(new ServiceEvent(ServiceEvent.MODIFIED, sr3));
+        assertEquals(Arrays.asList(svc3, svc1), index.getServices(".jpg"));
+        assertSame(svc3, index.getService());
+
+        OSGiTools.closeServiceIndexes(ctx);
+        assertNull(index.getService(".jpg"));
+        assertNull(index.getService());
+        assertNotSame(index, OSGiTools.getServiceIndex(ctx, Runnable.class, "format"));
+        Mockito.verify(ctx).ungetService(sr3);
+    }
+
+    public void testServiceIndexWithoutProperty() throws Exception {
+        ServiceReference sr1 = mockServiceReference(0, ".jpg");
+        ServiceReference sr2 = mockServiceReference(10);
+
+        BundleContext ctx = Mockito.mock(BundleContext.class);
+        Mockito.when(ctx.getServiceReferences(Runnable.class.getName(), null)).thenReturn(
+                new ServiceReference[] {sr1, sr2});
+        mockService(ctx, sr1);
+        Runnable svc2 = mockService(ctx, sr2);
+
+        OSGiTools.ServiceIndex<Runnable> index = OSGiTools.getServiceIndex(ctx, Runnable.class, null);
+        assertNotSame(index, OSGiTools.getServiceIndex(ctx, Runnable.class, "format"));
+        assertSame("Highest ranking", svc2, index.getService());
+        assertEquals(0, index.getValues().size());
+
+        // The service is tracked, so it isn't obtained again
+        assertSame(svc2, OSGiTools.getServiceIndex(ctx, Runnable.class, null).getService());
+        Mockito.verify(ctx).getService(sr2);
+        OSGiTools.closeServiceIndexes(ctx);
+    }
+
+    private Runnable mockService(BundleContext ctx, ServiceReference ref) {
+        Runnable svc = Mockito.mock(Runnable.class);
+        Mockito.when(ctx.getService(ref)).thenReturn(svc);
+        return svc;
+    }
+
+    private ServiceReference mockServiceReference(Integer ranking, String ... formats) {
+        ServiceReference sr = mockServiceReference(ranking);
+        Mockito.when(sr.getProperty("format")).thenReturn(formats);
+        return sr;
+    }
+
     private ServiceReference mockServiceReference(Integer ranking) {
         ServiceReference sr1 = Mockito.mock(ServiceReference.class);
         Mockito.when(sr1.getProperty(Constants.SERVICE_RANKING)).thenReturn(ranking);
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class TaskSchedulerTest extends TestCase {
+    public void testPriorities() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(1);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            scheduler.submit(await(blocker), TaskScheduler.PRIORITY_UI);
+
+            List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            TaskScheduler.Task background = scheduler.submit(record(order, "background"), TaskScheduler.PRIORITY_BACKGROUND);
+            scheduler.submit(record(order, "normal1"), TaskScheduler.PRIORITY_NORMAL);
+            scheduler.submit(record(order, "ui"), TaskScheduler.PRIORITY_UI);
+            scheduler.submit(record(order, "normal2"), TaskScheduler.PRIORITY_NORMAL);
+            assertEquals(4, scheduler.getQueueSize());
+
+            blocker.countDown();
+            background.get(10, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList("ui", "normal1", "normal2", "background"), order);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    public void testSupersedePendingTask() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(1);
+        try {
+            CountDownLatch blocker = new CountDownLatch(1);
+            scheduler.submit(await(blocker), TaskScheduler.PRIORITY_UI);
+
+            List<String> order = Collections.synchronizedList(new ArrayList<String>());
+            Object key = new Object();
+            TaskScheduler.Task first = scheduler.submit(key, record(order, "first"), TaskScheduler.PRIORITY_UI);
+            TaskScheduler.Task second = scheduler.submit(key, record(order, "second"), TaskScheduler.PRIORITY_UI);
+            assertTrue(first.isCancelled());
+            assertEquals("The superseded task should be removed from the queue", 1, scheduler.getQueueSize());
+
+            blocker.countDown();
+            second.get(10, TimeUnit.SECONDS);
+            assertEquals(Collections.singletonList("second"), order);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    public void testSupersedeRunningTask() throws Exception {
+        TaskScheduler scheduler = new TaskScheduler(2);
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final boolean [] noticed = new boolean[1];
+            Object key = new Object();
+            TaskScheduler.Task first = scheduler.submit(key, new Runnable() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    long deadline = System.currentTimeMillis() + 10000;
+                    while (System.currentTimeMillis() < deadline) {
+                        if (TaskScheduler.isCurrentTaskCancelled()) {
+                            noticed[0] = true;
+                            return;
+                        }
+                    }
+                }
+            }, TaskScheduler.PRIORITY_UI);
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+            assertFalse(TaskScheduler.isCurrentTaskCancelled());
+            assertNull(TaskScheduler.getCurrentTask());
+
+            TaskScheduler.Task second = scheduler.submit(key, new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, TaskScheduler.PRIORITY_UI);
+            second.get(10, TimeUnit.SECONDS);
+            assertTrue(first.isCancelled());
+            assertTrue(first.getToken().isCancelled());
+            assertFalse(second.getToken().isCancelled());
+
+            // The cancelled task notices, its thread becomes available again
+            scheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }, TaskScheduler.PRIORITY_UI).get(10, TimeUnit.SECONDS);
+            Thread.sleep(100);
+            assertTrue(noticed[0]);
+        } finally {
+            scheduler.close();
+        }
+    }
+
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> l, final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                l.add(name);
+            }
+        };
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares decoding a large photo fully with creating a thumbnail by subsampling and with
+ * reading the thumbnail from the disk and memory caches. The timings are printed, they are not
+ * asserted.
+ */
+public class ThumbnailBenchmark extends TestCase {
+    private static final int ROUNDS = 5;
+
+    public void testThumbnailVersusFullDecode() throws Exception {
+        File tempDir = Files.createTempDirectory("thumbnails").toFile();
+        File f = ThumbnailServiceTest.createImage(new File(tempDir, "large.jpg"), 6000, 4000);
+        File cacheDir = new File(tempDir, "cache");
+        // Without memory, to measure the disk cache
+        ThumbnailService ts = new ThumbnailService(cacheDir, 1, new ImageCache(0));
+        try {
+            ImageIO.read(f); // warm up
+            ThumbnailService.createThumbnail(f, 100);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                BufferedImage img = ImageIO.read(f);
+                assertEquals(6000, img.getWidth());
+            }
+            long fullTime = (System.nanoTime() - start) / ROUNDS;
+
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                ThumbnailService.createThumbnail(f, 100);
+            }
+            long subsampledTime = (System.nanoTime() - start) / ROUNDS;
+
+            ts.getThumbnail(f, 100);
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                ts.getThumbnail(f, 100);
+            }
+            long cachedTime = (System.nanoTime() - start) / ROUNDS;
+
+            ThumbnailService memoryTS = new ThumbnailService(cacheDir, 1, new ImageCache(1024 * 1024));
+            memoryTS.getThumbnail(f, 100);
+            start = System.nanoTime();
+            for (int i = 0; i < ROUNDS; i++) {
+                memoryTS.getCachedThumbnail(f, 100);
+            }
+            long memoryTime = (System.nanoTime() - start) / ROUNDS;
+            memoryTS.close();
+
+            System.out.println("24 megapixel JPEG, full decode: " + fullTime / 1000000 + " ms (" +
+                    6000 * 4000 * 4 / 1024 / 1024 + " MB), subsampled thumbnail: " + subsampledTime / 1000000 +
+                    " ms, from disk cache: " + cachedTime / 1000 + " us, from memory: " + memoryTime / 1000 + " us");
+        } finally {
+            ts.close();
+            for (File cf : new DirTreeIterable(cacheDir)) {
+                if (cf.isFile())
+                    cf.delete();
+            }
+            for (File cf : new DirTreeIterable(cacheDir)) {
+                cf.delete();
+            }
+            cacheDir.delete();
+            f.delete();
+            tempDir.delete();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class ThumbnailServiceTest extends TestCase {
+    private File tempDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        tempDir = Files.createTempDirectory("thumbnails").toFile();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        deleteTree(tempDir);
+    }
+
+    public void testCreateThumbnail() throws Exception {
+        File f = createImage(new File(tempDir, "landscape.jpg"), 2000, 1500);
+        BufferedImage img = ThumbnailService.createThumbnail(f, 100);
+        assertEquals(100, img.getWidth());
+        assertEquals(75, img.getHeight());
+
+        File f2 = createImage(new File(tempDir, "portrait.png"), 300, 600);
+        BufferedImage img2 = ThumbnailService.createThumbnail(f2, 100);
+        assertEquals(50, img2.getWidth());
+        assertEquals(100, img2.getHeight());
+
+        // Small images aren't enlarged
+        File f3 = createImage(new File(tempDir, "small.jpg"), 40, 30);
+        BufferedImage img3 = ThumbnailService.createThumbnail(f3, 100);
+        assertEquals(40, img3.getWidth());
+        assertEquals(30, img3.getHeight());
+    }
+
+    public void testDiskCache() throws Exception {
+        File cacheDir = new File(tempDir, "cache");
+        ThumbnailService ts = new ThumbnailService(cacheDir, 1);
+        try {
+            File f = createImage(new File(tempDir, "a.jpg"), 800, 600);
+            File cacheFile = ts.getCacheFile(f, 100);
+            assertFalse(cacheFile.exists());
+            assertEquals(100, ts.getThumbnail(f, 100).getWidth());
+            assertTrue(cacheFile.isFile());
+
+            // Copies of a file share the thumbnail
+            File copy = new File(tempDir, "copy.jpg");
+            Files.copy(f.toPath(), copy.toPath());
+            assertEquals(cacheFile, ts.getCacheFile(copy, 100));
+            assertFalse(cacheFile.equals(ts.getCacheFile(f, 200)));
+
+            // Replace the cached thumbnail to see that it is used
+            ImageIO.write(new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB), "jpg", cacheFile);
+            assertEquals(10, ts.getThumbnail(copy, 100).getWidth());
+
+            // The thumbnails obtained are also kept in memory
+            assertEquals(100, ts.getCachedThumbnail(f, 100).getWidth());
+            assertEquals(10, ts.getCachedThumbnail(copy, 100).getWidth());
+            assertNull(ts.getCachedThumbnail(f, 50));
+
+            File other = createImage(new File(tempDir, "b.jpg"), 800, 601);
+            assertFalse(cacheFile.equals(ts.getCacheFile(other, 100)));
+        } finally {
+            ts.close();
+        }
+    }
+
+    public void testRequestThumbnail() throws Exception {
+        ThumbnailService ts = new ThumbnailService(null, 2);
+        try {
+            File f = createImage(new File(tempDir, "a.jpg"), 800, 600);
+            final CountDownLatch latch = new CountDownLatch(2);
+            final AtomicReference<BufferedImage> result = new AtomicReference<BufferedImage>();
+            ts.requestThumbnail(f, 80, new ThumbnailService.Callback() {
+                @Override
+                public void thumbnailReady(File file, BufferedImage thumbnail) {
+                    result.set(thumbnail);
+                    latch.countDown();
+                }
+            });
+            ts.requestThumbnail(new File(tempDir, "doesnotexist.jpg"), 80, new ThumbnailService.Callback() {
+                @Override
+                public void thumbnailReady(File file, BufferedImage thumbnail) {
+                    assertNull(thumbnail);
+                    latch.countDown();
+                }
+            });
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+            assertEquals(80, result.get().getWidth());
+            assertEquals(60, result.get().getHeight());
+        } finally {
+            ts.close();
+        }
+    }
+
+    public void testCancelRequest() throws Exception {
+        ThumbnailService ts = new ThumbnailService(null, 1);
+        try {
+            File f = createImage(new File(tempDir, "a.jpg"), 80, 60);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            ts.requestThumbnail(f, 40, new ThumbnailService.Callback() {
+                @Override
+                public void thumbnailReady(File file, BufferedImage thumbnail) {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            assertTrue(started.await(10, TimeUnit.SECONDS));
+
+            // The only thread is busy, so these are queued
+            final List<String> delivered = new ArrayList<String>();
+            Future<?> cancelled = ts.requestThumbnail(f, 30, new ThumbnailService.Callback() {
+                @Override
+                public void thumbnailReady(File file, BufferedImage thumbnail) {
+                    delivered.add("cancelled");
+                }
+            });
+            final CountDownLatch done = new CountDownLatch(1);
+            ts.requestThumbnail(f, 20, new ThumbnailService.Callback() {
+                @Override
+                public void thumbnailReady(File file, BufferedImage thumbnail) {
+                    delivered.add("kept");
+                    done.countDown();
+                }
+            });
+            assertTrue(cancelled.cancel(false));
+            release.countDown();
+
+            assertTrue(done.await(10, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("kept"), delivered);
+            assertNull("Never created", ts.getCachedThumbnail(f, 30));
+        } finally {
+            ts.close();
+        }
+    }
+
+    static File createImage(File f, int width, int height) throws Exception {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        for (int x = 0; x < width; x += 10) {
+            g.setColor(new Color((x * 7) % 256, (x * 3) % 256, (x * 11) % 256));
+            g.fillRect(x, 0, 10, height);
+        }
+        g.dispose();
+        String name = f.getName();
+        assertTrue(ImageIO.write(img, name.substring(name.lastIndexOf('.') + 1), f));
+        return f;
+    }
+
+    private static void deleteTree(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                deleteTree(f);
+            }
+        }
+        dir.delete();
+    }
+}
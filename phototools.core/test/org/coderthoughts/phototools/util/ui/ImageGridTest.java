@@ -0,0 +1,250 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.util.ui;
+
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.swing.JLabel;
+import javax.swing.JViewport;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.util.ThumbnailService;
+
+public class ImageGridTest extends TestCase {
+    public void testLayout() {
+        ImageGrid<String> grid = newGrid(10);
+        grid.setSize(425, 100); // room for 4 cells of 100 with a gap of 5
+        assertEquals(4, grid.getColumnCount());
+        assertEquals(3, grid.getRowCount());
+        assertEquals(new Dimension(425, 5 + 3 * 105), grid.getPreferredSize());
+
+        assertEquals(new Rectangle(5, 5, 100, 100), grid.getCellBounds(0));
+        assertEquals(new Rectangle(320, 110, 100, 100), grid.getCellBounds(7));
+        assertEquals(0, grid.getIndexAt(new Point(5, 5)));
+        assertEquals(5, grid.getIndexAt(new Point(150, 150)));
+        assertEquals("In the gap", -1, grid.getIndexAt(new Point(107, 50)));
+        assertEquals("Past the last item", -1, grid.getIndexAt(new Point(320, 250)));
+    }
+
+    public void testSelection() {
+        ImageGrid<String> grid = newGrid(10);
+        assertTrue(grid.isSelected(0));
+        assertFalse(grid.isSelected(1));
+
+        grid.selectAll(false);
+        assertEquals(0, grid.getSelection().cardinality());
+
+        grid.toggleSelection(2, false);
+        grid.toggleSelection(6, true);
+        BitSet expected = new BitSet();
+        expected.set(2, 7);
+        assertEquals(expected, grid.getSelection());
+        assertEquals(Arrays.asList("2", "3", "4", "5", "6"), grid.getSelectedItems());
+
+        // Extending takes the new state of the clicked item
+        grid.toggleSelection(4, true);
+        expected.clear(4, 7);
+        assertEquals(expected, grid.getSelection());
+
+        grid.selectAll(true);
+        assertEquals(10, grid.getSelection().cardinality());
+
+        grid.clear();
+        assertEquals(0, grid.getItemCount());
+        assertEquals(0, grid.getSelection().cardinality());
+    }
+
+    public void testOnlyVisibleCellsRendered() {
+        final List<String> rendered = new ArrayList<String>();
+        ImageGrid<String> grid = new ImageGrid<String>(new ImageGrid.CellRenderer<String>() {
+            private final JLabel label = new JLabel();
+
+            @Override
+            public File getImageFile(String item) {
+                return null;
+            }
+
+            @Override
+            public Component getCellRendererComponent(ImageGrid<String> grid, String item, BufferedImage thumbnail, boolean selected) {
+                rendered.add(item);
+                label.setText(item);
+                return label;
+            }
+        }, new Dimension(100, 100), null, 100);
+        for (int i = 0; i < 10000; i++) {
+            grid.addItem("" + i, false);
+        }
+        grid.setSize(425, grid.getPreferredSize().height);
+
+        BufferedImage img = new BufferedImage(425, 300, BufferedImage.TYPE_INT_RGB);
+        Graphics g = img.getGraphics();
+        g.setClip(0, 200, 425, 100); // the second and third row
+        grid.paint(g);
+        g.dispose();
+        assertEquals(Arrays.asList("4", "5", "6", "7", "8", "9", "10", "11"), rendered);
+    }
+
+    public void testPaintDoesntAccessFiles() throws Exception {
+        final File f = File.createTempFile(getClass().getSimpleName(), ".jpg");
+        try {
+            assertTrue(f.setLastModified(1000000000000l));
+            final List<Long> stamps = new ArrayList<Long>();
+            ThumbnailService ts = new ThumbnailService(null, 1) {
+                @Override
+                public BufferedImage getCachedThumbnail(File file, int size) {
+                    fail("Should use the modification time taken when the item was added");
+                    return null;
+                }
+
+                @Override
+                public BufferedImage getCachedThumbnail(File file, long lastModified, long length, int size) {
+                    assertEquals(f, file);
+                    stamps.add(lastModified);
+                    return null;
+                }
+
+                @Override
+                public Future<?> requestThumbnail(File file, int size, Callback callback) {
+                    return new FutureTask<Void>(new Runnable() {
+                        @Override
+                        public void run() {
+                            // not loaded in this test
+                        }
+                    }, null);
+                }
+            };
+            ImageGrid<String> grid = new ImageGrid<String>(new ImageGrid.CellRenderer<String>() {
+                @Override
+                public File getImageFile(String item) {
+                    return f;
+                }
+
+                @Override
+                public Component getCellRendererComponent(ImageGrid<String> grid, String item, BufferedImage thumbnail, boolean selected) {
+                    return new JLabel(item);
+                }
+            }, new Dimension(100, 100), ts, 100);
+            grid.addItem("0", false);
+            grid.setSize(425, grid.getPreferredSize().height);
+            assertTrue(f.setLastModified(2000000000000l));
+
+            BufferedImage img = new BufferedImage(425, 110, BufferedImage.TYPE_INT_RGB);
+            Graphics g = img.getGraphics();
+            grid.paint(g);
+            g.dispose();
+            assertTrue(stamps.size() > 0);
+            for (long stamp : stamps) {
+                assertEquals(1000000000000l, stamp);
+            }
+            ts.close();
+        } finally {
+            f.delete();
+        }
+    }
+
+    public void testScrolledPastRequestsCancelled() throws Exception {
+        final Map<File, Future<?>> requests = new HashMap<File, Future<?>>();
+        ThumbnailService ts = new ThumbnailService(null, 1) {
+            @Override
+            public Future<?> requestThumbnail(File file, int size, Callback callback) {
+                Future<?> request = new FutureTask<Void>(new Runnable() {
+                    @Override
+                    public void run() {
+                        // never started in this test
+                    }
+                }, null);
+                requests.put(file, request);
+                return request;
+            }
+        };
+        ImageGrid<String> grid = new ImageGrid<String>(new ImageGrid.CellRenderer<String>() {
+            @Override
+            public File getImageFile(String item) {
+                return new File("nonexistent", item + ".jpg");
+            }
+
+            @Override
+            public Component getCellRendererComponent(ImageGrid<String> grid, String item, BufferedImage thumbnail, boolean selected) {
+                return new JLabel(item);
+            }
+        }, new Dimension(100, 100), ts, 100);
+        grid.setPrefetchRows(1);
+        for (int i = 0; i < 1000; i++) {
+            grid.addItem("" + i, false);
+        }
+        JViewport viewport = new JViewport();
+        viewport.setView(grid);
+        viewport.setSize(425, 210); // two rows of 4 cells
+        grid.setSize(425, grid.getPreferredSize().height);
+
+        paintVisible(grid);
+        assertEquals("Two rows and a row of prefetch", 12, requests.size());
+        Future<?> first = requests.get(new File("nonexistent", "0.jpg"));
+        assertFalse(first.isCancelled());
+
+        viewport.setViewPosition(new Point(0, 105 * 100));
+        paintVisible(grid);
+        assertTrue("Scrolled past", first.isCancelled());
+        assertFalse(requests.get(new File("nonexistent", "400.jpg")).isCancelled());
+        assertFalse(requests.get(new File("nonexistent", "396.jpg")).isCancelled());
+        int cancelled = 0;
+        for (Future<?> request : requests.values()) {
+            if (request.isCancelled())
+                cancelled++;
+        }
+        assertEquals(12, cancelled);
+        ts.close();
+    }
+
+    private static void paintVisible(ImageGrid<?> grid) {
+        Rectangle visible = grid.getVisibleRect();
+        BufferedImage img = new BufferedImage(grid.getWidth(), grid.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics g = img.getGraphics();
+        g.setClip(visible);
+        grid.paint(g);
+        g.dispose();
+    }
+
+    private static ImageGrid<String> newGrid(int count) {
+        ImageGrid<String> grid = new ImageGrid<String>(new ImageGrid.CellRenderer<String>() {
+            @Override
+            public File getImageFile(String item) {
+                return null;
+            }
+
+            @Override
+            public Component getCellRendererComponent(ImageGrid<String> grid, String item, BufferedImage thumbnail, boolean selected) {
+                return new JLabel(item);
+            }
+        }, new Dimension(100, 100), null, 100);
+        for (int i = 0; i < count; i++) {
+            grid.addItem("" + i, i == 0);
+        }
+        return grid;
+    }
+}
@@ -14,17 +14,23 @@ package org.coderthoughts.phototools.dupfinder.impl;
 
 import org.coderthoughts.phototools.api.ToolPanel;
 import org.coderthoughts.phototools.dupfinder.impl.ui.DuplicateFinderToolPanel;
+import org.coderthoughts.phototools.util.OSGiTools;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
 public class Activator implements BundleActivator {
+    private DuplicateFinderToolPanel toolPanel;
+
     @Override
     public void start(BundleContext context) throws Exception {
-        DuplicateFinderToolPanel dtfp = new DuplicateFinderToolPanel(context);
-        context.registerService(ToolPanel.class.getName(), dtfp, null);
+        toolPanel = new DuplicateFinderToolPanel(context);
+        context.registerService(ToolPanel.class.getName(), toolPanel, null);
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        if (toolPanel != null)
+            toolPanel.close();
+        OSGiTools.closeServiceIndexes(context);
     }
 }
@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.dupfinder.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A BK-tree over 64 bit hashes with the Hamming distance as metric. Finding all the entries within
+ * a small distance of a hash only visits a fraction of the tree.
+ */
+class BKTree {
+    private Node root;
+    private int size;
+
+    /**
+     * Add an entry.
+     * @param hash The hash of the entry.
+     * @param id The id of the entry.
+     */
+    void add(long hash, int id) {
+        size++;
+        if (root == null) {
+            root = new Node(hash, id);
+            return;
+        }
+
+        Node node = root;
+        while (true) {
+            int d = ImageHasher.distance(hash, node.hash);
+            if (d == 0) {
+                node.addId(id);
+                return;
+            }
+
+            Node child = node.getChild(d);
+            if (child == null) {
+                node.addChild(d, new Node(hash, id));
+                return;
+            }
+            node = child;
+        }
+    }
+
+    /**
+     * Find the entries close to a hash.
+     * @param hash The hash to look for.
+     * @param maxDistance The maximum Hamming distance.
+     * @return The ids of all the entries with a hash within the maximum distance.
+     */
+    List<Integer> query(long hash, int maxDistance) {
+        List<Integer> result = new ArrayList<Integer>();
+        if (root == null)
+            return result;
+
+        List<Node> toVisit = new ArrayList<Node>();
+        toVisit.add(root);
+        while (!toVisit.isEmpty()) {
+            Node node = toVisit.remove(toVisit.size() - 1);
+            int d = ImageHasher.distance(hash, node.hash);
+            if (d <= maxDistance) {
+                for (int i = 0; i < node.idCount; i++) {
+                    result.add(node.ids[i]);
+                }
+            }
+
+            // By the triangle inequality, matches can only be in the children at distance d +/- maxDistance
+            for (int i = 0; i < node.childCount; i++) {
+                int childDistance = node.childDistances[i];
+                if (childDistance > d + maxDistance)
+                    break;
+                if (childDistance >= d - maxDistance)
+                    toVisit.add(node.children[i]);
+            }
+        }
+        return result;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static class Node {
+        private final long hash;
+        // The children sorted by their distance to this node. Most nodes are leaves or have only a
+        // few children, so the arrays are created when the first child is added and grown as needed.
+        private byte [] childDistances;
+        private Node [] children;
+        private int childCount;
+        private int [] ids = new int[1];
+        private int idCount;
+
+        Node(long hash, int id) {
+            this.hash = hash;
+            addId(id);
+        }
+
+        Node getChild(int distance) {
+            if (childCount == 0)
+                return null;
+
+            int idx = Arrays.binarySearch(childDistances, 0, childCount, (byte) distance);
+            return idx >= 0 ? children[idx] : null;
+        }
+
+        void addChild(int distance, Node child) {
+            if (childCount == 0) {
+                childDistances = new byte[2];
+                children = new Node[2];
+            } else if (childCount == children.length) {
+                childDistances = Arrays.copyOf(childDistances, childCount * 2);
+                children = Arrays.copyOf(children, childCount * 2);
+            }
+
+            int idx = -Arrays.binarySearch(childDistances, 0, childCount, (byte) distance) - 1;
+            System.arraycopy(childDistances, idx, childDistances, idx + 1, childCount - idx);
+            System.arraycopy(children, idx, children, idx + 1, childCount - idx);
+            childDistances[idx] = (byte) distance;
+            children[idx] = child;
+            childCount++;
+        }
+
+        void addId(int id) {
+            if (idCount == ids.length) {
+                int [] newIds = new int[ids.length * 2];
+                System.arraycopy(ids, 0, newIds, 0, idCount);
+                ids = newIds;
+            }
+            ids[idCount++] = id;
+        }
+    }
+}
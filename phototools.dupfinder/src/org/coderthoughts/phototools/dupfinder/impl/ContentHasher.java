@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.dupfinder.impl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes content hashes of files. The partial hash only covers the beginning and the end
+ * of the file, which is cheap and tells most files of the same size apart. The full hash
+ * reads the whole file through a buffer. The files are not memory-mapped: on Windows a mapped
+ * file can't be deleted until the mapping is garbage collected, and deleting duplicates is what
+ * the hashes are computed for.
+ */
+class ContentHasher {
+    static final int PARTIAL_SIZE = 64 * 1024;
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+
+    private ContentHasher() {
+    }
+
+    /**
+     * @return <tt>true</tt> if the partial hash of a file of this size already covers the
+     * whole file, in which case there is no need to compute the full hash.
+     */
+    static boolean isPartialComplete(long size) {
+        return size <= 2 * PARTIAL_SIZE;
+    }
+
+    static String partialHash(File f) throws IOException {
+        MessageDigest digest = getDigest();
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            FileChannel fc = fis.getChannel();
+            long size = fc.size();
+            if (isPartialComplete(size)) {
+                update(digest, fc, 0, size);
+            } else {
+                update(digest, fc, 0, PARTIAL_SIZE);
+                update(digest, fc, size - PARTIAL_SIZE, PARTIAL_SIZE);
+            }
+        } finally {
+            fis.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    static String fullHash(File f) throws IOException {
+        MessageDigest digest = getDigest();
+        FileInputStream fis = new FileInputStream(f);
+        try {
+            FileChannel fc = fis.getChannel();
+            ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (fc.read(buf) >= 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        } finally {
+            fis.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, FileChannel fc, long position, long length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate((int) length);
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, position + buf.position()) < 0)
+                break;
+        }
+        buf.flip();
+        digest.update(buf);
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte [] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
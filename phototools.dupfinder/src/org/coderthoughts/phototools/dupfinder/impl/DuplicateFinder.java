@@ -13,62 +13,339 @@
 package org.coderthoughts.phototools.dupfinder.impl;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
+import org.coderthoughts.phototools.api.MetadataRecord;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.util.MetadataTools;
 
+/**
+ * Finds candidate duplicates. Files that share a key are candidate duplicates of each other,
+ * transitively. The groups are maintained in a disjoint-set (union-find) structure over file ids.
+ *
+ * Candidates can be added from many threads at the same time. Adding a candidate only records the
+ * links between files that share a key in concurrent structures, the links are merged into the
+ * union-find structure when the candidates are obtained.
+ *
+ * How files are compared depends on the mode:
+ * <ul>
+ * <li>{@link #COMPARE_METADATA} the keys are based on the metadata of the files.
+ * <li>{@link #COMPARE_CONTENTS} files are only duplicates if their contents are identical. To avoid
+ * reading every file, the files are first bucketed by size, then files of the same size are compared
+ * on a hash of their first and last bytes and only the files that still collide are fully hashed.
+ * <li>{@link #COMPARE_SIMILAR} files are duplicates if their images look alike, so that the same
+ * photo at another resolution or compression is found. The perceptual hashes of the images are
+ * indexed in a BK-tree to find the close matches.
+ * </ul>
+ *
+ * Candidates can be added and removed after the candidates list has been obtained, for example
+ * when the files in the directory tree change, the next candidates list then reflects the changes.
+ * When a file is removed, or added again because it changed, the keys of the file are dropped. As
+ * links can't be taken out of the union-find structure, the groups are then rebuilt from the keys
+ * of the remaining files when the candidates are obtained next.
+ */
 public class DuplicateFinder {
-    private final Map<Object, List<File>> candidateMap = new HashMap<Object, List<File>>();
+    public static final int COMPARE_METADATA = 0;
+    public static final int COMPARE_CONTENTS = 1;
+    public static final int COMPARE_SIMILAR = 2;
+
+    /** The maximum number of differing bits in the perceptual hashes of similar images. */
+    static final int SIMILARITY_THRESHOLD = 10;
+
+    private final Map<File, Integer> fileIds = new HashMap<File, Integer>();
+    private final List<File> files = new ArrayList<File>();
+    private final ConcurrentMap<File, Object[]> candidateKeys = new ConcurrentHashMap<File, Object[]>();
+    private final ConcurrentMap<Object, File> keyOwners = new ConcurrentHashMap<Object, File>();
+    private final Queue<File[]> links = new ConcurrentLinkedQueue<File[]>();
+    private int [] parents = new int [16];
+    private int [] sizes = new int [16];
+    private final ConcurrentMap<Long, Queue<File>> sizeBuckets = new ConcurrentHashMap<Long, Queue<File>>();
+    private final ConcurrentMap<File, Long> bucketSizes = new ConcurrentHashMap<File, Long>();
+    private final ConcurrentMap<Long, Integer> comparedBucketSizes = new ConcurrentHashMap<Long, Integer>();
+    private final Map<File, Long> fileImageHashes = new HashMap<File, Long>(); // guarded by this
+    private BKTree imageHashes = new BKTree(); // guarded by this
+    private volatile boolean invalidated = false;
     private final Map<String, PhotoMetadataProvider> photoMetadataProviders;
+    private final int mode;
 
     public DuplicateFinder(Map<String, PhotoMetadataProvider> metadataProviders) {
+        this(metadataProviders, COMPARE_METADATA);
+    }
+
+    /**
+     * Create a duplicate finder.
+     * @param metadataProviders The metadata providers, by extension. Files without a metadata
+     * provider are ignored.
+     * @param mode How to compare the files, one of {@link #COMPARE_METADATA}, {@link #COMPARE_CONTENTS}
+     * or {@link #COMPARE_SIMILAR}.
+     */
+    public DuplicateFinder(Map<String, PhotoMetadataProvider> metadataProviders, int mode) {
+        if (mode < COMPARE_METADATA || mode > COMPARE_SIMILAR)
+            throw new IllegalArgumentException("Invalid mode: " + mode);
+
         photoMetadataProviders = metadataProviders;
+        this.mode = mode;
     }
 
     public void addCandidate(File file) {
         if (!file.isFile())
             throw new IllegalArgumentException("Must be a file");
 
-        for (Object key : computeKeys(photoMetadataProviders, file)) {
-            synchronized (candidateMap) {
-                List<File> l = candidateMap.get(key);
-                if (l == null) {
-                    l = new ArrayList<File>();
-                    candidateMap.put(key, l);
-                }
-                l.add(file);
+        // The file may have changed since it was added before
+        forget(file);
+        switch (mode) {
+        case COMPARE_CONTENTS:
+            if (getMetadataProvider(photoMetadataProviders, file) != null)
+                addToSizeBucket(file);
+            break;
+        case COMPARE_SIMILAR:
+            addImageHash(file);
+            break;
+        default:
+            addCandidate(file, computeKeys(photoMetadataProviders, file));
+        }
+    }
+
+    /**
+     * Add a number of candidates. The metadata of the files is obtained in one batch per metadata
+     * provider, which is cheaper than adding the files one by one with providers that support this.
+     * @param candidates The files to add.
+     */
+    public void addCandidates(List<File> candidates) {
+        if (mode == COMPARE_CONTENTS) {
+            // The metadata isn't used
+            for (File file : candidates) {
+                addCandidate(file);
+            }
+            return;
+        }
+
+        List<File> batch = new ArrayList<File>(candidates.size());
+        List<PhotoMetadataProvider> providers = new ArrayList<PhotoMetadataProvider>(candidates.size());
+        for (File file : candidates) {
+            if (!file.isFile())
+                throw new IllegalArgumentException("Must be a file");
+
+            forget(file);
+            PhotoMetadataProvider pmp = getMetadataProvider(photoMetadataProviders, file);
+            if (pmp != null) {
+                batch.add(file);
+                providers.add(pmp);
+            }
+        }
+
+        if (mode == COMPARE_SIMILAR) {
+            // The preview is needed, which isn't part of the metadata record
+            List<Metadata> mds = MetadataTools.getMetaData(providers, batch);
+            for (int i = 0; i < batch.size(); i++) {
+                addImageHash(batch.get(i), mds.get(i));
+            }
+        } else {
+            List<MetadataRecord> records = MetadataTools.getMetadataRecords(providers, batch);
+            for (int i = 0; i < batch.size(); i++) {
+                addCandidate(batch.get(i), computeKeys(batch.get(i), records.get(i)));
             }
         }
     }
 
-    static Object[] computeKeys(Map<String, PhotoMetadataProvider> metadataProviders, File f) {
+    /**
+     * Remove a file from the candidates, for example because it has been deleted.
+     * @param file The file.
+     */
+    public void removeCandidate(File file) {
+        forget(file);
+    }
+
+    /*
+     * Drop everything known about a file. If the file had keys the groups need to be rebuilt.
+     */
+    private void forget(File file) {
+        boolean hadKeys = candidateKeys.remove(file) != null;
+
+        Long size = bucketSizes.remove(file);
+        if (size != null) {
+            Queue<File> q = sizeBuckets.get(size);
+            if (q != null)
+                q.remove(file);
+            // Compare the bucket again when a file is added to it, even if that restores its old size
+            comparedBucketSizes.remove(size);
+        }
+
+        if (mode == COMPARE_SIMILAR) {
+            synchronized (this) {
+                if (fileImageHashes.remove(file) != null)
+                    hadKeys = true;
+            }
+        }
+
+        if (hadKeys)
+            invalidated = true;
+    }
+
+    private void addImageHash(File file) {
+        PhotoMetadataProvider pmp = getMetadataProvider(photoMetadataProviders, file);
+        if (pmp == null)
+            return;
+
+        addImageHash(file, pmp.getMetaData(file));
+    }
+
+    private void addImageHash(File file, Metadata md) {
+        // Use the preview for files that aren't images themselves, such as videos
+        File image = file;
+        if (md != null && md.getPreviewFile() != null)
+            image = md.getPreviewFile();
+
+        long hash;
+        try {
+            hash = ImageHasher.hash(image);
+        } catch (IOException e) {
+            System.out.println("Cannot read image: " + image + " " + e);
+            return;
+        }
+        addImageHash(file, hash);
+    }
+
+    synchronized void addImageHash(File file, long hash) {
+        Long previous = fileImageHashes.put(file, hash);
+        if (previous != null) {
+            if (previous != hash)
+                invalidated = true;
+            return;
+        }
+        indexImageHash(file, hash);
+    }
+
+    private void indexImageHash(File file, long hash) {
+        int id = getFileId(file);
+        for (int similar : imageHashes.query(hash, SIMILARITY_THRESHOLD)) {
+            union(similar, id);
+        }
+        imageHashes.add(hash, id);
+    }
+
+    private void addToSizeBucket(File file) {
+        Long size = file.length();
+        bucketSizes.put(file, size);
+        Queue<File> q = sizeBuckets.get(size);
+        if (q == null) {
+            Queue<File> newQ = new ConcurrentLinkedQueue<File>();
+            q = sizeBuckets.putIfAbsent(size, newQ);
+            if (q == null)
+                q = newQ;
+        }
+        q.add(file);
+    }
+
+    void addCandidate(File file, Object[] keys) {
+        Object[] previous = candidateKeys.put(file, keys);
+        if (previous != null) {
+            if (!Arrays.equals(previous, keys))
+                // The links made with the previous keys have to go
+                invalidated = true;
+            return;
+        }
+        addKeys(file, keys);
+    }
+
+    private void addKeys(File file, Object[] keys) {
+        for (Object key : keys) {
+            File owner = keyOwners.putIfAbsent(key, file);
+            if (owner != null && !owner.equals(file))
+                links.add(new File [] {owner, file});
+        }
+    }
+
+    private void mergeLinks() {
+        File [] link;
+        while ((link = links.poll()) != null) {
+            union(getFileId(link[0]), getFileId(link[1]));
+        }
+    }
+
+    private int getFileId(File file) {
+        Integer id = fileIds.get(file);
+        if (id != null)
+            return id;
+
+        int newId = files.size();
+        files.add(file);
+        fileIds.put(file, newId);
+        if (newId == parents.length) {
+            parents = Arrays.copyOf(parents, newId * 2);
+            sizes = Arrays.copyOf(sizes, newId * 2);
+        }
+        parents[newId] = newId;
+        sizes[newId] = 1;
+        return newId;
+    }
+
+    private int find(int id) {
+        while (parents[id] != id) {
+            // path halving
+            parents[id] = parents[parents[id]];
+            id = parents[id];
+        }
+        return id;
+    }
+
+    private void union(int id1, int id2) {
+        int root1 = find(id1);
+        int root2 = find(id2);
+        if (root1 == root2)
+            return;
+
+        // attach the smaller tree to the larger one
+        if (sizes[root1] < sizes[root2]) {
+            int temp = root1;
+            root1 = root2;
+            root2 = temp;
+        }
+        parents[root2] = root1;
+        sizes[root1] += sizes[root2];
+    }
+
+    private static PhotoMetadataProvider getMetadataProvider(Map<String, PhotoMetadataProvider> metadataProviders, File f) {
         String n = f.getName();
         int idx = n.lastIndexOf('.');
         if (idx < 0) {
-            return new Object[] {};
+            return null;
         }
         String extension = n.substring(idx).toLowerCase();
-        PhotoMetadataProvider pmp = metadataProviders.get(extension);
+        return metadataProviders.get(extension);
+    }
+
+    static Object[] computeKeys(Map<String, PhotoMetadataProvider> metadataProviders, File f) {
+        PhotoMetadataProvider pmp = getMetadataProvider(metadataProviders, f);
         if (pmp == null) {
             return new Object[] {};
         }
 
-        Date d = pmp.getMetaData(f).getDateTaken();
-        if (d == null) {
+        return computeKeys(f, MetadataTools.getMetadataRecord(pmp, f));
+    }
+
+    private static Object[] computeKeys(File f, MetadataRecord record) {
+        if (record == null || record.getDateTaken() == MetadataRecord.UNKNOWN_DATE) {
             // No date taken found, use file size and name as keys
             return new Object[] {f.getName().toLowerCase(), f.length()};
         }
 
         Calendar org = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        org.setTime(d);
+        org.setTimeInMillis(record.getDateTaken());
         Calendar noMillis = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
         noMillis.set(Calendar.YEAR, org.get(Calendar.YEAR));
         noMillis.set(Calendar.DAY_OF_MONTH, org.get(Calendar.DAY_OF_MONTH));
@@ -82,51 +359,129 @@ public class DuplicateFinder {
     }
 
     public List<List<File>> getCandidatesList() {
-        // keep consolidating until no more changes
-        while(consolidate() == true);
+        if (mode == COMPARE_CONTENTS)
+            // Reading the files can take long, this only records links so it's done without holding the lock
+            compareSizeBuckets();
 
-        List<List<File>> candidates = new ArrayList<List<File>>();
-        for (List<File> similarFiles : candidateMap.values()) {
-            if (similarFiles.size() > 1)
-                candidates.add(similarFiles);
+        synchronized (this) {
+            return getGroups();
         }
+    }
+
+    private List<List<File>> getGroups() {
+        if (invalidated)
+            rebuild();
+        mergeLinks();
 
-        return candidates;
+        Map<Integer, List<File>> groups = new LinkedHashMap<Integer, List<File>>();
+        for (int id = 0; id < files.size(); id++) {
+            int root = find(id);
+            if (sizes[root] < 2)
+                continue;
+
+            File file = files.get(id);
+            List<File> l = groups.get(root);
+            if (l == null) {
+                l = new ArrayList<File>(sizes[root]);
+                groups.put(root, l);
+            }
+            l.add(file);
+        }
+
+        List<List<File>> result = new ArrayList<List<File>>(groups.size());
+        for (List<File> l : groups.values()) {
+            if (l.size() > 1)
+                result.add(l);
+        }
+        return result;
     }
 
-    private synchronized boolean consolidate() {
-        boolean changes = false;
-        for (Iterator<Map.Entry<Object, List<File>>> it = candidateMap.entrySet().iterator(); it.hasNext(); ) {
-            Entry<Object, List<File>> candidate = it.next();
-            if (candidate.getValue().size() < 2)
+    /*
+     * Rebuild the groups from the current keys of the files.
+     */
+    private void rebuild() {
+        // Reset first, an invalidation while rebuilding causes another rebuild next time
+        invalidated = false;
+        for (int id = 0; id < files.size(); id++) {
+            parents[id] = id;
+            sizes[id] = 1;
+        }
+
+        if (mode == COMPARE_SIMILAR) {
+            imageHashes = new BKTree();
+            for (Map.Entry<File, Long> entry : fileImageHashes.entrySet()) {
+                indexImageHash(entry.getKey(), entry.getValue());
+            }
+        } else {
+            keyOwners.clear();
+            links.clear();
+            for (Map.Entry<File, Object[]> entry : candidateKeys.entrySet()) {
+                addKeys(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void compareSizeBuckets() {
+        for (Map.Entry<Long, Queue<File>> entry : sizeBuckets.entrySet()) {
+            List<File> sameSize = new ArrayList<File>(entry.getValue());
+            if (sameSize.size() < 2)
+                continue; // unique size, can't have a duplicate
+
+            // Only compare a bucket again if files were added to it since it was last compared
+            Integer compared = comparedBucketSizes.put(entry.getKey(), sameSize.size());
+            if (compared != null && compared == sameSize.size())
                 continue;
 
-            boolean candidateMerged = false;
-            for (Map.Entry<Object, List<File>> entry : candidateMap.entrySet()) {
-                if (candidate.getKey().equals(entry.getKey()))
-                    // Same guy, ignore
-                    continue;
-
-                List<File> temp = new ArrayList<File>(candidate.getValue());
-                temp.retainAll(entry.getValue());
-                if (temp.size() > 0) {
-                    // there is overlap
-                    List<File> target = entry.getValue();
-                    for (File f : candidate.getValue()) {
-                        if (!target.contains(f)) {
-                            target.add(f);
-                        }
+            long size = entry.getKey();
+            for (Map.Entry<String, List<File>> samePartial : groupByHash(sameSize, false).entrySet()) {
+                if (ContentHasher.isPartialComplete(size)) {
+                    addContentCandidates(samePartial.getValue(), samePartial.getKey(), size);
+                } else {
+                    for (Map.Entry<String, List<File>> sameFull : groupByHash(samePartial.getValue(), true).entrySet()) {
+                        addContentCandidates(sameFull.getValue(), sameFull.getKey(), size);
                     }
-                    candidateMerged = true;
-                    break;
                 }
             }
+        }
+    }
 
-            if (candidateMerged) {
-                changes = true;
-                it.remove();
+    private void addContentCandidates(List<File> identical, String hash, long size) {
+        // The hash of the contents is the key, so that it stays the same when the bucket is compared again
+        Object[] key = new Object[] {hash};
+        for (File f : identical) {
+            Long bucketSize = bucketSizes.get(f);
+            if (bucketSize != null && bucketSize == size) // not removed while the bucket was compared
+                addCandidate(f, key);
+        }
+    }
+
+    /**
+     * Group the files on their hash.
+     * @return The groups by hash, only the groups with more than one file.
+     */
+    private static Map<String, List<File>> groupByHash(List<File> files, boolean fullHash) {
+        Map<String, List<File>> groups = new HashMap<String, List<File>>();
+        for (File f : files) {
+            String hash;
+            try {
+                hash = fullHash ? ContentHasher.fullHash(f) : ContentHasher.partialHash(f);
+            } catch (IOException e) {
+                System.out.println("Cannot read file: " + f + " " + e);
+                continue;
+            }
+
+            List<File> l = groups.get(hash);
+            if (l == null) {
+                l = new ArrayList<File>(2);
+                groups.put(hash, l);
             }
+            l.add(f);
+        }
+
+        for (Iterator<List<File>> it = groups.values().iterator(); it.hasNext(); ) {
+            if (it.next().size() < 2)
+                it.remove();
         }
-        return changes;
+        return groups;
     }
 }
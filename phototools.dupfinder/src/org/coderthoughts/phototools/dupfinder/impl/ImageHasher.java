@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.dupfinder.impl;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.coderthoughts.phototools.util.JPEGHeader;
+
+/**
+ * Computes perceptual hashes (dHash) of images. The image is reduced to a 9x8 grayscale grid
+ * and each bit of the 64 bit hash says whether a cell is brighter than its right neighbour.
+ * The same picture at a different resolution or compression gives a hash with a small
+ * Hamming distance.
+ *
+ * To keep this cheap, the embedded EXIF thumbnail of a JPEG is used when available, otherwise
+ * the image is decoded with subsampling.
+ */
+class ImageHasher {
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+    private static final int DECODE_SIZE = 128;
+
+    private ImageHasher() {
+    }
+
+    /**
+     * @param f An image file.
+     * @return The dHash of the image.
+     * @throws IOException If the image cannot be read.
+     */
+    static long hash(File f) throws IOException {
+        BufferedImage img = null;
+        try {
+            byte [] thumbnail = JPEGHeader.read(f).getThumbnailData();
+            if (thumbnail != null)
+                img = decode(ImageIO.createImageInputStream(new ByteArrayInputStream(thumbnail)));
+        } catch (IOException e) {
+            // Not a JPEG file or an unreadable thumbnail
+        }
+
+        if (img == null)
+            img = decode(ImageIO.createImageInputStream(f));
+        if (img == null)
+            throw new IOException("Unable to decode image: " + f);
+
+        return hash(img);
+    }
+
+    static long hash(BufferedImage img) {
+        double [][] grid = getGrayscaleGrid(img);
+        long hash = 0;
+        for (int y = 0; y < GRID_HEIGHT; y++) {
+            for (int x = 0; x < GRID_WIDTH - 1; x++) {
+                hash <<= 1;
+                if (grid[y][x] > grid[y][x + 1])
+                    hash |= 1;
+            }
+        }
+        return hash;
+    }
+
+    static int distance(long hash1, long hash2) {
+        return Long.bitCount(hash1 ^ hash2);
+    }
+
+    private static BufferedImage decode(ImageInputStream iis) throws IOException {
+        if (iis == null)
+            return null;
+
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext())
+                return null;
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int largest = Math.max(reader.getWidth(0), reader.getHeight(0));
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, largest / DECODE_SIZE);
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    // Average the luminance of the pixels that fall in each cell of the grid
+    private static double [][] getGrayscaleGrid(BufferedImage img) {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        double [][] sums = new double[GRID_HEIGHT][GRID_WIDTH];
+        int [][] counts = new int[GRID_HEIGHT][GRID_WIDTH];
+        int [] row = new int[w];
+        for (int y = 0; y < h; y++) {
+            int gy = y * GRID_HEIGHT / h;
+            img.getRGB(0, y, w, 1, row, 0, w);
+            for (int x = 0; x < w; x++) {
+                int gx = x * GRID_WIDTH / w;
+                int rgb = row[x];
+                sums[gy][gx] += 0.299 * ((rgb >> 16) & 0xFF) + 0.587 * ((rgb >> 8) & 0xFF) + 0.114 * (rgb & 0xFF);
+                counts[gy][gx]++;
+            }
+        }
+
+        for (int y = 0; y < GRID_HEIGHT; y++) {
+            for (int x = 0; x < GRID_WIDTH; x++) {
+                if (counts[y][x] > 0)
+                    sums[y][x] /= counts[y][x];
+            }
+        }
+        return sums;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.dupfinder.impl.ui;
+
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import javax.swing.BorderFactory;
+import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+
+import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
+import org.coderthoughts.phototools.util.FileTools;
+import org.coderthoughts.phototools.util.ui.ImageGrid;
+
+/**
+ * Paints a duplicate candidate in the grid of the duplicate finder: the image, some information
+ * about the file and a delete button.
+ */
+class DuplicateCellRenderer implements ImageGrid.CellRenderer<DuplicateCellRenderer.Cell> {
+    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("dd-MM-yyyy");
+    private static final DecimalFormat DOUBLE_FORMATTER = new DecimalFormat("#.##");
+
+    private final JPanel panel = new JPanel();
+    private final ImageLabel image = new ImageLabel();
+    private final JLabel nameLabel = new JLabel();
+    private final JLabel dirLabel;
+    private final JLabel sizeLabel;
+    private final JLabel dateLabel;
+    private final JLabel dimensionsLabel;
+    private final JLabel gpsLabel;
+    private final JButton deleteButton = new JButton("Delete");
+    private int imageWidth = 100;
+
+    DuplicateCellRenderer(Font smallerFont) {
+        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
+        image.setBorder(BorderFactory.createRaisedBevelBorder());
+        image.setAlignmentX(Component.LEFT_ALIGNMENT);
+        panel.add(image);
+        panel.add(nameLabel);
+        dirLabel = addFineLabel(smallerFont);
+        sizeLabel = addFineLabel(smallerFont);
+        dateLabel = addFineLabel(smallerFont);
+        dimensionsLabel = addFineLabel(smallerFont);
+        gpsLabel = addFineLabel(smallerFont);
+        panel.add(deleteButton);
+    }
+
+    private JLabel addFineLabel(Font font) {
+        JLabel label = new JLabel();
+        label.setFont(font);
+        panel.add(label);
+        return label;
+    }
+
+    void setImageWidth(int width) {
+        imageWidth = width;
+    }
+
+    boolean isImage(Component c) {
+        return c == image;
+    }
+
+    boolean isDeleteButton(Component c) {
+        return c == deleteButton;
+    }
+
+    /**
+     * @return The size the cell needs to show all of its information.
+     */
+    Dimension getPreferredSize(ImageGrid<Cell> grid, Cell cell) {
+        Dimension d = getCellRendererComponent(grid, cell, null, false).getPreferredSize();
+        return new Dimension(Math.max(d.width, imageWidth), d.height);
+    }
+
+    @Override
+    public File getImageFile(Cell cell) {
+        return cell.deleted ? null : cell.file;
+    }
+
+    @Override
+    public Component getCellRendererComponent(ImageGrid<Cell> grid, Cell cell, BufferedImage thumbnail, boolean selected) {
+        File f = cell.file;
+        Metadata md = cell.metadata;
+
+        Dimension d = new Dimension(imageWidth, getScaledHeight(md.getWidthInPixels(), md.getHeightInPixels(), imageWidth));
+        image.setMinimumSize(d);
+        image.setPreferredSize(d);
+        image.setMaximumSize(d);
+        image.image = thumbnail;
+        image.setText(cell.deleted ? "deleted" : "");
+        image.setToolTipText(f.getAbsolutePath());
+
+        nameLabel.setText(f.getName());
+        dirLabel.setText("in " + f.getParentFile().getName());
+        double sz = cell.length;
+        sz /= 1024.0;
+        if (sz > 1000) {
+            sizeLabel.setText(DOUBLE_FORMATTER.format(sz / 1024.0) + " Mb");
+        } else {
+            sizeLabel.setText(DOUBLE_FORMATTER.format(sz) + " Kb");
+        }
+
+        dateLabel.setText(DATE_FORMAT.format(cell.date));
+        dimensionsLabel.setText(getFineText("Size: ", md.getWidthInPixels(), " x ", md.getHeightInPixels()));
+        gpsLabel.setText(getFineText("GPS: ", md.getGPSInfo()));
+        deleteButton.setEnabled(!cell.deleted);
+        panel.setBackground(grid.getBackground());
+        return panel;
+    }
+
+    private static int getScaledHeight(Integer widthInPixels, Integer heightInPixels, int actualWidth) {
+        if (widthInPixels == null || heightInPixels == null)
+            // If we don't know the dimensions of the image make it square by returning the width of the container
+            return actualWidth;
+
+        double factor = (double) actualWidth / (double) widthInPixels;
+        return (int) (factor * heightInPixels);
+    }
+
+    private static String getFineText(Object ... args) {
+        StringBuilder sb = new StringBuilder();
+        for (Object o : args) {
+            if (o == null)
+                return " "; // keep the space in the layout
+
+            sb.append(o.toString());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A file in a group of duplicates.
+     */
+    static class Cell {
+        final File file;
+        final Metadata metadata;
+        final long length;
+        final Date date;
+        boolean deleted;
+
+        Cell(File file, Metadata metadata) {
+            this.file = file;
+            this.metadata = metadata;
+            length = file.length();
+            Date d = metadata.getDateTaken();
+            if (d == null) {
+                d = FileTools.getFileModificationDate(file);
+            }
+            date = d;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class ImageLabel extends JLabel {
+        private BufferedImage image;
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            super.paintComponent(g);
+            if (image != null)
+                g.drawImage(image, 0, 0, getWidth(), getHeight(), null);
+        }
+    }
+}
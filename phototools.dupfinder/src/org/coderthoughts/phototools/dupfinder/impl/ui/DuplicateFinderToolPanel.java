@@ -25,6 +25,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -34,6 +35,7 @@ import javax.swing.BorderFactory;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
@@ -41,18 +43,23 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTextField;
-import javax.swing.SwingUtilities;
 import javax.swing.border.TitledBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import org.coderthoughts.phototools.api.CancellablePhotoIterable;
+import org.coderthoughts.phototools.api.CancellationToken;
 import org.coderthoughts.phototools.api.PhotoIterable;
 import org.coderthoughts.phototools.api.PhotoIterable.Entry;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 import org.coderthoughts.phototools.api.ToolPanel;
+import org.coderthoughts.phototools.dupfinder.impl.DuplicateFinder;
+import org.coderthoughts.phototools.util.DirectoryIndex;
 import org.coderthoughts.phototools.util.DirectoryPhotoIterable;
 import org.coderthoughts.phototools.util.OSGiTools;
+import org.coderthoughts.phototools.util.TaskScheduler;
 import org.coderthoughts.phototools.util.ui.UIUtils;
+import org.coderthoughts.phototools.util.ui.WatchedLocation;
 import org.coderthoughts.phototools.util.ui.WrappingFlowLayout;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
@@ -61,11 +68,19 @@ public class DuplicateFinderToolPanel implements ToolPanel {
     private static final String PREFERENCE_FILENAME = "dupfinder.storage";
     private static final String PREFERENCE_KEY_DIRECTORY = "directory";
     private static final String PREFERENCE_KEY_EXTENSIONS = "extensions";
+    private static final String PREFERENCE_KEY_COMPARE_MODE = "compare.mode";
+    // The indices match the DuplicateFinder.COMPARE_* modes
+    private static final String [] COMPARE_MODE_LABELS = {
+        "Same date taken, or same name and size",
+        "Identical file contents",
+        "Similar looking images"};
 
     private final BundleContext bundleContext;
     private Collection<JCheckBox> extensionChecks;
+    private JComboBox<String> compareModeCB;
     private JPanel thePanel;
     private JSplitPane toolSplitPane;
+    private WatchedLocation watchedLocation;
 
     public DuplicateFinderToolPanel(BundleContext context) {
         bundleContext = context;
@@ -104,6 +119,14 @@ public class DuplicateFinderToolPanel implements ToolPanel {
         final JTextField locationTF = new JTextField(35);
         locationPNL.add(locationTF);
 
+        // Refresh the preview when other programs change the selected directory
+        watchedLocation = new WatchedLocation(bundleContext, new Runnable() {
+            @Override
+            public void run() {
+                updateLocationAsync(right, locationTF.getText());
+            }
+        });
+
         JButton selectBTN = new JButton("Select...");
         selectBTN.addActionListener(new ActionListener() {
             @Override
@@ -165,6 +188,22 @@ public class DuplicateFinderToolPanel implements ToolPanel {
         curTypesPNL.add(getAllOrNoneButton(types.values(), false));
         leftContents.add(typesPNL);
 
+        JPanel optionsPNL = new JPanel(new FlowLayout(FlowLayout.LEADING));
+        optionsPNL.add(new JLabel("Find: "));
+        compareModeCB = new JComboBox<String>(COMPARE_MODE_LABELS);
+        compareModeCB.setToolTipText("Identical file contents finds renamed copies and ignores different photos " +
+                "taken in the same second. Similar looking images also finds copies at another resolution or quality.");
+        compareModeCB.setSelectedIndex(parseCompareModePrefValue(getPreferenceValue(PREFERENCE_KEY_COMPARE_MODE)));
+        compareModeCB.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setPreferenceValue(PREFERENCE_KEY_COMPARE_MODE, "" + compareModeCB.getSelectedIndex());
+            }
+        });
+        optionsPNL.add(compareModeCB);
+        optionsPNL.setAlignmentX(Component.LEFT_ALIGNMENT);
+        leftContents.add(optionsPNL);
+
         JPanel startPNL = new JPanel(new FlowLayout(FlowLayout.LEADING));
         startPNL.add(new JLabel("To start click ->"));
 
@@ -175,7 +214,8 @@ public class DuplicateFinderToolPanel implements ToolPanel {
                 if (!new File(locationTF.getText()).isDirectory()) {
                     JOptionPane.showMessageDialog(parentWindow, "Please specify a directory first", "No directory selected", JOptionPane.INFORMATION_MESSAGE);
                 } else {
-                    RunDuplicateFinderDialog.run(parentWindow, bundleContext, locationTF.getText(), getExtensions());
+                    RunDuplicateFinderDialog.run(parentWindow, bundleContext, locationTF.getText(), getExtensions(),
+                            compareModeCB.getSelectedIndex());
                 }
             }
         });
@@ -213,6 +253,14 @@ public class DuplicateFinderToolPanel implements ToolPanel {
         toolSplitPane.setDividerLocation((int) (thePanel.getWidth() * 0.6));
     }
 
+    /**
+     * Stop watching the selected directory, called when the panel is disposed.
+     */
+    public void close() {
+        if (watchedLocation != null)
+            watchedLocation.close();
+    }
+
     private Collection<String> parseExtensionPrefValue(String preferenceValue, Collection<String> defaults) {
         if (preferenceValue == null)
             return defaults;
@@ -220,6 +268,17 @@ public class DuplicateFinderToolPanel implements ToolPanel {
             return Arrays.asList(preferenceValue.split(" "));
     }
 
+    private int parseCompareModePrefValue(String preferenceValue) {
+        try {
+            int mode = Integer.parseInt(preferenceValue);
+            if (mode >= 0 && mode < COMPARE_MODE_LABELS.length)
+                return mode;
+        } catch (NumberFormatException e) {
+            // use the default
+        }
+        return DuplicateFinder.COMPARE_METADATA;
+    }
+
     private String getExtensionPrefValue() {
         StringBuilder sb = new StringBuilder();
         for (String ext : getExtensions()) {
@@ -253,51 +312,73 @@ public class DuplicateFinderToolPanel implements ToolPanel {
     }
 
     private void updateLocationAsync(final JPanel previewPNL, final String directory) {
-        new Thread(new Runnable() {
+        watchedLocation.setLocation(new File(directory));
+        // A newer update of the preview supersedes this one
+        UIUtils.getTaskScheduler(bundleContext).submit(previewPNL, new Runnable() {
             @Override
             public void run() {
-                PhotoIterable pi = new DirectoryPhotoIterable(directory).
+                PhotoIterable pi = new DirectoryPhotoIterable(directory,
+                        DirectoryIndex.getIndex(bundleContext, new File(directory))).
                         setExtensions(getExtensions().toArray(new String[] {})).
                         freeze();
-                updateLocation(previewPNL, pi);
+                updateLocation(previewPNL, pi, TaskScheduler.getCurrentToken());
             }
-        }).start();
+        }, TaskScheduler.PRIORITY_UI);
     }
 
-    private void updateLocation(JPanel previewPNL, PhotoIterable pi) {
+    private void updateLocation(final JPanel previewPNL, PhotoIterable pi, CancellationToken token) {
         if (pi == null)
             return;
 
-        previewPNL.removeAll();
-        JLabel label = new JLabel("Searching ...");
-        previewPNL.add(label, BorderLayout.NORTH);
-        JPanel imagePNL = new JPanel();
+        final JLabel label = new JLabel("Searching ...");
+        final JPanel imagePNL = new JPanel();
         FlowLayout flowLayout = new WrappingFlowLayout();
         flowLayout.setAlignment(FlowLayout.LEADING);
         imagePNL.setLayout(flowLayout);
-        previewPNL.add(imagePNL, BorderLayout.CENTER);
+        UIUtils.invokeLater(token, new Runnable() {
+            @Override
+            public void run() {
+                previewPNL.removeAll();
+                previewPNL.add(label, BorderLayout.NORTH);
+                previewPNL.add(imagePNL, BorderLayout.CENTER);
+                previewPNL.revalidate();
+            }
+        });
 
         int numImages = 0;
-        for (Entry entry : pi) {
-            if (addImageIfWithinConstraints(imagePNL, entry))
+        Iterator<Entry> it;
+        if (pi instanceof CancellablePhotoIterable)
+            it = ((CancellablePhotoIterable) pi).iterator(token);
+        else
+            it = pi.iterator();
+        while (!token.isCancelled() && it.hasNext()) {
+            if (addImageIfWithinConstraints(imagePNL, it.next(), token))
                 numImages++;
 
             if (numImages >= 6)
                 break;
         }
 
+        final String text;
         if (numImages == 0)
-            label.setText("No images found at location: " + pi.getLocationString());
+            text = "No images found at location: " + pi.getLocationString();
         else
-            label.setText("Found these images: " + pi.getLocationString());
+            text = "Found these images: " + pi.getLocationString();
+        UIUtils.invokeLater(token, new Runnable() {
+            @Override
+            public void run() {
+                label.setText(text);
+            }
+        });
     }
 
-    private boolean addImageIfWithinConstraints(final JPanel imagePanel, final Entry entry) {
-        final JPanel p = UIUtils.getPhotoPreview(bundleContext, entry, null, null);
+    private boolean addImageIfWithinConstraints(final JPanel imagePanel, final Entry entry, CancellationToken token) {
+        final JPanel p = UIUtils.getPhotoPreview(bundleContext, entry, null, null, token);
         if (p != null) {
-            SwingUtilities.invokeLater(new Runnable() {
+            UIUtils.invokeLater(token, new Runnable() {
                 public void run() {
                     imagePanel.add(p);
+                    imagePanel.revalidate();
                 }
             });
         }
@@ -17,25 +17,26 @@ import java.awt.Component;
 import java.awt.Dimension;
 import java.awt.FlowLayout;
 import java.awt.Font;
-import java.awt.Graphics;
 import java.awt.Window;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
 import java.io.File;
-import java.text.DecimalFormat;
-import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.swing.BorderFactory;
-import javax.swing.BoxLayout;
-import javax.swing.ImageIcon;
 import javax.swing.JButton;
 import javax.swing.JDialog;
 import javax.swing.JLabel;
@@ -45,34 +46,46 @@ import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.SwingUtilities;
 
+import org.coderthoughts.phototools.api.LibraryListener;
+import org.coderthoughts.phototools.api.LibraryWatcher;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
-import org.coderthoughts.phototools.api.PhotoMetadataProvider.Metadata;
 import org.coderthoughts.phototools.dupfinder.impl.DuplicateFinder;
-import org.coderthoughts.phototools.util.DirTreeIterable;
-import org.coderthoughts.phototools.util.FileTools;
+import org.coderthoughts.phototools.util.DirectoryIndex;
+import org.coderthoughts.phototools.util.FileTreeIterable;
 import org.coderthoughts.phototools.util.OSGiTools;
-import org.coderthoughts.phototools.util.ui.WrappingFlowLayout;
+import org.coderthoughts.phototools.util.TaskScheduler;
+import org.coderthoughts.phototools.util.ThumbnailService;
+import org.coderthoughts.phototools.util.ui.ImageGrid;
+import org.coderthoughts.phototools.util.ui.UIUtils;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
 
 @SuppressWarnings("serial")
 public class RunDuplicateFinderDialog extends JDialog {
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("dd-MM-yyyy");
-    private static final DecimalFormat DOUBLE_FORMATTER = new DecimalFormat("#.##");
+    private static final int BATCH_SIZE = 32;
 
     private volatile boolean closed = false;
+    private volatile boolean scanning = false;
+    private volatile boolean reviewing = false;
     private final Map<String, PhotoMetadataProvider> metadataProviders;
-    private final String rootLocation;
+    private final DirectoryIndex directoryIndex;
+    private final int compareMode;
+    private final ExecutorService libraryUpdater = Executors.newSingleThreadExecutor();
+    private volatile DuplicateFinder duplicateFinder;
     private final JLabel statusLabel;
     private final JProgressBar progressBar;
     private ListIterator<List<File>> candidateIterator;
-    private JPanel imagePanel;
+    private int shownIndex = -1;
+    private final ImageGrid<DuplicateCellRenderer.Cell> imageGrid;
+    private final DuplicateCellRenderer cellRenderer;
     private boolean lastActionPrev = false;
-    private Font smallerFont;
 
-    public RunDuplicateFinderDialog(Window parentWindow, String root, Map<String, PhotoMetadataProvider> pmps) {
+    public RunDuplicateFinderDialog(Window parentWindow, DirectoryIndex index, Map<String, PhotoMetadataProvider> pmps, int mode,
+            ThumbnailService thumbnails) {
         super(parentWindow);
-        rootLocation = root;
+        directoryIndex = index;
+        compareMode = mode;
         metadataProviders = pmps;
         setTitle("Duplicate Finder");
 
@@ -87,10 +100,23 @@ public class RunDuplicateFinderDialog extends JDialog {
         statusLabel = new JLabel();
         topPanel.add(statusLabel, BorderLayout.SOUTH);
         dialogPanel.add(topPanel, BorderLayout.NORTH);
-        smallerFont = new Font(progressLabel.getFont().getName(), 0, progressLabel.getFont().getSize() - 1);
+        Font smallerFont = new Font(progressLabel.getFont().getName(), 0, progressLabel.getFont().getSize() - 1);
 
-        imagePanel = new JPanel(new WrappingFlowLayout(FlowLayout.LEADING));
-        JScrollPane scrollPane = new JScrollPane(imagePanel,
+        cellRenderer = new DuplicateCellRenderer(smallerFont);
+        imageGrid = new ImageGrid<DuplicateCellRenderer.Cell>(cellRenderer, new Dimension(100, 100), thumbnails, 100);
+        imageGrid.setSelectionEnabled(false);
+        imageGrid.addCellListener(new ImageGrid.CellListener<DuplicateCellRenderer.Cell>() {
+            @Override
+            public void cellClicked(ImageGrid<DuplicateCellRenderer.Cell> grid, int index, Component target, MouseEvent e) {
+                DuplicateCellRenderer.Cell cell = grid.getItem(index);
+                if (cellRenderer.isImage(target)) {
+                    DetailsDialog.showDetailsDialog(RunDuplicateFinderDialog.this, cell.file.getAbsolutePath(), cell.metadata.getDetails());
+                } else if (cellRenderer.isDeleteButton(target) && !cell.deleted) {
+                    deleteFile(cell);
+                }
+            }
+        });
+        JScrollPane scrollPane = new JScrollPane(imageGrid,
                 JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED,
                 JScrollPane.HORIZONTAL_SCROLLBAR_NEVER);
         dialogPanel.add(scrollPane, BorderLayout.CENTER);
@@ -141,6 +167,7 @@ public class RunDuplicateFinderDialog extends JDialog {
         progressBar.setValue(0);
         statusLabel.setText("Click on an image for more details...");
         candidateIterator = candidates.listIterator();
+        reviewing = true;
         showNextCandidate();
     }
 
@@ -179,159 +206,241 @@ public class RunDuplicateFinderDialog extends JDialog {
     }
 
     private void showCandidate(List<File> candidates, final int idx) {
+        shownIndex = idx;
+        final List<DuplicateCellRenderer.Cell> cells = new ArrayList<DuplicateCellRenderer.Cell>(candidates.size());
+        for (File f : candidates) {
+            PhotoMetadataProvider pmp = getMetadataProvider(f);
+            if (pmp != null)
+                cells.add(new DuplicateCellRenderer.Cell(f, pmp.getMetaData(f)));
+        }
+
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                imagePanel.removeAll();
-                imagePanel.repaint();
                 progressBar.setValue(idx + 1);
+                imageGrid.clear();
+
+                // All cells get the size of the largest one
+                int actualWidth = getWidth() / 4;
+                cellRenderer.setImageWidth(actualWidth);
+                Dimension cellSize = new Dimension();
+                for (DuplicateCellRenderer.Cell cell : cells) {
+                    Dimension d = cellRenderer.getPreferredSize(imageGrid, cell);
+                    cellSize.width = Math.max(cellSize.width, d.width);
+                    cellSize.height = Math.max(cellSize.height, d.height);
+                }
+                imageGrid.setCellSize(cellSize, actualWidth);
+                for (DuplicateCellRenderer.Cell cell : cells) {
+                    imageGrid.addItem(cell, false);
+                }
             }
         });
+    }
 
-        for (final File f : candidates) {
-            final JPanel dupPanel = getDuplicatePanel(f);
-            if (dupPanel != null) {
-                SwingUtilities.invokeLater(new Runnable() {
-                    @Override
-                    public void run() {
-                        imagePanel.add(dupPanel);
-                        imagePanel.revalidate();
-                    }
-                });
+    private void deleteFile(DuplicateCellRenderer.Cell cell) {
+        File f = cell.file;
+        if (JOptionPane.showConfirmDialog(RunDuplicateFinderDialog.this, "Delete file: " + f.getAbsolutePath(),
+                "Confirm Delete", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION) {
+            if (f.delete()) {
+                cell.deleted = true;
+                imageGrid.repaint();
+                JOptionPane.showMessageDialog(RunDuplicateFinderDialog.this, "File deleted.", "Delete", JOptionPane.INFORMATION_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(RunDuplicateFinderDialog.this, "Unable to delete: " + f.getAbsolutePath(), "Delete", JOptionPane.WARNING_MESSAGE);
             }
         }
     }
 
-    private JPanel getDuplicatePanel(final File f) {
-        Metadata md = getMetadataProvider(f).getMetaData(f);
+    private PhotoMetadataProvider getMetadataProvider(File f) {
+        String ext = f.getName().toLowerCase();
+        int idx = ext.lastIndexOf('.');
+        if (idx >= 0)
+            ext = ext.substring(idx);
+
+        return metadataProviders.get(ext);
+    }
+
+    private void findDuplicates(TaskScheduler scheduler) {
+        final DuplicateFinder df = new DuplicateFinder(metadataProviders, compareMode);
+        duplicateFinder = df;
+
+        // The directory tree is walked once on this thread, the candidates are processed in parallel in
+        // batches, so that the metadata providers can read the files of a batch in the best order.
+        // The progress is relative to the number of files found so far, as the total isn't known upfront.
+        CandidateProcessor processor = new CandidateProcessor(df, scheduler);
+        progressBar.setValue(0);
+        statusLabel.setText("Reading directories...");
+        directoryIndex.refresh();
+        scanning = true;
+        List<File> batch = new ArrayList<File>(BATCH_SIZE);
+        for (FileTreeIterable.Entry entry : directoryIndex) {
+            if (closed)
+                break;
+
+            if (!entry.isFile())
+                continue;
 
-        JPanel panel = new JPanel();
-        panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
-        JLabel image = new JLabel(new ImageIcon(f.getAbsolutePath())) {
-            public void paintComponent(Graphics g) {
-                super.paintComponent(g);
-                g.drawImage(((ImageIcon)getIcon()).getImage(), 0, 0, getWidth(), getHeight(), null);
+            batch.add(entry.getFile());
+            processor.numFound.incrementAndGet();
+            if (batch.size() == BATCH_SIZE) {
+                processor.add(batch);
+                batch = new ArrayList<File>(BATCH_SIZE);
             }
-        };
-        int actualWidth = getWidth() / 4;
-        Dimension d = new Dimension(actualWidth, getScaledHeight(md.getWidthInPixels(), md.getHeightInPixels(), actualWidth));
-        image.setMaximumSize(d);
-        image.setPreferredSize(d);
-        image.setMaximumSize(d);
-        image.setBorder(BorderFactory.createRaisedBevelBorder());
-        image.setAlignmentX(Component.LEFT_ALIGNMENT);
-        image.setToolTipText(f.getAbsolutePath());
-        panel.add(image);
-        panel.add(new JLabel(f.getName()));
-        panel.add(getFineLabel("in " + f.getParentFile().getName()));
-        double sz = f.length();
-        sz /= 1024.0;
-        if (sz > 1000) {
-            panel.add(getFineLabel(DOUBLE_FORMATTER.format(sz / 1024.0) + " Mb"));
-        } else {
-            panel.add(getFineLabel(DOUBLE_FORMATTER.format(sz) + " Kb"));
         }
+        processor.add(batch);
 
-        Date date = md.getDateTaken();
-        if (date == null) {
-            date = FileTools.getFileModificationDate(f);
+        try {
+            processor.finish();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
         }
-        panel.add(getFineLabel(DATE_FORMAT.format(date)));
-        addFineLabel(panel, "Size: ", md.getWidthInPixels(), " x ", md.getHeightInPixels());
-        addFineLabel(panel, "GPS: ", md.getGPSInfo());
-        final Metadata mdFinal = md;
-        image.addMouseListener(new MouseAdapter() {
-            @Override
-            public void mouseClicked(MouseEvent e) {
-                DetailsDialog.showDetailsDialog(RunDuplicateFinderDialog.this, f.getAbsolutePath(), mdFinal.getDetails());
-            }
-        });
+        scanning = false;
+        if (closed)
+            return;
 
-        final JButton deleteButton = new JButton("Delete");
-        deleteButton.addActionListener(new ActionListener() {
-            @Override
-            public void actionPerformed(ActionEvent e) {
-                if (JOptionPane.showConfirmDialog(RunDuplicateFinderDialog.this, "Delete file: " + f.getAbsolutePath(),
-                        "Confirm Delete", JOptionPane.OK_CANCEL_OPTION, JOptionPane.QUESTION_MESSAGE) == JOptionPane.OK_OPTION) {
-                    if (f.delete()) {
-                        deleteButton.setEnabled(false);
-                        JOptionPane.showMessageDialog(RunDuplicateFinderDialog.this, "File deleted.", "Delete", JOptionPane.INFORMATION_MESSAGE);
-                    } else {
-                        JOptionPane.showMessageDialog(RunDuplicateFinderDialog.this, "Unable to delete: " + f.getAbsolutePath(), "Delete", JOptionPane.WARNING_MESSAGE);
-                    }
-                }
-            }
-        });
-        panel.add(deleteButton);
-        return panel;
+        statusLabel.setText("Analyzing duplicate candidates...");
+        initializeDuplicateReview(df.getCandidatesList());
     }
 
-    private int getScaledHeight(Integer widthInPixels, Integer heightInPixels, int actualWidth) {
-        if (widthInPixels == null || heightInPixels == null)
-            // If we don't know the dimensions of the image make it square by returning the width of the container
-            return actualWidth;
-
-        double factor = (double) actualWidth / (double) widthInPixels;
-        return (int) (factor * heightInPixels);
-    }
+    /**
+     * Adds batches of candidates to the duplicate finder on tasks of the shared task scheduler, so
+     * that a scan doesn't add threads to those of the scheduler. When more batches are waiting than the
+     * scheduler runs at the same time, the thread that adds the batches processes them itself. This
+     * limits the batches held in memory and keeps the scan going when the scheduler threads are
+     * busy, including the one that runs the scan.
+     */
+    private class CandidateProcessor implements Runnable {
+        private final DuplicateFinder df;
+        private final TaskScheduler scheduler;
+        private final int maxWorkers;
+        private final Queue<List<File>> batches = new ConcurrentLinkedQueue<List<File>>();
+        private final AtomicInteger workers = new AtomicInteger();
+        final AtomicInteger numFound = new AtomicInteger();
+        private int numAdded; // only used by the thread that adds the batches
+        private int numProcessed; // guarded by this
+
+        CandidateProcessor(DuplicateFinder df, TaskScheduler scheduler) {
+            this.df = df;
+            this.scheduler = scheduler;
+            maxWorkers = scheduler.getMaximumThreads();
+        }
 
-    private void addFineLabel(JPanel panel, Object ... args) {
-        StringBuilder sb = new StringBuilder();
-        for (Object o : args) {
-            if (o == null)
+        void add(List<File> batch) {
+            if (batch.isEmpty())
                 return;
 
-            sb.append(o.toString());
-        }
-        panel.add(getFineLabel(sb.toString()));
-    }
-
-    private JLabel getFineLabel(String text) {
-        JLabel label = new JLabel(text);
-        label.setFont(smallerFont);
-        return label;
-    }
+            numAdded += batch.size();
+            batches.add(batch);
+            if (workers.incrementAndGet() <= maxWorkers)
+                scheduler.submit(this, TaskScheduler.PRIORITY_NORMAL);
+            else
+                workers.decrementAndGet();
 
-    private PhotoMetadataProvider getMetadataProvider(File f) {
-        String ext = f.getName().toLowerCase();
-        int idx = ext.lastIndexOf('.');
-        if (idx >= 0)
-            ext = ext.substring(idx);
+            while (batches.size() > maxWorkers && processNext());
+        }
 
-        return metadataProviders.get(ext);
-    }
+        /**
+         * Process the batches that are still waiting, and wait for the scheduler tasks to finish theirs.
+         */
+        void finish() throws InterruptedException {
+            while (processNext());
+            synchronized (this) {
+                while (numProcessed < numAdded)
+                    wait();
+            }
+        }
 
-    private void findDuplicates() {
-        DirTreeIterable it = new DirTreeIterable(new File(rootLocation));
-        int numFiles = 0;
-        for (File f : it) {
-            if (!f.isFile())
-                continue;
+        @Override
+        public void run() {
+            try {
+                while (processNext());
+            } finally {
+                workers.decrementAndGet();
+            }
+        }
 
-            numFiles++;
+        private boolean processNext() {
+            List<File> files = batches.poll();
+            if (files == null)
+                return false;
+
+            int processed;
+            try {
+                if (!closed)
+                    df.addCandidates(files);
+            } finally {
+                synchronized (this) {
+                    numProcessed += files.size();
+                    processed = numProcessed;
+                    notifyAll();
+                }
+            }
+            if (!closed)
+                updateProgress(processed, numFound.get(), files.get(files.size() - 1));
+            return true;
         }
+    }
 
-        progressBar.setMaximum(numFiles);
+    /**
+     * Apply changes made to the directory tree by other programs while the dialog is open.
+     */
+    private void libraryChanged(final List<LibraryListener.Event> events) {
+        libraryUpdater.execute(new Runnable() {
+            @Override
+            public void run() {
+                DuplicateFinder df = duplicateFinder;
+                if (df == null || closed)
+                    return;
+
+                boolean changed = false;
+                for (LibraryListener.Event event : events) {
+                    File f = event.getFile();
+                    if (getMetadataProvider(f) == null)
+                        continue;
+
+                    if (event.getType() == LibraryListener.Event.REMOVED) {
+                        df.removeCandidate(f);
+                    } else if (f.isFile()) {
+                        df.addCandidate(f);
+                    }
+                    changed = true;
+                }
 
-        DuplicateFinder df = new DuplicateFinder(metadataProviders);
-        progressBar.setValue(0);
-        for (File f : it) {
-            if (closed)
-                return;
+                if (changed && reviewing)
+                    refreshDuplicateReview(df.getCandidatesList());
+            }
+        });
+    }
 
-            if (!f.isFile())
-                continue;
+    private void refreshDuplicateReview(final List<List<File>> candidates) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                // Continue after the candidate that is currently shown
+                lastActionPrev = false;
+                candidateIterator = candidates.listIterator(Math.min(shownIndex + 1, candidates.size()));
+                progressBar.setMaximum(candidates.size());
+                statusLabel.setText("The directory has changed, " + candidates.size() + " duplicate candidates.");
+            }
+        });
+    }
 
-            progressBar.setValue(progressBar.getValue() + 1);
-            statusLabel.setText("Searching: " + f.getAbsolutePath());
-            df.addCandidate(f);
-        }
+    private void updateProgress(final int processed, final int found, final File current) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!scanning || progressBar.getValue() > processed)
+                    return; // late or overtaken update
 
-        statusLabel.setText("Analyzing duplicate candidates...");
-        initializeDuplicateReview(df.getCandidatesList());
+                progressBar.setMaximum(found);
+                progressBar.setValue(processed);
+                statusLabel.setText("Searching: " + current.getAbsolutePath());
+            }
+        });
     }
 
-    public static void run(Window parentWindow, BundleContext ctx, String root, Collection<String> extensions) {
+    public static void run(Window parentWindow, final BundleContext ctx, String root, Collection<String> extensions, int compareMode) {
         ServiceReference[] refs = OSGiTools.getSortedServiceReferences(ctx, PhotoMetadataProvider.class.getName(), null);
         if (refs.length == 0)
             throw new IllegalStateException("No PhotoMetadataProvider instances found in Service Registry.");
@@ -345,15 +454,54 @@ public class RunDuplicateFinderDialog extends JDialog {
             }
         }
 
-        final RunDuplicateFinderDialog dialog = new RunDuplicateFinderDialog(parentWindow, root, pmps);
+        final File rootFile = new File(root).getAbsoluteFile();
+        final RunDuplicateFinderDialog dialog = new RunDuplicateFinderDialog(parentWindow,
+                DirectoryIndex.getIndex(ctx, rootFile), pmps, compareMode, UIUtils.getThumbnailService(ctx));
         dialog.setLocationByPlatform(true);
         dialog.setModal(true);
-        new Thread(new Runnable() {
+
+        // Keep the candidates up to date with changes made by other programs while the dialog is open
+        ServiceRegistration listenerReg = ctx.registerService(LibraryListener.class.getName(), new LibraryListener() {
+            @Override
+            public void libraryChanged(File changedRoot, List<Event> events) {
+                if (rootFile.equals(changedRoot))
+                    dialog.libraryChanged(events);
+            }
+        }, null);
+        final ServiceReference watcherRef = ctx.getServiceReference(LibraryWatcher.class.getName());
+        final LibraryWatcher watcher = watcherRef == null ? null : (LibraryWatcher) ctx.getService(watcherRef);
+
+        final TaskScheduler scheduler = UIUtils.getTaskScheduler(ctx);
+        final Future<?> finderTask = scheduler.submit(new Runnable() {
             @Override
             public void run() {
-                dialog.findDuplicates();
+                if (watcher != null)
+                    watcher.watch(rootFile);
+                dialog.findDuplicates(scheduler);
             }
-        }).start();
-        dialog.setVisible(true);
+        }, TaskScheduler.PRIORITY_NORMAL);
+        dialog.setVisible(true); // blocks until the dialog is closed
+
+        dialog.closed = true;
+        dialog.libraryUpdater.shutdownNow();
+        listenerReg.unregister();
+        if (watcher != null) {
+            scheduler.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        finderTask.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (ExecutionException e) {
+                        e.printStackTrace();
+                    } catch (CancellationException e) {
+                        // the scheduler was closed
+                    }
+                    watcher.unwatch(rootFile);
+                    ctx.ungetService(watcherRef);
+                }
+            }, TaskScheduler.PRIORITY_BACKGROUND);
+        }
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.dupfinder.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class BKTreeTest extends TestCase {
+    public void testQuerySameAsBruteForce() {
+        Random random = new Random(42);
+        List<Long> hashes = new ArrayList<Long>();
+        BKTree tree = new BKTree();
+        for (int i = 0; i < 2000; i++) {
+            long hash;
+            if (i > 0 && i % 5 == 0) {
+                // a near-duplicate of an earlier hash, with a few bits flipped
+                hash = hashes.get(random.nextInt(hashes.size()));
+                for (int j = random.nextInt(6); j > 0; j--) {
+                    hash ^= 1L << random.nextInt(64);
+                }
+            } else {
+                hash = random.nextLong();
+            }
+            hashes.add(hash);
+            tree.add(hash, i);
+        }
+        assertEquals(2000, tree.size());
+
+        for (int i = 0; i < 200; i++) {
+            long query = hashes.get(random.nextInt(hashes.size()));
+            for (int maxDistance : new int [] {0, 3, 10}) {
+                Set<Integer> expected = new HashSet<Integer>();
+                for (int j = 0; j < hashes.size(); j++) {
+                    if (ImageHasher.distance(query, hashes.get(j)) <= maxDistance)
+                        expected.add(j);
+                }
+                assertEquals(expected, new HashSet<Integer>(tree.query(query, maxDistance)));
+            }
+        }
+    }
+
+    public void testChildrenAtEveryDistance() {
+        // The root gets a child at every possible distance, added in random order
+        List<Integer> distances = new ArrayList<Integer>();
+        for (int d = 1; d <= Long.SIZE; d++) {
+            distances.add(d);
+        }
+        Collections.shuffle(distances, new Random(42));
+
+        BKTree tree = new BKTree();
+        tree.add(0L, 0);
+        for (int d : distances) {
+            tree.add(-1L >>> (Long.SIZE - d), d); // the lowest d bits set
+        }
+
+        for (int d = 0; d <= Long.SIZE; d++) {
+            long hash = d == 0 ? 0L : -1L >>> (Long.SIZE - d);
+            assertEquals(Collections.singletonList(d), tree.query(hash, 0));
+        }
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)), new HashSet<Integer>(tree.query(0L, 2)));
+    }
+
+    public void testEmptyTree() {
+        assertEquals(0, new BKTree().query(12345L, 10).size());
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.dupfinder.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ContentHasherTest extends TestCase {
+    public void testFullHash() throws Exception {
+        // Spans a number of reads, the last one partial
+        byte [] contents = new byte [2 * 1024 * 1024 + 12345];
+        new Random(42).nextBytes(contents);
+
+        File f = File.createTempFile(getClass().getSimpleName(), ".jpg");
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            try {
+                fos.write(contents);
+            } finally {
+                fos.close();
+            }
+
+            String expected = toHex(MessageDigest.getInstance("SHA-256").digest(contents));
+            assertEquals(expected, ContentHasher.fullHash(f));
+            assertEquals(expected, ContentHasher.fullHash(f));
+            assertFalse(expected.equals(ContentHasher.partialHash(f)));
+        } finally {
+            assertTrue("The file should not be held on to", f.delete());
+        }
+    }
+
+    private static String toHex(byte [] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.dupfinder.impl;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+
+/**
+ * Measures the grouping of candidate duplicates with growing numbers of synthetic candidates.
+ * The timings are printed, they are not asserted.
+ */
+public class DuplicateFinderBenchmark extends TestCase {
+    public void testScaling() {
+        for (int count : new int [] {10000, 100000, 1000000}) {
+            runBenchmark(count);
+        }
+    }
+
+    private void runBenchmark(int count) {
+        DuplicateFinder df = new DuplicateFinder(Collections.<String, PhotoMetadataProvider>emptyMap());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            // Every 10th file shares its date key with the previous file, and every 100th file
+            // shares its name key with a file 50 positions back, so that groups chain together.
+            Object dateKey = i % 10 == 0 ? "date" + (i - 1) : "date" + i;
+            Object nameKey = i % 100 == 0 ? "name" + (i - 50) : "name" + i;
+            df.addCandidate(new File("/synthetic/IMG_" + i + ".JPG"), new Object [] {dateKey, nameKey});
+        }
+        long addTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        List<List<File>> candidates = df.getCandidatesList();
+        long groupTime = System.nanoTime() - start;
+
+        System.out.println("Duplicate finder with " + count + " candidates: adding " + (addTime / 1000000) +
+                " ms, grouping " + (groupTime / 1000000) + " ms, " + candidates.size() + " groups");
+        assertTrue(candidates.size() > 0);
+    }
+}
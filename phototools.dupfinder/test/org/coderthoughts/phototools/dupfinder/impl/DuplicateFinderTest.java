@@ -12,8 +12,14 @@
  */
 package org.coderthoughts.phototools.dupfinder.impl;
 
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
@@ -25,8 +31,11 @@ import java.util.Map;
 import java.util.Set;
 import java.util.TimeZone;
 
+import javax.imageio.ImageIO;
+
 import junit.framework.TestCase;
 
+import org.coderthoughts.phototools.api.BatchPhotoMetadataProvider;
 import org.coderthoughts.phototools.api.PhotoMetadataBuilder;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
 
@@ -113,6 +122,353 @@ public class DuplicateFinderTest extends TestCase {
         assertFalse(found1 == found2);
     }
 
+    public void testAddCandidates() {
+        URL imageDirURL = getClass().getResource("images");
+        File imageDir = new File(imageDirURL.getFile());
+
+        final PhotoMetadataProvider jpmp = getMockJPEGMetadataProvider();
+        final List<List<File>> batches = new ArrayList<List<File>>();
+        PhotoMetadataProvider batchProvider = new BatchPhotoMetadataProvider() {
+            @Override
+            public Metadata getMetaData(File f) {
+                fail("Should have been asked for the metadata in a batch");
+                return null;
+            }
+
+            @Override
+            public List<Metadata> getMetaData(List<File> files) {
+                batches.add(files);
+                List<Metadata> result = new ArrayList<Metadata>();
+                for (File f : files) {
+                    result.add(jpmp.getMetaData(f));
+                }
+                return result;
+            }
+        };
+
+        Map<String, PhotoMetadataProvider> providers = new HashMap<String, PhotoMetadataProvider>();
+        providers.put(".jpg", batchProvider);
+        providers.put(".jpeg", batchProvider);
+        providers.put(".gif", getMockGifMetadataProvider());
+
+        DuplicateFinder df = new DuplicateFinder(providers);
+        File fa1 = new File(imageDir, "image1_1.jpg");
+        File fa2 = new File(imageDir, "image1.jpeg");
+        File fa3 = new File(imageDir, "sub/image1.jpg");
+        File fb1 = new File(imageDir, "services.gif");
+        File fb2 = new File(imageDir, "svcs.gif");
+        File fb3 = new File(imageDir, "sub/services.gif");
+        df.addCandidates(Arrays.asList(fa1, fb1, fa2, new File(imageDir, "textfile.txt"), fb2, fa3, fb3,
+                new File(imageDir, "PhotoTools.gif")));
+
+        assertEquals(1, batches.size());
+        assertEquals(Arrays.asList(fa1, fa2, fa3), batches.get(0));
+
+        List<List<File>> candidates = df.getCandidatesList();
+        assertEquals("Should be 2 groups of candidates", 2, candidates.size());
+        Set<Set<File>> candidateSets = new HashSet<Set<File>>();
+        for (List<File> l : candidates) {
+            candidateSets.add(new HashSet<File>(l));
+        }
+        assertTrue(candidateSets.contains(new HashSet<File>(Arrays.asList(fa1, fa2, fa3))));
+        assertTrue(candidateSets.contains(new HashSet<File>(Arrays.asList(fb1, fb2, fb3))));
+    }
+
+    public void testConcurrentAdd() throws Exception {
+        final DuplicateFinder df = new DuplicateFinder(new HashMap<String, PhotoMetadataProvider>());
+        Thread [] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = offset; i < 8000; i += 8) {
+                        // Files i, i+1 and i+2 for i a multiple of 4 end up in the same group
+                        Object key = i % 4 == 3 ? "single" + i : "key" + (i / 4);
+                        df.addCandidate(new File("/synthetic/" + i + ".jpg"), new Object [] {key});
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        List<List<File>> candidates = df.getCandidatesList();
+        assertEquals(2000, candidates.size());
+        for (List<File> l : candidates) {
+            assertEquals(3, l.size());
+            Set<Integer> groups = new HashSet<Integer>();
+            for (File f : l) {
+                groups.add(Integer.parseInt(f.getName().substring(0, f.getName().indexOf('.'))) / 4);
+            }
+            assertEquals(1, groups.size());
+        }
+    }
+
+    public void testContentDuplicates() throws Exception {
+        File dir = File.createTempFile(getClass().getSimpleName(), ".dir");
+        dir.delete();
+        assertTrue(dir.mkdirs());
+        List<File> files = new ArrayList<File>();
+
+        try {
+            int largeSize = ContentHasher.PARTIAL_SIZE * 3;
+            byte [] large = getBytes(largeSize, 0);
+            File a1 = createFile(dir, "a1.jpg", large, files);
+            File a2 = createFile(dir, "renamed.jpg", large, files);
+            File a3 = createFile(dir, "a3.JPG", large, files);
+
+            // Same size, same start and end, but a difference in the middle
+            byte [] middle = large.clone();
+            middle[largeSize / 2]++;
+            createFile(dir, "middle.jpg", middle, files);
+
+            // Same size, different start
+            byte [] start = large.clone();
+            start[0]++;
+            createFile(dir, "start.jpg", start, files);
+
+            byte [] small = getBytes(1000, 3);
+            File b1 = createFile(dir, "b1.jpg", small, files);
+            File b2 = createFile(dir, "b2.jpeg", small, files);
+            byte [] small2 = small.clone();
+            small2[500]++;
+            createFile(dir, "b3.jpg", small2, files);
+
+            // No metadata provider for this extension
+            createFile(dir, "b4.txt", small, files);
+
+            Map<String, PhotoMetadataProvider> providers = new HashMap<String, PhotoMetadataProvider>();
+            PhotoMetadataProvider jpmp = getMockJPEGMetadataProvider();
+            providers.put(".jpg", jpmp);
+            providers.put(".jpeg", jpmp);
+
+            DuplicateFinder df = new DuplicateFinder(providers, DuplicateFinder.COMPARE_CONTENTS);
+            for (File f : files) {
+                df.addCandidate(f);
+            }
+
+            List<List<File>> candidates = df.getCandidatesList();
+            assertEquals(2, candidates.size());
+            Set<Set<File>> actual = new HashSet<Set<File>>();
+            for (List<File> l : candidates) {
+                actual.add(new HashSet<File>(l));
+            }
+            Set<Set<File>> expected = new HashSet<Set<File>>();
+            expected.add(new HashSet<File>(Arrays.asList(a1, a2, a3)));
+            expected.add(new HashSet<File>(Arrays.asList(b1, b2)));
+            assertEquals(expected, actual);
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testIncrementalContentDuplicates() throws Exception {
+        File dir = File.createTempFile(getClass().getSimpleName(), ".dir");
+        dir.delete();
+        assertTrue(dir.mkdirs());
+        List<File> files = new ArrayList<File>();
+
+        try {
+            byte [] contents = getBytes(1000, 5);
+            File a1 = createFile(dir, "a1.jpg", contents, files);
+            File a2 = createFile(dir, "a2.jpg", contents, files);
+            File b1 = createFile(dir, "b1.jpg", getBytes(1000, 6), files);
+
+            Map<String, PhotoMetadataProvider> providers = new HashMap<String, PhotoMetadataProvider>();
+            providers.put(".jpg", getMockJPEGMetadataProvider());
+
+            DuplicateFinder df = new DuplicateFinder(providers, DuplicateFinder.COMPARE_CONTENTS);
+            df.addCandidate(a1);
+            df.addCandidate(b1);
+            assertEquals(0, df.getCandidatesList().size());
+
+            // A file added later is compared with the files of the same size seen before
+            df.addCandidate(a2);
+            List<List<File>> candidates = df.getCandidatesList();
+            assertEquals(1, candidates.size());
+            assertEquals(new HashSet<File>(Arrays.asList(a1, a2)), new HashSet<File>(candidates.get(0)));
+
+            File a3 = createFile(dir, "a3.jpg", contents, files);
+            df.addCandidate(a3);
+            df.removeCandidate(a1);
+            candidates = df.getCandidatesList();
+            assertEquals(1, candidates.size());
+            assertEquals(new HashSet<File>(Arrays.asList(a2, a3)), new HashSet<File>(candidates.get(0)));
+
+            // Groups with only one file left are no longer candidates
+            df.removeCandidate(a3);
+            assertEquals(0, df.getCandidatesList().size());
+
+            df.addCandidate(a3);
+            assertEquals(1, df.getCandidatesList().size());
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testChangedContentDuplicates() throws Exception {
+        File dir = File.createTempFile(getClass().getSimpleName(), ".dir");
+        dir.delete();
+        assertTrue(dir.mkdirs());
+        List<File> files = new ArrayList<File>();
+
+        try {
+            byte [] contents = getBytes(1000, 7);
+            File a1 = createFile(dir, "a1.jpg", contents, files);
+            File a2 = createFile(dir, "a2.jpg", contents, files);
+            File a3 = createFile(dir, "a3.jpg", contents, files);
+
+            Map<String, PhotoMetadataProvider> providers = new HashMap<String, PhotoMetadataProvider>();
+            providers.put(".jpg", getMockJPEGMetadataProvider());
+
+            DuplicateFinder df = new DuplicateFinder(providers, DuplicateFinder.COMPARE_CONTENTS);
+            df.addCandidate(a1);
+            df.addCandidate(a2);
+            df.addCandidate(a3);
+            assertEquals(new HashSet<File>(Arrays.asList(a1, a2, a3)), new HashSet<File>(df.getCandidatesList().get(0)));
+
+            // Same size, different contents: the changed file is no longer identical to the others
+            createFile(dir, "a2.jpg", getBytes(1000, 8), files);
+            df.addCandidate(a2);
+            List<List<File>> candidates = df.getCandidatesList();
+            assertEquals(1, candidates.size());
+            assertEquals(new HashSet<File>(Arrays.asList(a1, a3)), new HashSet<File>(candidates.get(0)));
+
+            // The file that linked the others changed too
+            createFile(dir, "a1.jpg", getBytes(1000, 9), files);
+            df.addCandidate(a1);
+            candidates = df.getCandidatesList();
+            assertEquals(0, candidates.size());
+
+            createFile(dir, "a2.jpg", contents, files);
+            df.addCandidate(a2);
+            candidates = df.getCandidatesList();
+            assertEquals(1, candidates.size());
+            assertEquals(new HashSet<File>(Arrays.asList(a2, a3)), new HashSet<File>(candidates.get(0)));
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    public void testChangedKeys() {
+        File a = new File("a");
+        File b = new File("b");
+        File c = new File("c");
+
+        DuplicateFinder df = new DuplicateFinder(new HashMap<String, PhotoMetadataProvider>());
+        df.addCandidate(a, new Object[] {"k1"});
+        df.addCandidate(b, new Object[] {"k1", "k2"});
+        df.addCandidate(c, new Object[] {"k2"});
+        assertEquals(new HashSet<File>(Arrays.asList(a, b, c)), new HashSet<File>(df.getCandidatesList().get(0)));
+
+        // b linked a and c, with its new keys they don't match anymore
+        df.addCandidate(b, new Object[] {"k3"});
+        assertEquals(0, df.getCandidatesList().size());
+
+        df.addCandidate(c, new Object[] {"k3"});
+        List<List<File>> candidates = df.getCandidatesList();
+        assertEquals(1, candidates.size());
+        assertEquals(new HashSet<File>(Arrays.asList(b, c)), new HashSet<File>(candidates.get(0)));
+
+        df.removeCandidate(b);
+        assertEquals(0, df.getCandidatesList().size());
+    }
+
+    public void testSimilarImages() throws Exception {
+        File dir = File.createTempFile(getClass().getSimpleName(), ".dir");
+        dir.delete();
+        assertTrue(dir.mkdirs());
+        List<File> files = new ArrayList<File>();
+
+        try {
+            BufferedImage original = createImage(800, 600, false);
+            File a1 = writeImage(dir, "a1.jpg", original, files);
+            File a2 = writeImage(dir, "a2.jpg", scale(original, 400, 300), files);
+            File a3 = writeImage(dir, "a3.png", scale(original, 200, 150), files);
+            writeImage(dir, "b1.jpg", createImage(800, 600, true), files);
+
+            Map<String, PhotoMetadataProvider> providers = new HashMap<String, PhotoMetadataProvider>();
+            providers.put(".jpg", getMockGifMetadataProvider());
+            providers.put(".png", getMockGifMetadataProvider());
+
+            DuplicateFinder df = new DuplicateFinder(providers, DuplicateFinder.COMPARE_SIMILAR);
+            for (File f : files) {
+                df.addCandidate(f);
+            }
+
+            List<List<File>> candidates = df.getCandidatesList();
+            assertEquals(1, candidates.size());
+            assertEquals(new HashSet<File>(Arrays.asList(a1, a2, a3)), new HashSet<File>(candidates.get(0)));
+        } finally {
+            for (File f : files) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    private static BufferedImage createImage(int width, int height, boolean flipped) {
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = img.createGraphics();
+        for (int x = 0; x < width; x++) {
+            int v = (flipped ? width - x : x) * 255 / width;
+            g.setColor(new Color(v, 255 - v, (v * 3) % 256));
+            g.drawLine(x, 0, x, height);
+        }
+        g.setColor(Color.WHITE);
+        g.fillOval(width / 4, height / 4, width / 3, height / 2);
+        g.dispose();
+        return img;
+    }
+
+    private static BufferedImage scale(BufferedImage img, int width, int height) {
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(img, 0, 0, width, height, null);
+        g.dispose();
+        return scaled;
+    }
+
+    private static File writeImage(File dir, String name, BufferedImage img, List<File> files) throws Exception {
+        File f = new File(dir, name);
+        assertTrue(ImageIO.write(img, name.substring(name.lastIndexOf('.') + 1), f));
+        files.add(f);
+        return f;
+    }
+
+    private static byte [] getBytes(int size, int seed) {
+        byte [] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private static File createFile(File dir, String name, byte [] contents, List<File> files) throws Exception {
+        File f = new File(dir, name);
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(contents);
+        } finally {
+            fos.close();
+        }
+        files.add(f);
+        return f;
+    }
+
     private PhotoMetadataProvider getMockGifMetadataProvider() {
         return new PhotoMetadataProvider() {
             @Override
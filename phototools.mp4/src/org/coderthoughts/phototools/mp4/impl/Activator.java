@@ -17,10 +17,14 @@ import java.util.Hashtable;
 
 import org.coderthoughts.phototools.api.AboutInfo;
 import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.util.CachingPhotoMetadataProvider;
+import org.coderthoughts.phototools.util.MetadataCache;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
 public class Activator implements BundleActivator {
+    private MetadataCache metadataCache;
+
     @Override
     public void start(BundleContext context) throws Exception {
         setupPhotoProcessors(context);
@@ -29,12 +33,16 @@ public class Activator implements BundleActivator {
     private void setupPhotoProcessors(BundleContext context) {
         Dictionary<String, Object> props = new Hashtable<String, Object>();
         props.put("format", new String [] {".mp4", ".mov", ".m4v", ".3gp"});
-        context.registerService(PhotoMetadataProvider.class.getName(), new MP4MetadataProvider(), props);
+        metadataCache = new MetadataCache(context.getDataFile("metadata.cache"), 1000);
+        context.registerService(PhotoMetadataProvider.class.getName(),
+            new CachingPhotoMetadataProvider(new MP4MetadataProvider(), metadataCache, true), props);
 
         context.registerService(AboutInfo.class.getName(), new MyAboutInfo(), null);
     }
 
     @Override
     public void stop(BundleContext context) throws Exception {
+        if (metadataCache != null)
+            metadataCache.close();
     }
 }
@@ -0,0 +1,275 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License").
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.coderthoughts.phototools.mp4.impl;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Date;
+
+/**
+ * A lightweight reader for the creation date and the dimensions of an MP4 file. Only the top-level
+ * box headers, the movie header box and the track and media header boxes are looked at, the media
+ * data and the sample tables are skipped. As with the mp4parser library, the date and the dimensions
+ * are those of the last enabled track. If no enabled track has a date the date of the movie is used.
+ */
+class MP4Header {
+    private static final long EPOCH_1904 = 2082844800L; // seconds from 1904 to 1970
+    private static final int MAX_MOVIE_BOX_SIZE = 64 * 1024 * 1024;
+
+    private Date date;
+    private Integer height;
+    private Integer width;
+
+    private MP4Header() {
+    }
+
+    /**
+     * Read the header information from a file. Only the headers of the top-level boxes are read,
+     * the movie box is read wherever it is in the file. It isn't memory-mapped, as a mapped file
+     * can't be deleted on Windows until the mapping is garbage collected.
+     * @param file The MP4 file.
+     * @return The header information.
+     * @throws IOException If the file cannot be read or the movie box isn't found.
+     */
+    static MP4Header read(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel fc = raf.getChannel();
+            long fileSize = fc.size();
+            ByteBuffer headerBuf = ByteBuffer.allocate(16);
+            long position = 0;
+            while (position < fileSize) {
+                headerBuf.clear();
+                while (headerBuf.hasRemaining() && fc.read(headerBuf, position + headerBuf.position()) > 0);
+                headerBuf.flip();
+
+                Box box = Box.read(headerBuf, fileSize - position);
+                if (box.is("moov")) {
+                    if (box.payload > MAX_MOVIE_BOX_SIZE)
+                        throw new IOException("Unexpected size of MP4 moov box: " + box.payload);
+
+                    ByteBuffer data = ByteBuffer.allocate((int) box.payload);
+                    long dataPosition = position + box.headerSize;
+                    while (data.hasRemaining()) {
+                        if (fc.read(data, dataPosition + data.position()) < 0)
+                            throw new EOFException("Truncated MP4 moov box in " + file);
+                    }
+                    data.flip();
+                    return parse(data);
+                }
+                // Typically the media data box, which can be many GBs
+                position += box.getSize();
+            }
+            throw new IOException("No movie box found in " + file);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Read the header information from a stream. The stream is read up to the end of the movie box
+     * and is not closed.
+     * @param is The stream, positioned at the start of the MP4 file.
+     * @return The header information.
+     * @throws IOException If the stream cannot be read or the movie box isn't found.
+     */
+    static MP4Header read(InputStream is) throws IOException {
+        DataInputStream in = new DataInputStream(is);
+        byte [] headerBytes = new byte[16];
+        while (true) {
+            // A stream can't seek, if the movie box is at the end all the media data is skipped
+            in.readFully(headerBytes, 0, 8);
+            int headerSize = 8;
+            if (ByteBuffer.wrap(headerBytes).getInt() == 1) {
+                in.readFully(headerBytes, 8, 8);
+                headerSize = 16;
+            }
+
+            Box box = Box.read(ByteBuffer.wrap(headerBytes, 0, headerSize), Long.MAX_VALUE);
+            if (box.is("moov")) {
+                if (box.payload > MAX_MOVIE_BOX_SIZE)
+                    throw new IOException("Unexpected size of MP4 moov box: " + box.payload);
+
+                byte [] data = new byte[(int) box.payload];
+                in.readFully(data);
+                return parse(ByteBuffer.wrap(data));
+            }
+            skipFully(in, box.payload);
+        }
+    }
+
+    Date getDate() {
+        return date;
+    }
+
+    Integer getHeight() {
+        return height;
+    }
+
+    Integer getWidth() {
+        return width;
+    }
+
+    private static MP4Header parse(ByteBuffer moov) throws IOException {
+        MP4Header header = new MP4Header();
+        try {
+            header.readMovie(moov);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated MP4 header box", e);
+        }
+        return header;
+    }
+
+    private void readMovie(ByteBuffer moov) throws IOException {
+        Date movieDate = null;
+        boolean trackDate = false;
+        while (moov.hasRemaining()) {
+            Box box = Box.read(moov, moov.remaining());
+            ByteBuffer payload = box.slice(moov);
+            if (box.is("mvhd")) {
+                movieDate = readCreationTime(payload);
+            } else if (box.is("trak")) {
+                trackDate |= readTrack(payload);
+            }
+        }
+        if (!trackDate)
+            date = movieDate;
+    }
+
+    /**
+     * @return <tt>true</tt> if the track is enabled.
+     */
+    private boolean readTrack(ByteBuffer trak) throws IOException {
+        ByteBuffer tkhd = null;
+        ByteBuffer mdhd = null;
+        while (trak.hasRemaining()) {
+            Box box = Box.read(trak, trak.remaining());
+            ByteBuffer payload = box.slice(trak);
+            if (box.is("tkhd")) {
+                tkhd = payload;
+            } else if (box.is("mdia")) {
+                while (payload.hasRemaining()) {
+                    Box child = Box.read(payload, payload.remaining());
+                    ByteBuffer childPayload = child.slice(payload);
+                    if (child.is("mdhd"))
+                        mdhd = childPayload;
+                }
+            }
+        }
+
+        if (tkhd == null)
+            return false;
+
+        int version = tkhd.get() & 0xFF;
+        int flags = ((tkhd.get() & 0xFF) << 16) | (tkhd.getShort() & 0xFFFF);
+        if ((flags & 1) == 0)
+            return false; // not enabled
+
+        // Skip the times, track ID and duration, then the reserved, layer, group, volume and matrix fields
+        tkhd.position(tkhd.position() + (version == 1 ? 32 : 20) + 52);
+        width = (int) ((tkhd.getInt() & 0xFFFFFFFFL) >> 16); // 16.16 fixed point
+        height = (int) ((tkhd.getInt() & 0xFFFFFFFFL) >> 16);
+
+        date = mdhd == null ? null : readCreationTime(mdhd);
+        return true;
+    }
+
+    private static Date readCreationTime(ByteBuffer fullBox) {
+        // mvhd and mdhd both start with the version and flags followed by the creation time
+        int version = fullBox.getInt() >>> 24;
+        long creationTime = version == 1 ? fullBox.getLong() : fullBox.getInt() & 0xFFFFFFFFL;
+        return new Date((creationTime - EPOCH_1904) * 1000L);
+    }
+
+    private static void skipFully(DataInputStream in, long length) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                // skip() doesn't report the end of the stream
+                if (in.read() < 0)
+                    throw new EOFException();
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+
+    private static class Box {
+        private final String type;
+        private final int headerSize;
+        private final long payload;
+
+        private Box(String type, int headerSize, long payload) {
+            this.type = type;
+            this.headerSize = headerSize;
+            this.payload = payload;
+        }
+
+        /**
+         * Read a box header.
+         * @param buf The buffer holding the header, the position is moved to the end of the header.
+         * @param available The number of bytes left in the enclosing box or file, used for boxes that
+         * extend to the end.
+         */
+        static Box read(ByteBuffer buf, long available) throws IOException {
+            if (buf.remaining() < 8)
+                throw new EOFException();
+
+            long size = buf.getInt() & 0xFFFFFFFFL;
+            byte [] type = new byte[4];
+            buf.get(type);
+
+            int headerSize = 8;
+            if (size == 1) {
+                // 64-bit size, used for large media data boxes
+                if (buf.remaining() < 8)
+                    throw new EOFException();
+                size = buf.getLong();
+                headerSize = 16;
+            } else if (size == 0) {
+                // The box extends to the end of the file
+                size = available;
+            }
+            if (size < headerSize || size > available)
+                throw new IOException("Invalid MP4 box size: " + size);
+
+            return new Box(new String(type, "ISO-8859-1"), headerSize, size - headerSize);
+        }
+
+        boolean is(String t) {
+            return type.equals(t);
+        }
+
+        long getSize() {
+            return headerSize + payload;
+        }
+
+        /**
+         * @return The payload of this box in the buffer, which is positioned after the box.
+         */
+        ByteBuffer slice(ByteBuffer buf) {
+            ByteBuffer result = buf.slice();
+            result.limit((int) payload);
+            buf.position(buf.position() + (int) payload);
+            return result;
+        }
+    }
+}
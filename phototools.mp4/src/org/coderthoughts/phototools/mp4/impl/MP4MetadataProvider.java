@@ -16,22 +16,92 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 import com.googlecode.mp4parser.authoring.Movie;
 import com.googlecode.mp4parser.authoring.Track;
 import com.googlecode.mp4parser.authoring.TrackMetaData;
 import com.googlecode.mp4parser.authoring.container.mp4.MovieCreator;
 
+import org.coderthoughts.phototools.api.CancellablePhotoMetadataProvider;
+import org.coderthoughts.phototools.api.CancellationToken;
+import org.coderthoughts.phototools.api.MetadataRecord;
 import org.coderthoughts.phototools.api.PhotoMetadataBuilder;
-import org.coderthoughts.phototools.api.PhotoMetadataProvider;
+import org.coderthoughts.phototools.api.StreamingPhotoMetadataProvider;
+import org.coderthoughts.phototools.api.TypedPhotoMetadataProvider;
+
+public class MP4MetadataProvider implements CancellablePhotoMetadataProvider, StreamingPhotoMetadataProvider,
+        TypedPhotoMetadataProvider {
+    private static final int MAX_PREVIEW_SAMPLES = 16;
+    private static final int MAX_POSTER_FRAMES = 100;
+
+    private final Map<String, PosterFrame> posterFrames = new LinkedHashMap<String, PosterFrame>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PosterFrame> eldest) {
+            return size() > MAX_POSTER_FRAMES;
+        }
+    };
 
-public class MP4MetadataProvider implements PhotoMetadataProvider {
     @Override
     public Metadata getMetaData(File f) {
+        return getMetaData(f, CancellationToken.NONE);
+    }
+
+    @Override
+    public Metadata getMetaData(final File f, final CancellationToken token) {
+        MP4Header header;
+        try {
+            header = MP4Header.read(f);
+        } catch (IOException e) {
+            // Not something the header reader understands, let mp4parser have a go
+            return getMovieMetaData(f, token);
+        }
+
+        // Obtaining the preview means parsing the whole movie, only do that when it's asked for
+        return new PhotoMetadataBuilder().
+                dateTaken(header.getDate()).
+                previewFileLazy(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        return getPosterFrame(f, token);
+                    }
+                }).
+                height(header.getHeight()).
+                width(header.getWidth()).getMetadata();
+    }
+
+    @Override
+    public MetadataRecord getMetadataRecord(File f) {
+        Date date;
+        Integer height, width;
+        try {
+            MP4Header header = MP4Header.read(f);
+            date = header.getDate();
+            height = header.getHeight();
+            width = header.getWidth();
+        } catch (IOException e) {
+            Metadata md = getMovieMetaData(f, CancellationToken.NONE);
+            date = md.getDateTaken();
+            height = md.getHeightInPixels();
+            width = md.getWidthInPixels();
+        }
+
+        // Movies don't have the camera and location information of photos
+        return new MetadataRecord(date == null ? MetadataRecord.UNKNOWN_DATE : date.getTime(),
+                width == null ? -1 : width, height == null ? -1 : height, Double.NaN, Double.NaN, null, null, 0);
+    }
+
+    private Metadata getMovieMetaData(File f, CancellationToken token) {
         Date date = null;
         File previewFile = null;
         Integer height = null, width = null;
@@ -40,17 +110,23 @@ public class MP4MetadataProvider implements PhotoMetadataProvider {
         try {
              raf = new RandomAccessFile(f, "r");
              Movie video = MovieCreator.build(raf.getChannel());
+
+             // The metadata is that of the last enabled track, so only that track is looked at
+             Track lastEnabled = null;
              for (Track track : video.getTracks()) {
-                 if (!track.isEnabled())
-                     continue;
+                 if (track.isEnabled())
+                     lastEnabled = track;
+             }
 
-                 TrackMetaData md = track.getTrackMetaData();
+             if (lastEnabled != null) {
+                 TrackMetaData md = lastEnabled.getTrackMetaData();
                  date = md.getCreationTime();
-                 previewFile = getPreviewFile(track);
                  height = (int) md.getHeight();
                  width = (int) md.getWidth();
+                 previewFile = getPreviewFile(lastEnabled, token);
+                 if (!token.isCancelled())
+                     putPosterFrame(f, previewFile);
              }
-
         } catch (Throwable e) {
             e.printStackTrace();
         } finally {
@@ -64,46 +140,84 @@ public class MP4MetadataProvider implements PhotoMetadataProvider {
                 width(width).getMetadata();
     }
 
-    private File getPreviewFile(Track track) throws IOException {
-        for (ByteBuffer sample : track.getSamples()) {
-            File tempFile = File.createTempFile("Preview", ".jpg");
-            FileChannel fc = null;
-            try {
-                fc = new FileOutputStream(tempFile).getChannel();
-                fc.write(sample);
-
-                if (isJPEGFile(tempFile)) {
-                    tempFile.deleteOnExit();
-                    return tempFile;
-                } else {
-                    tempFile.delete();
-                }
-            } finally {
-                closeCloseable(fc);
-            }
+    @Override
+    public Metadata getMetaData(InputStream is) {
+        MP4Header header;
+        try {
+            header = MP4Header.read(is);
+        } catch (IOException e) {
+            // For instance the movie box is at the end of the file
+            return null;
         }
 
+        return new PhotoMetadataBuilder().
+                dateTaken(header.getDate()).
+                height(header.getHeight()).
+                width(header.getWidth()).getMetadata();
+    }
+
+    private File getPosterFrame(File f, CancellationToken token) {
+        synchronized (posterFrames) {
+            PosterFrame pf = posterFrames.get(f.getAbsolutePath());
+            if (pf != null && pf.isValidFor(f))
+                return pf.previewFile;
+        }
+        return getMovieMetaData(f, token).getPreviewFile();
+    }
+
+    private void putPosterFrame(File f, File previewFile) {
+        synchronized (posterFrames) {
+            posterFrames.put(f.getAbsolutePath(), new PosterFrame(f, previewFile));
+        }
+    }
+
+    private File getPreviewFile(Track track, CancellationToken token) throws IOException {
+        // Only movies made of JPEG frames have a preview. Every frame of those is a JPEG, so there
+        // is no need to look beyond the first few samples and the first sync sample.
+        List<ByteBuffer> samples = track.getSamples();
+        int count = Math.min(samples.size(), MAX_PREVIEW_SAMPLES);
+        for (int i = 0; i < count; i++) {
+            if (token.isCancelled())
+                return null;
+
+            ByteBuffer sample = samples.get(i);
+            if (isJPEG(sample))
+                return writePreviewFile(sample);
+        }
+
+        long [] syncSamples = track.getSyncSamples();
+        if (syncSamples != null && syncSamples.length > 0 &&
+                syncSamples[0] > count && syncSamples[0] <= samples.size()) {
+            // Sync sample numbers start at 1
+            ByteBuffer sample = samples.get((int) syncSamples[0] - 1);
+            if (isJPEG(sample))
+                return writePreviewFile(sample);
+        }
         return null;
     }
 
-    private boolean isJPEGFile(File tempFile) throws IOException {
-        RandomAccessFile rf = new RandomAccessFile(tempFile, "r");
+    private static boolean isJPEG(ByteBuffer sample) {
+        // Check for the magic start (FFD8) and end (FFD9) markers.
+        int start = sample.position();
+        int end = sample.limit();
+        return end - start >= 4 &&
+                (sample.get(start) & 0xFF) == 0xFF && (sample.get(start + 1) & 0xFF) == 0xD8 &&
+                (sample.get(end - 2) & 0xFF) == 0xFF && (sample.get(end - 1) & 0xFF) == 0xD9;
+    }
+
+    private File writePreviewFile(ByteBuffer sample) throws IOException {
+        File tempFile = File.createTempFile("Preview", ".jpg");
+        tempFile.deleteOnExit();
+        FileChannel fc = null;
         try {
-            // is it a JPEG file? Check for the magic start (FFD8) and end (FFD9) markers.
-            if (rf.read() == 255) {
-                if (rf.read() == 216) {
-                    rf.seek(rf.length() - 2);
-                    if (rf.read() == 255) {
-                        if (rf.read() == 217) {
-                            return true;
-                        }
-                    }
-                }
-            }
+            fc = new FileOutputStream(tempFile).getChannel();
+            ByteBuffer data = sample.duplicate();
+            while (data.hasRemaining())
+                fc.write(data);
         } finally {
-            rf.close();
+            closeCloseable(fc);
         }
-        return false;
+        return tempFile;
     }
 
     private void closeCloseable(Closeable closeable) {
@@ -115,4 +229,25 @@ public class MP4MetadataProvider implements PhotoMetadataProvider {
             }
         }
     }
+
+    /**
+     * The preview of a movie file, or the knowledge that it doesn't have one, as long as the movie
+     * file doesn't change.
+     */
+    private static class PosterFrame {
+        private final long length;
+        private final long lastModified;
+        private final File previewFile;
+
+        PosterFrame(File f, File previewFile) {
+            this.length = f.length();
+            this.lastModified = f.lastModified();
+            this.previewFile = previewFile;
+        }
+
+        boolean isValidFor(File f) {
+            return f.length() == length && f.lastModified() == lastModified &&
+                    (previewFile == null || previewFile.exists());
+        }
+    }
 }